@@ -167,6 +167,71 @@ public final class Converter {
 		return bytes;
 	}
 
+  /**
+   * Writes the <code>size</code> least significant bytes of the
+   * <code>long</code> into the destination byte array starting at the offset,
+   * in big endian format. No array is allocated, and no validation is
+   * performed on the destination array.
+   *
+   * @param num
+   *          the number to write
+   * @param dst
+   *          the destination byte array
+   * @param offset
+   *          the offset into the destination array to start writing at
+   * @param size
+   *          the number of bytes to write, between 1 and 8
+   * @return int the offset following the last byte written
+   */
+  public static final int longToBytesBE( long num, byte[] dst, int offset,
+      int size ) {
+    for (int i = size - 1; i >= 0; i--) {
+      dst[offset++] = (byte)( ( num >> ( i * 8 ) ) & 0xFFL );
+    }
+    return offset;
+  }
+
+  /**
+   * Reads <code>size</code> bytes from the source byte array starting at the
+   * offset as an unsigned big endian number. No array is allocated, and no
+   * validation is performed on the source array.
+   *
+   * @param src
+   *          the source byte array
+   * @param offset
+   *          the offset into the source array to start reading from
+   * @param size
+   *          the number of bytes to read, between 0 and 8
+   * @return long represented by the bytes
+   */
+  public static final long bytesToLongBE( byte[] src, int offset, int size ) {
+    long value = 0;
+    for (int i = 0; i < size; i++) {
+      value = ( value << 8 ) + ( src[offset + i] & 0xffL );
+    }
+    return value;
+  }
+
+  /**
+   * Gets the minimum number of bytes required to encode the <code>long</code>
+   * as a BER INTEGER, i.e. as big endian two's complement without redundant
+   * leading octets. Non-negative numbers with the most significant bit of the
+   * leading octet set are given an extra leading zero octet so that they are
+   * not decoded as negative numbers.
+   *
+   * @param num
+   *          the number to size
+   * @return int the number of bytes, between 1 and 8
+   */
+  public static final int minBytesLengthBE( long num ) {
+    int size = 1;
+    while (size < 8 && ( num >> ( size * 8 - 1 ) ) != 0
+        && ( num >> ( size * 8 - 1 ) ) != -1L) {
+      size++;
+    }
+    return size;
+  }
+
 	/**
 	 * Converts the <code>int</code> to a byte array. The size of the byte array
 	 * is optimised thus that the smallest number of bytes is used to represents
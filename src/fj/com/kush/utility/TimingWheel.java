@@ -0,0 +1,276 @@
+/**
+ *
+ * Copyright (c) 2008, Packwolf Consulting Ltd, All Rights Reserved.
+ *
+ * @author      Nishchal Kush
+ * @version     %I%, %G%
+ * @since       1.0
+ */
+package fj.com.kush.utility;
+
+/**
+ * <code>TimingWheel</code> is a hashed timing wheel holding a large number of
+ * timers with O(1) scheduling and cancelling. Time is divided into ticks and
+ * each timer is hashed into the bucket of the tick its deadline falls in,
+ * wrapping around the wheel for deadlines beyond one rotation. Advancing the
+ * wheel only visits the buckets of the ticks that have passed.
+ *
+ * Timers are intrusive, i.e. a <code>Timer</code> is its own list node, thus
+ * scheduling allocates nothing. Timers whose deadline falls in the current
+ * tick are tracked, so <code>getNextDeadline</code> lets a driver sleep until
+ * the exact deadline rather than the tick boundary.
+ *
+ * All times are in nanoseconds on any monotonic scale, e.g.
+ * <code>System.nanoTime</code> or a simulated time. Instances are not thread
+ * safe and are intended to be driven by a single thread.
+ */
+public final class TimingWheel {
+
+  // constants
+
+  public static final long DEFAULT_TICK_NANOS = 1000000L; // 1ms
+  public static final int  DEFAULT_WHEEL_SIZE = 4096;
+
+  // attributes
+
+  private final Timer[]    buckets;
+  private final int        mask;
+  private final long       tickNanos;
+
+  private long             currentTick   = Long.MIN_VALUE;
+  private long             currentMin    = Long.MAX_VALUE; // earliest deadline
+                                                          // in current tick
+  private int              size          = 0;
+
+  // constructors
+
+  /**
+   * Default constructor
+   */
+  public TimingWheel() {
+    this( TimingWheel.DEFAULT_TICK_NANOS, TimingWheel.DEFAULT_WHEEL_SIZE );
+  }
+
+  /**
+   * Constructor accepting the duration of a tick and the number of buckets.
+   * The number of buckets is rounded up to a power of 2.
+   *
+   * @param tickNanos
+   *          the duration of a tick in nanoseconds
+   * @param wheelSize
+   *          the number of buckets
+   */
+  public TimingWheel(long tickNanos, int wheelSize) {
+    int length = Integer.highestOneBit( Math.max( wheelSize, 2 ) - 1 ) << 1;
+    this.buckets = new Timer[length];
+    this.mask = length - 1;
+    this.tickNanos = Math.max( tickNanos, 1 );
+  }
+
+  // accessors
+
+  /**
+   * Gets the earliest time the wheel needs advancing, i.e. the earliest
+   * deadline within the current tick, or else the start of the next tick
+   *
+   * @return long the time in nanoseconds
+   */
+  public long getNextDeadline() {
+    if (this.currentTick == Long.MIN_VALUE) {
+      return Long.MIN_VALUE; // not yet advanced
+    }
+    long nextTick = ( this.currentTick + 1 ) * this.tickNanos;
+    return Math.min( this.currentMin, nextTick );
+  }
+
+  /**
+   * Gets the duration of a tick
+   *
+   * @return long the tick in nanoseconds
+   */
+  public long getTickNanos() {
+    return this.tickNanos;
+  }
+
+  /**
+   * Gets the number of scheduled timers
+   *
+   * @return int the number of timers
+   */
+  public int size() {
+    return this.size;
+  }
+
+  // mutators
+
+  /**
+   * Schedules the timer supplied to expire at the deadline specified. A timer
+   * already scheduled is rescheduled. A deadline in the past expires on the
+   * next <code>advance</code>.
+   *
+   * @param timer
+   *          the timer
+   * @param deadline
+   *          the time to expire in nanoseconds
+   */
+  public void schedule(Timer timer, long deadline) {
+    if (timer.wheel != null) {
+      timer.wheel.cancel( timer );
+    }
+    // before the first advance the time is unknown, see advance
+    long tick = Math.max( Math.floorDiv( deadline, this.tickNanos ),
+        this.currentTick );
+    if (tick == this.currentTick && deadline < this.currentMin) {
+      this.currentMin = deadline;
+    }
+
+    // insert at the head of the bucket
+    int index = (int) tick & this.mask;
+    timer.deadline = deadline;
+    timer.wheel = this;
+    timer.bucket = index;
+    timer.prev = null;
+    timer.next = this.buckets[index];
+    if (timer.next != null) {
+      timer.next.prev = timer;
+    }
+    this.buckets[index] = timer;
+    this.size++;
+  }
+
+  /**
+   * Cancels the timer supplied, if scheduled on this wheel
+   *
+   * @param timer
+   *          the timer
+   * @return boolean true if the timer was cancelled, else false
+   */
+  public boolean cancel(Timer timer) {
+    if (timer.wheel != this) {
+      return false;
+    }
+    if (timer.prev != null) {
+      timer.prev.next = timer.next;
+    } else {
+      this.buckets[timer.bucket] = timer.next;
+    }
+    if (timer.next != null) {
+      timer.next.prev = timer.prev;
+    }
+    timer.next = null;
+    timer.prev = null;
+    timer.wheel = null;
+    this.size--;
+    return true;
+  }
+
+  // auxillary methods
+
+  /**
+   * Expires, in no particular order within a tick, every timer whose deadline
+   * is at or before the time supplied. Timers may reschedule themselves, or
+   * other timers, from <code>expire</code>.
+   *
+   * @param now
+   *          the current time in nanoseconds
+   * @return int the number of timers expired
+   */
+  public int advance(long now) {
+    long target = Math.floorDiv( now, this.tickNanos );
+    if (this.currentTick == Long.MIN_VALUE) {
+      this.currentTick = target - this.mask; // first advance, visit every bucket
+    }
+    if (target < this.currentTick) {
+      return 0;
+    }
+
+    // after a full rotation every bucket has been visited
+    long last = Math.min( target, this.currentTick + this.mask );
+    long first = this.currentTick;
+    this.currentTick = target;
+    this.currentMin = Long.MAX_VALUE;
+
+    int expired = 0;
+    for (long tick = first; tick <= last; tick++) {
+      expired += this.expireBucket( (int) tick & this.mask, now );
+    }
+    if (last != target) {
+      // the current tick's bucket was visited within the full rotation, but
+      // its earliest deadline must still be recorded
+      expired += this.expireBucket( (int) target & this.mask, now );
+    }
+    return expired;
+  }
+
+  /**
+   * Expires the due timers in the bucket specified and records the earliest
+   * remaining deadline within the current tick
+   *
+   * @return int the number of timers expired
+   */
+  private int expireBucket(int index, long now) {
+    int expired = 0;
+    long tickEnd = ( this.currentTick + 1 ) * this.tickNanos;
+    Timer timer = this.buckets[index];
+    while (timer != null) {
+      Timer next = timer.next;
+      if (timer.deadline <= now) {
+        this.cancel( timer );
+        timer.expire( now );  // may reschedule, at the head of a bucket
+        expired++;
+        if (next != null && ( next.wheel != this || next.bucket != index )) {
+          next = this.buckets[index]; // the next timer was cancelled, restart
+        }
+      } else if (timer.deadline < tickEnd && timer.deadline < this.currentMin) {
+        this.currentMin = timer.deadline;
+      }
+      timer = next;
+    }
+    return expired;
+  }
+
+  /**
+   * A timer held by a <code>TimingWheel</code>, extended to perform the
+   * action when the timer expires
+   */
+  public static abstract class Timer {
+
+    // attributes
+
+    private long        deadline = 0;
+    private TimingWheel wheel    = null;
+    private int         bucket   = 0;
+    private Timer       next     = null;
+    private Timer       prev     = null;
+
+    // accessors
+
+    /**
+     * Gets the deadline the timer was last scheduled for
+     *
+     * @return long the deadline in nanoseconds
+     */
+    public long getDeadline() {
+      return this.deadline;
+    }
+
+    /**
+     * Gets if the timer is scheduled
+     *
+     * @return boolean true if scheduled, else false
+     */
+    public boolean isScheduled() {
+      return this.wheel != null;
+    }
+
+    // auxillary methods
+
+    /**
+     * Invoked by <code>advance</code> when the timer expires
+     *
+     * @param now
+     *          the time the wheel was advanced to, in nanoseconds
+     */
+    protected abstract void expire(long now);
+  }
+}
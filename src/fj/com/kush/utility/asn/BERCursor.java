@@ -0,0 +1,530 @@
+/**
+ *
+ * Copyright (c) 2008, Packwolf Consulting Ltd, All Rights Reserved.
+ *
+ * @author      Nishchal Kush
+ * @version     %I%, %G%
+ * @since       1.0
+ */
+package fj.com.kush.utility.asn;
+
+import java.nio.ByteBuffer;
+
+import fj.com.kush.utility.Converter;
+
+/**
+ * <code>BERCursor</code> is a reusable, allocation free cursor for reading and
+ * writing ASN.1 BER encoded tag-length-value (TLV) triplets in a byte array,
+ * or reading them from a <code>ByteBuffer</code>. Single octet tags are
+ * supported, which covers the IEC 61850 GOOSE tag set, and lengths are read
+ * and written in both the short form (0 to 127) and the definite long form
+ * (0x81 to 0x84 followed by 1 to 4 length octets). The indefinite form is not
+ * used by GOOSE and is rejected.
+ *
+ * Reading is done with <code>next</code>, which reads the TLV header at the
+ * current position and moves the cursor past the whole TLV. The tag, length
+ * and value offset of that TLV remain available until the next invocation.
+ * Constructed values are read by invoking <code>enter</code> and
+ * <code>exit</code> around the TLVs they contain.
+ *
+ * Instances are not thread safe.
+ */
+public final class BERCursor {
+
+  // constants
+
+  // Tag octet settings Ref. X.690 8.1.2
+  public static final int TAG_UNIVERSAL   = 0x00;
+  public static final int TAG_APPLICATION = 0x40;
+  public static final int TAG_CONTEXT     = 0x80;
+  public static final int TAG_PRIVATE     = 0xc0;
+  public static final int TAG_CONSTRUCTED = 0x20;
+
+  // long form length prefix, the low bits hold the number of length octets
+  public static final int LENGTH_LONG_FORM = 0x80;
+
+  // attributes
+
+  private byte[]     array       = null;
+  private ByteBuffer buffer      = null;
+  private int        position    = 0;
+  private int        limit       = 0;
+
+  // the TLV last read by next
+  private int        tag         = -1;
+  private int        length      = -1;
+  private int        valueOffset = -1;
+
+  // constructors
+
+  /**
+   * Default constructor
+   */
+  public BERCursor() {
+    this.array = null;
+    this.buffer = null;
+  }
+
+  // accessors
+
+  /**
+   * Gets the length of the value of the TLV last read
+   *
+   * @return int the length in bytes
+   */
+  public int length() {
+    return length;
+  }
+
+  /**
+   * Gets the limit of the cursor, i.e. the offset following the last byte
+   * that may be read or written
+   *
+   * @return int the limit
+   */
+  public int limit() {
+    return limit;
+  }
+
+  /**
+   * Gets the current position of the cursor
+   *
+   * @return int the position
+   */
+  public int position() {
+    return position;
+  }
+
+  /**
+   * Gets the tag of the TLV last read
+   *
+   * @return int the tag as an unsigned octet
+   */
+  public int tag() {
+    return tag;
+  }
+
+  /**
+   * Gets the offset of the value of the TLV last read
+   *
+   * @return int the value offset
+   */
+  public int valueOffset() {
+    return valueOffset;
+  }
+
+  /**
+   * Checks if there are bytes remaining before the limit
+   *
+   * @return boolean true if bytes remain, else false
+   */
+  public boolean hasRemaining() {
+    return position < limit;
+  }
+
+  // mutators
+
+  /**
+   * Sets the position of the cursor
+   *
+   * @param position
+   *          the position to set
+   */
+  public void position(int position) {
+    this.position = position;
+  }
+
+  /**
+   * Wraps the region of the byte array supplied for reading or writing. The
+   * array is NOT copied!
+   *
+   * @param array
+   *          the byte array
+   * @param offset
+   *          the offset to start at
+   * @param limit
+   *          the offset following the last byte of the region
+   * @return BERCursor this cursor
+   */
+  public BERCursor wrap(byte[] array, int offset, int limit) {
+    this.array = array;
+    this.buffer = null;
+    this.position = offset;
+    this.limit = limit;
+    this.tag = -1;
+    this.length = -1;
+    this.valueOffset = -1;
+    return this;
+  }
+
+  /**
+   * Wraps the region of the <code>ByteBuffer</code> supplied for reading.
+   * Offsets are absolute indexes into the buffer. The position and limit of
+   * the buffer are not modified.
+   *
+   * @param buffer
+   *          the byte buffer
+   * @param offset
+   *          the index to start at
+   * @param limit
+   *          the index following the last byte of the region
+   * @return BERCursor this cursor
+   */
+  public BERCursor wrap(ByteBuffer buffer, int offset, int limit) {
+    if (buffer.hasArray()) {
+      return this.wrap( buffer.array(), buffer.arrayOffset() + offset,
+          buffer.arrayOffset() + limit );
+    }
+    this.wrap( (byte[]) null, offset, limit );
+    this.buffer = buffer;
+    return this;
+  }
+
+  // auxillary methods - reading
+
+  /**
+   * Reads the TLV header at the current position and moves the cursor past
+   * the value
+   *
+   * @return boolean true if a well formed TLV was read, false if there are no
+   *         bytes remaining or the TLV is malformed or extends past the limit
+   */
+  public boolean next() {
+    if (position >= limit) {
+      return false;
+    }
+    int index = position;
+    int t = this.get( index++ ) & 0xff;
+    if (index >= limit) {
+      return false;
+    }
+
+    // length
+    int first = this.get( index++ ) & 0xff;
+    long len = first;
+    if (first >= LENGTH_LONG_FORM) {
+      int octets = first & 0x7f;
+      if (octets == 0 || octets > 4 || index + octets > limit) {
+        return false;
+      }
+      len = this.getUnsigned( index, octets );
+      index += octets;
+    }
+    if (index + len > limit) {
+      return false;
+    }
+
+    this.tag = t;
+    this.length = (int) len;
+    this.valueOffset = index;
+    this.position = index + (int) len;
+    return true;
+  }
+
+  /**
+   * Reads TLVs until one with the tag specified is found
+   *
+   * @param t
+   *          the tag to find
+   * @return boolean true if found, else false
+   */
+  public boolean find(int t) {
+    while (this.next()) {
+      if (this.tag == ( t & 0xff )) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Enters the value of the TLV last read, i.e. restricts the cursor to the
+   * TLVs contained within a constructed value
+   *
+   * @return int the current limit, to be supplied to <code>exit</code>
+   */
+  public int enter() {
+    int outer = this.limit;
+    this.position = this.valueOffset;
+    this.limit = this.valueOffset + this.length;
+    return outer;
+  }
+
+  /**
+   * Exits a constructed value entered with <code>enter</code>, moving the
+   * cursor past it
+   *
+   * @param outerLimit
+   *          the limit returned by <code>enter</code>
+   */
+  public void exit(int outerLimit) {
+    this.position = this.limit;
+    this.limit = outerLimit;
+  }
+
+  /**
+   * Reads the value of the TLV last read as a signed INTEGER
+   *
+   * @return long the value, or 0 if empty or longer than 8 bytes
+   */
+  public long readInteger() {
+    if (length < 1 || length > 8) {
+      return 0;
+    }
+    long value = this.getUnsigned( valueOffset, length );
+    if (length < 8 && ( this.get( valueOffset ) & 0x80 ) != 0) {
+      value -= 1L << ( length * 8 ); // sign extend
+    }
+    return value;
+  }
+
+  /**
+   * Reads the value of the TLV last read as an unsigned INTEGER, e.g. stNum
+   *
+   * @return long the value, or 0 if empty or longer than 8 bytes
+   */
+  public long readUnsigned() {
+    if (length < 1 || length > 8) {
+      return 0;
+    }
+    return this.getUnsigned( valueOffset, length );
+  }
+
+  /**
+   * Reads the value of the TLV last read as a BOOLEAN
+   *
+   * @return boolean true if the first value octet is non-zero, else false
+   */
+  public boolean readBoolean() {
+    return length > 0 && this.get( valueOffset ) != 0;
+  }
+
+  /**
+   * Reads the value of the TLV last read as a VisibleString, i.e. each byte
+   * as a single ASCII character
+   *
+   * @return String the value
+   */
+  public String readVisibleString() {
+    StringBuilder sb = new StringBuilder( length );
+    for (int i = 0; i < length; i++) {
+      sb.append( (char) ( this.get( valueOffset + i ) & 0xff ) );
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Copies the value of the TLV last read into a new byte array
+   *
+   * @return byte[] a copy of the value
+   */
+  public byte[] readBytes() {
+    byte[] value = new byte[length];
+    for (int i = 0; i < length; i++) {
+      value[i] = this.get( valueOffset + i );
+    }
+    return value;
+  }
+
+  /**
+   * Compares the value of the TLV last read with the region of the byte
+   * array supplied
+   *
+   * @return boolean true if equal, else false
+   */
+  public boolean valueEquals(byte[] other, int otherOffset, int otherLength) {
+    if (other == null || length != otherLength) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (this.get( valueOffset + i ) != other[otherOffset + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Gets the byte at the absolute offset specified
+   *
+   * @param index
+   *          the offset
+   * @return byte the byte
+   */
+  public byte get(int index) {
+    return (array != null ? array[index] : buffer.get( index ));
+  }
+
+  /**
+   * Reads an unsigned big endian number of up to 8 bytes at the absolute
+   * offset specified
+   *
+   * @param index
+   *          the offset
+   * @param size
+   *          the number of bytes
+   * @return long the number
+   */
+  public long getUnsigned(int index, int size) {
+    long value = 0;
+    for (int i = 0; i < size; i++) {
+      value = ( value << 8 ) + ( this.get( index + i ) & 0xffL );
+    }
+    return value;
+  }
+
+  // auxillary methods - writing
+
+  /**
+   * Writes a TLV header, i.e. the tag and length, at the current position
+   *
+   * @param t
+   *          the tag
+   * @param len
+   *          the length of the value that follows
+   * @return int the position following the header
+   */
+  public int writeHeader(int t, int len) {
+    this.position = BERCursor.writeHeader( array, position, t, len );
+    return this.position;
+  }
+
+  /**
+   * Writes a TLV with an INTEGER value using the minimum number of bytes
+   *
+   * @return int the position following the TLV
+   */
+  public int writeInteger(int t, long value) {
+    this.position = BERCursor.writeInteger( array, position, t, value );
+    return this.position;
+  }
+
+  /**
+   * Writes a TLV with a BOOLEAN value
+   *
+   * @return int the position following the TLV
+   */
+  public int writeBoolean(int t, boolean value) {
+    this.writeHeader( t, 1 );
+    array[position++] = (byte) (value ? 0x01 : 0x00);
+    return this.position;
+  }
+
+  /**
+   * Writes a TLV with a VisibleString value. The characters of a
+   * VisibleString are restricted to ASCII, thus each character is written as
+   * a single byte.
+   *
+   * @return int the position following the TLV
+   */
+  public int writeVisibleString(int t, String value) {
+    int len = value.length();
+    this.writeHeader( t, len );
+    for (int i = 0; i < len; i++) {
+      array[position++] = (byte) value.charAt( i );
+    }
+    return this.position;
+  }
+
+  /**
+   * Writes the bytes supplied at the current position
+   *
+   * @return int the position following the bytes
+   */
+  public int writeBytes(byte[] src, int srcOffset, int len) {
+    System.arraycopy( src, srcOffset, array, position, len );
+    this.position += len;
+    return this.position;
+  }
+
+  // static methods
+
+  /**
+   * Gets the number of octets required to encode the length supplied
+   *
+   * @param len
+   *          the length of a value
+   * @return int the number of length octets, 1 for the short form
+   */
+  public static int sizeOfLength(int len) {
+    if (len < 0x80) {
+      return 1;
+    } else if (len <= 0xff) {
+      return 2;
+    } else if (len <= 0xffff) {
+      return 3;
+    } else if (len <= 0xffffff) {
+      return 4;
+    }
+    return 5;
+  }
+
+  /**
+   * Gets the total number of bytes of a TLV with a single octet tag and a
+   * value of the length supplied
+   *
+   * @param len
+   *          the length of the value
+   * @return int the size of the TLV
+   */
+  public static int sizeOf(int len) {
+    return 1 + BERCursor.sizeOfLength( len ) + len;
+  }
+
+  /**
+   * Gets the number of bytes required to encode the value of an INTEGER, i.e.
+   * as big endian two's complement without redundant leading octets
+   *
+   * @param value
+   *          the value
+   * @return int the number of bytes, between 1 and 8
+   */
+  public static int sizeOfInteger(long value) {
+    return Converter.minBytesLengthBE( value );
+  }
+
+  /**
+   * Writes the length supplied into the byte array at the index specified,
+   * in the short form if possible, else in the long form
+   *
+   * @return int the index following the length octets
+   */
+  public static int writeLength(byte[] dst, int index, int len) {
+    int octets = BERCursor.sizeOfLength( len ) - 1;
+    if (octets == 0) {
+      dst[index++] = (byte) len;
+      return index;
+    }
+    dst[index++] = (byte) (LENGTH_LONG_FORM | octets);
+    for (int i = octets - 1; i >= 0; i--) {
+      dst[index++] = (byte) (len >> ( i * 8 ));
+    }
+    return index;
+  }
+
+  /**
+   * Writes a TLV header, i.e. the tag and length, into the byte array at the
+   * index specified
+   *
+   * @return int the index following the header
+   */
+  public static int writeHeader(byte[] dst, int index, int t, int len) {
+    dst[index++] = (byte) t;
+    return BERCursor.writeLength( dst, index, len );
+  }
+
+  /**
+   * Writes a TLV with an INTEGER value, using the minimum number of bytes,
+   * into the byte array at the index specified
+   *
+   * @return int the index following the TLV
+   */
+  public static int writeInteger(byte[] dst, int index, int t, long value) {
+    int size = BERCursor.sizeOfInteger( value );
+    index = BERCursor.writeHeader( dst, index, t, size );
+    for (int i = size - 1; i >= 0; i--) {
+      dst[index++] = (byte) (value >> ( i * 8 ));
+    }
+    return index;
+  }
+}
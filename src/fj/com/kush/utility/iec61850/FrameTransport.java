@@ -0,0 +1,146 @@
+/**
+ *
+ * Copyright (c) 2008, Packwolf Consulting Ltd, All Rights Reserved.
+ *
+ * @author      Nishchal Kush
+ * @version     %I%, %G%
+ * @since       1.0
+ */
+package fj.com.kush.utility.iec61850;
+
+/**
+ * <code>FrameTransport</code> sends and receives raw Ethernet frames for the
+ * <code>GOOSEPublisher</code>s and <code>GOOSESubscriber</code>s wired to it,
+ * so the GOOSE code does not depend on a particular network library. A
+ * transport has one or more ports, e.g. one per network interface, numbered
+ * from 0. The built in transports are:
+ *
+ * <code>PcapTransport</code>, sending and capturing on the network interfaces
+ * through jnetpcap, which requires a NIC and capture privileges.
+ *
+ * <code>LoopbackTransport</code>, an in-memory bus between transports in the
+ * same JVM, e.g. to measure encode and decode throughput without a NIC.
+ *
+ * <code>PcapFileTransport</code>, reading frames from and writing frames to
+ * capture files.
+ *
+ * Any number of threads may send. Each port may be received from by a single
+ * thread at a time, e.g. a capture thread per port.
+ */
+public interface FrameTransport {
+
+  /**
+   * Gets the number of ports of the transport
+   *
+   * @return int the number of ports, or -1 if the ports can not be listed,
+   *         see <code>getError</code>
+   */
+  int getPortCount();
+
+  /**
+   * Gets the hardware address of the port specified, used as the source
+   * address of the frames sent on it. The byte array is NOT copied!
+   *
+   * @param port
+   *          the port
+   * @return byte[] the MAC address, or null if the port has none, when the
+   *         source address of the message is kept
+   */
+  byte[] getMac(int port);
+
+  /**
+   * Gets the name of the port specified, e.g. of its network interface
+   *
+   * @param port
+   *          the port
+   * @return String the name
+   */
+  String getName(int port);
+
+  /**
+   * Gets the last error of the port specified
+   *
+   * @param port
+   *          the port
+   * @return String the error, or null if none
+   */
+  String getError(int port);
+
+  /**
+   * Sends the frame supplied on the port specified. The frame is not
+   * referenced once the method returns.
+   *
+   * @param port
+   *          the port
+   * @param frame
+   *          the byte array holding the frame
+   * @param offset
+   *          the offset of the frame
+   * @param length
+   *          the length of the frame
+   * @return boolean true if the frame was sent, else false
+   */
+  boolean send(int port, byte[] frame, int offset, int length);
+
+  /**
+   * Sends every frame of the batch supplied, in order, on the port specified.
+   * The batch is not referenced once the method returns. By default each
+   * frame is sent in turn, transports able to hand over the whole slab at
+   * once override it.
+   *
+   * @param port
+   *          the port
+   * @param batch
+   *          the frames to send
+   * @return int the number of frames sent
+   */
+  default int send(int port, GOOSEFrameBatch batch) {
+    byte[] slab = batch.getSlab();
+    int sent = 0;
+    for (int i = 0; i < batch.size(); i++) {
+      if (this.send( port, slab, batch.getOffset( i ), batch.getLength( i ) )) {
+        sent++;
+      }
+    }
+    return sent;
+  }
+
+  /**
+   * Receives up to the number of frames specified on the port specified,
+   * waiting up to the timeout of the transport for the first one. The frames
+   * are only valid until the handler returns.
+   *
+   * @param port
+   *          the port
+   * @param max
+   *          the largest number of frames to receive
+   * @param handler
+   *          handles each frame received
+   * @return int the number of frames received, or -1 if no more frames can
+   *         be received, e.g. at the end of a capture file or on an error
+   */
+  int receive(int port, int max, GOOSEFrameBatch.FrameHandler handler);
+
+  /**
+   * Sets the capture filter of every port, in the pcap filter syntax, see
+   * <code>GOOSEFilter</code>, so frames not matching it are dropped before
+   * they are received. The filter takes effect at the next receive.
+   *
+   * @param filter
+   *          the filter expression, or null to receive every frame
+   * @return boolean true if the transport filters, false if it does not
+   *         support filters and every frame is received
+   */
+  boolean setFilter(String filter);
+
+  /**
+   * Wakes the threads waiting in <code>receive</code>, which return early,
+   * e.g. when a capture loop is stopped
+   */
+  void wakeup();
+
+  /**
+   * Closes the transport, releasing its handles or files
+   */
+  void close();
+}
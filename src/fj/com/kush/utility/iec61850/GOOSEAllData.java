@@ -1,261 +1,399 @@
-/**
- *
- * Copyright (c) 2008, Packwolf Consulting Ltd, All Rights Reserved.
- *
- * @author      Nishchal Kush
- * @version     %I%, %G%
- * @since       1.0
- */
-package fj.com.kush.utility.iec61850;
-
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Iterator;
-
-import fj.com.kush.utility.BytesUtility;
-import fj.com.kush.utility.Converter;
-
-// Collection
-
-/**
- * <code>GOOSEAllData</code> class encapsulates the <code>GOOSEData</code>
- * elements to represent the allData field in the
- * <code>GOOSEMessageGoosePDU</code> PDU for <code>GOOSEMessage</code> messages.
- */
-public class GOOSEAllData {
-
-	// constants
-
-  public static final byte TAG = (byte)0xab; // context tag for data set,
-  // followed by the length in bytes of the all data
-
-	// attributes
-
-	private byte[] bytes = null;
-	private Collection<GOOSEData> gooseData = null;
-
-	// constructors
-
-	/**
-	 * Default constructor
-	 */
-	public GOOSEAllData() {
-		this.gooseData = new ArrayList<GOOSEData>();
-	}
-
-	/**
-	 * Creates and instance of GOOSEAllData after parsing the byte array buffer
-	 * supplied after reading off of the network.
-	 * 
-	 * @param buffer
-	 *            the bytes array buffer
-	 * @param offset
-	 *            the offset into the bytes array to start processing from
-	 * @return GOOSEALLData represeting the parsed bytes or null
-	 */
-	public static GOOSEAllData getInstance(byte[] buffer, int offset) {
-		// get num elements
-		int start = offset + 1; // skip the current tag byte
-		byte[] value = GOOSEMessageGoosePDU.getValue(buffer, start);
-		int numEntries = Converter.bytesToIntBE(value);
-		start += value.length + 1; // skip the value and length
-
-		GOOSEAllData allData = new GOOSEAllData();
-
-		// if there are data bytes then process them
-		if (numEntries > 0) {
-      start += 2; // skip preamble 0xab, see this.TAG and overall length
-
-			for (int i = 0; i < numEntries; i++) {
-				// get data type tag (1 byte)
-        int tag = buffer[start++]; // get the tag and skip it (++)
- 
-        // get the data value
-				value = GOOSEMessageGoosePDU.getValue(buffer, start);
-
-				// get the goose data
-        GOOSEData data = GOOSEData.getInstance( tag, value );
-        // allData.addGOOSEData( data );
-        allData.setDataAt( i, data );
-				start += value.length + 1; // skip the length and value bytes
-			}
-		}
-
-		return allData;
-	}
-
-	// accessors
-
-	/**
-	 * Gets the collection of all <code>GOOSEData</code>
-	 * 
-	 * @return collection of all GOOSEData
-	 */
-	public Collection<GOOSEData> getAllData() {
-	  synchronized(gooseData) {
-		  return this.gooseData;
-	  }
-	}
-
-	/**
-	 * Gets the length of bytes for all data
-	 * 
-	 * @return int the number of bytes
-	 */
-	public int getBytesLength() {
-		this.bytes = this.toBytes();
-		if (this.bytes == null) {
-			return 0;
-		} else {
-			return this.bytes.length;
-		}
-	}
-
-  /**
-   * Gets the <code>GOOSEData</code> at the offset specified
-   * 
-   * @param offset
-   *          the offset into the all data to get the GOOSE data at
-   * @returns GOOSEData at the offset specified
-   */
-  public GOOSEData getDataAt( int offset ) {
-    synchronized(gooseData) {
-      return ( (ArrayList<GOOSEData>)this.gooseData ).get( offset );
-    }
-  }
-
-	/**
-	 * Gets the number of GOOSEData elements
-	 * 
-	 * @return the number of elements
-	 */
-	public int getNumEntries() {
-	  synchronized(gooseData) {
-		  return this.gooseData.size();
-	  }
-	}
-
-	// mutators
-
-	/**
-	 * Adds the <code>GOOSEData</code> to the collection
-	 * 
-	 * @param data
-	 *            GOOSEData to add
-	 */
-	public void addGOOSEData(GOOSEData data) {
-		if (data == null) {
-			return;
-		}
-		this.bytes = null;
-		synchronized(gooseData) {
-		  this.gooseData.add(data);
-		}
-	}
-	
-	  /**
-   * Sets the <code>GOOSEData</code> at the offset specified. If the specified
-   * offset is invalid then the data is appended to the collection
-   * 
-   * @param offset
-   *          the offset into the <code>ArrayList</code>
-   * @param data
-   *          the <code>GOOSEData</code> to set
-   */
-	public void setDataAt(int offset, GOOSEData data) {
-    this.bytes = null;
-    boolean offset_error = false;
-
-    if (offset < 0 || offset >= gooseData.size()) {
-      offset_error = true;
-    }
-
-	  synchronized(gooseData) {
-	    //((ArrayList<GOOSEData>)this.gooseData).add(offset, data);
-      if (gooseData.isEmpty() || offset_error) {
-        // ( (ArrayList<GOOSEData>)this.gooseData ).add( data );
-        this.addGOOSEData( data );
-      } else {
-        ( (ArrayList<GOOSEData>)this.gooseData ).set( offset, data );
-      }
-	  }
-	}
-
-	// auxillary methods
-
-  /**
-   * Converts the <code>GOOSEAllData<code> instance to an array of bytes. 
-   * The method should only be invoked once the instance has been completely set
-   * 
-   * @return byte[] representing the instance
-   */
-	public byte[] toBytes() {
-		if (this.getAllData().size() == 0) {
-			return null;
-		}
-
-		// try to be efficient if multiple calls are made without adding new
-		// data, i.e. be lazy and return the previous bytes array
-		if (this.bytes != null) {
-			return bytes;
-		}
-
-		// calculate the length
-		int length = 0;
-    Iterator<GOOSEData> iter = null;
-		synchronized(gooseData) {
-		  iter = this.gooseData.iterator();
-		  while (iter.hasNext()) {
-			  GOOSEData data = (GOOSEData) iter.next();
-        if (data != null) {
-          length += data.getBytesLength();
-        }
-		  }
-		}
-	  iter = null;
-
-		// construct the bytes array
-    byte[] buffer = new byte[length + 2]; // 1 byte tag (0xab) + 1 bytes length
-    buffer[0] = (byte)GOOSEAllData.TAG;
-		buffer[1] = (byte) length; // length
-
-    // FIXME: refactor to see if can be used with calculate length iteration
-    // go through all GOOSE data
-		synchronized(gooseData) {
-  		iter = this.gooseData.iterator();
-  		int buffOffset = 2;
-  		while (iter.hasNext()) {
-  			GOOSEData data = (GOOSEData) iter.next();
-  			byte[] data_bytes = data.toBytes();
-  			if (data_bytes != null) {
-  				BytesUtility.copyBytes(data_bytes, buffer, 0,
-  						data_bytes.length, buffOffset);
-  				buffOffset += data_bytes.length;
-  			}
-  		}
-		}
-
-		this.bytes = buffer;
-		return buffer;
-	}
-
-	    /**
-   * Returns a string representing the <code>GOOSEAllData</code> instance. This
-   * method invokes the <code>toString</code> method of the encapsulated
-   * <code>GOOSEData</code> objects.
-   * 
-   * @return String representing the instance
-   */
-	public String toString() {
-		StringBuilder sb = new StringBuilder();
-		sb.append("allData" + ConstStrings.NEWLINE);
-		synchronized(gooseData) {
-  		Iterator<GOOSEData> iter = gooseData.iterator();
-  		while (iter.hasNext()) {
-  			GOOSEData data = (GOOSEData) iter.next();
-  			sb.append(data.toString());
-  		}
-		}
-		return sb.toString();
-	}
-}
+/**
+ *
+ * Copyright (c) 2008, Packwolf Consulting Ltd, All Rights Reserved.
+ *
+ * @author      Nishchal Kush
+ * @version     %I%, %G%
+ * @since       1.0
+ */
+package fj.com.kush.utility.iec61850;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicReference;
+
+import fj.com.kush.utility.asn.BERCursor;
+
+// Collection
+
+/**
+ * <code>GOOSEAllData</code> class encapsulates the <code>GOOSEData</code>
+ * elements to represent the allData field in the
+ * <code>GOOSEMessageGoosePDU</code> PDU for <code>GOOSEMessage</code> messages.
+ * 
+ * The elements are held in an immutable, versioned snapshot. Writers copy the
+ * current snapshot, apply their change and publish the next version with a
+ * single atomic compare and set, thus readers and encoders never lock and
+ * always see a consistent set of elements. The elements themselves are
+ * immutable, so a value is changed by setting a new element, and the version
+ * alone tells whether the data set changed.
+ */
+public class GOOSEAllData {
+
+	// constants
+
+  public static final byte TAG = (byte)0xab; // context tag for data set,
+  // followed by the length in bytes of the all data
+
+  private static final Snapshot EMPTY = new Snapshot( new GOOSEData[0], 0 );
+
+	// attributes
+
+	private final AtomicReference<Snapshot> snapshot = new AtomicReference<Snapshot>( EMPTY );
+
+	// constructors
+
+	/**
+	 * Default constructor
+	 */
+	public GOOSEAllData() {
+		this.snapshot.set( EMPTY );
+	}
+
+	/**
+	 * Creates and instance of GOOSEAllData after parsing the byte array buffer
+	 * supplied after reading off of the network.
+	 * 
+	 * @param buffer
+	 *            the bytes array buffer
+	 * @param offset
+	 *            the offset into the bytes array to start processing from, i.e.
+	 *            the numDatSetEntries tag preceding the allData
+	 * @return GOOSEALLData represeting the parsed bytes or null
+	 */
+	public static GOOSEAllData getInstance(byte[] buffer, int offset) {
+		if (buffer == null) {
+			return null;
+		}
+
+		BERCursor cursor = new BERCursor().wrap(buffer, offset, buffer.length);
+		if (!cursor.find(GOOSEAllData.TAG)) {
+			return new GOOSEAllData(); // no data
+		}
+		return GOOSEAllData.getInstance(cursor);
+	}
+
+	/**
+	 * Creates and instance of GOOSEAllData from the allData TLV last read by
+	 * the cursor supplied. The cursor is moved past the allData.
+	 * 
+	 * @param cursor
+	 *            the BER cursor positioned after the allData tag and length
+	 * @return GOOSEALLData represeting the parsed bytes
+	 */
+	static GOOSEAllData getInstance(BERCursor cursor) {
+		ArrayList<GOOSEData> list = new ArrayList<GOOSEData>();
+
+		int outer = cursor.enter();
+		while (cursor.next()) {
+			// get the goose data, unsupported types are skipped
+			GOOSEData data = GOOSEData.getInstance(cursor.tag(), cursor.readBytes());
+			if (data != null) {
+				list.add(data);
+			}
+		}
+		cursor.exit(outer);
+
+		// publish all the elements as the first version
+		GOOSEAllData allData = new GOOSEAllData();
+		allData.snapshot.set(new Snapshot(list.toArray(new GOOSEData[list.size()]), 1));
+		return allData;
+	}
+
+	// accessors
+
+	/**
+	 * Gets an unmodifiable view of the <code>GOOSEData</code> elements of the
+	 * current version
+	 * 
+	 * @return collection of all GOOSEData
+	 */
+	public Collection<GOOSEData> getAllData() {
+		return Collections.unmodifiableList(Arrays.asList(this.snapshot.get().data));
+	}
+
+	/**
+	 * Gets the length of bytes for all data
+	 * 
+	 * @return int the number of bytes
+	 */
+	public int getBytesLength() {
+		return this.getEncodedLength();
+	}
+
+  /**
+   * Gets the <code>GOOSEData</code> at the offset specified
+   * 
+   * @param offset
+   *          the offset into the all data to get the GOOSE data at
+   * @returns GOOSEData at the offset specified
+   */
+  public GOOSEData getDataAt( int offset ) {
+    GOOSEData[] data = this.snapshot.get().data;
+    if (offset < 0 || offset >= data.length) {
+      throw new IndexOutOfBoundsException( "Index: " + offset + ", Size: "
+          + data.length );
+    }
+    return data[offset];
+  }
+
+  /**
+   * Gets the modification count of the all data, i.e. the version, which
+   * changes whenever a new version is published
+   * 
+   * @return int the modification count
+   */
+  int getModCount() {
+    return this.getModCount( this.getSnapshot() );
+  }
+
+  /**
+   * Gets the modification count of the snapshot supplied, see
+   * <code>getModCount()</code>
+   */
+  int getModCount( Snapshot current ) {
+    return (current != null ? current.version : this.getModCount());
+  }
+
+	/**
+	 * Gets the number of GOOSEData elements
+	 * 
+	 * @return the number of elements
+	 */
+	public int getNumEntries() {
+		return this.snapshot.get().data.length;
+	}
+
+  /**
+   * Gets the number of GOOSEData elements of the snapshot supplied
+   */
+  int getNumEntries( Snapshot current ) {
+    return (current != null ? current.data.length : this.getNumEntries());
+  }
+
+  /**
+   * Gets the current snapshot of the elements. Subclasses that do not hold
+   * their elements in snapshots return null.
+   * 
+   * @return Snapshot the current version
+   */
+  Snapshot getSnapshot() {
+    return this.snapshot.get();
+  }
+
+  /**
+   * Gets the version of the all data, which is incremented whenever an
+   * element is added or set
+   * 
+   * @return int the version
+   */
+  public int getVersion() {
+    return this.snapshot.get().version;
+  }
+
+	// mutators
+
+	/**
+	 * Adds the <code>GOOSEData</code> to the collection
+	 * 
+	 * @param data
+	 *            GOOSEData to add
+	 */
+	public void addGOOSEData(GOOSEData data) {
+		if (data == null) {
+			return;
+		}
+		this.setDataAt(-1, data);
+	}
+
+	  /**
+   * Sets the <code>GOOSEData</code> at the offset specified. If the specified
+   * offset is invalid then the data is appended to the collection
+   * 
+   * @param offset
+   *          the offset into the <code>ArrayList</code>
+   * @param data
+   *          the <code>GOOSEData</code> to set
+   */
+	public void setDataAt(int offset, GOOSEData data) {
+    Snapshot current;
+    Snapshot next;
+    do {
+      current = this.snapshot.get();
+      GOOSEData[] elements;
+      if (offset < 0 || offset >= current.data.length) {
+        elements = Arrays.copyOf( current.data, current.data.length + 1 );
+        elements[current.data.length] = data;
+      } else {
+        elements = current.data.clone();
+        elements[offset] = data;
+      }
+      next = new Snapshot( elements, current.version + 1 );
+    } while (!this.snapshot.compareAndSet( current, next ));
+	}
+
+  /**
+   * Replaces all the elements with the <code>GOOSEData</code> supplied,
+   * published as a single version, e.g. to update several measurement values
+   * at once. Null elements are skipped.
+   *
+   * @param data
+   *          the GOOSEData elements
+   */
+  public void setAllData(Collection<GOOSEData> data) {
+    ArrayList<GOOSEData> list = new ArrayList<GOOSEData>();
+    if (data != null) {
+      for (GOOSEData element : data) {
+        if (element != null) {
+          list.add( element );
+        }
+      }
+    }
+    GOOSEData[] elements = list.toArray( new GOOSEData[list.size()] );
+
+    Snapshot current;
+    do {
+      current = this.snapshot.get();
+    } while (!this.snapshot.compareAndSet( current, new Snapshot( elements,
+        current.version + 1 ) ));
+  }
+
+	// auxillary methods
+
+  /**
+   * Converts the <code>GOOSEAllData<code> instance to an array of bytes.
+   * 
+   * @return byte[] representing the instance
+   */
+	public byte[] toBytes() {
+    Snapshot current = this.getSnapshot();
+		if (current.data.length == 0) {
+			return null;
+		}
+
+		byte[] buffer = new byte[this.getEncodedLength(current)];
+		this.encodeTo(current, buffer, 0);
+		return buffer;
+	}
+
+  /**
+   * Writes the allData tag (0xab), length and every <code>GOOSEData</code>
+   * element of the current version into the byte array supplied, starting at
+   * the offset specified. No intermediate arrays are allocated.
+   * 
+   * @param buffer
+   *          the byte array to write the data to
+   * @param offset
+   *          the offset into the byte array to start writing at
+   * @return int the number of bytes written, 0 if there is no data, or -1 if
+   *         the buffer is too small
+   */
+  public int encodeTo(byte[] buffer, int offset) {
+    return this.encodeTo( this.getSnapshot(), buffer, offset );
+  }
+
+  /**
+   * Writes the elements of the snapshot supplied, see
+   * <code>encodeTo(byte[], int)</code>
+   */
+  int encodeTo(Snapshot current, byte[] buffer, int offset) {
+    if (current == null) {
+      return this.encodeTo( buffer, offset );
+    }
+    if (current.data.length == 0) {
+      return 0;
+    }
+    int valueLength = GOOSEAllData.getValueLength( current );
+    int length = BERCursor.sizeOf( valueLength );
+    if (buffer == null || offset < 0 || offset + length > buffer.length) {
+      return -1;
+    }
+
+    // tag and length, long form when the data exceeds 127 bytes
+    int index = BERCursor.writeHeader(buffer, offset, GOOSEAllData.TAG,
+        valueLength);
+
+    GOOSEData[] elements = current.data;
+    for (int i = 0; i < elements.length; i++) {
+      if (elements[i] != null) {
+        index += elements[i].encodeTo(buffer, index);
+      }
+    }
+
+    return index - offset;
+  }
+
+  /**
+   * Gets the number of bytes required to encode the all data, i.e. the 1 byte
+   * tag (0xab) + the BER length octets + the encoded length of every
+   * <code>GOOSEData</code> element. No arrays are allocated.
+   * 
+   * @return int the encoded length, or 0 if there is no data
+   */
+  public int getEncodedLength() {
+    return this.getEncodedLength( this.getSnapshot() );
+  }
+
+  /**
+   * Gets the encoded length of the snapshot supplied, see
+   * <code>getEncodedLength()</code>
+   */
+  int getEncodedLength(Snapshot current) {
+    if (current == null) {
+      return this.getEncodedLength();
+    }
+    if (current.data.length == 0) {
+      return 0;
+    }
+    return BERCursor.sizeOf(GOOSEAllData.getValueLength(current));
+  }
+
+  /**
+   * Gets the sum of the encoded lengths of every <code>GOOSEData</code>
+   * element, i.e. the length of the allData value
+   * 
+   * @return int the value length
+   */
+  private static int getValueLength(Snapshot current) {
+    int length = 0;
+    GOOSEData[] elements = current.data;
+    for (int i = 0; i < elements.length; i++) {
+      if (elements[i] != null) {
+        length += elements[i].getEncodedLength();
+      }
+    }
+    return length;
+  }
+
+	    /**
+   * Returns a string representing the <code>GOOSEAllData</code> instance. This
+   * method invokes the <code>toString</code> method of the encapsulated
+   * <code>GOOSEData</code> objects.
+   * 
+   * @return String representing the instance
+   */
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("allData" + ConstStrings.NEWLINE);
+		GOOSEData[] elements = this.snapshot.get().data;
+		for (int i = 0; i < elements.length; i++) {
+			sb.append(elements[i].toString());
+		}
+		return sb.toString();
+	}
+
+  /**
+   * An immutable version of the elements of a <code>GOOSEAllData</code>
+   */
+  static final class Snapshot {
+    final GOOSEData[] data;
+    final int         version;
+
+    Snapshot(GOOSEData[] data, int version) {
+      this.data = data;
+      this.version = version;
+    }
+  }
+}
@@ -0,0 +1,41 @@
+/**
+ *
+ * Copyright (c) 2008, Packwolf Consulting Ltd, All Rights Reserved.
+ *
+ * @author      Nishchal Kush
+ * @version     %I%, %G%
+ * @since       1.0
+ */
+package fj.com.kush.utility.iec61850;
+
+/**
+ * A source of the time used to stamp the t field of
+ * <code>GOOSEMessageGoosePDU</code>s, e.g. the system clock, a PTP
+ * synchronised clock or a simulated clock when generating data sets.
+ * Implementations must be thread safe and should not allocate.
+ */
+public interface GOOSEClock {
+
+  // constants
+
+  // the default clock, see GOOSESystemClock
+  public static final GOOSEClock SYSTEM = new GOOSESystemClock();
+
+  // auxillary methods
+
+  /**
+   * Gets the current time
+   *
+   * @return long the nanoseconds since the epoch
+   */
+  public long currentTimeNanos();
+
+  /**
+   * Gets the time quality of the clock, encoded as the last octet of a
+   * UtcTime (Ref. IEC 61850-8-1 8.1.3.6), i.e. the leap second known, clock
+   * failure and clock not synchronised flags and the 5 bit time accuracy
+   *
+   * @return int the time quality octet
+   */
+  public int getTimeQuality();
+}
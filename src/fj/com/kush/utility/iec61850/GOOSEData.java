@@ -10,14 +10,18 @@ package fj.com.kush.utility.iec61850;
 
 import java.util.BitSet;
 
-import fj.com.kush.utility.BytesUtility;
 import fj.com.kush.utility.Converter;
-// BytesUtility, Converter
+import fj.com.kush.utility.asn.BERCursor;
+// Converter
 // BitSet
 
 /**
  * Ref IEC 61850 8.1 Annex G and GOOSE Annex A See also IEC 61850 7.1 p17 Tab.14
  * 
+ * A <code>GOOSEData</code> is immutable, so a data set snapshot holding it
+ * never changes while it is encoded. A new value is published by setting a
+ * new element, see <code>GOOSEAllData.setDataAt</code>.
+ * 
  * Data ::= CHOICE { -- context tag 0 is reserved for AccessResult array [1]
  * IMPLICIT SEQUENCE OF Data, structure [2] IMPLICIT SEQUENCE OF Data, boolean
  * [3] IMPLICIT BOOLEAN, bit-string [4] IMPLICIT BIT STRING, integer [5]
@@ -37,14 +41,15 @@ public class GOOSEData {
 
 	// attributes
 
-	private int type = -1; // type of data
-	private Object value = null; // value of the data
+	private final int type; // type of data
+	private final Object value; // value of the data
 	private byte[] bytes = null;
 
 	// constructors
 
 	/**
-	 * Constructor accepting the type and value of the <code>GOOSEData</code>
+	 * Constructor accepting the type and value of the <code>GOOSEData</code>.
+	 * A bit string value is copied.
 	 * 
 	 * @param int the data type
 	 * @param Object
@@ -52,8 +57,8 @@ public class GOOSEData {
 	 */
 	public GOOSEData(int type, Object value) {
 		// TODO throw exception if type or value are invalid
-		this.setType(type);
-		this.setValue(value);
+		this.type = type;
+		this.value = GOOSEData.copy(value);
 	}
 
 	  /**
@@ -103,62 +108,28 @@ public class GOOSEData {
 	}
 
 	/**
+	 * Gets the value, a copy of a bit string value
+	 * 
 	 * @return the value
 	 */
 	public Object getValue() {
-		return value;
+		return GOOSEData.copy(value);
 	}
 
 	/**
 	 * Gets the length of bytes for this <code>GOOSEData</code>
 	 */
 	public int getBytesLength() {
-    // attempt to convert to bytes and get length
-    this.bytes = this.toBytes();
-		if (this.bytes == null) {
-      return 0; // something's terribly wrong
-		}
-
-		return this.bytes.length;
-	}
-
-	
-
-	// mutators
-
-	/**
-	 * Sets the type of data
-	 * 
-	 * @param type
-	 *            the type to set
-	 */
-	public void setType(int type) {
-		this.type = type;
-		this.bytes = null;
+		return this.getEncodedLength();
 	}
 
-	/**
-	 * Sets the value and type
-	 * 
-	 * @param type
-	 *            the type of data
-	 * @param value
-	 *            the value of the data
-	 */
-	public void setData(int type, Object value) {
-		this.setType(type);
-		this.setValue(value);
-	}
+	// auxillary methods
 
 	/**
-	 * Sets the value of data
-	 * 
-	 * @param value
-	 *            the value to set
+	 * Copies a mutable value, i.e. a bit string
 	 */
-	public void setValue(Object value) {
-		this.value = value;
-		this.bytes = null;
+	private static Object copy(Object value) {
+		return (value instanceof BitSet ? ((BitSet) value).clone() : value);
 	}
 
 	/**
@@ -186,137 +157,211 @@ public class GOOSEData {
 	 * utc-time [17] IMPLICIT UtcTime -- added by IEC61850 8.1 G3
 	 */
 	public byte[] toBytes() {
-		if (this.getValue() == null || this.getType() == -1) {
-			return null; // TODO throw exception for uninitialised data
-		}
-
     // if unchanged then return previous bytes
     if (this.bytes != null) {
       return bytes;
     }
-	
+
+    int length = this.getEncodedLength();
+    if (length == 0) {
+      return null; // TODO throw exception for uninitialised data
+    }
+
+    byte[] buffer = new byte[length];
+    this.encodeTo( buffer, 0 );
+
+    this.bytes = buffer; // save this for subsequent invocations
+		return buffer;
+	}
+
+  /**
+   * Writes the <code>GOOSEData</code> tag, length and value into the byte
+   * array supplied, starting at the offset specified. No intermediate arrays
+   * are allocated. See <code>toBytes</code> for the encoding.
+   * 
+   * @param buffer
+   *          the byte array to write the data to
+   * @param offset
+   *          the offset into the byte array to start writing at
+   * @return int the number of bytes written, 0 if the data is uninitialised or
+   *         of an unsupported type, or -1 if the buffer is too small
+   */
+  public int encodeTo( byte[] buffer, int offset ) {
+    int length = this.getEncodedLength();
+    if (length == 0) {
+      return 0;
+    }
+    if (buffer == null || offset < 0 || offset + length > buffer.length) {
+      return -1;
+    }
+
+    // tag and length, long form for large bit strings
+    int size = this.getValueLength();
+    int index = BERCursor.writeHeader( buffer, offset, this.getTag(), size );
+
+    switch (this.getType()) {
+      case GOOSEDataTypes.TYPE_BOOL:
+        buffer[index++] = (byte)( ( (Boolean)this.getValue() ) ? 0x01 : 0x00 );
+        break;
+      case GOOSEDataTypes.TYPE_BIT_STR:
+        // see Converter.bitsetToBytes, written in place
+        BitSet bitstring = (BitSet)this.value;
+        for (int i = 0; i < size; i++) {
+          buffer[index + i] = (byte)0x00;
+        }
+        for (int i = 0; i < bitstring.length(); i++) {
+          if (bitstring.get( i )) {
+            buffer[index + ( size - i / 8 ) - 1] |= 1 << ( i % 8 );
+          }
+        }
+        index += size;
+        break;
+      case GOOSEDataTypes.TYPE_INT8:
+      case GOOSEDataTypes.TYPE_INT16:
+      case GOOSEDataTypes.TYPE_INT32:
+      case GOOSEDataTypes.TYPE_INT128:
+      case GOOSEDataTypes.TYPE_INT8U:
+      case GOOSEDataTypes.TYPE_INT16U:
+      case GOOSEDataTypes.TYPE_INT32U:
+        index = Converter.longToBytesBE( ( (Integer)this.getValue() )
+            .intValue(), buffer, index, 4 );
+        break;
+      case GOOSEDataTypes.TYPE_FLOAT32:
+      case GOOSEDataTypes.TYPE_FLOAT64:
+        // The preceeding byte indicates the number of bits used for the
+        // exponent
+        // See also. http://tissues.iec61850.com/tissue.mspx?issueid=817
+        buffer[index++] = (byte)0x08; // the number of exponent bits
+        index = Converter.longToBytesBE( Float.floatToIntBits( ( (Float)this
+            .getValue() ).floatValue() ), buffer, index, 4 );
+        break;
+      default:
+        return 0;
+    }
+
+    return index - offset;
+  }
+
+  /**
+   * Gets the number of bytes required to encode this <code>GOOSEData</code>,
+   * i.e. 1 byte tag + the BER length octets + the length of the value. No
+   * arrays are allocated to calculate the length.
+   * 
+   * @return int the encoded length, or 0 if the data is uninitialised or of an
+   *         unsupported type
+   */
+  public int getEncodedLength() {
+    int size = this.getValueLength();
+    if (size == 0) {
+      return 0;
+    }
+    return BERCursor.sizeOf( size );
+  }
+
+  /**
+   * Gets the number of bytes of the encoded value of this
+   * <code>GOOSEData</code>, excluding the tag and length
+   * 
+   * @return int the value length, or 0 if the data is uninitialised or of an
+   *         unsupported type
+   */
+  private int getValueLength() {
+    if (this.value == null || this.getType() == -1) {
+      return 0;
+    }
+
+    switch (this.getType()) {
+      case GOOSEDataTypes.TYPE_BOOL:
+        return 1;
+      case GOOSEDataTypes.TYPE_BIT_STR:
+        return ( ( (BitSet)this.value ).length() / 8 ) + 1;
+      case GOOSEDataTypes.TYPE_INT8:
+      case GOOSEDataTypes.TYPE_INT16:
+      case GOOSEDataTypes.TYPE_INT32:
+      case GOOSEDataTypes.TYPE_INT128:
+      case GOOSEDataTypes.TYPE_INT8U:
+      case GOOSEDataTypes.TYPE_INT16U:
+      case GOOSEDataTypes.TYPE_INT32U:
+        return 4;
+      case GOOSEDataTypes.TYPE_FLOAT32:
+      case GOOSEDataTypes.TYPE_FLOAT64:
+        return 1 + 4; // exponent width + 32-bit float
+      default:
+        return 0; // TODO: remaining types, see getTag
+    }
+  }
+
+  /**
+   * Gets the context specific tag for the data type of this
+   * <code>GOOSEData</code>
+   * 
+   * @return int the tag, or -1 if the type is unknown
+   */
+  private int getTag() {
+    return GOOSEData.getTag( this.getType() );
+  }
+
+  /**
+   * Gets the context specific tag for the data type supplied
+   * 
+   * @param type
+   *          the data type, see <code>GOOSEDataTypes</code>
+   * @return int the tag, or -1 if the type is unknown
+   */
+  static int getTag( int type ) {
     // TODO: fix up to use constants instead of hex byte values, e.g. 0x07
 		// for floating point - below
-	
-		// construct the tag and length
 		int tag = GOOSEMessageAPDU.TAG_CONTEXT;
-		byte[] value_bytes = null;
 	
-		switch (this.getType()) {
+		switch (type) {
     // 0x00 is reserved for access result
       case GOOSEDataTypes.TYPE_ARRAY:
-        tag |= 0x01; // array
-        // TODO
-        return null;
-        // break;
+        return tag | 0x01; // array
       case GOOSEDataTypes.TYPE_STRUCT:
-        tag |= 0x02; // structure
-        // TODO
-        return null;
-        // break;
+        return tag | 0x02; // structure
       case GOOSEDataTypes.TYPE_BOOL:
-        tag |= 0x03; // boolean
-        if ((Boolean)this.getValue()) {
-          value_bytes = new byte[] { (byte)0x01 }; // true
-        } else {
-          value_bytes = new byte[] { (byte)0x00 }; // false
-        }
-        break;
+        return tag | 0x03; // boolean
       case GOOSEDataTypes.TYPE_BIT_STR:
-        tag |= 0x04; // bit string
-        value_bytes = Converter.bitsetToBytes( ( (BitSet)this.getValue() ) );
-        break;
+        return tag | 0x04; // bit string
       case GOOSEDataTypes.TYPE_INT8:
       case GOOSEDataTypes.TYPE_INT16:
       case GOOSEDataTypes.TYPE_INT32:
       case GOOSEDataTypes.TYPE_INT128:
-        tag |= 0x05; // integer
-        value_bytes = Converter.intToBytesBE( ( (Integer)this.getValue() )
-            .intValue() );
-        break;
+        return tag | 0x05; // integer
       case GOOSEDataTypes.TYPE_INT8U:
       case GOOSEDataTypes.TYPE_INT16U:
       case GOOSEDataTypes.TYPE_INT32U:
-        tag |= GOOSEDataTypes.TAG_UNSIGNED; // 0x06; // unsigned, cannot be
+        return GOOSEDataTypes.TAG_UNSIGNED; // 0x86; // unsigned, cannot be
                                             // negative
-        value_bytes = Converter.intToBytesBE( ( (Integer)this.getValue() )
-            .intValue() );
-        break;
       case GOOSEDataTypes.TYPE_FLOAT32:
       case GOOSEDataTypes.TYPE_FLOAT64:
-        tag |= GOOSEDataTypes.TAG_FLOAT; // 0x07; // floating point, octet
+        return GOOSEDataTypes.TAG_FLOAT; // 0x87; // floating point, octet
                                          // string
-        byte[] float_bytes = Converter
-            .floatToBytesBE( ( (Float)this.getValue() ).floatValue() );
-        value_bytes = new byte[float_bytes.length + 1];
-        // The preceeding byte indicates the number of bits used for the
-        // exponent
-        // See also. http://tissues.iec61850.com/tissue.mspx?issueid=817
-        value_bytes[0] = (byte)0x08; // the number of exponent bits
-        BytesUtility.copyBytes( float_bytes, value_bytes, 0,
-            float_bytes.length, 1 );
-        break;
       // 0x08 is reserved
       case GOOSEDataTypes.TYPE_OCTET_STR:
-        tag |= 0x09; // octet string
-        // TODO
-        return null;
-        // break;
+        return tag | 0x09; // octet string
       case GOOSEDataTypes.TYPE_VISIBLE_STR:
-        tag |= 0x0a; // 10 - visible string
-        // TODO
-        return null;
-        // break;
+        return tag | 0x0a; // 10 - visible string
       case GOOSEDataTypes.TYPE_TIMESTAMP:
-        tag |= 0x0b; // 11 - generalised time
-        // TODO
-        return null;
-        // break;
+        return tag | 0x0b; // 11 - generalised time
       case GOOSEDataTypes.TYPE_BIN_TIME:
-        tag |= 0x0c; // 12 - binary time
-        // TODO
-        return null;
-        // break;
+        return tag | 0x0c; // 12 - binary time
       case GOOSEDataTypes.TYPE_BCD:
-        tag |= 0x0d; // 13 - binary coded decimal, cannot be negative
-        // TODO
-        return null;
-        // break;
+        return tag | 0x0d; // 13 - binary coded decimal, cannot be negative
       case GOOSEDataTypes.TYPE_BOOL_ARR:
-        tag |= 0x0e; // 14 - boolean array, bit string
-        // TODO
-        return null;
-        // break;
+        return tag | 0x0e; // 14 - boolean array, bit string
       case GOOSEDataTypes.TYPE_OBJ_NAME:
       case GOOSEDataTypes.TYPE_OBJ_REF:
-        tag |= 0x0f; // 15 - object identifier
-        // TODO
-        return null;
-        // break;
+        return tag | 0x0f; // 15 - object identifier
       case GOOSEDataTypes.TYPE_MMS_STR:
-        tag |= 0x10; // 16 - MMS string, UTF8 string
-        // TODO
-        return null;
-        // break;
+        return tag | 0x10; // 16 - MMS string, UTF8 string
       case GOOSEDataTypes.TYPE_UTC_TIME:
-        tag |= 0x11; // 17 - UTC time, octet string of size 8
-        // TODO
-        return null;
-        // break;
+        return tag | 0x11; // 17 - UTC time, octet string of size 8
       default:
         // TODO throw an exception for unsupported data
-        return null;
+        return -1;
 		}
-	
-    // buffer size is length of value in bytes + 1 byte tag + 1 byte length
-    byte[] buffer = new byte[value_bytes.length + 2];
-		buffer[0] = (byte) tag; // tag
-		buffer[1] = (byte) value_bytes.length; // length
-		BytesUtility.copyBytes(value_bytes, buffer, 0, value_bytes.length, 2); // value
-	
-    this.bytes = buffer; // save this for the getBytesLength method
-		return buffer;
-	}
+  }
 
 	/**
 	 * TODO: method description
@@ -0,0 +1,279 @@
+/**
+ *
+ * Copyright (c) 2008, Packwolf Consulting Ltd, All Rights Reserved.
+ *
+ * @author      Nishchal Kush
+ * @version     %I%, %G%
+ * @since       1.0
+ */
+package fj.com.kush.utility.iec61850;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <code>GOOSEEventRing</code> is a bounded, lock free, multiple producer
+ * multiple consumer queue of received frames, each tagged with the port it
+ * was received on, e.g. to fan the capture threads of several interfaces into
+ * a single ordered stream drained by one or more consumer threads. The frames
+ * are copied into preallocated slots, thus neither offering nor polling
+ * allocates.
+ *
+ * Each slot has a sequence telling the producers it is free and the consumers
+ * it is written, see Vyukov's bounded queue, so neither side ever sees a
+ * partially written slot. The frames are delivered in the order their slots
+ * were claimed, each with its position in that order. Frames are dropped,
+ * rather than the producer blocked, when the ring is full.
+ */
+public final class GOOSEEventRing {
+
+  // constants
+
+  public static final int       DEFAULT_CAPACITY = 4096;
+
+  // attributes
+
+  private final byte[][]        slots;
+  private final int[]           lengths;
+  private final int[]           ports;
+  private final AtomicLongArray sequences;
+  private final int             mask;
+
+  private final AtomicLong      head    = new AtomicLong( 0 ); // next to poll
+  private final AtomicLong      tail    = new AtomicLong( 0 ); // next to offer
+
+  private final AtomicLong      dropped = new AtomicLong( 0 );
+
+  // the consumers waiting for a frame, see await
+  private final ConcurrentLinkedQueue<Thread> waiters =
+      new ConcurrentLinkedQueue<Thread>();
+
+  // constructors
+
+  /**
+   * Default constructor
+   */
+  public GOOSEEventRing() {
+    this( GOOSEEventRing.DEFAULT_CAPACITY, GOOSEFrameRing.MAX_FRAME_LENGTH );
+  }
+
+  /**
+   * Constructor accepting the number of frames and the maximum frame length.
+   * The capacity is rounded up to a power of 2.
+   *
+   * @param capacity
+   *          the number of frames the ring holds
+   * @param maxFrameLength
+   *          the length of the longest frame accepted
+   */
+  public GOOSEEventRing(int capacity, int maxFrameLength) {
+    int size = Integer.highestOneBit( Math.max( capacity, 2 ) - 1 ) << 1;
+    this.slots = new byte[size][maxFrameLength];
+    this.lengths = new int[size];
+    this.ports = new int[size];
+    this.sequences = new AtomicLongArray( size );
+    for (int i = 0; i < size; i++) {
+      this.sequences.set( i, i );
+    }
+    this.mask = size - 1;
+  }
+
+  // accessors
+
+  /**
+   * Gets the number of frames the ring holds
+   *
+   * @return int the capacity
+   */
+  public int getCapacity() {
+    return this.slots.length;
+  }
+
+  /**
+   * Gets the number of frames rejected because the ring was full or the frame
+   * too long
+   *
+   * @return long the number of frames dropped
+   */
+  public long getDroppedCount() {
+    return this.dropped.get();
+  }
+
+  /**
+   * Gets if the ring holds no frames, including frames being written
+   *
+   * @return boolean true if empty, else false
+   */
+  public boolean isEmpty() {
+    return this.head.get() >= this.tail.get();
+  }
+
+  /**
+   * Gets the number of frames in the ring. The value is only a snapshot when
+   * producers or consumers are active.
+   *
+   * @return int the number of frames
+   */
+  public int size() {
+    return (int) Math.max( this.tail.get() - this.head.get(), 0 );
+  }
+
+  // auxillary methods
+
+  /**
+   * Copies the frame supplied into the ring, waking a waiting consumer. May
+   * be invoked by any thread.
+   *
+   * @param port
+   *          the port the frame was received on
+   * @param frame
+   *          the byte array holding the frame
+   * @param offset
+   *          the offset of the frame
+   * @param length
+   *          the length of the frame
+   * @return boolean true if the frame was queued, false if the ring is full or
+   *         the frame too long
+   */
+  public boolean offer(int port, byte[] frame, int offset, int length) {
+    if (length < 0 || length > this.slots[0].length) {
+      this.dropped.incrementAndGet();
+      return false;
+    }
+
+    // claim a slot
+    long position;
+    int index;
+    while (true) {
+      position = this.tail.get();
+      index = (int) position & this.mask;
+      long difference = this.sequences.get( index ) - position;
+      if (difference == 0) {
+        if (this.tail.compareAndSet( position, position + 1 )) {
+          break;
+        }
+      } else if (difference < 0) {
+        this.dropped.incrementAndGet(); // full
+        return false;
+      }
+    }
+
+    System.arraycopy( frame, offset, this.slots[index], 0, length );
+    this.lengths[index] = length;
+    this.ports[index] = port;
+    // publish the slot, ordered before the check for waiters
+    this.sequences.set( index, position + 1 );
+
+    Thread waiter = this.waiters.peek();
+    if (waiter != null) {
+      LockSupport.unpark( waiter );
+    }
+    return true;
+  }
+
+  /**
+   * Delivers the oldest frame to the handler supplied and removes it from the
+   * ring. The handler is given the slot itself, which is only valid for the
+   * duration of the call. May be invoked by any thread.
+   *
+   * @param handler
+   *          the event handler
+   * @return boolean true if a frame was delivered, false if the ring is empty
+   */
+  public boolean poll(EventHandler handler) {
+    long position;
+    int index;
+    while (true) {
+      position = this.head.get();
+      index = (int) position & this.mask;
+      long difference = this.sequences.get( index ) - ( position + 1 );
+      if (difference == 0) {
+        if (this.head.compareAndSet( position, position + 1 )) {
+          break;
+        }
+      } else if (difference < 0) {
+        return false; // empty, or the frame is being written
+      }
+    }
+
+    try {
+      handler.handleEvent( position, this.ports[index], this.slots[index], 0,
+          this.lengths[index] );
+    } finally {
+      // release the slot
+      this.sequences.lazySet( index, position + this.mask + 1 );
+    }
+    return true;
+  }
+
+  /**
+   * Delivers up to the maximum number of frames specified to the handler
+   * supplied, see <code>poll</code>
+   *
+   * @param handler
+   *          the event handler
+   * @param max
+   *          the maximum number of frames to deliver
+   * @return int the number of frames delivered
+   */
+  public int drain(EventHandler handler, int max) {
+    int count = 0;
+    while (count < max && this.poll( handler )) {
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Waits up to the time specified for a frame to be offered, if the ring is
+   * empty. May return early, e.g. when another consumer takes the frame or
+   * the thread is unparked.
+   *
+   * @param nanos
+   *          the longest wait in nanoseconds
+   */
+  public void await(long nanos) {
+    Thread current = Thread.currentThread();
+    this.waiters.add( current );
+    // check again once announced, so an offer is never missed
+    if (this.isEmpty()) {
+      LockSupport.parkNanos( this, nanos );
+    }
+    this.waiters.remove( current );
+  }
+
+  /**
+   * Returns a string representing the ring
+   *
+   * @return String representing the instance
+   */
+  public String toString() {
+    return "capacity=" + this.slots.length + " queued=" + this.size()
+        + " dropped=" + this.dropped.get();
+  }
+
+  /**
+   * <code>EventHandler</code> handles the frames delivered by the ring
+   */
+  public interface EventHandler {
+
+    /**
+     * Handles a frame. The bytes are only valid for the duration of the call.
+     *
+     * @param sequence
+     *          the position of the frame in the order of the ring
+     * @param port
+     *          the port the frame was received on
+     * @param frame
+     *          the byte array holding the frame
+     * @param offset
+     *          the offset of the frame
+     * @param length
+     *          the length of the frame
+     */
+    void handleEvent(long sequence, int port, byte[] frame, int offset,
+        int length);
+  }
+}
@@ -0,0 +1,206 @@
+/**
+ *
+ * Copyright (c) 2008, Packwolf Consulting Ltd, All Rights Reserved.
+ *
+ * @author      Nishchal Kush
+ * @version     %I%, %G%
+ * @since       1.0
+ */
+package fj.com.kush.utility.iec61850;
+
+import java.util.Collection;
+
+/**
+ * <code>GOOSEFilter</code> builds the capture filter, in the pcap filter
+ * syntax, matching the GOOSE frames a subscriber is subscribed to, so that a
+ * <code>FrameTransport</code> drops the other frames in the kernel rather
+ * than copying them to the JVM.
+ *
+ * The filter matches the GOOSE Ethertype, 0x88b8, either directly after the
+ * addresses or after an 802.1Q tag. Frames whose tag was stripped by the
+ * interface, as is usual on Linux, are matched as untagged. The APPIDs are
+ * matched at their offset in either form. The gocbRefs, at a variable
+ * offset, are not tested, so the filter may pass more frames than subscribed
+ * to, which the subscriber then drops, see <code>GOOSESubscriptionIndex</code>.
+ */
+public final class GOOSEFilter {
+
+  // constants
+
+  public static final int     ETHERTYPE_GOOSE = 0x88b8;
+  public static final int     ETHERTYPE_VLAN  = 0x8100;
+  public static final int     MAX_SUBSCRIPTIONS = 64; // tested in the filter
+
+  private static final String UNTAGGED        = "ether[12:2] = 0x88b8";
+  private static final String TAGGED          = "ether[12:2] = 0x8100 and ether[16:2] = 0x88b8";
+  private static final String UNTAGGED_APPID  = "ether[14:2] = ";
+  private static final String TAGGED_APPID    = "ether[18:2] = ";
+
+  // constructors
+
+  /**
+   * Private constructor, as the class only has static methods
+   */
+  private GOOSEFilter() {
+  }
+
+  // auxillary methods
+
+  /**
+   * Builds the filter matching the GOOSE frames of any of the subscriptions
+   * supplied, each a source MAC address and an APPID, either of which may be
+   * a wildcard, sent to any of the destination MAC addresses supplied. A
+   * subscription of wildcards only, or more than MAX_SUBSCRIPTIONS
+   * subscriptions, match every GOOSE frame. Destination MAC addresses are 12
+   * hexadecimal digits, optionally separated by ':', '-' or '.'; addresses
+   * that can not be parsed are ignored.
+   *
+   * @param macs
+   *          the source MAC address of each subscription, or -1 for any
+   * @param appIds
+   *          the APPID of each subscription, or -1 for any
+   * @param count
+   *          the number of subscriptions, 0 for any GOOSE frame
+   * @param destinations
+   *          the destination MAC addresses, or null or empty for any
+   * @return String the filter expression
+   */
+  public static String build(long[] macs, int[] appIds, int count,
+      Collection<String> destinations) {
+    StringBuilder sb = new StringBuilder( 128 );
+    boolean any = (count == 0 || count > MAX_SUBSCRIPTIONS);
+    for (int i = 0; i < count && !any; i++) {
+      any = (macs[i] < 0 && appIds[i] < 0);
+    }
+
+    if (any) {
+      sb.append( '(' ).append( UNTAGGED ).append( ") or (" ).append( TAGGED )
+          .append( ')' );
+    } else {
+      for (int i = 0; i < count; i++) {
+        if (i > 0) {
+          sb.append( " or " );
+        }
+        sb.append( '(' );
+        if (macs[i] >= 0) {
+          sb.append( "ether src " ).append( GOOSEFilter.formatMac( macs[i] ) )
+              .append( " and " );
+        }
+        // the Ethertype, and the APPID which follows it
+        sb.append( "((" ).append( UNTAGGED );
+        GOOSEFilter.appendAppId( sb, UNTAGGED_APPID, appIds[i] );
+        sb.append( ") or (" ).append( TAGGED );
+        GOOSEFilter.appendAppId( sb, TAGGED_APPID, appIds[i] );
+        sb.append( ")))" );
+      }
+    }
+
+    if (GOOSEFilter.hasMacs( destinations )) {
+      sb.insert( 0, '(' ).append( ')' );
+      GOOSEFilter.appendMacs( sb, "ether dst ", destinations );
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Parses a MAC address, of 12 hexadecimal digits optionally separated by
+   * ':', '-' or '.', into a long, the first octet being the most significant
+   *
+   * @param mac
+   *          the MAC address
+   * @return long the address, or -1 if it can not be parsed
+   */
+  public static long parseMac(String mac) {
+    if (mac == null) {
+      return -1;
+    }
+    long value = 0;
+    int digits = 0;
+    for (int i = 0; i < mac.length(); i++) {
+      char c = mac.charAt( i );
+      if (c == ':' || c == '-' || c == '.') {
+        continue;
+      }
+      int digit = Character.digit( c, 16 );
+      if (digit < 0 || ++digits > 12) {
+        return -1;
+      }
+      value = ( value << 4 ) | digit;
+    }
+    return (digits == 12 ? value : -1);
+  }
+
+  /**
+   * Formats a MAC address held in a long as the pcap filter syntax does,
+   * e.g. 01:0c:cd:01:00:01
+   *
+   * @param mac
+   *          the MAC address
+   * @return String the formatted address
+   */
+  public static String formatMac(long mac) {
+    StringBuilder sb = new StringBuilder( 17 );
+    for (int shift = 40; shift >= 0; shift -= 8) {
+      int octet = (int) ( mac >>> shift ) & 0xff;
+      if (octet < 0x10) {
+        sb.append( '0' );
+      }
+      sb.append( Integer.toHexString( octet ) );
+      if (shift > 0) {
+        sb.append( ':' );
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Appends the test of the APPID, at the offset prefix supplied, if not a
+   * wildcard
+   */
+  private static void appendAppId(StringBuilder sb, String prefix, int appId) {
+    if (appId >= 0) {
+      sb.append( " and " ).append( prefix ).append( "0x" ).append(
+          Integer.toHexString( appId & 0xffff ) );
+    }
+  }
+
+  /**
+   * Appends the alternative MAC addresses, of the direction prefix supplied,
+   * if any can be parsed
+   */
+  private static void appendMacs(StringBuilder sb, String prefix,
+      Collection<String> macs) {
+    if (!GOOSEFilter.hasMacs( macs )) {
+      return;
+    }
+    sb.append( " and (" );
+    boolean first = true;
+    for (String mac : macs) {
+      long value = GOOSEFilter.parseMac( mac );
+      if (value < 0) {
+        continue;
+      }
+      if (!first) {
+        sb.append( " or " );
+      }
+      sb.append( prefix ).append( GOOSEFilter.formatMac( value ) );
+      first = false;
+    }
+    sb.append( ')' );
+  }
+
+  /**
+   * Checks if any of the MAC addresses supplied can be parsed
+   */
+  private static boolean hasMacs(Collection<String> macs) {
+    if (macs == null) {
+      return false;
+    }
+    for (String mac : macs) {
+      if (GOOSEFilter.parseMac( mac ) >= 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,320 @@
+/**
+ *
+ * Copyright (c) 2008, Packwolf Consulting Ltd, All Rights Reserved.
+ *
+ * @author      Nishchal Kush
+ * @version     %I%, %G%
+ * @since       1.0
+ */
+package fj.com.kush.utility.iec61850;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.jnetpcap.Pcap;
+import org.jnetpcap.PcapDumper;
+
+import fj.com.kush.utility.net.PcapFileWriter;
+
+/**
+ * <code>GOOSEFrameBatch</code> encodes many <code>GOOSEMessage</code>s back to
+ * back into a single contiguous byte array, the slab, and records the offset
+ * and length of each frame in an index. The batch is then handed to a
+ * transport in one call, e.g. sent on a <code>Pcap</code> handle, written to
+ * a <code>PcapDumper</code> or delivered to a <code>FrameHandler</code>, which
+ * avoids allocating and wrapping a byte array per frame.
+ *
+ * The slab and index grow on demand and are reused after <code>clear</code>.
+ * Instances are not thread safe.
+ */
+public final class GOOSEFrameBatch {
+
+  // constants
+
+  public static final int INITIAL_FRAMES   = 256;
+  public static final int INITIAL_CAPACITY = INITIAL_FRAMES * 128;
+
+  // attributes
+
+  private byte[]     slab       = null;
+  private int        used       = 0;     // bytes of the slab in use
+
+  private int[]      offsets    = null;
+  private int[]      lengths    = null;
+  private int        count      = 0;
+
+  // direct copy of the slab used by dumpTo, see PcapDumper
+  private ByteBuffer direct     = null;
+
+  // constructors
+
+  /**
+   * Default constructor
+   */
+  public GOOSEFrameBatch() {
+    this( GOOSEFrameBatch.INITIAL_CAPACITY, GOOSEFrameBatch.INITIAL_FRAMES );
+  }
+
+  /**
+   * Constructor accepting the initial slab size and number of frames
+   *
+   * @param capacity
+   *          the initial size of the slab in bytes
+   * @param frames
+   *          the initial number of frames of the index
+   */
+  public GOOSEFrameBatch(int capacity, int frames) {
+    this.slab = new byte[Math.max( capacity, 64 )];
+    this.offsets = new int[Math.max( frames, 1 )];
+    this.lengths = new int[Math.max( frames, 1 )];
+  }
+
+  // accessors
+
+  /**
+   * Gets the length of the frame at the index specified
+   *
+   * @param index
+   *          the index of the frame
+   * @return int the length in bytes
+   */
+  public int getLength(int index) {
+    this.checkIndex( index );
+    return this.lengths[index];
+  }
+
+  /**
+   * Gets the offset of the frame at the index specified within the slab
+   *
+   * @param index
+   *          the index of the frame
+   * @return int the offset
+   */
+  public int getOffset(int index) {
+    this.checkIndex( index );
+    return this.offsets[index];
+  }
+
+  /**
+   * Gets the slab holding the frames. The byte array is NOT copied!
+   *
+   * @return byte[] the slab
+   */
+  public byte[] getSlab() {
+    return this.slab;
+  }
+
+  /**
+   * Gets the number of bytes of the slab in use, i.e. the total length of the
+   * frames
+   *
+   * @return int the number of bytes
+   */
+  public int getTotalLength() {
+    return this.used;
+  }
+
+  /**
+   * Gets the number of frames in the batch
+   *
+   * @return int the number of frames
+   */
+  public int size() {
+    return this.count;
+  }
+
+  // mutators
+
+  /**
+   * Encodes the <code>GOOSEMessage</code> supplied into the slab as the next
+   * frame
+   *
+   * @param message
+   *          the message to encode
+   * @throws GOOSEMessageException
+   *           if the message is not initialised
+   * @return int the index of the frame
+   */
+  public int add(GOOSEMessage message) throws GOOSEMessageException {
+    if (message == null) {
+      throw new GOOSEMessageException( ConstStrings.INVALID_GOOSE_MSG );
+    }
+    this.ensureCapacity( message.getEncodedLength() );
+    int length = message.encodeSized( this.slab, this.used );
+    return this.append( length );
+  }
+
+  /**
+   * Copies the encoded frame supplied into the slab as the next frame, e.g. a
+   * frame produced by a <code>GOOSEFrameTemplate</code>
+   *
+   * @param frame
+   *          the byte array holding the frame
+   * @param offset
+   *          the offset of the frame
+   * @param length
+   *          the length of the frame
+   * @return int the index of the frame
+   */
+  public int add(byte[] frame, int offset, int length) {
+    this.ensureCapacity( length );
+    System.arraycopy( frame, offset, this.slab, this.used, length );
+    return this.append( length );
+  }
+
+  /**
+   * Removes all the frames, retaining the slab and index for reuse
+   */
+  public void clear() {
+    this.used = 0;
+    this.count = 0;
+  }
+
+  // auxillary methods
+
+  /**
+   * Delivers every frame, in order, to the handler supplied. The handler is
+   * given the slab itself, which must not be modified.
+   *
+   * @param handler
+   *          the frame handler
+   * @return int the number of frames delivered
+   */
+  public int forEach(FrameHandler handler) {
+    for (int i = 0; i < this.count; i++) {
+      handler.handleFrame( this.slab, this.offsets[i], this.lengths[i] );
+    }
+    return this.count;
+  }
+
+  /**
+   * Sends every frame, in order, on the <code>Pcap</code> handle supplied
+   *
+   * @param pcap
+   *          an open pcap handle
+   * @return int the number of frames sent successfully
+   */
+  public int sendTo(Pcap pcap) {
+    int sent = 0;
+    for (int i = 0; i < this.count; i++) {
+      if (pcap.sendPacket( this.slab, this.offsets[i], this.lengths[i] ) == Pcap.OK) {
+        sent++;
+      }
+    }
+    return sent;
+  }
+
+  /**
+   * Writes every frame, in order, to the <code>PcapDumper</code> supplied with
+   * synthetic timestamps, i.e. the first frame at the start time and each
+   * following frame the interval later. The slab is copied once into a direct
+   * buffer as required by the dumper.
+   *
+   * @param dumper
+   *          an open pcap dumper
+   * @param startMicros
+   *          the timestamp of the first frame in microseconds since the epoch
+   * @param intervalMicros
+   *          the interval between frames in microseconds
+   * @return int the number of frames written
+   */
+  public int dumpTo(PcapDumper dumper, long startMicros, long intervalMicros) {
+    if (this.direct == null || this.direct.capacity() < this.used) {
+      this.direct = ByteBuffer.allocateDirect( this.slab.length );
+    }
+    this.direct.clear();
+    this.direct.put( this.slab, 0, this.used );
+
+    long micros = startMicros;
+    for (int i = 0; i < this.count; i++) {
+      this.direct.limit( this.offsets[i] + this.lengths[i] );
+      this.direct.position( this.offsets[i] );
+      dumper.dump( micros / 1000000L, (int) (micros % 1000000L),
+          this.lengths[i], this.lengths[i], this.direct );
+      micros += intervalMicros;
+    }
+    this.direct.clear();
+    return this.count;
+  }
+
+  /**
+   * Writes every frame, in order, to the <code>PcapFileWriter</code> supplied
+   * with the same timestamp, appending the whole slab at once
+   *
+   * @param writer
+   *          an open pcap file writer
+   * @param iface
+   *          the id of the interface of the writer
+   * @param nanos
+   *          the timestamp in nanoseconds since the epoch
+   * @throws IOException
+   *           if the file can not be written
+   * @return int the number of frames written
+   */
+  public int writeTo(PcapFileWriter writer, int iface, long nanos)
+      throws IOException {
+    writer.write( iface, nanos, this.slab, this.offsets, this.lengths,
+        this.count );
+    return this.count;
+  }
+
+  /**
+   * Records a frame of the length supplied, written at the end of the slab
+   *
+   * @return int the index of the frame
+   */
+  private int append(int length) {
+    if (this.count == this.offsets.length) {
+      int[] o = new int[this.count * 2];
+      int[] l = new int[this.count * 2];
+      System.arraycopy( this.offsets, 0, o, 0, this.count );
+      System.arraycopy( this.lengths, 0, l, 0, this.count );
+      this.offsets = o;
+      this.lengths = l;
+    }
+    this.offsets[this.count] = this.used;
+    this.lengths[this.count] = length;
+    this.used += length;
+    return this.count++;
+  }
+
+  /**
+   * Checks that the index refers to a frame
+   */
+  private void checkIndex(int index) {
+    if (index < 0 || index >= this.count) {
+      throw new IndexOutOfBoundsException( "Index: " + index + ", Size: "
+          + this.count );
+    }
+  }
+
+  /**
+   * Grows the slab, if required, to hold a further frame of the length
+   * supplied
+   */
+  private void ensureCapacity(int length) {
+    if (this.used + length > this.slab.length) {
+      byte[] s = new byte[Math.max( this.slab.length * 2, this.used + length )];
+      System.arraycopy( this.slab, 0, s, 0, this.used );
+      this.slab = s;
+    }
+  }
+
+  /**
+   * Receives frames delivered from a batch, e.g. for in-memory delivery
+   */
+  public interface FrameHandler {
+
+    /**
+     * Handles a single frame
+     *
+     * @param buffer
+     *          the byte array holding the frame, which must not be modified
+     * @param offset
+     *          the offset of the frame
+     * @param length
+     *          the length of the frame
+     */
+    public void handleFrame(byte[] buffer, int offset, int length);
+  }
+}
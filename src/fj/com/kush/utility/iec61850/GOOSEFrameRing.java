@@ -0,0 +1,187 @@
+/**
+ *
+ * Copyright (c) 2008, Packwolf Consulting Ltd, All Rights Reserved.
+ *
+ * @author      Nishchal Kush
+ * @version     %I%, %G%
+ * @since       1.0
+ */
+package fj.com.kush.utility.iec61850;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <code>GOOSEFrameRing</code> is a bounded, lock free, single producer single
+ * consumer queue of encoded frames. The frames are copied into preallocated
+ * slots, thus neither offering nor polling allocates.
+ *
+ * Exactly one thread may offer and exactly one other thread may poll. The
+ * producer publishes a frame by advancing the tail after the slot is written,
+ * and the consumer releases a slot by advancing the head after the frame is
+ * delivered, so neither side ever sees a partially written slot.
+ */
+public final class GOOSEFrameRing {
+
+  // constants
+
+  public static final int  DEFAULT_CAPACITY = 1024;
+  public static final int  MAX_FRAME_LENGTH = 1518;  // untagged Ethernet frame
+
+  // attributes
+
+  private final byte[][]   slots;
+  private final int[]      lengths;
+  private final int        mask;
+
+  private final AtomicLong head          = new AtomicLong( 0 ); // next to poll
+  private final AtomicLong tail          = new AtomicLong( 0 ); // next to offer
+
+  // the consumer's head as last seen by the producer, and vice versa, which
+  // avoids reading the other side's counter on every call
+  private long             cachedHead    = 0;
+  private long             cachedTail    = 0;
+
+  private final AtomicLong dropped       = new AtomicLong( 0 );
+
+  // constructors
+
+  /**
+   * Default constructor
+   */
+  public GOOSEFrameRing() {
+    this( GOOSEFrameRing.DEFAULT_CAPACITY, GOOSEFrameRing.MAX_FRAME_LENGTH );
+  }
+
+  /**
+   * Constructor accepting the number of frames and the maximum frame length.
+   * The capacity is rounded up to a power of 2.
+   *
+   * @param capacity
+   *          the number of frames the ring holds
+   * @param maxFrameLength
+   *          the length of the longest frame accepted
+   */
+  public GOOSEFrameRing(int capacity, int maxFrameLength) {
+    int size = Integer.highestOneBit( Math.max( capacity, 2 ) - 1 ) << 1;
+    this.slots = new byte[size][maxFrameLength];
+    this.lengths = new int[size];
+    this.mask = size - 1;
+  }
+
+  // accessors
+
+  /**
+   * Gets the number of frames the ring holds
+   *
+   * @return int the capacity
+   */
+  public int getCapacity() {
+    return this.slots.length;
+  }
+
+  /**
+   * Gets the number of frames rejected because the ring was full or the frame
+   * too long
+   *
+   * @return long the number of frames dropped
+   */
+  public long getDroppedCount() {
+    return this.dropped.get();
+  }
+
+  /**
+   * Gets if the ring holds no frames
+   *
+   * @return boolean true if empty, else false
+   */
+  public boolean isEmpty() {
+    return this.head.get() == this.tail.get();
+  }
+
+  /**
+   * Gets the number of frames in the ring. The value is only a snapshot when
+   * the producer or consumer are active.
+   *
+   * @return int the number of frames
+   */
+  public int size() {
+    return (int) ( this.tail.get() - this.head.get() );
+  }
+
+  // auxillary methods
+
+  /**
+   * Copies the frame supplied into the ring. May only be invoked by the
+   * producer thread.
+   *
+   * @param frame
+   *          the byte array holding the frame
+   * @param offset
+   *          the offset of the frame
+   * @param length
+   *          the length of the frame
+   * @return boolean true if the frame was queued, false if the ring is full or
+   *         the frame too long
+   */
+  public boolean offer(byte[] frame, int offset, int length) {
+    long t = this.tail.get();
+    if (t - this.cachedHead >= this.slots.length) {
+      this.cachedHead = this.head.get();
+      if (t - this.cachedHead >= this.slots.length) {
+        this.dropped.incrementAndGet();
+        return false;
+      }
+    }
+
+    int index = (int) t & this.mask;
+    if (length < 0 || length > this.slots[index].length) {
+      this.dropped.incrementAndGet();
+      return false;
+    }
+    System.arraycopy( frame, offset, this.slots[index], 0, length );
+    this.lengths[index] = length;
+    this.tail.lazySet( t + 1 ); // publish the slot
+    return true;
+  }
+
+  /**
+   * Delivers the oldest frame to the handler supplied and removes it from the
+   * ring. The handler is given the slot itself, which is only valid for the
+   * duration of the call. May only be invoked by the consumer thread.
+   *
+   * @param handler
+   *          the frame handler
+   * @return boolean true if a frame was delivered, false if the ring is empty
+   */
+  public boolean poll(GOOSEFrameBatch.FrameHandler handler) {
+    return this.drain( handler, 1 ) == 1;
+  }
+
+  /**
+   * Delivers, in order, up to the maximum number of frames specified to the
+   * handler supplied and removes them from the ring, see <code>poll</code>.
+   *
+   * @param handler
+   *          the frame handler
+   * @param max
+   *          the maximum number of frames to deliver
+   * @return int the number of frames delivered
+   */
+  public int drain(GOOSEFrameBatch.FrameHandler handler, int max) {
+    long h = this.head.get();
+    if (h >= this.cachedTail) {
+      this.cachedTail = this.tail.get();
+      if (h >= this.cachedTail) {
+        return 0;
+      }
+    }
+
+    int n = (int) Math.min( this.cachedTail - h, max );
+    for (int i = 0; i < n; i++) {
+      int index = (int) ( h + i ) & this.mask;
+      handler.handleFrame( this.slots[index], 0, this.lengths[index] );
+    }
+    this.head.lazySet( h + n ); // release the slots
+    return n;
+  }
+}
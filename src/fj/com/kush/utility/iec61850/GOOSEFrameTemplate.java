@@ -0,0 +1,312 @@
+/**
+ *
+ * Copyright (c) 2008, Packwolf Consulting Ltd, All Rights Reserved.
+ *
+ * @author      Nishchal Kush
+ * @version     %I%, %G%
+ * @since       1.0
+ */
+package fj.com.kush.utility.iec61850;
+
+import fj.com.kush.utility.Converter;
+
+/**
+ * <code>GOOSEFrameTemplate</code> caches the encoded Ethernet frame of a
+ * <code>GOOSEMessage</code> together with the byte offsets of the stNum, sqNum
+ * and t values within the frame. Under IEC 61850-8-1 most GOOSE traffic is
+ * retransmissions, where only sqNum and possibly t change, and a state change
+ * only adds stNum to that list. Such updates are patched into the cached frame
+ * in place. The frame is fully re-encoded only when the layout of the frame
+ * could have changed, i.e. when the encoded width of stNum or sqNum changes,
+ * when any other PDU field is set, or when the allData changes.
+ *
+ * A template is bound to a single <code>GOOSEMessage</code>, e.g. one per
+ * GOOSE control block, and is not thread safe.
+ */
+public final class GOOSEFrameTemplate {
+
+  // attributes
+
+  private GOOSEMessage         message         = null;
+
+  // the state of the message when the frame was last fully encoded
+  private GOOSEMessageAPDU     apdu            = null;
+  private GOOSEAllData         allData         = null;
+  private int                  messageType     = -1;
+  private int                  pduModCount     = -1;
+  private int                  allDataModCount = -1;
+
+  // the encoded frame
+  private byte[]               frame           = null;
+  private int                  length          = 0;
+
+  // the values currently in the frame and their offsets and widths
+  private long                 stNum           = -1;
+  private long                 sqNum           = -1;
+  private long                 t               = -1;
+  private int                  tQuality        = 0;
+  private long                 tSecondNanos    = 0;   // start of the second of t
+  private int                  stNumOffset     = -1;
+  private int                  stNumWidth      = 0;
+  private int                  sqNumOffset     = -1;
+  private int                  sqNumWidth      = 0;
+  private int                  tOffset         = -1;
+
+  // statistics
+  private long                 encodeCount     = 0;
+  private long                 patchCount      = 0;
+
+  // constructors
+
+  /**
+   * Constructor accepting the <code>GOOSEMessage</code> the template caches
+   * the frame of
+   *
+   * @param message
+   *          the GOOSE message
+   */
+  public GOOSEFrameTemplate(GOOSEMessage message) {
+    this.message = message;
+  }
+
+  // accessors
+
+  /**
+   * Gets the number of times the frame has been fully encoded
+   *
+   * @return long the number of full encodes
+   */
+  public long getEncodeCount() {
+    return encodeCount;
+  }
+
+  /**
+   * Gets the buffer containing the frame produced by the last invocation of
+   * <code>update</code>. The frame occupies the first <code>getLength</code>
+   * bytes. The byte array is NOT copied!
+   *
+   * @return byte[] the frame buffer
+   */
+  public byte[] getFrame() {
+    return frame;
+  }
+
+  /**
+   * Gets the length of the frame produced by the last invocation of
+   * <code>update</code>
+   *
+   * @return int the length of the frame in bytes
+   */
+  public int getLength() {
+    return length;
+  }
+
+  /**
+   * Gets the <code>GOOSEMessage</code> this template is bound to
+   *
+   * @return GOOSEMessage the message
+   */
+  public GOOSEMessage getMessage() {
+    return message;
+  }
+
+  /**
+   * Gets the number of times the frame has been patched in place
+   *
+   * @return long the number of in place patches
+   */
+  public long getPatchCount() {
+    return patchCount;
+  }
+
+  // auxillary methods
+
+  /**
+   * Discards the cached frame, thus the next invocation of <code>update</code>
+   * fully re-encodes the message
+   */
+  public void invalidate() {
+    this.apdu = null;
+  }
+
+  /**
+   * Writes the source MAC address supplied into the frame produced by the
+   * last invocation of <code>update</code>, leaving the rest of the frame and
+   * the <code>GOOSEMessage</code> unchanged. This allows a frame encoded once
+   * to be sent on several interfaces, each with its own source address. The
+   * next <code>update</code> restores the source address of the message.
+   *
+   * @param mac
+   *          the 6 byte source MAC address
+   * @throws GOOSEMessageException
+   *           if the MAC address is invalid
+   */
+  public void stampSrc(byte[] mac) throws GOOSEMessageException {
+    if (mac == null || mac.length != 6) {
+      throw new GOOSEMessageException( ConstStrings.INVALID_MAC_ADDR );
+    }
+    if (this.frame != null) {
+      System.arraycopy( mac, 0, this.frame, 6, 6 );
+    }
+  }
+
+  /**
+   * Brings the cached frame up to date with the <code>GOOSEMessage</code>.
+   * The source and destination MAC addresses, stNum, sqNum and t are patched
+   * in place when the rest of the frame is unchanged, otherwise the message is
+   * fully re-encoded.
+   *
+   * @throws GOOSEMessageException
+   *           if the message is not initialised
+   * @return int the length of the frame in bytes
+   */
+  public int update() throws GOOSEMessageException {
+    if (!this.isPatchable()) {
+      return this.encode();
+    }
+
+    GOOSEMessageGoosePDU pdu = (GOOSEMessageGoosePDU) this.apdu;
+
+    // (12 bytes) destination and source mac
+    System.arraycopy( message.getDst(), 0, this.frame, 0, 6 );
+    System.arraycopy( message.getSrc(), 0, this.frame, 6, 6 );
+
+    long value = pdu.getStNum();
+    if (value != this.stNum) {
+      Converter.longToBytesBE( value, this.frame, this.stNumOffset,
+          this.stNumWidth );
+      this.stNum = value;
+    }
+
+    value = pdu.getSqNum();
+    if (value != this.sqNum) {
+      Converter.longToBytesBE( value, this.frame, this.sqNumOffset,
+          this.sqNumWidth );
+      this.sqNum = value;
+    }
+
+    if (this.tOffset >= 0) {
+      value = pdu.getTimeNanos();
+      int quality = pdu.getTimeQuality();
+      if (value != this.t || quality != this.tQuality) {
+        long nanosOfSecond = value - this.tSecondNanos;
+        if (nanosOfSecond >= 0
+            && nanosOfSecond < GOOSEMessageGoosePDU.NANOS_PER_SECOND) {
+          // same second, only the fraction and quality change
+          GOOSEMessageGoosePDU.writeUtcFraction( nanosOfSecond, quality,
+              this.frame, this.tOffset + 4 );
+        } else {
+          GOOSEMessageGoosePDU.writeUtcTime( value, quality, this.frame,
+              this.tOffset );
+          this.tSecondNanos = value
+              - Math.floorMod( value, GOOSEMessageGoosePDU.NANOS_PER_SECOND );
+        }
+        this.t = value;
+        this.tQuality = quality;
+      }
+    }
+
+    this.patchCount++;
+    return this.length;
+  }
+
+  /**
+   * Fully encodes the message into the frame buffer and records the state of
+   * the message and the offsets of the patchable values
+   *
+   * @return int the length of the frame in bytes
+   */
+  private int encode() throws GOOSEMessageException {
+    int size = message.getEncodedLength();
+    if (this.frame == null || this.frame.length < size) {
+      this.frame = new byte[size];
+    }
+
+    // invalidate first in case encoding fails
+    this.apdu = null;
+    this.length = message.encodeSized( this.frame, 0 );
+
+    this.messageType = message.getMessageType();
+    this.stNumOffset = -1;
+    this.sqNumOffset = -1;
+    this.tOffset = -1;
+
+    GOOSEMessageAPDU current = message.getAPDU();
+    if (current instanceof GOOSEMessageGoosePDU) {
+      GOOSEMessageGoosePDU pdu = (GOOSEMessageGoosePDU) current;
+      this.pduModCount = pdu.getModCount();
+      this.allData = pdu.getAllData();
+      this.allDataModCount = pdu.getSizedAllDataModCount();
+
+      // the offsets are recorded by the PDU relative to the frame buffer
+      this.stNum = pdu.getStNum();
+      this.stNumOffset = pdu.encodedStNumOffset;
+      this.stNumWidth = pdu.encodedStNumWidth;
+      this.sqNum = pdu.getSqNum();
+      this.sqNumOffset = pdu.encodedSqNumOffset;
+      this.sqNumWidth = pdu.encodedSqNumWidth;
+      this.t = pdu.getTimeNanos();
+      this.tQuality = pdu.getTimeQuality();
+      this.tSecondNanos = this.t
+          - Math.floorMod( this.t, GOOSEMessageGoosePDU.NANOS_PER_SECOND );
+      this.tOffset = pdu.encodedTOffset;
+    }
+    this.apdu = current;
+
+    this.encodeCount++;
+    return this.length;
+  }
+
+  /**
+   * Checks if the cached frame can be brought up to date by patching it in
+   * place
+   *
+   * @return boolean true if the frame can be patched, else false
+   */
+  private boolean isPatchable() {
+    if (this.apdu == null || this.frame == null
+        || message.getAPDU() != this.apdu
+        || !( this.apdu instanceof GOOSEMessageGoosePDU )) {
+      return false;
+    }
+
+    // the header must be encodable and unchanged other than the mac addresses
+    byte[] dst = message.getDst();
+    byte[] src = message.getSrc();
+    byte[] res1 = message.getRes1();
+    byte[] res2 = message.getRes2();
+    int appid = message.getEncodedAppid();
+    if (dst == null || dst.length != 6 || src == null || src.length != 6
+        || message.getMessageType() != this.messageType
+        || (byte) (appid >>> 8) != this.frame[14] || (byte) appid != this.frame[15]
+        || res1 == null || res1[0] != this.frame[18] || res1[1] != this.frame[19]
+        || res2 == null || res2[0] != this.frame[20] || res2[1] != this.frame[21]) {
+      return false;
+    }
+
+    GOOSEMessageGoosePDU pdu = (GOOSEMessageGoosePDU) this.apdu;
+    if (pdu.getModCount() != this.pduModCount) {
+      return false;
+    }
+    if (this.allData != null && this.allData.getModCount() != this.allDataModCount) {
+      return false;
+    }
+
+    // the patchable values must be present as before and of the same width
+    long value = pdu.getStNum();
+    if (( value != -1 ) != ( this.stNumOffset >= 0 )
+        || ( value != -1 && Converter.minBytesLengthBE( value ) != this.stNumWidth )) {
+      return false;
+    }
+    value = pdu.getSqNum();
+    if (( value != -1 ) != ( this.sqNumOffset >= 0 )
+        || ( value != -1 && Converter.minBytesLengthBE( value ) != this.sqNumWidth )) {
+      return false;
+    }
+    if (( pdu.getTimeNanos() != -1 ) != ( this.tOffset >= 0 )) {
+      return false;
+    }
+
+    return true;
+  }
+}
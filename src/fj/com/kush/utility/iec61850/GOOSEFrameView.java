@@ -0,0 +1,751 @@
+/**
+ *
+ * Copyright (c) 2008, Packwolf Consulting Ltd, All Rights Reserved.
+ *
+ * @author      Nishchal Kush
+ * @version     %I%, %G%
+ * @since       1.0
+ */
+package fj.com.kush.utility.iec61850;
+
+import java.nio.ByteBuffer;
+
+import fj.com.kush.utility.asn.BERCursor;
+
+/**
+ * <code>GOOSEFrameView</code> is a reusable, read-only flyweight over an
+ * encoded GOOSE Ethernet frame held in a byte array or a
+ * <code>ByteBuffer</code>. Wrapping a frame scans it once to record the
+ * offsets of the GOOSE PDU fields and of the allData elements, after which the
+ * fields are read with primitive accessors straight from the underlying bytes.
+ * Unlike <code>GOOSEMessageGoosePDU.getInstance</code> no field arrays,
+ * <code>String</code>s, <code>Date</code>s or boxed data values are created,
+ * thus subscribers can filter and read frames without allocating anything.
+ *
+ * The view does not copy the frame, so the frame must not be modified while
+ * it is being read. Instances are not thread safe.
+ */
+public final class GOOSEFrameView {
+
+  // constants
+
+  static final int   VLAN_TAG_LENGTH     = 4;
+  static final int   INITIAL_CAPACITY    = 32;   // initial allData capacity
+
+  // 32 bit FNV-1a hash of the gocbRef
+  static final int   FNV_OFFSET          = 0x811c9dc5;
+  static final int   FNV_PRIME           = 0x01000193;
+
+  // attributes
+
+  // the wrapped frame, either an array or a direct buffer
+  private byte[]     array               = null;
+  private ByteBuffer buffer              = null;
+  private int        offset              = 0;     // start of the frame
+  private boolean    valid               = false;
+
+  // ethernet
+  private boolean    vlan                = false;
+  private int        appIdOffset         = -1;
+
+  // offsets of the values (following the tag and length) and their lengths
+  private int        gocbRefOffset       = -1;
+  private int        gocbRefLength       = 0;
+  private int        talOffset           = -1;
+  private int        talLength           = 0;
+  private int        datSetOffset        = -1;
+  private int        datSetLength        = 0;
+  private int        goIDOffset          = -1;
+  private int        goIDLength          = 0;
+  private int        tOffset             = -1;
+  private int        stNumOffset         = -1;
+  private int        stNumLength         = 0;
+  private int        sqNumOffset         = -1;
+  private int        sqNumLength         = 0;
+  private int        testOffset          = -1;
+  private int        confRevOffset       = -1;
+  private int        confRevLength       = 0;
+  private int        ndsComOffset        = -1;
+  private int        numEntriesOffset    = -1;
+  private int        numEntriesLength    = 0;
+  private int        allDataOffset       = -1;
+  private int        allDataLength       = 0;
+
+  // allData elements, grown on demand and reused between frames
+  private int        dataCount           = 0;
+  private int[]      dataOffsets         = new int[INITIAL_CAPACITY];
+  private int[]      dataLengths         = new int[INITIAL_CAPACITY];
+  private byte[]     dataTags            = new byte[INITIAL_CAPACITY];
+
+  // cursor used to scan the TLVs of the PDU
+  private final BERCursor cursor         = new BERCursor();
+
+  // constructors
+
+  /**
+   * Default constructor
+   */
+  public GOOSEFrameView() {
+    this.valid = false;
+  }
+
+  // auxillary methods
+
+  /**
+   * Wraps the Ethernet frame held in the byte array supplied and scans it. The
+   * array is NOT copied!
+   *
+   * @param frame
+   *          the byte array holding the frame
+   * @param offset
+   *          the offset of the destination MAC address within the array
+   * @param length
+   *          the length of the frame in bytes
+   * @return boolean true if the frame is a well formed GOOSE frame, else false
+   */
+  public boolean wrap(byte[] frame, int offset, int length) {
+    if (frame == null || offset < 0 || length < 0
+        || offset + length > frame.length) {
+      this.valid = false;
+      return false;
+    }
+    this.array = frame;
+    this.buffer = null;
+    return this.scan( offset, offset + length );
+  }
+
+  /**
+   * Wraps the Ethernet frame held in the <code>ByteBuffer</code> supplied
+   * between its position and limit, and scans it. The position and limit of
+   * the buffer are not modified.
+   *
+   * @param frame
+   *          the buffer holding the frame
+   * @return boolean true if the frame is a well formed GOOSE frame, else false
+   */
+  public boolean wrap(ByteBuffer frame) {
+    if (frame == null) {
+      this.valid = false;
+      return false;
+    }
+    if (frame.hasArray()) {
+      this.array = frame.array();
+      this.buffer = null;
+      return this.scan( frame.arrayOffset() + frame.position(),
+          frame.arrayOffset() + frame.limit() );
+    }
+    this.array = null;
+    this.buffer = frame;
+    return this.scan( frame.position(), frame.limit() );
+  }
+
+  /**
+   * Checks if the wrapped frame is a well formed GOOSE frame
+   *
+   * @return boolean true if valid, else false
+   */
+  public boolean isValid() {
+    return valid;
+  }
+
+  /**
+   * Gets the destination MAC address packed into the 48 least significant
+   * bits of a <code>long</code>
+   *
+   * @return long the destination MAC address
+   */
+  public long dstMac() {
+    return this.getLong( this.offset, 6 );
+  }
+
+  /**
+   * Gets the source MAC address packed into the 48 least significant bits of a
+   * <code>long</code>
+   *
+   * @return long the source MAC address
+   */
+  public long srcMac() {
+    return this.getLong( this.offset + 6, 6 );
+  }
+
+  /**
+   * Checks if the frame carries an IEEE 802.1Q VLAN tag
+   *
+   * @return boolean true if VLAN tagged, else false
+   */
+  public boolean hasVlan() {
+    return vlan;
+  }
+
+  /**
+   * Gets the APPID of the frame
+   *
+   * @return int the APPID, or -1 if the frame is invalid
+   */
+  public int appId() {
+    return (this.valid ? (int) this.getLong( this.appIdOffset, 2 ) : -1);
+  }
+
+  /**
+   * Gets the offset of the goosePdu, i.e. of the 0x61 tag following the
+   * reserved words, within the wrapped array or buffer
+   *
+   * @return int the offset, or -1 if the frame is invalid
+   */
+  public int pduOffset() {
+    return (this.valid ? this.appIdOffset + 8 : -1);
+  }
+
+  /**
+   * Gets the length of the gocbRef in bytes
+   *
+   * @return int the length, or 0 if absent
+   */
+  public int gocbRefLength() {
+    return gocbRefLength;
+  }
+
+  /**
+   * Copies the gocbRef bytes into the array supplied
+   *
+   * @param dst
+   *          the array, at least <code>gocbRefLength</code> bytes from the
+   *          offset
+   * @param dstOffset
+   *          the offset in the array
+   * @return int the number of bytes copied
+   */
+  public int copyGocbRef(byte[] dst, int dstOffset) {
+    if (this.gocbRefOffset < 0) {
+      return 0;
+    }
+    for (int i = 0; i < this.gocbRefLength; i++) {
+      dst[dstOffset + i] = this.get( this.gocbRefOffset + i );
+    }
+    return this.gocbRefLength;
+  }
+
+  /**
+   * Gets the hash of the gocbRef bytes, see <code>hash</code>, without
+   * creating a <code>String</code>
+   *
+   * @return int the hash, or the hash of no bytes if absent
+   */
+  public int gocbRefHash() {
+    int h = GOOSEFrameView.FNV_OFFSET;
+    if (this.gocbRefOffset >= 0) {
+      for (int i = 0; i < this.gocbRefLength; i++) {
+        h = ( h ^ ( this.get( this.gocbRefOffset + i ) & 0xff ) ) * FNV_PRIME;
+      }
+    }
+    return h;
+  }
+
+  /**
+   * Gets the hash of a region of the byte array supplied, equal to the
+   * <code>gocbRefHash</code> of a frame with those bytes as its gocbRef
+   *
+   * @param bytes
+   *          the byte array
+   * @param offset
+   *          the offset of the region
+   * @param length
+   *          the length of the region
+   * @return int the hash
+   */
+  public static int hash(byte[] bytes, int offset, int length) {
+    int h = GOOSEFrameView.FNV_OFFSET;
+    for (int i = 0; i < length; i++) {
+      h = ( h ^ ( bytes[offset + i] & 0xff ) ) * FNV_PRIME;
+    }
+    return h;
+  }
+
+  /**
+   * Compares the gocbRef of the frame with the bytes supplied without creating
+   * a <code>String</code>
+   *
+   * @param ref
+   *          the gocbRef as an array of (ASCII) bytes
+   * @return boolean true if equal, else false
+   */
+  public boolean gocbRefEquals(byte[] ref) {
+    return ref != null && this.regionEquals( this.gocbRefOffset,
+        this.gocbRefLength, ref, 0, ref.length );
+  }
+
+  /**
+   * Compares the gocbRef of the frame with a region of the byte array supplied
+   * without creating a <code>String</code>
+   *
+   * @param ref
+   *          the byte array holding the gocbRef
+   * @param refOffset
+   *          the offset of the gocbRef within the array
+   * @param refLength
+   *          the length of the gocbRef in bytes
+   * @return boolean true if equal, else false
+   */
+  public boolean gocbRefEquals(byte[] ref, int refOffset, int refLength) {
+    return this.regionEquals( this.gocbRefOffset, this.gocbRefLength, ref,
+        refOffset, refLength );
+  }
+
+  /**
+   * Compares the datSet of the frame with the bytes supplied without creating
+   * a <code>String</code>
+   *
+   * @param ref
+   *          the datSet as an array of (ASCII) bytes
+   * @return boolean true if equal, else false
+   */
+  public boolean datSetEquals(byte[] ref) {
+    return ref != null && this.regionEquals( this.datSetOffset,
+        this.datSetLength, ref, 0, ref.length );
+  }
+
+  /**
+   * Compares the goID of the frame with the bytes supplied without creating a
+   * <code>String</code>
+   *
+   * @param ref
+   *          the goID as an array of (ASCII) bytes
+   * @return boolean true if equal, else false
+   */
+  public boolean goIDEquals(byte[] ref) {
+    return ref != null && this.regionEquals( this.goIDOffset,
+        this.goIDLength, ref, 0, ref.length );
+  }
+
+  /**
+   * Gets the timeAllowedtoLive in milliseconds
+   *
+   * @return long the time allowed to live, or -1 if absent
+   */
+  public long timeAllowedToLive() {
+    return this.getInteger( this.talOffset, this.talLength );
+  }
+
+  /**
+   * Gets the status number
+   *
+   * @return long the stNum, or -1 if absent
+   */
+  public long stNum() {
+    return this.getInteger( this.stNumOffset, this.stNumLength );
+  }
+
+  /**
+   * Gets the sequence number
+   *
+   * @return long the sqNum, or -1 if absent
+   */
+  public long sqNum() {
+    return this.getInteger( this.sqNumOffset, this.sqNumLength );
+  }
+
+  /**
+   * Gets the seconds since the epoch of the UtcTime t
+   *
+   * @return long the seconds, or -1 if absent
+   */
+  public long tSeconds() {
+    return (this.tOffset < 0 ? -1 : this.getLong( this.tOffset, 4 ));
+  }
+
+  /**
+   * Gets the 24 bit fraction of a second of the UtcTime t
+   *
+   * @return int the fraction of a second, in units of 2^-24 seconds
+   */
+  public int tFraction() {
+    return (this.tOffset < 0 ? 0 : (int) this.getLong( this.tOffset + 4, 3 ));
+  }
+
+  /**
+   * Gets the time quality octet of the UtcTime t
+   *
+   * @return int the time quality
+   */
+  public int tQuality() {
+    return (this.tOffset < 0 ? 0 : this.get( this.tOffset + 7 ) & 0xff);
+  }
+
+  /**
+   * Gets the UtcTime t as nanoseconds since the epoch
+   *
+   * @return long the nanoseconds since the epoch, or -1 if absent
+   */
+  public long tNanos() {
+    if (this.tOffset < 0) {
+      return -1;
+    }
+    return this.tSeconds() * GOOSEMessageGoosePDU.NANOS_PER_SECOND
+        + GOOSEMessageGoosePDU.fractionToNanos( this.tFraction() );
+  }
+
+  /**
+   * Gets the test flag
+   *
+   * @return boolean the test flag, false if absent
+   */
+  public boolean test() {
+    return this.testOffset >= 0 && this.get( this.testOffset ) != 0;
+  }
+
+  /**
+   * Gets the configuration revision
+   *
+   * @return long the confRev, or -1 if absent
+   */
+  public long confRev() {
+    return this.getInteger( this.confRevOffset, this.confRevLength );
+  }
+
+  /**
+   * Gets the needs commissioning flag
+   *
+   * @return boolean the ndsCom flag, false if absent
+   */
+  public boolean ndsCom() {
+    return this.ndsComOffset >= 0 && this.get( this.ndsComOffset ) != 0;
+  }
+
+  /**
+   * Gets the numDatSetEntries field of the PDU
+   *
+   * @return long the number of data set entries, or -1 if absent
+   */
+  public long numDatSetEntries() {
+    return this.getInteger( this.numEntriesOffset, this.numEntriesLength );
+  }
+
+  /**
+   * Gets the offset of the allData value, i.e. the first data element, within
+   * the wrapped array or buffer
+   *
+   * @return int the offset, or -1 if absent
+   */
+  public int allDataOffset() {
+    return allDataOffset;
+  }
+
+  /**
+   * Gets the length of the allData value in bytes
+   *
+   * @return int the length, or 0 if absent
+   */
+  public int allDataLength() {
+    return allDataLength;
+  }
+
+  /**
+   * Gets the number of top level elements in allData
+   *
+   * @return int the number of data elements
+   */
+  public int dataCount() {
+    return dataCount;
+  }
+
+  /**
+   * Gets the tag of the data element at the index specified
+   *
+   * @param index
+   *          the index of the data element
+   * @return int the tag, e.g. 0x83 for boolean
+   */
+  public int tagAt(int index) {
+    return this.dataTags[index] & 0xff;
+  }
+
+  /**
+   * Gets the offset of the value of the data element at the index specified
+   * within the wrapped array or buffer
+   *
+   * @param index
+   *          the index of the data element
+   * @return int the offset of the value
+   */
+  public int valueOffsetAt(int index) {
+    return this.dataOffsets[index];
+  }
+
+  /**
+   * Gets the length in bytes of the value of the data element at the index
+   * specified
+   *
+   * @param index
+   *          the index of the data element
+   * @return int the length of the value
+   */
+  public int valueLengthAt(int index) {
+    return this.dataLengths[index];
+  }
+
+  /**
+   * Gets the boolean value of the data element at the index specified
+   *
+   * @param index
+   *          the index of the data element
+   * @return boolean true if the value is non-zero, else false
+   */
+  public boolean boolAt(int index) {
+    return this.dataLengths[index] > 0 && this.get( this.dataOffsets[index] ) != 0;
+  }
+
+  /**
+   * Gets the integer value of the data element at the index specified. Signed
+   * integers (tag 0x85) are sign extended, unsigned integers (tag 0x86) are
+   * not.
+   *
+   * @param index
+   *          the index of the data element
+   * @return long the integer value
+   */
+  public long intAt(int index) {
+    int len = this.dataLengths[index];
+    long value = this.getLong( this.dataOffsets[index], len );
+    if (this.tagAt( index ) != GOOSEDataTypes.TAG_UNSIGNED && len > 0 && len < 8
+        && ( this.get( this.dataOffsets[index] ) & 0x80 ) != 0) {
+      value -= 1L << ( len * 8 ); // sign extend
+    }
+    return value;
+  }
+
+  /**
+   * Gets the floating point value of the data element at the index specified.
+   * The value is preceeded by the exponent width octet, see
+   * <code>GOOSEData</code>, and is either a 32 or 64 bit IEEE floating point.
+   *
+   * @param index
+   *          the index of the data element
+   * @return double the floating point value
+   */
+  public double floatAt(int index) {
+    int start = this.dataOffsets[index] + 1; // skip the exponent width
+    if (this.dataLengths[index] == 9) {
+      return Double.longBitsToDouble( this.getLong( start, 8 ) );
+    }
+    return Float.intBitsToFloat( (int) this.getLong( start, 4 ) );
+  }
+
+  /**
+   * Scans the frame between the offsets supplied and records the offsets of
+   * the fields
+   *
+   * @return boolean true if the frame is a well formed GOOSE frame, else false
+   */
+  private boolean scan(int start, int end) {
+    this.valid = false;
+    this.offset = start;
+    this.reset();
+
+    // ethernet header, with optional VLAN tag
+    int index = start + 12;
+    if (index + 2 > end) {
+      return false;
+    }
+    int ethertype = (int) this.getLong( index, 2 );
+    this.vlan = ( ethertype == GOOSEMessage.VLAN_MSG );
+    if (this.vlan) {
+      index += VLAN_TAG_LENGTH;
+      if (index + 2 > end) {
+        return false;
+      }
+      ethertype = (int) this.getLong( index, 2 );
+    }
+    if (ethertype != GOOSEMessage.GOOSE_MSG) {
+      return false;
+    }
+    index += 2;
+
+    // APPID (2), length (2), reserved 1 (2) and reserved 2 (2)
+    this.appIdOffset = index;
+    index += 8;
+
+    // goosePdu
+    BERCursor cursor = (this.array != null ? this.cursor.wrap( this.array,
+        index, end ) : this.cursor.wrap( this.buffer, index, end ));
+    if (!cursor.next()
+        || cursor.tag() != ( GOOSEMessageGoosePDU.TAG_GOOSE_PDU & 0xff )) {
+      return false;
+    }
+    cursor.enter();
+
+    // fields
+    while (cursor.hasRemaining()) {
+      if (!cursor.next()) {
+        return false;
+      }
+      byte tag = (byte) cursor.tag();
+      int len = cursor.length();
+      int value = cursor.valueOffset();
+
+      switch (tag) {
+        case GOOSEMessageGoosePDU.TAG_GOCBREF:
+          this.gocbRefOffset = value;
+          this.gocbRefLength = len;
+          break;
+        case GOOSEMessageGoosePDU.TAG_TIME_ALLOWED_TO_LIVE:
+          this.talOffset = value;
+          this.talLength = len;
+          break;
+        case GOOSEMessageGoosePDU.TAG_DATSET:
+          this.datSetOffset = value;
+          this.datSetLength = len;
+          break;
+        case GOOSEMessageGoosePDU.TAG_GOID:
+          this.goIDOffset = value;
+          this.goIDLength = len;
+          break;
+        case GOOSEMessageGoosePDU.TAG_T:
+          if (len == 8) {
+            this.tOffset = value;
+          }
+          break;
+        case GOOSEMessageGoosePDU.TAG_STNUM:
+          this.stNumOffset = value;
+          this.stNumLength = len;
+          break;
+        case GOOSEMessageGoosePDU.TAG_SQNUM:
+          this.sqNumOffset = value;
+          this.sqNumLength = len;
+          break;
+        case GOOSEMessageGoosePDU.TAG_TEST:
+          this.testOffset = (len > 0 ? value : -1);
+          break;
+        case GOOSEMessageGoosePDU.TAG_CONFREV:
+          this.confRevOffset = value;
+          this.confRevLength = len;
+          break;
+        case GOOSEMessageGoosePDU.TAG_NDSCOM:
+          this.ndsComOffset = (len > 0 ? value : -1);
+          break;
+        case GOOSEMessageGoosePDU.TAG_NUMDATSETENTRIES:
+          this.numEntriesOffset = value;
+          this.numEntriesLength = len;
+          break;
+        case GOOSEAllData.TAG:
+          this.allDataOffset = value;
+          this.allDataLength = len;
+          if (!this.scanData( cursor )) {
+            return false;
+          }
+          break;
+        default:
+          // skip unknown fields, e.g. security
+      }
+    }
+
+    this.valid = true;
+    return true;
+  }
+
+  /**
+   * Scans the top level allData elements of the allData TLV last read by the
+   * cursor supplied, and moves the cursor past the allData
+   *
+   * @return boolean true if well formed, else false
+   */
+  private boolean scanData(BERCursor cursor) {
+    int outer = cursor.enter();
+    while (cursor.hasRemaining()) {
+      if (!cursor.next()) {
+        return false;
+      }
+
+      if (this.dataCount == this.dataOffsets.length) {
+        int[] offsets = new int[this.dataCount * 2];
+        int[] lengths = new int[this.dataCount * 2];
+        byte[] tags = new byte[this.dataCount * 2];
+        System.arraycopy( this.dataOffsets, 0, offsets, 0, this.dataCount );
+        System.arraycopy( this.dataLengths, 0, lengths, 0, this.dataCount );
+        System.arraycopy( this.dataTags, 0, tags, 0, this.dataCount );
+        this.dataOffsets = offsets;
+        this.dataLengths = lengths;
+        this.dataTags = tags;
+      }
+      this.dataOffsets[this.dataCount] = cursor.valueOffset();
+      this.dataLengths[this.dataCount] = cursor.length();
+      this.dataTags[this.dataCount] = (byte) cursor.tag();
+      this.dataCount++;
+    }
+    cursor.exit( outer );
+    return true;
+  }
+
+  /**
+   * Clears the recorded offsets
+   */
+  private void reset() {
+    this.vlan = false;
+    this.appIdOffset = -1;
+    this.gocbRefOffset = -1;
+    this.gocbRefLength = 0;
+    this.talOffset = -1;
+    this.talLength = 0;
+    this.datSetOffset = -1;
+    this.datSetLength = 0;
+    this.goIDOffset = -1;
+    this.goIDLength = 0;
+    this.tOffset = -1;
+    this.stNumOffset = -1;
+    this.stNumLength = 0;
+    this.sqNumOffset = -1;
+    this.sqNumLength = 0;
+    this.testOffset = -1;
+    this.confRevOffset = -1;
+    this.confRevLength = 0;
+    this.ndsComOffset = -1;
+    this.numEntriesOffset = -1;
+    this.numEntriesLength = 0;
+    this.allDataOffset = -1;
+    this.allDataLength = 0;
+    this.dataCount = 0;
+  }
+
+  /**
+   * Gets an INTEGER value, or -1 if absent
+   */
+  private long getInteger(int start, int len) {
+    if (start < 0 || len < 1 || len > 8) {
+      return -1;
+    }
+    return this.getLong( start, len );
+  }
+
+  /**
+   * Reads an unsigned big endian number of up to 8 bytes
+   */
+  private long getLong(int start, int len) {
+    long value = 0;
+    for (int i = 0; i < len; i++) {
+      value = ( value << 8 ) + ( this.get( start + i ) & 0xffL );
+    }
+    return value;
+  }
+
+  /**
+   * Compares a region of the frame with a region of the byte array supplied
+   */
+  private boolean regionEquals(int start, int len, byte[] other,
+      int otherOffset, int otherLength) {
+    if (start < 0 || other == null || len != otherLength) {
+      return false;
+    }
+    for (int i = 0; i < len; i++) {
+      if (this.get( start + i ) != other[otherOffset + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Gets the byte at the absolute offset specified
+   */
+  private byte get(int index) {
+    return (this.array != null ? this.array[index] : this.buffer.get( index ));
+  }
+}
@@ -108,6 +108,9 @@ public class GOOSEMessage implements IEC61850MessageInterface {
   private GOOSEMessageAPDU apdu = null;
   private int messageType = -1;
 
+  // reusable buffer the frame is encoded into, see encodeFrame
+  private byte[] frame = null;
+
   // constructors
 
   /**
@@ -119,35 +122,42 @@ public class GOOSEMessage implements IEC61850MessageInterface {
 
   // accessors
   /**
-   * Returns the APPID of the <code>GOOSEMessage</code> as a byte array
+   * Returns the APPID of the <code>GOOSEMessage</code> as a byte array, i.e.
+   * the APPID set, or else the default APPID of the message type
    * 
    * @return the appid
    */
   public byte[] getAppid() {
     if (appid == null) {
-      byte[] buffer = new byte[2];
-      buffer[0] = GOOSEMessage.ETHTYPE;
-
-      if (this.getMessageType() != -1) {
-        if ((this.getMessageType() & GOOSEMessage.GOOSE_MESSAGE) == GOOSEMessage.GOOSE_MESSAGE) {
-          buffer[0] = GOOSEMessage.MSG_GOOSE;
-          buffer[1] = GOOSEMessage.APPID_GOOSE;
-        } else if ((this.getMessageType() & GOOSEMessage.GSE_MANAGEMENT_MESSAGE) == GOOSEMessage.GSE_MANAGEMENT_MESSAGE) {
-          buffer[0] = GOOSEMessage.MSG_GSE_MGMT;
-          buffer[1] = GOOSEMessage.APPID_GSE_MGMT;
-        } else if ((this.getMessageType() & GOOSEMessage.SV_MESSAGE) == GOOSEMessage.SV_MESSAGE) {
-          buffer[0] = GOOSEMessage.MSG_SV;
-          buffer[1] = GOOSEMessage.APPID_SV;
-        }
-      } else {
-        buffer[1] = (byte) 0x0;
-      }
-
-      appid = buffer;
+      int value = this.getEncodedAppid();
+      return new byte[] { (byte) (value >>> 8), (byte) value };
     }
     return appid;
   }
 
+  /**
+   * Returns the APPID written into the frame, see <code>getAppid</code>,
+   * without allocating
+   * 
+   * @return int the 16 bit APPID
+   */
+  int getEncodedAppid() {
+    byte[] configured = this.appid;
+    if (configured != null) {
+      return ((configured[0] & 0xff) << 8) | (configured[1] & 0xff);
+    }
+
+    byte tag = (byte) 0x0;
+    if ((this.getMessageType() & GOOSEMessage.GOOSE_MESSAGE) == GOOSEMessage.GOOSE_MESSAGE) {
+      tag = GOOSEMessage.APPID_GOOSE;
+    } else if ((this.getMessageType() & GOOSEMessage.GSE_MANAGEMENT_MESSAGE) == GOOSEMessage.GSE_MANAGEMENT_MESSAGE) {
+      tag = GOOSEMessage.APPID_GSE_MGMT;
+    } else if ((this.getMessageType() & GOOSEMessage.SV_MESSAGE) == GOOSEMessage.SV_MESSAGE) {
+      tag = GOOSEMessage.APPID_SV;
+    }
+    return ((GOOSEMessage.APPID & 0xff) << 8) | (tag & 0xff);
+  }
+
   /**
    * Returns the <code>GOOSEMessageAPDU</code>
    * 
@@ -246,12 +256,15 @@ public class GOOSEMessage implements IEC61850MessageInterface {
    *           if the APDU is invalid
    */
   public void setAPDU(GOOSEMessageAPDU apdu) throws GOOSEMessageException {
-    this.apdu = apdu;
-    try {
-      this.setLength(this.calcLength());
-    } catch (GOOSEMessageException gme) {
-      throw new GOOSEMessageException(ConstStrings.INVALID_APDU, gme);
+    // length = 8 bytes + m
+    // 8 bytes from 2 byte APPID, 2 byte Length, 2 byte Res1, and 2 byte Res2
+    // m is length of APDU in bytes
+    int len = 8 + (apdu != null ? apdu.getEncodedLength() : 0);
+    if (len > (GOOSEMessage.MAX_APDU_LEN + 8)) { // IEC 61850-8.1 p115
+      throw new GOOSEMessageException(ConstStrings.INVALID_APDU);
     }
+    this.apdu = apdu;
+    this.updateLength(len);
   }
 
   /**
@@ -361,36 +374,17 @@ public class GOOSEMessage implements IEC61850MessageInterface {
   // auxillary methods
 
   /**
-   * TODO: update comments
+   * Updates the 2 byte length attribute in place to the value supplied
    * 
-   * @return
+   * @param value
+   *          the value of the length field
    */
-  private byte[] calcLength() {
-    // length = 8 bytes + m
-    // 8 bytes from 2 byte APPID, 2 byte Length, 2 byte Res1, and 2 byte Res2
-    // m is length of APDU in bytes
-    byte[] messageLen = new byte[2];
-    messageLen[0] = (byte) 0x0;
-    messageLen[1] = (byte) 0x8;
-
-    // allow null to be set
-    if (this.apdu == null) {   	
-      return messageLen;
+  private void updateLength(int value) {
+    if (this.length == null || this.length.length != 2) {
+      this.length = new byte[2];
     }
-
-    // get the apdu length
-    byte[] len = this.apdu.getLength();
-    if (len == null || len.length < 1 || len.length > 2) {
-      return messageLen;
-    } else if ( len.length == 1 ) {
-      messageLen[1] = len[0];    	
-    }
-
-    // set the length
-    short lengthValue = Converter.bytesToShortBE(messageLen);
-    lengthValue = (short) (lengthValue + 8);
-    messageLen = Converter.shortToBytesBE(lengthValue);
-    return messageLen;
+    this.length[0] = (byte) ((value >> 8) & 0xff);
+    this.length[1] = (byte) (value & 0xff);
   }
 
   /**
@@ -408,25 +402,60 @@ public class GOOSEMessage implements IEC61850MessageInterface {
   }
 
   /**
-   * Returns an array of bytes representing the IEC 61850 message
+   * Returns an array of bytes representing the IEC 61850 message. A new array
+   * is allocated on every invocation, see <code>encodeFrame</code> for the
+   * reusable alternative.
    * 
    * @throws GOOSEMessageException
    *           if this GOOSEMessage is not initialised
    * @return array of bytes representing this <code>GOOSEMessage</code>
    */
   public byte[] toBytes() throws GOOSEMessageException {
-    // check if enough of the GOOSEMessage is initialised
-    if ((dst == null || dst.length != 6) || (src == null || src.length != 6)
-        || (this.getMessageType() == -1)) {
-      throw new GOOSEMessageException(ConstStrings.INVALID_GOOSE_MSG);
-    }
+    // size and encode the same version of the data set
+    byte[] buffer = new byte[this.getEncodedLength()];
+    int length = this.encodeSized(buffer, 0);
 
-    // TODO: implement VLAN and priority tagging in frame
+    // return a reference to the buffer
+    return (length == buffer.length ? buffer : Arrays.copyOf(buffer, length));
+  }
+
+  /**
+   * Encodes this <code>GOOSEMessage</code> into a buffer retained and reused
+   * by this instance, growing the buffer only when the frame no longer fits.
+   * The encoded frame occupies the first n bytes of the array returned by
+   * <code>getFrame</code>, where n is the value returned. The contents are
+   * overwritten by the next invocation.
+   * 
+   * @throws GOOSEMessageException
+   *           if this GOOSEMessage is not initialised
+   * @return int the length of the encoded frame in bytes
+   */
+  public int encodeFrame() throws GOOSEMessageException {
+    int size = this.getEncodedLength();
+    if (this.frame == null || this.frame.length < size) {
+      this.frame = new byte[size];
+    }
+    return this.encodeSized(this.frame, 0);
+  }
 
-    // get the APDU
-    byte[] apdu_bytes = (this.apdu != null ? this.apdu.toBytes() : null);
+  /**
+   * Returns the reusable buffer last written by <code>encodeFrame</code>, or
+   * <code>null</code> if no frame has been encoded yet. The byte array is NOT
+   * copied!
+   * 
+   * @return byte[] the frame buffer
+   */
+  public byte[] getFrame() {
+    return this.frame;
+  }
 
-    // initialise buffer to hold the bytes
+  /**
+   * Returns the number of bytes required to encode the Ethernet frame, i.e.
+   * the 22 byte header and the encoded APDU
+   * 
+   * @return int the encoded length of the frame in bytes
+   */
+  public int getEncodedLength() {
     // 6 - destination mac - 6 bytes
     // 6 - source mac - 6 bytes
     // 2 - ether type - 2 bytes
@@ -436,86 +465,123 @@ public class GOOSEMessage implements IEC61850MessageInterface {
     // 2 - res2 - 2 bytes
     // 22 = subtotal
     // TODO: 26 = subtotal (w/4-bytes priority tags)
-    // int size = 22 + (apdu_bytes != null ? apdu_bytes.length : 0);
-    int size = 22 + ( apdu_bytes != null ? apdu_bytes.length : 0 );
-    byte[] buffer = new byte[size]; // create the buffer
-    Arrays.fill(buffer, (byte) 0x0); // zero fill the array
+    return 22 + (this.apdu != null ? this.apdu.getEncodedLength() : 0);
+  }
 
-    // (6 bytes) set the destination address
-    int index = 0; // index into the byte array
-    if (dst != null) {
-      for (int i = 0; i < dst.length; i++) {
-        buffer[i] = (byte) dst[i];
-      }
+  /**
+   * Encodes the Ethernet header, APPID, length, reserved words and APDU into
+   * the byte array supplied, starting at the offset specified, in a single
+   * pass. The APDU is written directly into the array, i.e. it is never
+   * encoded into an intermediate array and copied.
+   * 
+   * @param buffer
+   *          the byte array to encode the frame into
+   * @param offset
+   *          the offset into the byte array to start writing at
+   * @throws GOOSEMessageException
+   *           if this GOOSEMessage is not initialised or the buffer is too
+   *           small
+   * @return int the number of bytes written
+   */
+  public int encodeTo(byte[] buffer, int offset) throws GOOSEMessageException {
+    return this.encodeTo(buffer, offset,
+        (this.apdu != null ? this.apdu.getEncodedLength() : 0));
+  }
+
+  /**
+   * Encodes the frame as last sized by <code>getEncodedLength</code>, i.e.
+   * with the same version of the data set, even if the data set was updated
+   * concurrently since. Used to size a buffer and encode into it without
+   * reading the data set twice.
+   * 
+   * @param buffer
+   *          the byte array to encode the frame into
+   * @param offset
+   *          the offset into the byte array to start writing at
+   * @throws GOOSEMessageException
+   *           if this GOOSEMessage is not initialised or the buffer is too
+   *           small
+   * @return int the number of bytes written
+   */
+  int encodeSized(byte[] buffer, int offset) throws GOOSEMessageException {
+    return this.encodeTo(buffer, offset,
+        (this.apdu != null ? this.apdu.getSizedLength() : 0));
+  }
+
+  /**
+   * Encodes the frame with the APDU of the length supplied, see
+   * <code>encodeTo</code>
+   */
+  private int encodeTo(byte[] buffer, int offset, int apduLength)
+      throws GOOSEMessageException {
+    // check if enough of the GOOSEMessage is initialised
+    if ((dst == null || dst.length != 6) || (src == null || src.length != 6)
+        || (this.getMessageType() == -1)) {
+      throw new GOOSEMessageException(ConstStrings.INVALID_GOOSE_MSG);
     }
-    index = 5;
 
-    // (6 bytes) set the source address
-    if (src != null) {
-      for (int i = 0; i < src.length; i++) {
-        buffer[++index] = src[i];
-      }
-    } else {
-      index += 5;
+    // TODO: implement VLAN and priority tagging in frame
+
+    int size = 22 + apduLength;
+    if (buffer == null || offset < 0 || offset + size > buffer.length) {
+      throw new GOOSEMessageException(ConstStrings.INVALID_LENGTH);
     }
 
+    // (6 bytes) set the destination address
+    // (6 bytes) set the source address
+    int index = offset;
+    System.arraycopy(this.dst, 0, buffer, index, 6);
+    index += 6;
+    System.arraycopy(this.src, 0, buffer, index, 6);
+    index += 6;
+
     // (2 bytes) set the ethernet type and goose message
-    buffer[++index] = GOOSEMessage.ETHTYPE;
-    byte appid_tag = (byte) 0x0;
-
-    if (this.getMessageType() != -1) {
-      if ((this.getMessageType() & GOOSEMessage.GOOSE_MESSAGE) == GOOSEMessage.GOOSE_MESSAGE) {
-        buffer[++index] = GOOSEMessage.MSG_GOOSE;
-        appid_tag = GOOSEMessage.APPID_GOOSE;
-      } else if ((this.getMessageType() & GOOSEMessage.GSE_MANAGEMENT_MESSAGE) == GOOSEMessage.GSE_MANAGEMENT_MESSAGE) {
-        buffer[++index] = GOOSEMessage.MSG_GSE_MGMT;
-        appid_tag = GOOSEMessage.APPID_GSE_MGMT;
-      } else if ((this.getMessageType() & GOOSEMessage.SV_MESSAGE) == GOOSEMessage.SV_MESSAGE) {
-        buffer[++index] = GOOSEMessage.MSG_SV;
-        appid_tag = GOOSEMessage.APPID_SV;
-      }
-    } else {
-      ++index;
+    buffer[index++] = GOOSEMessage.ETHTYPE;
+    byte ethtype_tag = (byte) 0x0;
+
+    if ((this.getMessageType() & GOOSEMessage.GOOSE_MESSAGE) == GOOSEMessage.GOOSE_MESSAGE) {
+      ethtype_tag = GOOSEMessage.MSG_GOOSE;
+    } else if ((this.getMessageType() & GOOSEMessage.GSE_MANAGEMENT_MESSAGE) == GOOSEMessage.GSE_MANAGEMENT_MESSAGE) {
+      ethtype_tag = GOOSEMessage.MSG_GSE_MGMT;
+    } else if ((this.getMessageType() & GOOSEMessage.SV_MESSAGE) == GOOSEMessage.SV_MESSAGE) {
+      ethtype_tag = GOOSEMessage.MSG_SV;
     }
+    buffer[index++] = ethtype_tag;
 
-    // (2 bytes) set the APPID preamble and tag
-    buffer[++index] = GOOSEMessage.APPID;
-    buffer[++index] = appid_tag;
+    // (2 bytes) set the APPID, the configured one or the message type default
+    int appidValue = this.getEncodedAppid();
+    buffer[index++] = (byte) (appidValue >>> 8);
+    buffer[index++] = (byte) appidValue;
 
     // (2 bytes) set the length
-    this.setLength(this.calcLength());
-    if (this.length != null) {
-      buffer[++index] = this.length[0];
-      buffer[++index] = this.length[1];
-    } else {
-      index += 2;
-    }
+    int lengthValue = 8 + apduLength;
+    this.updateLength(lengthValue);
+    buffer[index++] = this.length[0];
+    buffer[index++] = this.length[1];
 
     // (2 bytes) set reserved 1
-    if (this.res1 != null) {
-      buffer[++index] = this.res1[0];
-      buffer[++index] = this.res1[1];
-    } else {
-      index += 2;
-    }
-
     // (2 bytes) set reserved 2
-    if (this.res2 != null) {
-      buffer[++index] = this.res2[0];
-      buffer[++index] = this.res2[1];
-    } else {
-      index += 2;
-    }
+    buffer[index++] = (this.res1 != null ? this.res1[0] : 0);
+    buffer[index++] = (this.res1 != null ? this.res1[1] : 0);
+    buffer[index++] = (this.res2 != null ? this.res2[0] : 0);
+    buffer[index++] = (this.res2 != null ? this.res2[1] : 0);
 
     // set the APDU
-    if (apdu_bytes != null) {
-      for (int i = 0; i < apdu_bytes.length; i++) {
-        buffer[++index] = apdu_bytes[i];
+    if (this.apdu != null) {
+      int written = this.apdu.encodeSized(buffer, index);
+      if (written < 0) {
+        throw new GOOSEMessageException(ConstStrings.INVALID_LENGTH);
       }
+      if (written != apduLength) {
+        // the data set was updated concurrently, so fix up the length
+        this.updateLength(8 + written);
+        buffer[offset + 16] = this.length[0];
+        buffer[offset + 17] = this.length[1];
+      }
+      index += written;
     }
 
-    // return a reference to the buffer
-    return buffer;
+    return index - offset;
   }
 
   /**
@@ -51,4 +51,53 @@ public abstract class GOOSEMessageAPDU {
 	 * <code>GOOSEMessageAPDU</code> length
 	 */
 	public abstract byte[] getLength();
+
+	/**
+	 * Returns the total number of bytes required to encode the
+	 * <code>GOOSEMessageAPDU</code>
+	 * 
+	 * @return int the encoded length in bytes
+	 */
+	public abstract int getEncodedLength();
+
+	/**
+	 * Encodes the <code>GOOSEMessageAPDU</code> into the byte array supplied,
+	 * starting at the offset specified
+	 * 
+	 * @param buffer
+	 *            the byte array to encode into
+	 * @param offset
+	 *            the offset into the byte array to start writing at
+	 * @return int the number of bytes written, or -1 if the buffer is too
+	 *         small
+	 */
+	public abstract int encodeTo(byte[] buffer, int offset);
+
+	/**
+	 * Returns the number of bytes required to encode the
+	 * <code>GOOSEMessageAPDU</code> as last sized by
+	 * <code>getEncodedLength</code>, see <code>encodeSized</code>
+	 * 
+	 * @return int the encoded length in bytes
+	 */
+	int getSizedLength() {
+		return this.getEncodedLength();
+	}
+
+	/**
+	 * Encodes the <code>GOOSEMessageAPDU</code> as last sized by
+	 * <code>getEncodedLength</code>, i.e. the number of bytes written is the
+	 * length last returned, even if the data was updated concurrently since.
+	 * Subclasses without such data simply encode.
+	 * 
+	 * @param buffer
+	 *            the byte array to encode into
+	 * @param offset
+	 *            the offset into the byte array to start writing at
+	 * @return int the number of bytes written, or -1 if the buffer is too
+	 *         small
+	 */
+	int encodeSized(byte[] buffer, int offset) {
+		return this.encodeTo(buffer, offset);
+	}
 }
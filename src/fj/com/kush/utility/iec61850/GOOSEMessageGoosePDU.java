@@ -7,11 +7,11 @@
  */
 package fj.com.kush.utility.iec61850;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 import java.util.Date;
 
-import fj.com.kush.utility.BytesUtility;
 import fj.com.kush.utility.Converter;
+import fj.com.kush.utility.asn.BERCursor;
 
 //import org.jnetpcap.packet.format.FormatUtils;
 
@@ -24,10 +24,10 @@ public final class GOOSEMessageGoosePDU extends GOOSEMessageAPDU {
 
   // IEC 61850 preamble to the actual GOOSE PDU
   // Ref. IEC 61850-8-1 Annex A
-  // 0x61 is preamble tag for GSE or GOOSE Message
-  // 0x80 is data tag for GSE Management Message
-  // 0x81 is data tag for GOOSE Message
+  // 0x61 is preamble tag for GSE or GOOSE Message, i.e. [APPLICATION 1]
+  // 0x81 is the BER long form prefix of a single octet PDU length
   public static final byte[] GOOSE_ASDU_HDR        = { (byte) 0x61, (byte) 0x81 };
+  public static final byte   TAG_GOOSE_PDU         = (byte) 0x61;
 
   // IEC 61850-8-1 Specific Protocol APPLICATION 1
   public static final byte   GOOSE_PROTOCOL        = (byte) 0x41;
@@ -40,11 +40,31 @@ public final class GOOSEMessageGoosePDU extends GOOSEMessageAPDU {
   public static final int    TIME_CLOCK_NOT_SYNCED = 32;
   public static final int    ACCURACY_UNSPECIFIED  = 31;
 
+  static final long          NANOS_PER_SECOND      = 1000000000L;
+
   // maximum values for attributes
   public static final long MAX_STNUM = 4294967295L;
   public static final long MAX_SQNUM = 4294967295L;
   public static final long MAX_TAL = 4294967295L;
 
+  // IECGoosePdu context specific tags Ref. IEC 61850-8-1 Annex A
+  public static final byte TAG_GOCBREF           = (byte) 0x80;
+  public static final byte TAG_TIME_ALLOWED_TO_LIVE = (byte) 0x81;
+  public static final byte TAG_DATSET            = (byte) 0x82;
+  public static final byte TAG_GOID              = (byte) 0x83;
+  public static final byte TAG_T                 = (byte) 0x84;
+  public static final byte TAG_STNUM             = (byte) 0x85;
+  public static final byte TAG_SQNUM             = (byte) 0x86;
+  public static final byte TAG_TEST              = (byte) 0x87;
+  public static final byte TAG_CONFREV           = (byte) 0x88;
+  public static final byte TAG_NDSCOM            = (byte) 0x89;
+  public static final byte TAG_NUMDATSETENTRIES  = (byte) 0x8a;
+
+  // indexes of the cached field lengths, i.e. the low bits of the field tags
+  private static final int FIELD_ALLDATA         = GOOSEAllData.TAG & 0x0f;
+  private static final int FIELD_COUNT           = FIELD_ALLDATA + 1;
+  private static final int DIRTY_ALL             = ( 1 << FIELD_COUNT ) - 1;
+
   // attributes
 
   // package attributes - Ref. 61850-8.1 p111
@@ -74,11 +94,14 @@ public final class GOOSEMessageGoosePDU extends GOOSEMessageAPDU {
                                                                                    // identifier
 
   // T - 8 octet timestamp
-  private Date               t                     = null;                        // time
-                                                                                   // and
-                                                                                   // quality
+  private long               t                     = -1;                          // time
                                                                                    // as
                                                                                    // UTC
+                                                                                   // epoch
+                                                                                   // nanos
+  private int                timeQuality           = TIME_CLOCK_NOT_SYNCED
+                                                       | ACCURACY_UNSPECIFIED;
+  private GOOSEClock         clock                 = GOOSEClock.SYSTEM;
 
   // stNum - int in the range 1 to 4 294 967 295
   private long               stNum                 = -1;                          // status
@@ -129,6 +152,40 @@ public final class GOOSEMessageGoosePDU extends GOOSEMessageAPDU {
 
   int                        length                = -1;
 
+  // scratch buffer used when encoding into direct byte buffers
+  private byte[]             scratch               = null;
+
+  // cursor used to write the TLVs of the PDU
+  private final BERCursor    cursor                = new BERCursor();
+
+  // encoded (TLV) length of each field, indexed by the low bits of the tag,
+  // their sum and a bit per field whose length must be recomputed
+  private final int[]        fieldLengths          = new int[FIELD_COUNT];
+  private int                valueLength           = 0;
+  private int                dirty                 = DIRTY_ALL;
+  private int                allDataModCount       = -1;
+
+  // the version of the allData the cached lengths were computed for, which
+  // is the version encoded by encodeTo
+  private GOOSEAllData.Snapshot allDataSnapshot    = null;
+
+  // the seconds of t last encoded and its start in epoch nanos, reused while
+  // t remains within the same second
+  private long               tSecond               = 0;
+  private long               tSecondNanos          = Long.MIN_VALUE;
+
+  // modification count of the fields that change the layout of the encoded
+  // PDU, i.e. everything except stNum, sqNum and t
+  private int                modCount              = 0;
+
+  // offsets (into the buffer last encoded into) and widths of the stNum,
+  // sqNum and t values, recorded by encodeTo for GOOSEFrameTemplate
+  int                        encodedTOffset        = -1;
+  int                        encodedStNumOffset    = -1;
+  int                        encodedStNumWidth     = 0;
+  int                        encodedSqNumOffset    = -1;
+  int                        encodedSqNumWidth     = 0;
+
   // constructors
 
   /**
@@ -139,7 +196,7 @@ public final class GOOSEMessageGoosePDU extends GOOSEMessageAPDU {
     timeAllocatedtoLive = -1;
     datSet = null;
     goID = null;
-    t = null;
+    t = -1;
     stNum = -1;
     sqNum = -1;
     test = true;
@@ -155,168 +212,112 @@ public final class GOOSEMessageGoosePDU extends GOOSEMessageAPDU {
    * Creates an instance of the GOOSEMessageGoosePDU from the byte array
    * supplied. The byte array supplied must have been read off of the network.
    * The offset specified where within the byte array the GOOSE APDU starts,
-   * including the app id preamble
+   * i.e. the 0x61 preamble following the 8 byte app id header
    * 
    * @param bytes
    *          the array of bytes read off of the network
    * @param offset
    *          int representing the offset into the byte array to start
-   *          processing from, normal value should be 8, for 8 byte offset
-   * @return GOOSEMessageGoosePDU the instantiated GOOSE APDU
+   *          processing from, i.e. the offset of the 0x61 preamble
+   * @return GOOSEMessageGoosePDU the instantiated GOOSE APDU, or null if the
+   *         bytes are not a GOOSE PDU
    */
   public static GOOSEMessageGoosePDU getInstance(byte[] bytes, int offset) {
-    if (bytes == null) {
+    return GOOSEMessageGoosePDU.getInstance(bytes, offset, false);
+  }
+
+  /**
+   * Creates an instance of the GOOSEMessageGoosePDU from the byte array
+   * supplied, see <code>getInstance(byte[], int)</code>. If packed is true the
+   * allData is decoded into a <code>GOOSEPackedAllData</code>, i.e. without
+   * creating a <code>GOOSEData</code> object per element.
+   * 
+   * @param bytes
+   *          the array of bytes read off of the network
+   * @param offset
+   *          int representing the offset into the byte array to start
+   *          processing from, i.e. the offset of the 0x61 preamble
+   * @param packed
+   *          true to decode the allData into primitive columns
+   * @return GOOSEMessageGoosePDU the instantiated GOOSE APDU, or null if the
+   *         bytes are not a GOOSE PDU
+   */
+  public static GOOSEMessageGoosePDU getInstance(byte[] bytes, int offset,
+      boolean packed) {
+    if (bytes == null || offset < 0) {
       return null;
     }
 
-    GOOSEMessageGoosePDU goosePDU = new GOOSEMessageGoosePDU();
-
-    // This is a really bad hack to handle non-standard implementation of the
-    // GOOSE message PDU
-    //
-    // Example start of payload byte array
-    // Standards compliant with a context 0x81 tag before PDU length
+    // Example start of payload byte array, the PDU length following the 0x61
+    // preamble is BER encoded, i.e. in the short form (0 to 127) or the long
+    // form (0x81 or 0x82 followed by 1 or 2 length bytes)
     // 00 00 00 00 00 00 00 00 61 81 80 80 18 47 45 5f - Virtual
     // 00 01 00 91 00 00 00 00 61 81 86 80 1a 47 45 44 - Wireshark
     // 30 01 00 e3 00 00 00 00 61 81 d8 80 1b 41 41 31 - Sample GOOSE
     // 30 01 00 e2 00 00 00 00 61 81 d7 80 1b 41 41 31 - Sample GOOSE + MMS
-    // No context tag!! - WTF!!
     // 00 00 00 86 00 00 00 00 61 7c 80 18 47 45 5f 4e - MSU
     // 20 00 00 6c 00 00 00 00 61 62 80 03 31 31 31 81 - Demo
-    //
-    // Initial offset supplied, usually 8 bytes, thus start with
-    // preamble of 1 bytes, i.e. 0x61 then the APDU tag of 1 byte e.g. 0x80 for
-    // GSE management or 0x81 for GOOSE
-    //
-    // Since these are set dynamically by the GOOSEMessage instance, when
-    // processing we can skip these by starting our processing of the byte
-    // array at a new offset, however how much of the bytes to skip depends on
-    // the implementation, i.e. for standard implementation we can skip an extra
-    // context tag, else we cant. So we need to calculate the offset correction
-    // value by attempting to guess the type of byte array we are given
-
-    // set the gocbref
-    // check if the start is a tag, else must be dodgy non-standard
-    // implementation, so calculate offset correctly. See comments above
-    int offsetCorrection = 1;
-    if (bytes[offset + 1] == (byte) 0x80 || bytes[offset + 1] == (byte) 0x81) {
-      offsetCorrection = 2;
-    } else {
-      offsetCorrection = 1;
+    BERCursor cursor = new BERCursor().wrap(bytes, offset, bytes.length);
+    if (!cursor.next() || cursor.tag() != ( TAG_GOOSE_PDU & 0xff )) {
+      return null;
     }
 
-    // ASDU header contains 0x61 and 0x81 for GOOSE PDU + x for gocbref tag
-    int start = offset + GOOSEMessageGoosePDU.GOOSE_ASDU_HDR.length
-        + offsetCorrection;
-    byte[] value = getValue(bytes, start);
-    goosePDU.setGocbRef(Converter.bytesToString(value));
-
-    // set the timeAllowedToLive
-    start += value.length + 2; // skip current tag and previous length bytes
-    value = getValue(bytes, start);
-    // goosePDU.setTimeAllocatedtoLive(Converter.bytesToIntBE(value));
-    goosePDU.setTimeAllocatedtoLive(Converter.bytesToIntBE(value));
-
-    // set datSet
-    start += value.length + 2; // skip current tag and previous length bytes
-    value = getValue(bytes, start);
-    goosePDU.setDatSet(Converter.bytesToString(value));
-
-    // set goID
-    start += value.length + 2; // skip current tag and previous length bytes
-    value = getValue(bytes, start);
-    goosePDU.setGoID(Converter.bytesToString(value));
-
-    // set time
-    start += value.length + 2; // skip current tag and previous length bytes
-    value = getValue(bytes, start);
-
-    byte[] quotient_bytes = new byte[4];
-    BytesUtility.copyBytes(value, quotient_bytes, 0, 4);
-    // int quotient = Converter.bytesToIntBE(quotient_bytes);
-    long quotient = (long) Converter.bytesToIntBE(quotient_bytes);
-
-    byte[] remainder_bytes = new byte[4];
-    BytesUtility.copyBytes(value, remainder_bytes, 4, 4);
-
-    remainder_bytes[3] = 0; // reset the sensitivity byte
-    int remainder_reversed = Converter.bytesToIntBE(remainder_bytes);
-    int remainder = Integer.reverse(remainder_reversed);
-
-    long epoch = (quotient * 1000) + remainder;
-    goosePDU.setT(new Date(epoch));
-
-    // set stNum
-    start += value.length + 2; // skip current tag and previous length bytes
-    value = getValue(bytes, start);
-    goosePDU.setStNum(Converter.bytesToLongBE(value));
-
-    // set sqNum
-    start += value.length + 2; // skip current tag and previous length bytes
-    value = getValue(bytes, start);
-    goosePDU.setSqNum(Converter.bytesToLongBE(value));
-
-    // set test
-    start += value.length + 2; // skip current tag and previous length bytes
-    value = getValue(bytes, start);
-    if (Converter.bytesToIntBE(value) != 0) {
-      goosePDU.setTest(true);
-    } else {
-      goosePDU.setTest(false);
-    }
+    GOOSEMessageGoosePDU goosePDU = new GOOSEMessageGoosePDU();
 
-    // set confRev
-    start += value.length + 2; // skip current tag and previous length bytes
-    value = getValue(bytes, start);
-    goosePDU.setConfRev(Converter.bytesToIntBE(value));
-
-    // setndsCom
-    start += value.length + 2; // skip current tag, previous length and
-    // value bytes
-    value = getValue(bytes, start);
-    if (Converter.bytesToIntBE(value) != 0) {
-      goosePDU.setNdsCom(true);
-    } else {
-      goosePDU.setNdsCom(false);
+    // fields are matched on their tags, thus optional fields may be omitted
+    int outer = cursor.enter();
+    while (cursor.next()) {
+      switch ((byte) cursor.tag()) {
+        case TAG_GOCBREF:
+          goosePDU.setGocbRef(cursor.readVisibleString());
+          break;
+        case TAG_TIME_ALLOWED_TO_LIVE:
+          goosePDU.setTimeAllocatedtoLive((int) cursor.readUnsigned());
+          break;
+        case TAG_DATSET:
+          goosePDU.setDatSet(cursor.readVisibleString());
+          break;
+        case TAG_GOID:
+          goosePDU.setGoID(cursor.readVisibleString());
+          break;
+        case TAG_T:
+          if (cursor.length() == 8) {
+            goosePDU.setTimeNanos(readUtcTime(cursor, cursor.valueOffset()));
+            goosePDU.setTimeQuality(cursor.get(cursor.valueOffset() + 7));
+          }
+          break;
+        case TAG_STNUM:
+          goosePDU.setStNum(cursor.readUnsigned());
+          break;
+        case TAG_SQNUM:
+          goosePDU.setSqNum(cursor.readUnsigned());
+          break;
+        case TAG_TEST:
+          goosePDU.setTest(cursor.readBoolean());
+          break;
+        case TAG_CONFREV:
+          goosePDU.setConfRev((int) cursor.readUnsigned());
+          break;
+        case TAG_NDSCOM:
+          goosePDU.setNdsCom(cursor.readBoolean());
+          break;
+        case TAG_NUMDATSETENTRIES:
+          // implied by the number of allData elements
+          break;
+        case GOOSEAllData.TAG:
+          goosePDU.setAllData(packed ? GOOSEPackedAllData.getInstance(cursor)
+              : GOOSEAllData.getInstance(cursor));
+          break;
+        default:
+          // unknown or security, skip
+          break;
+      }
     }
-
-    // chomp numDatSetEnties
-    // start += value.length + 1; // skip previous length and value bytes
-    // value = getValue(bytes, start);
-    // int numEntries = Converter.bytesToIntBE(value);
-
-    // set allData
-    start += value.length + 1; // skip previous length and value bytes
-    GOOSEAllData allData = GOOSEAllData.getInstance(bytes, start);
-    goosePDU.setAllData(allData);
+    cursor.exit(outer);
 
     return goosePDU;
   }
 
-  /**
-   * Parses the byte array supplied for the length tag, and clones the byte
-   * array for values and returns it. The next byte value following the start
-   * offset should specify the length of the value to be obtained in bytes
-   * 
-   * @param buffer
-   *          the byte array containing the value
-   * @param start
-   *          the start offset into the byte array supplied
-   * @return byte[] representing the value of length specified at the start
-   *         position
-   */
-  static byte[] getValue(byte[] buffer, int start) {
-    if (buffer == null) {
-      return null;
-    }
-
-    int length = buffer[start++];
-    byte[] value = new byte[length];
-    BytesUtility.copyBytes(buffer, value, start, length);
-
-    return value;
-  }
-
   // accessors
 
   /**
@@ -392,87 +393,178 @@ public final class GOOSEMessageGoosePDU extends GOOSEMessageAPDU {
    */
   @Override
   public byte[] getLength() {
-    // length based on fixed length attributes
+    // return length as a byte array
+    return ( Converter.intToMinBytesBE( this.getEncodedLength() ) );
+  }
+
+  /**
+   * Gets the total number of bytes required to encode this PDU, including the
+   * preamble and PDU length bytes. The field lengths are cached, thus in the
+   * steady state, e.g. when only sqNum changes without changing width, this
+   * takes constant time. This method also sets the internal length attribute.
+   * 
+   * @return int the encoded length of the PDU in bytes
+   */
+  @Override
+  public int getEncodedLength() {
     // 1 - preamble (0x61)
-    // 1 - context 0x80 for goosePdu - Annex A
-    // n - pdu length
-    // 1 - context
-    // n - length
-    // n - gocbRef
-    // 1 - context
-    // 1 - length
-    // n - timeAllowedtoLive
-    // n - datSet
-    // n - goID
+    // 1 to 3 - BER length of the pdu, e.g. 0x81 and 1 byte - Annex A
+    // 2 + n - gocbRef
+    // 2 + n - timeAllowedtoLive
+    // 2 + n - datSet
+    // 2 + n - goID
     // 10 - T 8 + 2 bytes
-    // n - stNum
-    // n - sqNum
+    // 2 + n - stNum
+    // 2 + n - sqNum
     // 3 - test 1 + 2 bytes
-    // n - confRev
-    // 3 - ndsConf 1 + 2 bytes
-    // n - numElements
-    // 2 - preamble (0xab 0x0a)
-    // n - allData
-    this.length = 21; // fixed length
-
-    // get gocbref length
-    String value = null; // used to reduce local method invocations
-    value = this.getGocbRef();
-    if (value != null) {
-      this.length += value.length() + 2; // 2 bytes for tag and length
+    // 2 + n - confRev
+    // 3 - ndsCom 1 + 2 bytes
+    // 2 + n - numDatSetEntries
+    // n - allData, including the preamble (0xab) and length
+    this.length = BERCursor.sizeOf( this.getValueLength() );
+    return this.length;
+  }
+
+  /**
+   * Gets the encoded length of the PDU with the version of the allData last
+   * sized by <code>getEncodedLength</code>
+   */
+  @Override
+  int getSizedLength() {
+    this.length = BERCursor.sizeOf( this.getSizedValueLength() );
+    return this.length;
+  }
+
+  /**
+   * Gets the number of bytes of the PDU following the preamble and PDU length.
+   * The length is cached, and only the lengths of the fields set since the
+   * last invocation, or of the allData when it has been modified, are
+   * recomputed.
+   * 
+   * @return int the value length of the PDU in bytes
+   */
+  private int getValueLength() {
+    this.pinAllData();
+    return this.getSizedValueLength();
+  }
+
+  /**
+   * Records the current version of the allData as the version encoded, if
+   * it has been modified since it was last recorded
+   */
+  private void pinAllData() {
+    if (this.allData != null) {
+      GOOSEAllData.Snapshot current = this.allData.getSnapshot();
+      int count = this.allData.getModCount( current );
+      if (count != this.allDataModCount || current != this.allDataSnapshot) {
+        this.allDataModCount = count;
+        this.allDataSnapshot = current;
+        this.markDirty( GOOSEMessageGoosePDU.TAG_NUMDATSETENTRIES );
+        this.markDirty( GOOSEAllData.TAG );
+      }
     }
-    value = null;
-
-    // get timeAllowedToLive length
-    byte[] byte_value = Converter.longToMinBytesBE( this
-        .getTimeAllocatedtoLive() );
-    this.length += byte_value.length + 2; // 2 bytes for tag and length
-    byte_value = null;
-
-    // get dat set length
-    value = this.getDatSet();
-    if (value != null) {
-      this.length += value.length() + 2; // 2 bytes for tag and length
+  }
+
+  /**
+   * Gets the number of bytes of the PDU following the preamble and PDU length
+   * for the version of the allData last recorded, see <code>pinAllData</code>.
+   * Only the lengths of the fields set since the last invocation are
+   * recomputed.
+   * 
+   * @return int the value length of the PDU in bytes
+   */
+  private int getSizedValueLength() {
+    if (this.allData != null && this.allDataModCount == -1) {
+      this.pinAllData(); // not sized since the allData was set
     }
-    value = null;
 
-    // get goID length
-    value = this.getGoID();
-    if (value != null) {
-      this.length += value.length() + 2; // 2 bytes for tag and length
+    if (this.dirty != 0) {
+      for (int i = 0; i < FIELD_COUNT; i++) {
+        if (( this.dirty & ( 1 << i ) ) != 0) {
+          int len = this.getFieldLength( i );
+          this.valueLength += len - this.fieldLengths[i];
+          this.fieldLengths[i] = len;
+        }
+      }
+      this.dirty = 0;
     }
-    value = null;
-
-    // get stNum length
-    byte_value = Converter.longToMinBytesBE( this.getStNum() );
-    this.length += byte_value.length + 2;
-    byte_value = null;
-
-    // get sqNum length
-    byte_value = Converter.longToMinBytesBE( this.getSqNum() );
-    this.length += byte_value.length + 2;
-    byte_value = null;
-
-    // get confRev length
-    byte_value = Converter.intToMinBytesBE( this.getConfRev() );
-    this.length += byte_value.length + 2;
-    byte_value = null;
-
-    // get all data length and numEntries length
-    if (this.getAllData() != null) {
-      byte_value = Converter
-          .intToMinBytesBE( this.getAllData().getNumEntries() );
-      this.length += byte_value.length + 2; // tag + length + num entries
-      this.length += getAllData().getBytesLength(); // get all data length
-      byte_value = null;
+
+    return this.valueLength;
+  }
+
+  /**
+   * Computes the encoded (TLV) length of the field specified
+   * 
+   * @param field
+   *          the low bits of the tag of the field
+   * @return int the length of the field in bytes, 0 if absent
+   */
+  private int getFieldLength(int field) {
+    switch (field) {
+      case TAG_GOCBREF & 0x0f:
+        return (this.gocbRef != null ? BERCursor.sizeOf( this.gocbRef.length() ) : 0);
+      case TAG_TIME_ALLOWED_TO_LIVE & 0x0f:
+        return (this.timeAllocatedtoLive != -1 ? BERCursor.sizeOf( BERCursor
+            .sizeOfInteger( this.timeAllocatedtoLive ) ) : 0);
+      case TAG_DATSET & 0x0f:
+        return (this.datSet != null ? BERCursor.sizeOf( this.datSet.length() ) : 0);
+      case TAG_GOID & 0x0f:
+        return (this.goID != null ? BERCursor.sizeOf( this.goID.length() ) : 0);
+      case TAG_T & 0x0f:
+        return (this.t != -1 ? 8 + 2 : 0);
+      case TAG_STNUM & 0x0f:
+        return (this.stNum != -1 ? BERCursor.sizeOf( BERCursor
+            .sizeOfInteger( this.stNum ) ) : 0);
+      case TAG_SQNUM & 0x0f:
+        return (this.sqNum != -1 ? BERCursor.sizeOf( BERCursor
+            .sizeOfInteger( this.sqNum ) ) : 0);
+      case TAG_TEST & 0x0f:
+      case TAG_NDSCOM & 0x0f:
+        return 1 + 2;
+      case TAG_CONFREV & 0x0f:
+        return (this.confRev != -1 ? BERCursor.sizeOf( BERCursor
+            .sizeOfInteger( this.confRev ) ) : 0);
+      case TAG_NUMDATSETENTRIES & 0x0f:
+        return BERCursor.sizeOf( BERCursor.sizeOfInteger( this
+            .getEncodedNumDatSetEntries() ) );
+      case FIELD_ALLDATA:
+        return (this.allData != null ? this.allData
+            .getEncodedLength( this.allDataSnapshot ) : 0);
+      default:
+        return 0;
     }
+  }
 
-    // return length as a byte array
-    return ( Converter.intToMinBytesBE( this.length ) );
+  /**
+   * Marks the cached length of the field with the tag specified as out of
+   * date
+   */
+  private void markDirty(byte tag) {
+    this.dirty |= 1 << ( tag & 0x0f );
   }
 
   // mutators
 
+  /**
+   * Gets the modification count of the version of the allData last sized,
+   * i.e. the version encoded by <code>encodeTo</code>
+   * 
+   * @return int the modification count, or -1 if not sized
+   */
+  int getSizedAllDataModCount() {
+    return this.allDataModCount;
+  }
+
+  /**
+   * Gets the modification count of the fields that determine the layout of
+   * the encoded PDU. The count is not changed by setting stNum, sqNum or t.
+   * 
+   * @return int the modification count
+   */
+  int getModCount() {
+    return this.modCount;
+  }
+
   /**
    * @return the numDatSetEntries
    */
@@ -484,6 +576,17 @@ public final class GOOSEMessageGoosePDU extends GOOSEMessageAPDU {
     }
   }
 
+  /**
+   * Gets the number of entries of the version of the allData being encoded
+   */
+  private int getEncodedNumDatSetEntries() {
+    if (this.allData != null) {
+      return this.allData.getNumEntries( this.allDataSnapshot );
+    } else {
+      return 0;
+    }
+  }
+
   /**
    * Gets the security bytes
    * 
@@ -494,14 +597,42 @@ public final class GOOSEMessageGoosePDU extends GOOSEMessageAPDU {
   }
 
   /**
-   * Gets the time for the PDU
+   * Gets the clock used to stamp the time of the PDU
    * 
-   * @return the goID
+   * @return GOOSEClock the clock
+   */
+  public GOOSEClock getClock() {
+    return this.clock;
+  }
+
+  /**
+   * Gets the time for the PDU. A <code>Date</code> is allocated on every call
+   * and the time is truncated to milliseconds, see <code>getTimeNanos</code>.
+   * 
+   * @return the time, or null if not set
    */
   public Date getT() {
+    return (this.t != -1 ? new Date( Math.floorDiv( this.t, 1000000L ) ) : null);
+  }
+
+  /**
+   * Gets the time for the PDU
+   * 
+   * @return long the nanoseconds since the epoch, or -1 if not set
+   */
+  public long getTimeNanos() {
     return this.t;
   }
 
+  /**
+   * Gets the time quality of the PDU, i.e. the last octet of the UtcTime
+   * 
+   * @return int the time quality octet
+   */
+  public int getTimeQuality() {
+    return this.timeQuality;
+  }
+
   /**
    * Gets the time allowed to live for this PDU
    * 
@@ -534,7 +665,12 @@ public final class GOOSEMessageGoosePDU extends GOOSEMessageAPDU {
    *          the allData to set
    */
   public void setAllData(GOOSEAllData allData) {
+    this.modCount++;
     this.allData = allData;
+    this.allDataModCount = -1;
+    this.allDataSnapshot = null;
+    this.markDirty( GOOSEMessageGoosePDU.TAG_NUMDATSETENTRIES );
+    this.markDirty( GOOSEAllData.TAG );
   }
 
   /**
@@ -542,6 +678,8 @@ public final class GOOSEMessageGoosePDU extends GOOSEMessageAPDU {
    *          the confRev to set
    */
   public void setConfRev(int confRev) {
+    this.modCount++;
+    this.markDirty( GOOSEMessageGoosePDU.TAG_CONFREV );
     this.confRev = confRev;
   }
 
@@ -554,6 +692,8 @@ public final class GOOSEMessageGoosePDU extends GOOSEMessageAPDU {
    *          the datSet to set
    */
   public void setDatSet(String datSet) {
+    this.modCount++;
+    this.markDirty( GOOSEMessageGoosePDU.TAG_DATSET );
     if (datSet == null || datSet.length() == 0) {
       this.datSet = null; // ConstStrings.EMPTY_STRING;
     } else if (datSet.length() > GOOSEMessageGoosePDU.MAX_DATSET_LENGTH) {
@@ -570,6 +710,8 @@ public final class GOOSEMessageGoosePDU extends GOOSEMessageAPDU {
    *          the GOOSE control block string
    */
   public void setGocbRef(String gocbRef) {
+    this.modCount++;
+    this.markDirty( GOOSEMessageGoosePDU.TAG_GOCBREF );
     this.gocbRef = gocbRef;
   }
 
@@ -582,6 +724,8 @@ public final class GOOSEMessageGoosePDU extends GOOSEMessageAPDU {
    *          the goID to set
    */
   public void setGoID(String goID) {
+    this.modCount++;
+    this.markDirty( GOOSEMessageGoosePDU.TAG_GOID );
     if (goID == null || goID.length() == 0) {
       this.goID = ConstStrings.EMPTY_STRING;
     } else if (goID.length() > GOOSEMessageGoosePDU.MAX_ID_LENGTH) {
@@ -596,6 +740,8 @@ public final class GOOSEMessageGoosePDU extends GOOSEMessageAPDU {
    *          the ndsCom to set
    */
   public void setNdsCom(boolean ndsCom) {
+    this.modCount++;
+    this.markDirty( GOOSEMessageGoosePDU.TAG_NDSCOM );
     this.ndsCom = ndsCom;
   }
 
@@ -606,6 +752,7 @@ public final class GOOSEMessageGoosePDU extends GOOSEMessageAPDU {
    *          the security to set
    */
   public void setSecurityBytes(byte[] security) {
+    this.modCount++;
     this.security = security;
   }
 
@@ -616,10 +763,11 @@ public final class GOOSEMessageGoosePDU extends GOOSEMessageAPDU {
    *          the sqNum to set
    */
   public void setSqNum(long sqNum) {
+    this.markDirty( GOOSEMessageGoosePDU.TAG_SQNUM );
     if (sqNum < 0) {
       this.sqNum = 0;
-    } else if (stNum > Math.pow(2, 32)) { // max should be 4294967295
-      this.stNum = 1;
+    } else if (sqNum > GOOSEMessageGoosePDU.MAX_SQNUM) {
+      this.sqNum = 1; // wraps to 1, as 0 marks a state change
     } else {
       this.sqNum = sqNum;
     }
@@ -630,30 +778,79 @@ public final class GOOSEMessageGoosePDU extends GOOSEMessageAPDU {
    *          the stNum to set
    */
   public void setStNum(long stNum) {
+    this.markDirty( GOOSEMessageGoosePDU.TAG_STNUM );
     if (stNum <= 0) {
       this.stNum = 1;
-    } else if (stNum > Math.pow(2, 32)) { // max should be 4294967295
+    } else if (stNum > GOOSEMessageGoosePDU.MAX_STNUM) {
       this.stNum = 1;
     } else {
       this.stNum = stNum;
     }
   }
 
+  /**
+   * Sets the clock used to stamp the time of the PDU. If the clock specified
+   * is null then the system clock is set.
+   * 
+   * @param clock
+   *          the clock
+   */
+  public void setClock(GOOSEClock clock) {
+    this.clock = (clock != null ? clock : GOOSEClock.SYSTEM);
+  }
+
   /**
    * Sets the time for the PDU. If the Date specified is invalid or null then
-   * the current system time is set.
+   * the current time of the clock is set, see <code>stamp</code>.
    * 
    * @param t
    *          the Date to set as the timestamp for this PDU
    */
   public void setT(Date t) {
     if (t == null) {
-      this.t = new Date(System.currentTimeMillis());
+      this.stamp();
     } else {
-      this.t = t;
+      this.setTimeNanos( t.getTime() * 1000000L );
     }
   }
 
+  /**
+   * Sets the time for the PDU. If the time specified is negative then the
+   * current time of the clock is set, see <code>stamp</code>.
+   * 
+   * @param nanos
+   *          the nanoseconds since the epoch
+   */
+  public void setTimeNanos(long nanos) {
+    if (nanos < 0) {
+      this.stamp();
+      return;
+    }
+    if (this.t == -1) {
+      this.markDirty( GOOSEMessageGoosePDU.TAG_T );
+    }
+    this.t = nanos;
+  }
+
+  /**
+   * Sets the time quality of the PDU, i.e. the last octet of the UtcTime
+   * 
+   * @param quality
+   *          the time quality octet
+   */
+  public void setTimeQuality(int quality) {
+    this.timeQuality = quality & 0xff;
+  }
+
+  /**
+   * Sets the time and time quality of the PDU from the clock. Nothing is
+   * allocated, thus the PDU may be stamped for every frame sent.
+   */
+  public void stamp() {
+    this.setTimeNanos( this.clock.currentTimeNanos() );
+    this.timeQuality = this.clock.getTimeQuality();
+  }
+
   /**
    * Sets the time allowed to live for this PDU
    * 
@@ -661,6 +858,8 @@ public final class GOOSEMessageGoosePDU extends GOOSEMessageAPDU {
    *          the timeAllocatedtoLive to set
    */
   public void setTimeAllocatedtoLive(int timeAllocatedtoLive) {
+    this.modCount++;
+    this.markDirty( GOOSEMessageGoosePDU.TAG_TIME_ALLOWED_TO_LIVE );
     this.timeAllocatedtoLive = timeAllocatedtoLive;
   }
 
@@ -669,6 +868,8 @@ public final class GOOSEMessageGoosePDU extends GOOSEMessageAPDU {
    *          the test to set
    */
   public void setTest(boolean test) {
+    this.modCount++;
+    this.markDirty( GOOSEMessageGoosePDU.TAG_TEST );
     this.test = test;
   }
 
@@ -697,177 +898,230 @@ public final class GOOSEMessageGoosePDU extends GOOSEMessageAPDU {
   @Override
   public byte[] toBytes() {
     // FIXME: check attributes and throw exception in case of error
+    byte[] buffer = new byte[this.getEncodedLength()];
+    this.encodeSized( buffer, 0 );
+    return buffer;
+  }
+
+  /**
+   * Encodes the <code>GOOSEMessageGoosePDU</code> into the byte array
+   * supplied, starting at the offset specified, in a single pass and without
+   * allocating any intermediate arrays. See <code>toBytes</code> for the
+   * encoding.
+   * 
+   * @param buffer
+   *          the byte array to encode the PDU into
+   * @param offset
+   *          the offset into the byte array to start writing at
+   * @return int the number of bytes written, or -1 if the buffer is too small
+   */
+  @Override
+  public int encodeTo(byte[] buffer, int offset) {
+    this.pinAllData();
+    return this.encodeSized( buffer, offset );
+  }
+
+  /**
+   * Encodes the PDU with the version of the allData last sized by
+   * <code>getEncodedLength</code>, see <code>encodeTo</code>
+   */
+  @Override
+  int encodeSized(byte[] buffer, int offset) {
+    int valueLength = this.getSizedValueLength();
+    int len = BERCursor.sizeOf( valueLength );
+    this.length = len;
+    if (buffer == null || offset < 0 || offset + len > buffer.length) {
+      return -1;
+    }
+
+    BERCursor cursor = this.cursor.wrap( buffer, offset, offset + len );
 
-    // calculated required buffer size and initialise buffer
-    this.getLength(); // sets the length attribute, this.length
-    byte[] buffer = new byte[this.length];
-    Arrays.fill(buffer, (byte) 0x0); // zero fill the array
-
-    // initialise local variables
-    int buffer_offset = 0;
-    byte tag;
-    int numTags = 0;
-    String tmpStr = null; // used to reduce local method invocation
-
-    // set preamble (1 byte) and length of entire PDU
-    BytesUtility.copyBytes(GOOSEMessageGoosePDU.GOOSE_ASDU_HDR, buffer, 0,
-        GOOSEMessageGoosePDU.GOOSE_ASDU_HDR.length, buffer_offset);
-    buffer_offset += GOOSEMessageGoosePDU.GOOSE_ASDU_HDR.length;
-    buffer[buffer_offset++] = (byte) (this.length - 2);
-    // buffer[buffer_offset++] = (byte)( this.length - 1 );
-
-    // set tag (1 byte) Ref. 61850-9.2 p21, length of gocbref (1 byte) and
-    // then gocbref
-    tmpStr = this.getGocbRef();
-    if (tmpStr != null) {
-      tag = (byte) (GOOSEMessageAPDU.TAG_CONTEXT | numTags++);
-      buffer[buffer_offset++] = tag; // tag
-      buffer[buffer_offset++] = (byte) tmpStr.length(); // length
-      byte[] gocbref_bytes = Converter.stringToBytesBE(tmpStr);
-      BytesUtility.copyBytes(gocbref_bytes, buffer, 0, gocbref_bytes.length,
-          buffer_offset); // value
-      buffer_offset += gocbref_bytes.length;
-      tmpStr = null;
+    // set preamble and BER length of entire PDU
+    cursor.writeHeader( GOOSEMessageGoosePDU.TAG_GOOSE_PDU, valueLength );
+
+    // set tag, length and gocbRef (65 bytes max)
+    if (this.gocbRef != null) {
+      cursor.writeVisibleString( GOOSEMessageGoosePDU.TAG_GOCBREF, this.gocbRef );
     }
 
     // set tag, length and timeallowedtolive (4 bytes max)
     if (this.timeAllocatedtoLive != -1) {
-      tag = (byte) (GOOSEMessageAPDU.TAG_CONTEXT | numTags++);
-      buffer[buffer_offset++] = tag; // tag
-      byte[] timeallowedtolive_bytes = Converter
-          .longToMinBytesBE( this.timeAllocatedtoLive );
-      buffer[buffer_offset++] = (byte) (timeallowedtolive_bytes.length); // length
-      BytesUtility.copyBytes(timeallowedtolive_bytes, buffer, 0,
-          timeallowedtolive_bytes.length, buffer_offset); // value
-      buffer_offset += timeallowedtolive_bytes.length;
+      cursor.writeInteger( GOOSEMessageGoosePDU.TAG_TIME_ALLOWED_TO_LIVE,
+          this.timeAllocatedtoLive );
     }
 
     // set tag, length and datSet (65 bytes max)
-    tmpStr = this.getDatSet();
-    if (tmpStr != null) {
-      tag = (byte) (GOOSEMessageAPDU.TAG_CONTEXT | numTags++);
-      buffer[buffer_offset++] = tag; // tag
-      buffer[buffer_offset++] = (byte) tmpStr.length(); // length
-      byte[] datSet_bytes = Converter.stringToBytesBE(tmpStr);
-      BytesUtility.copyBytes(datSet_bytes, buffer, 0, datSet_bytes.length,
-          buffer_offset); // value
-      buffer_offset += datSet_bytes.length;
-      tmpStr = null;
+    if (this.datSet != null) {
+      cursor.writeVisibleString( GOOSEMessageGoosePDU.TAG_DATSET, this.datSet );
     }
 
     // set tag, length and goID (65 bytes max)
-    tmpStr = this.getGoID();
-    if (tmpStr != null) {
-      tag = (byte) (GOOSEMessageAPDU.TAG_CONTEXT | numTags++);
-      buffer[buffer_offset++] = tag; // tag
-      buffer[buffer_offset++] = (byte) tmpStr.length(); // length
-      byte[] goid_bytes = Converter.stringToBytesBE(tmpStr);
-      BytesUtility.copyBytes(goid_bytes, buffer, 0, goid_bytes.length,
-          buffer_offset); // value
-      buffer_offset += goid_bytes.length;
-      tmpStr = null;
+    if (this.goID != null) {
+      cursor.writeVisibleString( GOOSEMessageGoosePDU.TAG_GOID, this.goID );
     }
 
     // set tag, length and utc time (8 bytes)
-    if (this.t != null) {
-      tag = (byte) (GOOSEMessageAPDU.TAG_CONTEXT | numTags++);
-      buffer[buffer_offset++] = tag; // tag
-      buffer[buffer_offset++] = 0x08; // length
-
-      // encode as per Annex G (Ref.61850-8.1 p.132)
-      long epoch = this.getT().getTime();
-      // int quotient = (int)( epoch / 1000 ); // convert millisecs to secs
-      long quotient = epoch / 1000;
-      // byte[] quotient_bytes = Converter.intToBytesBE(quotient);
-      byte[] quotient_bytes = Converter.longTo4Bytes(quotient);
-      BytesUtility.copyBytes(quotient_bytes, buffer, 0, quotient_bytes.length,
-          buffer_offset);
-      buffer_offset += quotient_bytes.length;
-
-      int remainder = (int) (epoch % 1000); // get milliseconds
-      int reversed_remainder = Integer.reverse(remainder); // LSB needed
-      byte[] remainder_bytes = Converter.intToBytesBE(reversed_remainder);
-
-      // clear last octet and set sensitivity (Ref.61850-8.1 p.28)
-      remainder_bytes[3] = (byte) GOOSEMessageGoosePDU.TIME_CLOCK_NOT_SYNCED
-          | GOOSEMessageGoosePDU.ACCURACY_UNSPECIFIED;
-      BytesUtility.copyBytes(remainder_bytes, buffer, 0,
-          remainder_bytes.length, buffer_offset);
-      buffer_offset += remainder_bytes.length;
+    this.encodedTOffset = -1;
+    if (this.t != -1) {
+      this.encodedTOffset = cursor.writeHeader( GOOSEMessageGoosePDU.TAG_T, 8 );
+      cursor.position( this.writeT( buffer, this.encodedTOffset ) );
     }
 
     // set tag, length and stNum (n byte)
+    this.encodedStNumOffset = -1;
+    this.encodedStNumWidth = 0;
     if (this.stNum != -1) {
-      tag = (byte) (GOOSEMessageAPDU.TAG_CONTEXT | numTags++);
-      // buffer[buffer_offset++] = tag; // tag
-      // buffer[buffer_offset++] = 0x01; // length
-      // buffer[buffer_offset++] = (byte)this.getStNum(); // value
-      byte[] stNum_bytes = Converter.longToMinBytesBE(this.getStNum());
-      buffer[buffer_offset++] = tag; // tag
-      buffer[buffer_offset++] = (byte) stNum_bytes.length; // length
-      BytesUtility.copyBytes(stNum_bytes, buffer, 0, stNum_bytes.length,
-          buffer_offset); // value
-      buffer_offset += stNum_bytes.length;
+      this.encodedStNumWidth = BERCursor.sizeOfInteger( this.stNum );
+      this.encodedStNumOffset = cursor.position() + 2; // skip the tag and length
+      cursor.writeInteger( GOOSEMessageGoosePDU.TAG_STNUM, this.stNum );
     }
 
     // set tag, length and sqNum (n byte)
+    this.encodedSqNumOffset = -1;
+    this.encodedSqNumWidth = 0;
     if (this.sqNum != -1) {
-      tag = (byte) (GOOSEMessageAPDU.TAG_CONTEXT | numTags++);
-      // buffer[buffer_offset++] = tag; // tag
-      // buffer[buffer_offset++] = 0x01; // length
-      // buffer[buffer_offset++] = (byte)this.getSqNum(); // value
-      byte[] sqNum_bytes = Converter.longToMinBytesBE(this.getSqNum());
-      buffer[buffer_offset++] = tag; // tag
-      buffer[buffer_offset++] = (byte) sqNum_bytes.length; // length
-      BytesUtility.copyBytes(sqNum_bytes, buffer, 0, sqNum_bytes.length,
-          buffer_offset); // value
-      buffer_offset += sqNum_bytes.length;
+      this.encodedSqNumWidth = BERCursor.sizeOfInteger( this.sqNum );
+      this.encodedSqNumOffset = cursor.position() + 2; // skip the tag and length
+      cursor.writeInteger( GOOSEMessageGoosePDU.TAG_SQNUM, this.sqNum );
     }
 
     // set tag, length and test (1 byte)
-    tag = (byte) (GOOSEMessageAPDU.TAG_CONTEXT | numTags++);
-    buffer[buffer_offset++] = tag; // tag
-    buffer[buffer_offset++] = 0x01; // length
-    buffer[buffer_offset++] = (byte) (this.isTest() ? 1 : 0); // value
+    cursor.writeBoolean( GOOSEMessageGoosePDU.TAG_TEST, this.test );
 
-    // set tag, length and confRev (1 byte)
+    // set tag, length and confRev (n byte)
     if (this.confRev != -1) {
-      tag = (byte) (GOOSEMessageAPDU.TAG_CONTEXT | numTags++);
-      // buffer[buffer_offset++] = tag; // tag
-      // buffer[buffer_offset++] = 0x01; // length
-      // buffer[buffer_offset++] = (byte)this.getConfRev(); // value
-      byte[] confRev_bytes = Converter.intToMinBytesBE(this.getConfRev());
-      buffer[buffer_offset++] = tag; // tag
-      buffer[buffer_offset++] = (byte) confRev_bytes.length; // length
-      BytesUtility.copyBytes(confRev_bytes, buffer, 0, confRev_bytes.length,
-          buffer_offset); // value
-      buffer_offset += confRev_bytes.length;
+      cursor.writeInteger( GOOSEMessageGoosePDU.TAG_CONFREV, this.confRev );
     }
 
     // set tag, length and ndsCom (1 byte)
-    tag = (byte) (GOOSEMessageAPDU.TAG_CONTEXT | numTags++);
-    buffer[buffer_offset++] = tag; // tag
-    buffer[buffer_offset++] = 0x01; // length
-    buffer[buffer_offset++] = (byte) (this.isNdsCom() ? 1 : 0); // value
+    cursor.writeBoolean( GOOSEMessageGoosePDU.TAG_NDSCOM, this.ndsCom );
 
     // set tag, length and numDatSetEntires (n byte)
-    tag = (byte) (GOOSEMessageAPDU.TAG_CONTEXT | numTags++);
-    buffer[buffer_offset++] = tag; // tag
-    buffer[buffer_offset++] = 0x01; // length
-    buffer[buffer_offset++] = (byte) this.getNumDatSetEntries(); // value
+    cursor.writeInteger( GOOSEMessageGoosePDU.TAG_NUMDATSETENTRIES,
+        this.getEncodedNumDatSetEntries() );
 
-    // encode data set
+    // encode the version of the data set the lengths were computed for
+    int index = cursor.position();
     if (this.allData != null) {
-      byte[] dataset_bytes = this.allData.toBytes();
+      int written = this.allData.encodeTo( this.allDataSnapshot, buffer, index );
+      if (written > 0) {
+        index += written;
+      }
+    }
 
-      if (dataset_bytes != null) {
-        BytesUtility.copyBytes(dataset_bytes, buffer, 0, dataset_bytes.length,
-            buffer_offset);
-        buffer_offset += dataset_bytes.length;
+    return index - offset;
+  }
+
+  /**
+   * Encodes the <code>GOOSEMessageGoosePDU</code> into the
+   * <code>ByteBuffer</code> supplied, starting at its current position, and
+   * advances the position by the number of bytes written. Heap buffers are
+   * written in place; direct buffers are written through a scratch array that
+   * is retained and reused by this instance.
+   * 
+   * @param buffer
+   *          the byte buffer to encode the PDU into
+   * @return int the number of bytes written, or -1 if the buffer does not have
+   *         enough bytes remaining
+   */
+  public int encodeTo(ByteBuffer buffer) {
+    int len = this.getEncodedLength();
+    if (buffer == null || buffer.remaining() < len) {
+      return -1;
+    }
+
+    if (buffer.hasArray()) {
+      this.encodeSized( buffer.array(), buffer.arrayOffset() + buffer.position() );
+      buffer.position( buffer.position() + len );
+    } else {
+      if (this.scratch == null || this.scratch.length < len) {
+        this.scratch = new byte[len];
       }
+      this.encodeSized( this.scratch, 0 );
+      buffer.put( this.scratch, 0, len );
     }
 
-    return buffer;
+    return len;
+  }
+
+  /**
+   * Writes the 8 byte UtcTime value of t, reusing the seconds of the previous
+   * call while t remains within the same second, see <code>writeUtcTime</code>
+   * 
+   * @return int the offset following the last byte written
+   */
+  private int writeT(byte[] buffer, int index) {
+    long nanosOfSecond = this.t - this.tSecondNanos;
+    if (nanosOfSecond < 0 || nanosOfSecond >= NANOS_PER_SECOND) {
+      this.tSecond = Math.floorDiv( this.t, NANOS_PER_SECOND );
+      this.tSecondNanos = this.tSecond * NANOS_PER_SECOND;
+      nanosOfSecond = this.t - this.tSecondNanos;
+    }
+    index = Converter.longToBytesBE( this.tSecond, buffer, index, 4 );
+    return writeUtcFraction( nanosOfSecond, this.timeQuality, buffer, index );
+  }
+
+  /**
+   * Writes the 8 byte UtcTime value for the epoch nanos supplied, encoded as
+   * per Annex G (Ref.61850-8.1 p.132), i.e. 4 bytes of seconds, 3 bytes of
+   * binary fraction of a second and 1 byte of time quality
+   * 
+   * @return int the offset following the last byte written
+   */
+  static int writeUtcTime(long nanos, int quality, byte[] buffer, int index) {
+    index = Converter.longToBytesBE( Math.floorDiv( nanos, NANOS_PER_SECOND ),
+        buffer, index, 4 );
+    return writeUtcFraction( Math.floorMod( nanos, NANOS_PER_SECOND ),
+        quality, buffer, index );
+  }
+
+  /**
+   * Writes the last 4 bytes of a UtcTime value, i.e. the 24 bit fraction of
+   * a second and the time quality (Ref.61850-8.1 p.28)
+   * 
+   * @return int the offset following the last byte written
+   */
+  static int writeUtcFraction(long nanosOfSecond, int quality, byte[] buffer,
+      int index) {
+    int fraction = nanosToFraction( nanosOfSecond );
+    buffer[index++] = (byte) (fraction >>> 16);
+    buffer[index++] = (byte) (fraction >>> 8);
+    buffer[index++] = (byte) fraction;
+    buffer[index++] = (byte) quality;
+    return index;
+  }
+
+  /**
+   * Reads the 8 byte UtcTime value at the offset specified, see
+   * <code>writeUtcTime</code>. The time quality octet is not read.
+   * 
+   * @return long the epoch in nanoseconds
+   */
+  static long readUtcTime(BERCursor cursor, int index) {
+    long seconds = cursor.getUnsigned( index, 4 );
+    int fraction = (int) cursor.getUnsigned( index + 4, 3 );
+    return seconds * NANOS_PER_SECOND + fractionToNanos( fraction );
+  }
+
+  /**
+   * Converts nanoseconds within a second to a 24 bit binary fraction of a
+   * second, rounding down, i.e. a resolution of 2^-24 seconds (~60ns)
+   * 
+   * @return int the fraction of a second
+   */
+  static int nanosToFraction(long nanosOfSecond) {
+    return (int) ((nanosOfSecond << 24) / NANOS_PER_SECOND);
+  }
+
+  /**
+   * Converts a 24 bit binary fraction of a second to nanoseconds, rounding
+   * up, so that converting back with <code>nanosToFraction</code> gives the
+   * same fraction
+   * 
+   * @return long the nanoseconds within the second
+   */
+  static long fractionToNanos(int fraction) {
+    return ((fraction & 0xffffffL) * NANOS_PER_SECOND + 0xffffff) >>> 24;
   }
 
   /**
@@ -884,7 +1138,9 @@ public final class GOOSEMessageGoosePDU extends GOOSEMessageAPDU {
         + ConstStrings.NEWLINE);
     buffer.append("datSet: " + this.getDatSet() + ConstStrings.NEWLINE);
     buffer.append("goID: " + this.getGoID() + ConstStrings.NEWLINE);
-    buffer.append("t: " + this.getT().getTime() + ConstStrings.NEWLINE);
+    buffer.append("t: " + this.getTimeNanos() + ConstStrings.NEWLINE);
+    buffer.append("timeQuality: " + this.getTimeQuality()
+        + ConstStrings.NEWLINE);
     buffer.append("stNum: " + this.getStNum() + ConstStrings.NEWLINE);
     buffer.append("sqNum: " + this.getSqNum() + ConstStrings.NEWLINE);
     buffer.append("test: " + this.isTest() + ConstStrings.NEWLINE);
@@ -0,0 +1,322 @@
+/**
+ *
+ * Copyright (c) 2008, Packwolf Consulting Ltd, All Rights Reserved.
+ *
+ * @author      Nishchal Kush
+ * @version     %I%, %G%
+ * @since       1.0
+ */
+package fj.com.kush.utility.iec61850;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <code>GOOSEPacer</code> paces the sending of frames to a target rate, e.g.
+ * in front of a <code>GOOSEPublisher</code> when generating traffic. Two modes
+ * are supported:
+ *
+ * <code>MODE_FIXED_INTERVAL</code> sends frame n at exactly the start time +
+ * n intervals, so the gaps between frames are constant and errors do not
+ * accumulate. Frames sent late are caught up back to back, unless the sender
+ * falls more than the maximum lag behind, one interval by default, when the
+ * schedule restarts from the current time and the slip is counted.
+ *
+ * <code>MODE_TOKEN_BUCKET</code> allows up to the burst size of frames back to
+ * back, refilling at the target rate, i.e. the generic cell rate algorithm
+ * with a tolerance of (burst - 1) intervals.
+ *
+ * Waiting parks the thread until shortly before the send time and spins the
+ * remainder, giving microsecond gaps without burning a CPU on long ones. The
+ * send times may also be reserved without waiting, e.g. to timestamp frames
+ * written to a capture file, which gives repeatable timing. A pacer is
+ * intended for a single sending thread.
+ */
+public final class GOOSEPacer {
+
+  // constants
+
+  public static final int  MODE_FIXED_INTERVAL = 1;
+  public static final int  MODE_TOKEN_BUCKET   = 2;
+
+  public static final long DEFAULT_SPIN_NANOS  = 50000L; // 50us
+
+  // attributes
+
+  private final int        mode;
+  private final long       interval;         // nanos between frames
+  private final double     rate;             // frames per second
+
+  private int              burst       = 1;
+  private long             spinNanos   = DEFAULT_SPIN_NANOS;
+  private long             maxLag      = -1;  // -1 for one interval
+
+  private long             next        = Long.MIN_VALUE; // theoretical send
+                                                         // time of next frame
+
+  // start of the fixed interval schedule and the frames since, so frame n is
+  // sent at start + n / rate without rounding errors accumulating
+  private long             scheduleStart = 0;
+  private long             scheduled     = 0;
+
+  // statistics
+  private long             startTime   = 0;
+  private long             lastTime    = 0;
+  private long             frameCount  = 0;
+  private long             slipCount   = 0;
+  private long             maxJitter   = 0;
+  private long             totalJitter = 0;
+
+  // constructors
+
+  /**
+   * Constructor accepting the mode and target rate
+   *
+   * @param mode
+   *          MODE_FIXED_INTERVAL or MODE_TOKEN_BUCKET
+   * @param rate
+   *          the target rate in frames per second
+   * @throws GOOSEMessageException
+   *           if the rate is not positive or above 1e9
+   */
+  public GOOSEPacer(int mode, double rate) throws GOOSEMessageException {
+    if (!( rate > 0 && rate <= 1e9 )) {
+      throw new GOOSEMessageException( ConstStrings.INVALID_VALUE );
+    }
+    this.mode = (mode == MODE_TOKEN_BUCKET ? MODE_TOKEN_BUCKET
+        : MODE_FIXED_INTERVAL);
+    this.rate = rate;
+    this.interval = Math.max( Math.round( 1e9 / rate ), 1 );
+  }
+
+  // accessors
+
+  /**
+   * Gets the rate achieved since the first frame, or since the last reset
+   *
+   * @return double the achieved rate in frames per second
+   */
+  public double getAchievedRate() {
+    long elapsed = this.lastTime - this.startTime;
+    if (this.frameCount < 2 || elapsed <= 0) {
+      return 0;
+    }
+    return ( this.frameCount - 1 ) * 1e9 / elapsed;
+  }
+
+  /**
+   * Gets the burst size of the token bucket
+   *
+   * @return int the number of frames
+   */
+  public int getBurst() {
+    return this.burst;
+  }
+
+  /**
+   * Gets the number of frames paced
+   *
+   * @return long the number of frames
+   */
+  public long getFrameCount() {
+    return this.frameCount;
+  }
+
+  /**
+   * Gets the interval between frames at the target rate
+   *
+   * @return long the interval in nanoseconds
+   */
+  public long getInterval() {
+    return this.interval;
+  }
+
+  /**
+   * Gets the largest delay between the send time of a frame and the time the
+   * wait for it returned
+   *
+   * @return long the jitter in nanoseconds
+   */
+  public long getMaxJitterNanos() {
+    return this.maxJitter;
+  }
+
+  /**
+   * Gets the mean delay between the send time of a frame and the time the
+   * wait for it returned
+   *
+   * @return long the jitter in nanoseconds
+   */
+  public long getMeanJitterNanos() {
+    return (this.frameCount > 0 ? this.totalJitter / this.frameCount : 0);
+  }
+
+  /**
+   * Gets the pacing mode
+   *
+   * @return int MODE_FIXED_INTERVAL or MODE_TOKEN_BUCKET
+   */
+  public int getMode() {
+    return this.mode;
+  }
+
+  /**
+   * Gets the number of times the fixed interval schedule was restarted
+   * because the sender fell behind
+   *
+   * @return long the number of slips
+   */
+  public long getSlipCount() {
+    return this.slipCount;
+  }
+
+  /**
+   * Gets the target rate
+   *
+   * @return double the rate in frames per second
+   */
+  public double getTargetRate() {
+    return this.rate;
+  }
+
+  // mutators
+
+  /**
+   * Sets the burst size of the token bucket, ignored in fixed interval mode
+   *
+   * @param burst
+   *          the number of frames that may be sent back to back
+   */
+  public void setBurst(int burst) {
+    this.burst = Math.max( burst, 1 );
+  }
+
+  /**
+   * Sets how far the sender may fall behind the fixed interval schedule
+   * before it is restarted. Frames within the lag are sent back to back to
+   * keep the exact average rate, while a lag of one interval keeps the gaps.
+   *
+   * @param maxLag
+   *          the maximum lag in nanoseconds
+   */
+  public void setMaxLagNanos(long maxLag) {
+    this.maxLag = Math.max( maxLag, 0 );
+  }
+
+  /**
+   * Sets how long before a send time the wait stops parking and spins,
+   * trading CPU for accuracy. 0 never spins.
+   *
+   * @param spinNanos
+   *          the spin time in nanoseconds
+   */
+  public void setSpinNanos(long spinNanos) {
+    this.spinNanos = Math.max( spinNanos, 0 );
+  }
+
+  // auxillary methods
+
+  /**
+   * Waits until the next frame may be sent
+   *
+   * @return long the send time of the frame on the System.nanoTime scale
+   */
+  public long acquire() {
+    long target = this.reserve( System.nanoTime() );
+    long remaining;
+    while (( remaining = target - System.nanoTime() ) > 0) {
+      if (remaining > this.spinNanos) {
+        LockSupport.parkNanos( this, remaining - this.spinNanos );
+      } else {
+        Thread.onSpinWait();
+      }
+    }
+    this.record( target, System.nanoTime() );
+    return target;
+  }
+
+  /**
+   * Reserves the send time of the next frame without waiting, e.g. to
+   * timestamp frames written to a capture file with a simulated time
+   *
+   * @param now
+   *          the current time in nanoseconds
+   * @return long the send time of the frame, which in fixed interval mode
+   *         may be up to an interval before now when the sender is behind
+   */
+  public long reserve(long now) {
+    if (this.next == Long.MIN_VALUE) {
+      this.next = now;
+      this.scheduleStart = now;
+      this.scheduled = 0;
+    }
+
+    long target;
+    if (this.mode == MODE_TOKEN_BUCKET) {
+      // the frame conforms once at most burst - 1 intervals early
+      long tolerance = ( this.burst - 1 ) * this.interval;
+      target = Math.max( now, this.next - tolerance );
+      this.next = Math.max( this.next, target ) + this.interval;
+    } else {
+      long lag = (this.maxLag < 0 ? this.interval : this.maxLag);
+      if (now - this.next > lag) {
+        this.scheduleStart = now; // fallen behind, restart the schedule
+        this.scheduled = 0;
+        this.slipCount++;
+      }
+      target = this.scheduleStart
+          + Math.round( this.scheduled * 1e9 / this.rate );
+      this.scheduled++;
+      this.next = this.scheduleStart
+          + Math.round( this.scheduled * 1e9 / this.rate );
+    }
+    return target;
+  }
+
+  /**
+   * Records a frame sent at the time supplied, for the reports. Invoked by
+   * <code>acquire</code>; should be invoked for each reserved frame when
+   * waiting elsewhere.
+   *
+   * @param target
+   *          the send time reserved for the frame
+   * @param actual
+   *          the time the frame was sent
+   */
+  public void record(long target, long actual) {
+    if (this.frameCount == 0) {
+      this.startTime = actual;
+    }
+    long jitter = Math.abs( actual - target );
+    this.totalJitter += jitter;
+    if (jitter > this.maxJitter) {
+      this.maxJitter = jitter;
+    }
+    this.lastTime = actual;
+    this.frameCount++;
+  }
+
+  /**
+   * Resets the schedule and the statistics
+   */
+  public void reset() {
+    this.next = Long.MIN_VALUE;
+    this.startTime = 0;
+    this.lastTime = 0;
+    this.frameCount = 0;
+    this.slipCount = 0;
+    this.maxJitter = 0;
+    this.totalJitter = 0;
+  }
+
+  /**
+   * Returns a report of the achieved rate against the target
+   *
+   * @return String representing the instance
+   */
+  public String toString() {
+    return String.format( "target=%.1ffps achieved=%.1ffps frames=%d "
+        + "jitter(mean=%dns max=%dns) slips=%d", this.rate,
+        this.getAchievedRate(), this.frameCount, this.getMeanJitterNanos(),
+        this.maxJitter, this.slipCount );
+  }
+}
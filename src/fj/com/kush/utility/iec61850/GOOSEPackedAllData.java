@@ -0,0 +1,714 @@
+/**
+ *
+ * Copyright (c) 2008, Packwolf Consulting Ltd, All Rights Reserved.
+ *
+ * @author      Nishchal Kush
+ * @version     %I%, %G%
+ * @since       1.0
+ */
+package fj.com.kush.utility.iec61850;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+
+import fj.com.kush.utility.Converter;
+import fj.com.kush.utility.asn.BERCursor;
+
+/**
+ * <code>GOOSEPackedAllData</code> is a <code>GOOSEAllData</code> that stores
+ * its elements as parallel primitive columns rather than as
+ * <code>GOOSEData</code> objects, i.e. a column of data type tags, a
+ * <code>long</code> column for boolean, bit string and integer values and a
+ * <code>double</code> column for floating point values. Elements are read and
+ * written with the typed accessors, e.g. <code>getBoolean</code> and
+ * <code>setFloat</code>, and are encoded and decoded straight from and into
+ * the columns, so large data sets create no objects per element.
+ *
+ * The encoding is identical to that of the equivalent <code>GOOSEData</code>
+ * elements. Only the boolean, bit string (up to 64 bits), integer, unsigned
+ * and floating point types are supported; other types are encoded as nothing,
+ * as is done by <code>GOOSEData</code>.
+ *
+ * <code>getDataAt</code> and <code>getAllData</code> are supported for
+ * compatibility, but create a <code>GOOSEData</code> per element read.
+ */
+public class GOOSEPackedAllData extends GOOSEAllData {
+
+  // constants
+
+  public static final int INITIAL_CAPACITY = 16;
+
+  // attributes
+
+  private byte[]   types    = null; // GOOSEDataTypes type of each element
+  private long[]   longs    = null; // boolean, bit string and integer values
+  private double[] doubles  = null; // floating point values
+  private int      count    = 0;
+  private int      modCount = 0; // incremented whenever an element is added or set
+
+  // constructors
+
+  /**
+   * Default constructor
+   */
+  public GOOSEPackedAllData() {
+    this( GOOSEPackedAllData.INITIAL_CAPACITY );
+  }
+
+  /**
+   * Constructor accepting the initial number of elements to allocate the
+   * columns for
+   *
+   * @param capacity
+   *          the initial capacity
+   */
+  public GOOSEPackedAllData(int capacity) {
+    if (capacity < 1) {
+      capacity = GOOSEPackedAllData.INITIAL_CAPACITY;
+    }
+    this.types = new byte[capacity];
+    this.longs = new long[capacity];
+    this.doubles = new double[capacity];
+  }
+
+  /**
+   * Creates and instance of GOOSEPackedAllData after parsing the byte array
+   * buffer supplied after reading off of the network.
+   *
+   * @param buffer
+   *          the bytes array buffer
+   * @param offset
+   *          the offset into the bytes array to start processing from, i.e.
+   *          the numDatSetEntries tag preceding the allData
+   * @return GOOSEPackedAllData represeting the parsed bytes or null
+   */
+  public static GOOSEPackedAllData getInstance(byte[] buffer, int offset) {
+    if (buffer == null) {
+      return null;
+    }
+
+    BERCursor cursor = new BERCursor().wrap( buffer, offset, buffer.length );
+    if (!cursor.find( GOOSEAllData.TAG )) {
+      return new GOOSEPackedAllData(); // no data
+    }
+    return GOOSEPackedAllData.getInstance( cursor );
+  }
+
+  /**
+   * Creates and instance of GOOSEPackedAllData from the allData TLV last read
+   * by the cursor supplied. The cursor is moved past the allData. Elements of
+   * unsupported types are skipped.
+   *
+   * @param cursor
+   *          the BER cursor positioned after the allData tag and length
+   * @return GOOSEPackedAllData represeting the parsed bytes
+   */
+  static GOOSEPackedAllData getInstance(BERCursor cursor) {
+    GOOSEPackedAllData allData = new GOOSEPackedAllData();
+
+    int outer = cursor.enter();
+    while (cursor.next()) {
+      int length = cursor.length();
+      switch (cursor.tag()) {
+        case 0x83: // boolean
+          allData.addBoolean( cursor.readBoolean() );
+          break;
+        case 0x84: // bit string
+          if (length > 0 && length <= 9) {
+            allData.addBitString( cursor.getUnsigned( cursor.valueOffset()
+                + length - Math.min( length, 8 ), Math.min( length, 8 ) ) );
+          }
+          break;
+        case 0x85: // integer
+          allData.addInt( GOOSEDataTypes.TYPE_INT32, cursor.readInteger() );
+          break;
+        case GOOSEDataTypes.TAG_UNSIGNED:
+          allData.addInt( GOOSEDataTypes.TYPE_INT32U, cursor.readUnsigned() );
+          break;
+        case GOOSEDataTypes.TAG_FLOAT:
+          // exponent width followed by a 32 or 64 bit IEEE float
+          if (length == 5) {
+            allData.addFloat( GOOSEDataTypes.TYPE_FLOAT32,
+                Float.intBitsToFloat( (int) cursor.getUnsigned(
+                    cursor.valueOffset() + 1, 4 ) ) );
+          } else if (length == 9) {
+            allData.addFloat( GOOSEDataTypes.TYPE_FLOAT64,
+                Double.longBitsToDouble( cursor.getUnsigned(
+                    cursor.valueOffset() + 1, 8 ) ) );
+          }
+          break;
+        default:
+          // unsupported type, skip
+      }
+    }
+    cursor.exit( outer );
+
+    return allData;
+  }
+
+  // accessors
+
+  /**
+   * Gets copies of all the elements as a collection of <code>GOOSEData</code>
+   *
+   * @return collection of all GOOSEData
+   */
+  @Override
+  public synchronized Collection<GOOSEData> getAllData() {
+    ArrayList<GOOSEData> list = new ArrayList<GOOSEData>( this.count );
+    for (int i = 0; i < this.count; i++) {
+      list.add( this.getDataAt( i ) );
+    }
+    return list;
+  }
+
+  /**
+   * Gets the element at the index specified as a boolean
+   *
+   * @param index
+   *          the index of the element
+   * @return boolean true if the value is non-zero, else false
+   */
+  public synchronized boolean getBoolean(int index) {
+    this.checkIndex( index );
+    return this.longs[index] != 0;
+  }
+
+  /**
+   * Gets a copy of the element at the offset specified as a
+   * <code>GOOSEData</code>
+   *
+   * @param offset
+   *          the index of the element
+   * @return GOOSEData a copy of the element
+   */
+  @Override
+  public synchronized GOOSEData getDataAt(int offset) {
+    this.checkIndex( offset );
+    int type = this.types[offset];
+    switch (type) {
+      case GOOSEDataTypes.TYPE_BOOL:
+        return new GOOSEData( type, Boolean.valueOf( this.longs[offset] != 0 ) );
+      case GOOSEDataTypes.TYPE_BIT_STR:
+        return new GOOSEData( type, BitSet.valueOf( new long[] { this.longs[offset] } ) );
+      case GOOSEDataTypes.TYPE_FLOAT32:
+      case GOOSEDataTypes.TYPE_FLOAT64:
+        return new GOOSEData( type, Float.valueOf( (float) this.doubles[offset] ) );
+      default:
+        return new GOOSEData( type, Integer.valueOf( (int) this.longs[offset] ) );
+    }
+  }
+
+  /**
+   * Gets the element at the index specified as a double
+   *
+   * @param index
+   *          the index of the element
+   * @return double the value
+   */
+  public synchronized double getDouble(int index) {
+    this.checkIndex( index );
+    return (GOOSEPackedAllData.isFloat( this.types[index] ) ? this.doubles[index]
+        : this.longs[index]);
+  }
+
+  /**
+   * Gets the element at the index specified as a float
+   *
+   * @param index
+   *          the index of the element
+   * @return float the value
+   */
+  public float getFloat(int index) {
+    return (float) this.getDouble( index );
+  }
+
+  /**
+   * Gets the element at the index specified as an int
+   *
+   * @param index
+   *          the index of the element
+   * @return int the value
+   */
+  public int getInt(int index) {
+    return (int) this.getLong( index );
+  }
+
+  /**
+   * Gets the element at the index specified as a long
+   *
+   * @param index
+   *          the index of the element
+   * @return long the value
+   */
+  public synchronized long getLong(int index) {
+    this.checkIndex( index );
+    return (GOOSEPackedAllData.isFloat( this.types[index] ) ? (long) this.doubles[index]
+        : this.longs[index]);
+  }
+
+  /**
+   * Gets the modification count of the data set
+   *
+   * @return int the modification count
+   */
+  @Override
+  synchronized int getModCount() {
+    return this.modCount;
+  }
+
+  /**
+   * The columns are not held in snapshots, thus null is returned and the
+   * snapshot variants of the methods fall back to the methods of this class
+   *
+   * @return Snapshot null
+   */
+  @Override
+  Snapshot getSnapshot() {
+    return null;
+  }
+
+  /**
+   * Gets the number of elements
+   *
+   * @return the number of elements
+   */
+  @Override
+  public synchronized int getNumEntries() {
+    return this.count;
+  }
+
+  /**
+   * Gets the version of the data set, i.e. the modification count
+   *
+   * @return int the version
+   */
+  @Override
+  public synchronized int getVersion() {
+    return this.modCount;
+  }
+
+  /**
+   * Gets the data type of the element at the index specified
+   *
+   * @param index
+   *          the index of the element
+   * @return int the type, see <code>GOOSEDataTypes</code>
+   */
+  public synchronized int getType(int index) {
+    this.checkIndex( index );
+    return this.types[index];
+  }
+
+  // mutators
+
+  /**
+   * Appends a boolean element
+   *
+   * @param value
+   *          the value
+   * @return int the index of the element
+   */
+  public synchronized int addBoolean(boolean value) {
+    return this.add( GOOSEDataTypes.TYPE_BOOL, value ? 1 : 0, 0 );
+  }
+
+  /**
+   * Appends a bit string element of up to 64 bits, bit 0 being the least
+   * significant bit of the value
+   *
+   * @param bits
+   *          the bits
+   * @return int the index of the element
+   */
+  public synchronized int addBitString(long bits) {
+    return this.add( GOOSEDataTypes.TYPE_BIT_STR, bits, 0 );
+  }
+
+  /**
+   * Appends a floating point element
+   *
+   * @param type
+   *          the floating point type, i.e. TYPE_FLOAT32 or TYPE_FLOAT64
+   * @param value
+   *          the value
+   * @return int the index of the element
+   */
+  public synchronized int addFloat(int type, double value) {
+    if (!GOOSEPackedAllData.isFloat( type )) {
+      type = GOOSEDataTypes.TYPE_FLOAT32;
+    }
+    return this.add( type, 0, value );
+  }
+
+  /**
+   * Appends an integer element
+   *
+   * @param type
+   *          the integer type, e.g. TYPE_INT32 or TYPE_INT32U
+   * @param value
+   *          the value
+   * @return int the index of the element
+   */
+  public synchronized int addInt(int type, long value) {
+    if (!GOOSEPackedAllData.isInteger( type )) {
+      type = GOOSEDataTypes.TYPE_INT32;
+    }
+    return this.add( type, value, 0 );
+  }
+
+  /**
+   * Appends the value of the <code>GOOSEData</code> supplied. The
+   * <code>GOOSEData</code> itself is not retained.
+   *
+   * @param data
+   *          GOOSEData to add
+   */
+  @Override
+  public synchronized void addGOOSEData(GOOSEData data) {
+    if (data == null) {
+      return;
+    }
+    this.setDataAt( this.count, data );
+  }
+
+  /**
+   * Sets the value of the <code>GOOSEData</code> supplied at the offset
+   * specified. If the specified offset is invalid then the data is appended.
+   * The <code>GOOSEData</code> itself is not retained.
+   *
+   * @param offset
+   *          the index of the element
+   * @param data
+   *          the <code>GOOSEData</code> to set
+   */
+  @Override
+  public synchronized void setDataAt(int offset, GOOSEData data) {
+    if (data == null) {
+      return;
+    }
+    if (offset < 0 || offset >= this.count) {
+      offset = this.add( data.getType(), 0, 0 );
+    }
+
+    int type = data.getType();
+    Object value = data.getValue();
+    long l = 0;
+    double d = 0;
+    if (value instanceof Boolean) {
+      l = ( (Boolean) value ).booleanValue() ? 1 : 0;
+    } else if (value instanceof BitSet) {
+      long[] words = ( (BitSet) value ).toLongArray();
+      l = (words.length > 0 ? words[0] : 0);
+    } else if (value instanceof Number) {
+      l = ( (Number) value ).longValue();
+      d = ( (Number) value ).doubleValue();
+    }
+    this.set( offset, type, l, d );
+  }
+
+  /**
+   * Replaces all the elements with the values of the <code>GOOSEData</code>
+   * supplied. Null elements are skipped.
+   *
+   * @param data
+   *          the GOOSEData elements
+   */
+  @Override
+  public synchronized void setAllData(Collection<GOOSEData> data) {
+    this.count = 0;
+    this.modCount++;
+    if (data != null) {
+      for (GOOSEData element : data) {
+        this.addGOOSEData( element );
+      }
+    }
+  }
+
+  /**
+   * Sets the element at the index specified to a boolean
+   *
+   * @param index
+   *          the index of the element
+   * @param value
+   *          the value
+   */
+  public synchronized void setBoolean(int index, boolean value) {
+    this.checkIndex( index );
+    this.set( index, GOOSEDataTypes.TYPE_BOOL, value ? 1 : 0, 0 );
+  }
+
+  /**
+   * Sets the element at the index specified to a floating point value. The
+   * type of the element is retained if it is a floating point type, else it
+   * is set to TYPE_FLOAT32.
+   *
+   * @param index
+   *          the index of the element
+   * @param value
+   *          the value
+   */
+  public synchronized void setDouble(int index, double value) {
+    this.checkIndex( index );
+    int type = this.types[index];
+    this.set( index, GOOSEPackedAllData.isFloat( type ) ? type
+        : GOOSEDataTypes.TYPE_FLOAT32, 0, value );
+  }
+
+  /**
+   * Sets the element at the index specified to a floating point value, see
+   * <code>setDouble</code>
+   *
+   * @param index
+   *          the index of the element
+   * @param value
+   *          the value
+   */
+  public void setFloat(int index, float value) {
+    this.setDouble( index, value );
+  }
+
+  /**
+   * Sets the element at the index specified to an integer value, see
+   * <code>setLong</code>
+   *
+   * @param index
+   *          the index of the element
+   * @param value
+   *          the value
+   */
+  public void setInt(int index, int value) {
+    this.setLong( index, value );
+  }
+
+  /**
+   * Sets the element at the index specified to an integer value. The type of
+   * the element is retained if it is an integer or bit string type, else it
+   * is set to TYPE_INT32.
+   *
+   * @param index
+   *          the index of the element
+   * @param value
+   *          the value
+   */
+  public synchronized void setLong(int index, long value) {
+    this.checkIndex( index );
+    int type = this.types[index];
+    this.set( index, GOOSEPackedAllData.isInteger( type )
+        || type == GOOSEDataTypes.TYPE_BIT_STR ? type
+        : GOOSEDataTypes.TYPE_INT32, value, 0 );
+  }
+
+  // auxillary methods
+
+  /**
+   * Converts the <code>GOOSEPackedAllData<code> instance to an array of bytes.
+   *
+   * @return byte[] representing the instance, or null if there is no data
+   */
+  @Override
+  public synchronized byte[] toBytes() {
+    if (this.count == 0) {
+      return null;
+    }
+    byte[] buffer = new byte[this.getEncodedLength()];
+    this.encodeTo( buffer, 0 );
+    return buffer;
+  }
+
+  /**
+   * Writes the allData tag (0xab), length and every element into the byte
+   * array supplied, starting at the offset specified, straight from the
+   * columns.
+   *
+   * @param buffer
+   *          the byte array to write the data to
+   * @param offset
+   *          the offset into the byte array to start writing at
+   * @return int the number of bytes written, 0 if there is no data, or -1 if
+   *         the buffer is too small
+   */
+  @Override
+  public synchronized int encodeTo(byte[] buffer, int offset) {
+    int length = this.getEncodedLength();
+    if (length == 0) {
+      return 0;
+    }
+    if (buffer == null || offset < 0 || offset + length > buffer.length) {
+      return -1;
+    }
+
+    int index = BERCursor.writeHeader( buffer, offset, GOOSEAllData.TAG,
+        this.getValueLength() );
+
+    for (int i = 0; i < this.count; i++) {
+      int type = this.types[i];
+      int size = this.getValueLength( i );
+      if (size == 0) {
+        continue; // unsupported type
+      }
+      index = BERCursor.writeHeader( buffer, index, GOOSEData.getTag( type ),
+          size );
+
+      // see GOOSEData.encodeTo
+      switch (type) {
+        case GOOSEDataTypes.TYPE_BOOL:
+          buffer[index++] = (byte) (this.longs[i] != 0 ? 0x01 : 0x00);
+          break;
+        case GOOSEDataTypes.TYPE_BIT_STR:
+          if (size > 8) {
+            buffer[index++] = (byte) 0x00;
+            size--;
+          }
+          index = Converter.longToBytesBE( this.longs[i], buffer, index, size );
+          break;
+        case GOOSEDataTypes.TYPE_FLOAT32:
+        case GOOSEDataTypes.TYPE_FLOAT64:
+          buffer[index++] = (byte) 0x08; // the number of exponent bits
+          index = Converter.longToBytesBE( Float
+              .floatToIntBits( (float) this.doubles[i] ), buffer, index, 4 );
+          break;
+        default:
+          index = Converter.longToBytesBE( (int) this.longs[i], buffer, index, 4 );
+      }
+    }
+
+    return index - offset;
+  }
+
+  /**
+   * Gets the number of bytes required to encode the all data, i.e. the 1 byte
+   * tag (0xab) + the BER length octets + the encoded length of every element.
+   *
+   * @return int the encoded length, or 0 if there is no data
+   */
+  @Override
+  public synchronized int getEncodedLength() {
+    if (this.count == 0) {
+      return 0;
+    }
+    return BERCursor.sizeOf( this.getValueLength() );
+  }
+
+  /**
+   * Returns a string representing the <code>GOOSEPackedAllData</code>
+   * instance, in the same format as <code>GOOSEAllData</code>
+   *
+   * @return String representing the instance
+   */
+  @Override
+  public synchronized String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append( "allData" + ConstStrings.NEWLINE );
+    for (int i = 0; i < this.count; i++) {
+      sb.append( this.getDataAt( i ).toString() );
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Appends an element, growing the columns if required
+   *
+   * @return int the index of the element
+   */
+  private int add(int type, long l, double d) {
+    if (this.count == this.types.length) {
+      int capacity = this.count * 2;
+      byte[] t = new byte[capacity];
+      long[] ls = new long[capacity];
+      double[] ds = new double[capacity];
+      System.arraycopy( this.types, 0, t, 0, this.count );
+      System.arraycopy( this.longs, 0, ls, 0, this.count );
+      System.arraycopy( this.doubles, 0, ds, 0, this.count );
+      this.types = t;
+      this.longs = ls;
+      this.doubles = ds;
+    }
+    int index = this.count++;
+    this.set( index, type, l, d );
+    return index;
+  }
+
+  /**
+   * Sets the type and value of an element
+   */
+  private void set(int index, int type, long l, double d) {
+    this.types[index] = (byte) type;
+    this.longs[index] = l;
+    this.doubles[index] = d;
+    this.modCount++;
+  }
+
+  /**
+   * Checks that the index refers to an element
+   */
+  private void checkIndex(int index) {
+    if (index < 0 || index >= this.count) {
+      throw new IndexOutOfBoundsException( "Index: " + index + ", Size: "
+          + this.count );
+    }
+  }
+
+  /**
+   * Gets the sum of the encoded lengths of every element, i.e. the length of
+   * the allData value
+   */
+  private int getValueLength() {
+    int length = 0;
+    for (int i = 0; i < this.count; i++) {
+      int size = this.getValueLength( i );
+      if (size > 0) {
+        length += BERCursor.sizeOf( size );
+      }
+    }
+    return length;
+  }
+
+  /**
+   * Gets the length of the encoded value of the element, see
+   * <code>GOOSEData.getEncodedLength</code>
+   *
+   * @return int the value length, or 0 if the type is unsupported
+   */
+  private int getValueLength(int index) {
+    switch (this.types[index]) {
+      case GOOSEDataTypes.TYPE_BOOL:
+        return 1;
+      case GOOSEDataTypes.TYPE_BIT_STR:
+        // as per BitSet.length, i.e. the index of the highest set bit + 1
+        return ( ( 64 - Long.numberOfLeadingZeros( this.longs[index] ) ) / 8 ) + 1;
+      case GOOSEDataTypes.TYPE_FLOAT32:
+      case GOOSEDataTypes.TYPE_FLOAT64:
+        return 1 + 4; // exponent width + 32-bit float
+      default:
+        return (GOOSEPackedAllData.isInteger( this.types[index] ) ? 4 : 0);
+    }
+  }
+
+  /**
+   * Checks if the type is a floating point type
+   */
+  private static boolean isFloat(int type) {
+    return type == GOOSEDataTypes.TYPE_FLOAT32
+        || type == GOOSEDataTypes.TYPE_FLOAT64;
+  }
+
+  /**
+   * Checks if the type is an integer type
+   */
+  private static boolean isInteger(int type) {
+    switch (type) {
+      case GOOSEDataTypes.TYPE_INT8:
+      case GOOSEDataTypes.TYPE_INT16:
+      case GOOSEDataTypes.TYPE_INT32:
+      case GOOSEDataTypes.TYPE_INT128:
+      case GOOSEDataTypes.TYPE_INT8U:
+      case GOOSEDataTypes.TYPE_INT16U:
+      case GOOSEDataTypes.TYPE_INT32U:
+        return true;
+      default:
+        return false;
+    }
+  }
+}
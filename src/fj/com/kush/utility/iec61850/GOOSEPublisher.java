@@ -9,22 +9,30 @@
 package fj.com.kush.utility.iec61850;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.jnetpcap.Pcap;
 import org.jnetpcap.PcapIf;
 
+import fj.com.kush.utility.net.PcapFileWriter;
+
 /**
  * A GOOSE broadcast server that broadcasts <code>GOOSEMessage</code>s. The
  * class is intended to be used to provide specific GOOSE functionality by
  * populating the publisher with appropriate <code>GOOSEMessage</code>s.
  * 
+ * Frames are sent on every port of the publisher's <code>FrameTransport</code>,
+ * by default the network interfaces through jnetpcap, see
+ * <code>PcapTransport</code>. Frames are sent on the caller's thread, or, in
+ * threaded mode, queued for a dedicated sender thread per port, see
+ * <code>setThreaded</code>.
+ * 
  * TODO - complete this implementation, currently just a copy of the
- * DummyGOOSEServer that was developed as a PoC!! TODO - should be
- * multi-threaded
+ * DummyGOOSEServer that was developed as a PoC!!
  */
 public abstract class GOOSEPublisher {
 
@@ -37,23 +45,62 @@ public abstract class GOOSEPublisher {
   public static final byte[] BROADCAST_MAC = new byte[] { (byte)0xFF,
       (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF };
 
+  // source MAC address of frames written offline by a message without one,
+  // locally administered
+  public static final byte[] OFFLINE_MAC = new byte[] { (byte)0x02, 0, 0, 0,
+      0, (byte)0x01 };
+
+  // default interval between frames written offline without a pacer
+  public static final long   DEFAULT_OFFLINE_INTERVAL = 1000000L; // 1ms
+
   
 	// attributes
 
   // class attributes
 
-  // TODO: debug
-  static int                   count            = 0;                    // debug
-
   static private List<PcapIf>  alldevs          = null;
   static private StringBuilder errbuf           = null;
   static private boolean       initialised      = false;
+  static private String        initError        = null;
+  static private long          nextInit         = 0;    // millis
+
+  // long lived send handles, one per interface, shared by all publishers
+  static private List<GOOSESendHandle> handles  = null;
 
   // private attributes
 
   // private float delay = 0;
   private boolean            verbose          = false;
 
+  // cached frame of the control block's message, patched for retransmissions
+  private GOOSEFrameTemplate template         = null;
+
+  // sends the frames, chosen at construction
+  private final FrameTransport transport;
+
+  // threaded mode, a sender thread per interface and the handles they send on
+  private boolean            threaded         = false;
+  private int                queueCapacity    = GOOSEFrameRing.DEFAULT_CAPACITY;
+  private List<GOOSESender>  senders          = null;
+
+  // paces broadcasts to a target rate, if set
+  private GOOSEPacer         pacer            = null;
+
+  // records the frames sent in verbose mode, the default trace if not set
+  private GOOSETrace         trace            = null;
+
+  // statistics, and the last error, of the frames broadcast
+  private final AtomicLong   sent             = new AtomicLong( 0 );
+  private final AtomicLong   dropped          = new AtomicLong( 0 );
+  private volatile String    error            = null;
+
+  // offline mode, frames are written to a capture file with synthetic
+  // timestamps instead of being sent
+  private PcapFileTransport  offline          = null;
+  private long               offlineTime      = 0;   // epoch nanos
+  private long               offlineInterval  = DEFAULT_OFFLINE_INTERVAL;
+  private GOOSEClock         offlineClock     = null;
+
   // package attributes
 
   int                        flags            = Pcap.MODE_PROMISCUOUS;
@@ -64,18 +111,33 @@ public abstract class GOOSEPublisher {
   
   // constructors
 
+  /**
+   * Default constructor, sending on the network interfaces
+   */
   protected GOOSEPublisher() {
+    this( null );
+  }
+
+  /**
+   * Constructor accepting the transport the frames are sent on
+   * 
+   * @param transport
+   *          the transport, or null to send on the network interfaces
+   */
+  protected GOOSEPublisher(FrameTransport transport) {
     // alldevs = null;
     // errbuf = null;
     // GOOSEPublisher.setInitialised( false );
     verbose = false;
     // delay = 0;
-    initialised = false;
     gooseMessage = null;
     snaplen = 64 * 1024;
     flags = Pcap.MODE_PROMISCUOUS;
     timeout = 10 * 1000;
-    init(); // initialise interfaces
+    // the interfaces are initialised on the first live broadcast, once for
+    // all publishers, so offline publishers need no interface
+    this.transport = (transport != null ? transport : new PcapTransport(
+        snaplen, flags, timeout ));
   }
 
   // accessors
@@ -107,6 +169,122 @@ public abstract class GOOSEPublisher {
     return initialised;
   }
 
+  /**
+   * Gets the number of frames that were not sent, i.e. the frames that could
+   * not be encoded, were rejected by the transport or found the send queue of
+   * their port full in threaded mode
+   * 
+   * @return long the number of frames dropped
+   */
+  public long getDroppedCount() {
+    long count = dropped.get();
+    List<GOOSESender> current = senders;
+    if (current != null) {
+      for (int i = 0; i < current.size(); i++) {
+        count += current.get( i ).getFailedCount();
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Gets the last error encountered encoding or sending a frame
+   * 
+   * @return String the error, or null if none
+   */
+  public String getError() {
+    return error;
+  }
+
+  /**
+   * Gets a clock reading the synthetic time of the offline mode, e.g. to set
+   * as the clock of the message's PDU so its t matches the capture
+   * timestamps
+   * 
+   * @return GOOSEClock the offline clock
+   */
+  public synchronized GOOSEClock getOfflineClock() {
+    if (offlineClock == null) {
+      offlineClock = new GOOSEClock() {
+        public long currentTimeNanos() {
+          return offlineTime;
+        }
+
+        public int getTimeQuality() {
+          return GOOSEMessageGoosePDU.TIME_CLOCK_NOT_SYNCED
+              | GOOSEMessageGoosePDU.ACCURACY_UNSPECIFIED;
+        }
+      };
+    }
+    return offlineClock;
+  }
+
+  /**
+   * Gets the synthetic time of the next frame written offline
+   * 
+   * @return long the epoch nanos
+   */
+  public long getOfflineTime() {
+    return offlineTime;
+  }
+
+  /**
+   * Gets the pacer of the publisher
+   * 
+   * @return GOOSEPacer the pacer, or null if broadcasts are not paced
+   */
+  public GOOSEPacer getPacer() {
+    return pacer;
+  }
+
+  /**
+   * Gets the number of frames sent, or queued for sending in threaded mode,
+   * counting a frame once per port
+   * 
+   * @return long the number of frames
+   */
+  public long getSentCount() {
+    return sent.get();
+  }
+
+  /**
+   * Gets the trace recording the frames sent in verbose mode
+   * 
+   * @return GOOSETrace the trace of the publisher, or the default trace
+   */
+  public GOOSETrace getTrace() {
+    GOOSETrace current = trace;
+    return (current != null ? current : GOOSETrace.getDefault());
+  }
+
+  /**
+   * Gets the transport the frames are sent on
+   * 
+   * @return FrameTransport the transport
+   */
+  public FrameTransport getTransport() {
+    return transport;
+  }
+
+  /**
+   * Gets if the publisher writes to a capture file rather than sending
+   * 
+   * @return boolean true if offline, else false
+   */
+  public boolean isOffline() {
+    return offline != null;
+  }
+
+  /**
+   * Gets if the publisher sends on a thread per interface, see
+   * <code>setThreaded</code>
+   * 
+   * @return boolean true if threaded, else false
+   */
+  public boolean isThreaded() {
+    return threaded;
+  }
+
   /**
    * Gets if the publisher is in verbose mode
    * 
@@ -150,8 +328,84 @@ public abstract class GOOSEPublisher {
 		this.gooseMessage = message;
 	}
 
+  /**
+   * Sets the threaded mode of the publisher. When threaded, each port of the
+   * transport has a dedicated sender thread, and <code>broadcast</code> only
+   * queues the encoded frame for each port and returns. Frames are dropped,
+   * rather than the publisher blocked, when the queue of a port is full.
+   * <code>broadcast</code> must then be invoked by a single thread. Turning
+   * the threaded mode off sends the queued frames and stops the threads.
+   * 
+   * @param threaded
+   *          true to send on a thread per interface, else false
+   */
+  public synchronized void setThreaded(boolean threaded) {
+    if (!threaded) {
+      this.stopSenders();
+    }
+    this.threaded = threaded;
+  }
+
+  /**
+   * Sets the interval between frames written offline without a pacer. With a
+   * pacer the interval is given by the pacer's rate.
+   * 
+   * @param interval
+   *          the interval in nanoseconds
+   */
+  public void setOfflineInterval(long interval) {
+    this.offlineInterval = Math.max( interval, 0 );
+  }
+
+  /**
+   * Sets the synthetic time of the next frame written offline, e.g. to drive
+   * the timestamps from a simulation
+   * 
+   * @param epochNanos
+   *          the nanoseconds since the epoch
+   */
+  public void setOfflineTime(long epochNanos) {
+    this.offlineTime = epochNanos;
+  }
+
+  /**
+   * Sets the pacer of the publisher. When set, <code>broadcast</code> waits
+   * for the pacer before sending, so broadcasts are made at the pacer's rate
+   * rather than relying on delays in the extending class.
+   * 
+   * @param pacer
+   *          the pacer, or null to send at once
+   */
+  public void setPacer(GOOSEPacer pacer) {
+    this.pacer = pacer;
+  }
+
+  /**
+   * Sets the number of frames that may be queued per interface in threaded
+   * mode. Takes effect when the sender threads are next started.
+   * 
+   * @param capacity
+   *          the number of frames
+   */
+  public void setQueueCapacity(int capacity) {
+    this.queueCapacity = capacity;
+  }
+
+  /**
+   * Sets the trace recording the frames sent in verbose mode, e.g. one with
+   * sampling or a rate limit
+   * 
+   * @param trace
+   *          the trace, or null for the default trace
+   */
+  public void setTrace(GOOSETrace trace) {
+    this.trace = trace;
+  }
+
 	/**
-	 * Sets the verbose mode of the publisher to the mode specified
+	 * Sets the verbose mode of the publisher to the mode specified. In verbose
+	 * mode a record of each frame sent is written, asynchronously, by the
+	 * publisher's trace, see <code>GOOSETrace</code>.
 	 * 
 	 * @param verbose
 	 */
@@ -162,115 +416,342 @@ public abstract class GOOSEPublisher {
   // auxillary methods
 
 	/**
-	 * Broadcast the data on all network interfaces as a GOOSE message. The
+	 * Broadcast the data on all ports of the transport as a GOOSE message. The
 	 * broadcast data should be an array of bytes that represent a valud GOOSE
-	 * message.
+	 * message. The source address of each frame is the hardware address of
+	 * its port, if it has one.
 	 */
 	protected void broadcast() {
-    if (!GOOSEPublisher.isInitialised()) {
-      init();
+    if (this.offline != null) {
+      this.write();
+      return;
     }
 
-    Iterator<PcapIf> iterator = GOOSEPublisher.alldevs.iterator();
-		while (iterator.hasNext()) {
-			PcapIf nic = (PcapIf) iterator.next();
+    int ports = this.transport.getPortCount();
+
+    if (ports <= 0) {
+      if (ports < 0) {
+        this.error = this.transport.getError( 0 );
+        this.dropped.incrementAndGet();
+      }
+      return;
+    }
+
+    // encode the frame once, with the source address of the first port
+    int length = -1;
+    try {
+      byte[] mac = this.transport.getMac( 0 );
+      if (mac != null) {
+        gooseMessage.setSrc( mac );
+      } else if (gooseMessage.getSrc() == null) {
+        gooseMessage.setSrc( GOOSEPublisher.OFFLINE_MAC );
+      }
+      gooseMessage.setDst( GOOSEMessage.GOOSE_BCAST_MAC );
+      // patch the cached frame, or re-encode it if the layout changed
+      if (template == null || template.getMessage() != gooseMessage) {
+        template = new GOOSEFrameTemplate( gooseMessage );
+      }
+      length = template.update();
+    } catch (GOOSEMessageException gme) {
+      this.error = gme.getMessage();
+    }
+    if (length <= 0) {
+      this.dropped.addAndGet( ports );
+      return;
+    }
 
-      Pcap pcap = Pcap.openLive( nic.getName(), this.snaplen, this.flags,
-          this.timeout, GOOSEPublisher.errbuf );
+    // wait for the send time, after encoding so the gap is not disturbed
+    if (this.pacer != null) {
+      this.pacer.acquire();
+    }
 
-      if (pcap == null) {
-        System.err.printf( "Can't open device for capture, error is '%s'",
-            errbuf.toString() );
-        // System.exit( 0 );
+    List<GOOSESender> queues = (this.threaded ? this.getSenders( ports )
+        : null);
+
+    for (int i = 0; i < ports; i++) {
+      // only the source address differs between the ports, a port without
+      // an address sends the message's own, never that of the port before
+      try {
+        if (i > 0) {
+          byte[] mac = this.transport.getMac( i );
+          template.stampSrc( mac != null ? mac : gooseMessage.getSrc() );
+        }
+      } catch (GOOSEMessageException gme) {
+        this.error = gme.getMessage();
+        this.dropped.incrementAndGet();
         continue;
       }
 
-			byte[] mac = null;
-
-			try {
-				mac = nic.getHardwareAddress();
-			} catch (IOException ioe) {
-				mac = null;
-			}
-
-			// null is returned, that means that the physical interface, does
-      // not support hardware addresses, such as a PPP interface, TAP
-      // interface, etc.. so do not use it
-			if (mac != null) {
-        byte[] tmp = null;
-
-				try {
-					gooseMessage.setSrc(mac);
-					gooseMessage.setDst(GOOSEMessage.GOOSE_BCAST_MAC);
-					tmp = gooseMessage.toBytes();
-				} catch (GOOSEMessageException gme) {
-					System.err.print(gme.getMessage());
-					gme.printStackTrace();
-				}
-
-				// send the packet
-				ByteBuffer buffer = ByteBuffer.wrap(tmp);
-				if (pcap.sendPacket(buffer) != Pcap.OK) {
-					System.err.println(pcap.getErr());
-				}
-        // TODO: debug
-        count++;
-
-				pcap.close();
-
-        // help the gc
-        buffer = null;
-        tmp = null;
-
-        // check if output is to be produced
-        if (this.isVerbose()) {
-          System.out.println( gooseMessage.toString() );
-        } else {
-          System.out.print( "!" ); // TODO: use constant
+      if (queues != null) {
+        // queue a copy of the frame for the sender thread of the port
+        if (!queues.get( i ).offer( template.getFrame(), 0, length )) {
+          this.dropped.incrementAndGet(); // the queue is full
+          continue;
         }
+      } else if (!this.transport.send( i, template.getFrame(), 0, length )) {
+        // the packet is sent straight from the frame buffer
+        this.error = this.transport.getError( i );
+        this.dropped.incrementAndGet();
+        continue;
+      }
+      this.sent.incrementAndGet();
+
+      // check if output is to be produced
+      if (this.isVerbose()) {
+        this.trace( GOOSETrace.EVENT_PUBLISH, i, length );
+      }
 
-        // Code below commented out to have delay implemented by extending
-        // class, i.e. virtual devices can specify their own delays based on
-        // whatever property they are simulating to have an appropriate delay in
-        // the emulated network traffic
-        //
-        // introduce a delay
-        // try {
-        // Thread.sleep( (long)( delay ) );
-        // } catch (Exception e) {
-        // do nothing for now
-        // TODO: do something clever here... timeout or re-init
-        // }
-			}
-
-      // trying to help the gc
-      nic = null;
-      mac = null;
-		}
+      // Code below commented out to have delay implemented by extending
+      // class, i.e. virtual devices can specify their own delays based on
+      // whatever property they are simulating to have an appropriate delay in
+      // the emulated network traffic
+      //
+      // introduce a delay
+      // try {
+      // Thread.sleep( (long)( delay ) );
+      // } catch (Exception e) {
+      // do nothing for now
+      // TODO: do something clever here... timeout or re-init
+      // }
+    }
 	}
 
+  /**
+   * Switches the publisher to offline mode, i.e. <code>broadcast</code> writes
+   * each frame to the pcap file specified, timestamped with the synthetic
+   * offline time in nanoseconds, instead of sending it. No network interface
+   * or capture privilege is required. The offline time starts at the current
+   * time unless set, and advances by the offline interval, or the pacer's
+   * interval, per frame without waiting.
+   * 
+   * @param file
+   *          the path of the pcap file to create
+   * @throws GOOSEMessageException
+   *           if the file can not be created
+   */
+  public void openOffline(String file) throws GOOSEMessageException {
+    this.openOffline( file, PcapFileWriter.FORMAT_PCAP );
+  }
+
+  /**
+   * Switches the publisher to offline mode writing the capture file format
+   * specified, see <code>openOffline(String)</code>
+   * 
+   * @param file
+   *          the path of the capture file to create
+   * @param format
+   *          PcapFileWriter.FORMAT_PCAP or PcapFileWriter.FORMAT_PCAPNG
+   * @throws GOOSEMessageException
+   *           if the file can not be created
+   */
+  public synchronized void openOffline(String file, int format)
+      throws GOOSEMessageException {
+    this.closeOffline();
+
+    PcapFileTransport output = new PcapFileTransport( null, file, format );
+    output.setClock( this.getOfflineClock() );
+
+    if (this.offlineTime == 0) {
+      this.offlineTime = System.currentTimeMillis() * 1000000L;
+    }
+    this.offline = output;
+  }
+
+  /**
+   * Flushes and closes the capture file of the offline mode, if open, and
+   * switches the publisher back to sending
+   */
+  public synchronized void closeOffline() {
+    if (this.offline != null) {
+      this.offline.close();
+      this.offline = null;
+    }
+  }
+
+  /**
+   * Writes the message to the capture file of the offline mode with the
+   * synthetic offline time, and advances the offline time
+   */
+  private void write() {
+    int length = -1;
+    try {
+      if (gooseMessage.getSrc() == null) {
+        gooseMessage.setSrc( GOOSEPublisher.OFFLINE_MAC );
+      }
+      gooseMessage.setDst( GOOSEMessage.GOOSE_BCAST_MAC );
+      if (template == null || template.getMessage() != gooseMessage) {
+        template = new GOOSEFrameTemplate( gooseMessage );
+      }
+      length = template.update();
+    } catch (GOOSEMessageException gme) {
+      this.error = gme.getMessage();
+    }
+    if (length <= 0) {
+      this.dropped.incrementAndGet();
+      return;
+    }
+
+    // the pacer gives the timestamp rather than the wait
+    long time = this.offlineTime;
+    if (this.pacer != null) {
+      time = this.pacer.reserve( time );
+      this.pacer.record( time, time );
+    }
+
+    // the transport timestamps the frame with the offline clock
+    this.offlineTime = time;
+    if (this.offline.send( 0, template.getFrame(), 0, length )) {
+      this.sent.incrementAndGet();
+    } else {
+      this.error = this.offline.getError( 0 );
+      this.dropped.incrementAndGet();
+    }
+
+    this.offlineTime = ( this.pacer != null ? time : time
+        + this.offlineInterval );
+
+    if (this.isVerbose()) {
+      this.trace( GOOSETrace.EVENT_WRITE, 0, length );
+    }
+  }
+
+  /**
+   * Records the frame of the template in the trace
+   */
+  private void trace(int event, int port, int length) {
+    long stNum = 0;
+    long sqNum = 0;
+    if (gooseMessage.getAPDU() instanceof GOOSEMessageGoosePDU) {
+      GOOSEMessageGoosePDU pdu = (GOOSEMessageGoosePDU) gooseMessage.getAPDU();
+      stNum = pdu.getStNum();
+      sqNum = pdu.getSqNum();
+    }
+    this.getTrace().record( event, port, template.getFrame(), 0, length,
+        stNum, sqNum );
+  }
+
+  /**
+   * Gets the sender threads of the ports of the transport, starting them on
+   * first use or when the number of ports has changed, e.g. the interfaces
+   * have been rescanned
+   * 
+   * @return List of senders, one per port
+   */
+  private synchronized List<GOOSESender> getSenders(int ports) {
+    if (this.senders == null || this.senders.size() != ports) {
+      this.stopSenders();
+      ArrayList<GOOSESender> list = new ArrayList<GOOSESender>();
+      for (int i = 0; i < ports; i++) {
+        GOOSESender sender = new GOOSESender( this.transport, i,
+            this.queueCapacity );
+        sender.start();
+        list.add( sender );
+      }
+      this.senders = list;
+    }
+    return this.senders;
+  }
+
+  /**
+   * Stops the sender threads, if any, once their queued frames are sent
+   */
+  private synchronized void stopSenders() {
+    if (this.senders != null) {
+      for (int i = 0; i < this.senders.size(); i++) {
+        GOOSESender sender = this.senders.get( i );
+        sender.stop();
+        this.dropped.addAndGet( sender.getFailedCount() );
+      }
+      this.senders = null;
+    }
+  }
+
+  /**
+   * Closes the send handles of all interfaces, e.g. when the application
+   * shuts down. The handles are reopened on the next broadcast.
+   */
+  public static synchronized void close() {
+    if (GOOSEPublisher.handles != null) {
+      for (int i = 0; i < GOOSEPublisher.handles.size(); i++) {
+        GOOSEPublisher.handles.get( i ).close();
+      }
+    }
+  }
+
+  /**
+   * Gets the error of the last failed scan of the interfaces
+   *
+   * @return String the error, or null if the interfaces were scanned
+   */
+  static synchronized String getInitError() {
+    return GOOSEPublisher.initError;
+  }
+
+  /**
+   * Gets the send handles of the usable interfaces, creating them on first
+   * use with the pcap parameters supplied. If the interfaces can not be
+   * listed, an empty list is returned and the scan is retried once
+   * <code>GOOSESendHandle.REOPEN_DELAY</code> has passed, see
+   * <code>getInitError</code>.
+   *
+   * @return List of send handles, one per interface
+   */
+  static synchronized List<GOOSESendHandle> getHandles(int snaplen, int flags,
+      int timeout) {
+    if (!GOOSEPublisher.isInitialised()) {
+      long now = System.currentTimeMillis();
+      if (now < GOOSEPublisher.nextInit) {
+        return Collections.emptyList();
+      }
+      init();
+      if (!GOOSEPublisher.isInitialised()) {
+        GOOSEPublisher.nextInit = now + GOOSESendHandle.REOPEN_DELAY;
+        return Collections.emptyList();
+      }
+    }
+    if (GOOSEPublisher.handles == null) {
+      ArrayList<GOOSESendHandle> list = new ArrayList<GOOSESendHandle>();
+      Iterator<PcapIf> iterator = GOOSEPublisher.alldevs.iterator();
+      while (iterator.hasNext()) {
+        GOOSESendHandle handle = GOOSESendHandle.getInstance( iterator.next(),
+            snaplen, flags, timeout );
+        if (handle != null) {
+          list.add( handle );
+        }
+      }
+      GOOSEPublisher.handles = list;
+    }
+    return GOOSEPublisher.handles;
+  }
+
   /**
    * TODO: uopdate comments and documentation
    */
-  private static final void init() {
+  private static synchronized final void init() {
+    // the interfaces are rescanned, so discard the handles of the old ones
+    GOOSEPublisher.close();
+    GOOSEPublisher.handles = null;
+
     GOOSEPublisher.alldevs = new ArrayList<PcapIf>();
     GOOSEPublisher.errbuf = new StringBuilder();
 
     // get all interfaces
     int r = Pcap.findAllDevs( GOOSEPublisher.alldevs, GOOSEPublisher.errbuf );
 
-    if (r == Pcap.NOT_OK || GOOSEPublisher.alldevs.isEmpty()) {
-      System.err.printf( "Can't read list of devices, error is '%s'",
-          errbuf.toString() );
-      System.exit( 0 );
+    if (r != Pcap.OK || GOOSEPublisher.alldevs.isEmpty()) {
+      // reported by getInitError, the scan is retried by getHandles
+      GOOSEPublisher.initError = "Can't read list of devices, error is '"
+          + errbuf.toString() + "'";
+      GOOSEPublisher.alldevs = new ArrayList<PcapIf>();
       return;
     }
+    GOOSEPublisher.initError = null;
     
     ArrayList<PcapIf> tmpList = new ArrayList<PcapIf>();
 
     Iterator<PcapIf> iterator = GOOSEPublisher.alldevs.iterator();
     while (iterator.hasNext()) {
-      PcapIf nic = (PcapIf) iterator.next();
+      PcapIf nic = iterator.next();
       
       // if loopback interface then ignore interface
       if (( nic.getFlags() & PCAP_IF_LOOPBACK ) == PCAP_IF_LOOPBACK) {
@@ -0,0 +1,561 @@
+/**
+ *
+ * Copyright (c) 2008, Packwolf Consulting Ltd, All Rights Reserved.
+ *
+ * @author      Nishchal Kush
+ * @version     %I%, %G%
+ * @since       1.0
+ */
+package fj.com.kush.utility.iec61850;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import fj.com.kush.utility.TimingWheel;
+
+/**
+ * <code>GOOSERetransmissionScheduler</code> runs the GOOSE retransmission
+ * curve of IEC 61850-8-1 for every registered control block. On a state
+ * change the message is sent at once with stNum incremented and sqNum reset,
+ * then retransmitted with sqNum incremented after the minimum interval, the
+ * interval doubling on every retransmission until it reaches the heartbeat.
+ * The heartbeat is half the timeAllowedtoLive of the PDU, so a subscriber
+ * receives at least one retransmission within the time allowed to live, or
+ * <code>DEFAULT_HEARTBEAT</code> if the PDU has no timeAllowedtoLive.
+ *
+ * The timers of all control blocks are held in a single
+ * <code>TimingWheel</code>, driven either by the scheduler thread, see
+ * <code>start</code>, which parks until just before the next deadline and
+ * spins the remainder for microsecond pacing, or by the application invoking
+ * <code>advance</code>, e.g. with a simulated time. Retransmissions are
+ * scheduled from the previous deadline rather than the actual send time, so
+ * pacing errors do not accumulate.
+ *
+ * Registering, unregistering and state changes may be requested from any
+ * thread; they are queued and applied by the thread driving the scheduler,
+ * which is the only thread that sets stNum, sqNum and t of the registered
+ * PDUs and invokes the <code>Transmitter</code>s. A state change may carry
+ * the change of the data set itself, run by that thread with the stNum
+ * increment.
+ */
+public final class GOOSERetransmissionScheduler implements Runnable {
+
+  // constants
+
+  public static final long DEFAULT_MIN_INTERVAL = 2000000L;      // 2ms
+  public static final long DEFAULT_HEARTBEAT    = 1000000000L;   // 1s
+  public static final long DEFAULT_SPIN_NANOS   = 50000L;        // 50us
+
+  static final long        MAX_COUNTER          = 4294967295L;   // 2^32 - 1
+
+  // pending requests of an entry
+  static final int         PENDING_REGISTER     = 1;
+  static final int         PENDING_STATE_CHANGE = 2;
+  static final int         PENDING_UNREGISTER   = 4;
+
+  // attributes
+
+  private final TimingWheel                 wheel;
+  private final ConcurrentLinkedQueue<Entry> requests =
+                                              new ConcurrentLinkedQueue<Entry>();
+
+  private long             minInterval   = DEFAULT_MIN_INTERVAL;
+  private long             heartbeat     = DEFAULT_HEARTBEAT;
+  private long             spinNanos     = DEFAULT_SPIN_NANOS;
+
+  private volatile Thread  thread        = null;
+  private volatile boolean running       = false;
+
+  // statistics, written by the driving thread only
+  private volatile long    transmitCount = 0;
+  private volatile long    maxLateness   = 0;
+  private volatile long    totalLateness = 0;
+  private volatile long    failedCount   = 0;
+  private volatile String  error         = null;
+  private int              registered    = 0;
+
+  // constructors
+
+  /**
+   * Default constructor, a 1ms tick wheel of 4096 buckets
+   */
+  public GOOSERetransmissionScheduler() {
+    this( TimingWheel.DEFAULT_TICK_NANOS, TimingWheel.DEFAULT_WHEEL_SIZE );
+  }
+
+  /**
+   * Constructor accepting the tick and size of the timing wheel
+   *
+   * @param tickNanos
+   *          the duration of a tick in nanoseconds
+   * @param wheelSize
+   *          the number of buckets of the wheel
+   */
+  public GOOSERetransmissionScheduler(long tickNanos, int wheelSize) {
+    this.wheel = new TimingWheel( tickNanos, wheelSize );
+  }
+
+  // accessors
+
+  /**
+   * Gets the last error thrown by a <code>Transmitter</code> or a state change
+   *
+   * @return String the error, or null if none
+   */
+  public String getError() {
+    return this.error;
+  }
+
+  /**
+   * Gets the number of transmissions whose <code>Transmitter</code> threw,
+   * and of state changes whose change threw
+   *
+   * @return long the number of failures
+   */
+  public long getFailedCount() {
+    return this.failedCount;
+  }
+
+  /**
+   * Gets the heartbeat used for PDUs without a timeAllowedtoLive
+   *
+   * @return long the heartbeat interval in nanoseconds
+   */
+  public long getHeartbeat() {
+    return this.heartbeat;
+  }
+
+  /**
+   * Gets the largest delay between the deadline of a transmission and the
+   * time it was made
+   *
+   * @return long the lateness in nanoseconds
+   */
+  public long getMaxLatenessNanos() {
+    return this.maxLateness;
+  }
+
+  /**
+   * Gets the mean delay between the deadline of a transmission and the time
+   * it was made
+   *
+   * @return long the mean lateness in nanoseconds
+   */
+  public long getMeanLatenessNanos() {
+    long count = this.transmitCount;
+    return (count > 0 ? this.totalLateness / count : 0);
+  }
+
+  /**
+   * Gets the interval of the first retransmission after a state change
+   *
+   * @return long the minimum interval in nanoseconds
+   */
+  public long getMinInterval() {
+    return this.minInterval;
+  }
+
+  /**
+   * Gets the number of registered control blocks. Only accurate on the thread
+   * driving the scheduler.
+   *
+   * @return int the number of control blocks
+   */
+  public int getRegisteredCount() {
+    return this.registered;
+  }
+
+  /**
+   * Gets the number of transmissions made
+   *
+   * @return long the number of transmissions
+   */
+  public long getTransmitCount() {
+    return this.transmitCount;
+  }
+
+  /**
+   * Gets if the scheduler thread is running
+   *
+   * @return boolean true if running, else false
+   */
+  public boolean isRunning() {
+    return this.running;
+  }
+
+  // mutators
+
+  /**
+   * Sets the heartbeat used for PDUs without a timeAllowedtoLive
+   *
+   * @param heartbeat
+   *          the heartbeat interval in nanoseconds
+   */
+  public void setHeartbeat(long heartbeat) {
+    this.heartbeat = Math.max( heartbeat, 1 );
+  }
+
+  /**
+   * Sets the interval of the first retransmission after a state change
+   *
+   * @param minInterval
+   *          the minimum interval in nanoseconds
+   */
+  public void setMinInterval(long minInterval) {
+    this.minInterval = Math.max( minInterval, 1 );
+  }
+
+  /**
+   * Sets how long before a deadline the scheduler thread stops parking and
+   * spins, trading CPU for pacing accuracy. 0 never spins.
+   *
+   * @param spinNanos
+   *          the spin time in nanoseconds
+   */
+  public void setSpinNanos(long spinNanos) {
+    this.spinNanos = Math.max( spinNanos, 0 );
+  }
+
+  /**
+   * Registers the <code>GOOSEMessage</code> of a control block. The message
+   * is sent as soon as the registration is applied, with stNum set to 1 if
+   * unset and sqNum reset, and then retransmitted as per the curve.
+   *
+   * @param message
+   *          the message of the control block, with a GOOSE PDU
+   * @param transmitter
+   *          sends the message, invoked by the driving thread
+   * @throws GOOSEMessageException
+   *           if the message does not hold a GOOSE PDU
+   * @return Entry identifying the registration
+   */
+  public Entry register(GOOSEMessage message, Transmitter transmitter)
+      throws GOOSEMessageException {
+    if (message == null || transmitter == null
+        || !( message.getAPDU() instanceof GOOSEMessageGoosePDU )) {
+      throw new GOOSEMessageException( ConstStrings.INVALID_GOOSE_MSG );
+    }
+    Entry entry = new Entry( this, message, transmitter );
+    this.request( entry, PENDING_REGISTER );
+    return entry;
+  }
+
+  /**
+   * Signals a state change of the control block, i.e. its data set changed,
+   * starting a new burst of retransmissions
+   *
+   * @param entry
+   *          the registration of the control block
+   */
+  public void stateChanged(Entry entry) {
+    this.request( entry, PENDING_STATE_CHANGE );
+  }
+
+  /**
+   * Signals a state change of the control block made by the change supplied,
+   * e.g. setting an element of its data set. The change is run by the thread
+   * driving the scheduler together with the stNum increment, so no
+   * retransmission of the previous state carries the new data. A change
+   * requested for an entry being unregistered is still run.
+   *
+   * @param entry
+   *          the registration of the control block
+   * @param change
+   *          changes the data set of the control block
+   */
+  public void stateChanged(Entry entry, Runnable change) {
+    if (entry == null || entry.scheduler != this) {
+      return;
+    }
+    if (change != null) {
+      entry.changes.add( change );
+    }
+    this.request( entry, PENDING_STATE_CHANGE );
+  }
+
+  /**
+   * Unregisters the control block, ending its retransmissions
+   *
+   * @param entry
+   *          the registration of the control block
+   */
+  public void unregister(Entry entry) {
+    this.request( entry, PENDING_UNREGISTER );
+  }
+
+  // auxillary methods
+
+  /**
+   * Resets the transmission and failure counts and lateness statistics, e.g.
+   * after warming up. Should be invoked by the thread driving the scheduler,
+   * else the reset may race with a transmission.
+   */
+  public void resetStatistics() {
+    this.transmitCount = 0;
+    this.failedCount = 0;
+    this.maxLateness = 0;
+    this.totalLateness = 0;
+  }
+
+  /**
+   * Starts the scheduler thread
+   */
+  public synchronized void start() {
+    if (this.running) {
+      return;
+    }
+    this.running = true;
+    this.thread = new Thread( this, "GOOSERetransmissionScheduler" );
+    this.thread.setDaemon( true );
+    this.thread.start();
+  }
+
+  /**
+   * Stops the scheduler thread, waiting for it to finish
+   */
+  public synchronized void stop() {
+    Thread current = this.thread;
+    this.running = false;
+    if (current != null) {
+      LockSupport.unpark( current );
+      try {
+        current.join();
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    this.thread = null;
+  }
+
+  /**
+   * Applies the queued requests and makes every transmission due at or before
+   * the time supplied. Invoked by the scheduler thread, or by the application
+   * when the scheduler thread is not started.
+   *
+   * @param now
+   *          the current time in nanoseconds, e.g. System.nanoTime
+   * @return long the time the scheduler next needs advancing
+   */
+  public long advance(long now) {
+    Entry entry;
+    while (( entry = this.requests.poll() ) != null) {
+      this.apply( entry, now );
+    }
+    this.wheel.advance( now );
+    return this.wheel.getNextDeadline();
+  }
+
+  /**
+   * Drives the scheduler until stopped
+   *
+   * @see java.lang.Runnable#run()
+   */
+  @Override
+  public void run() {
+    while (this.running) {
+      long next = this.advance( System.nanoTime() );
+
+      // park until just before the deadline, then spin the remainder
+      while (this.running && this.requests.isEmpty()) {
+        long remaining = next - System.nanoTime();
+        if (remaining <= 0) {
+          break;
+        }
+        if (remaining > this.spinNanos) {
+          LockSupport.parkNanos( this, remaining - this.spinNanos );
+        } else {
+          Thread.onSpinWait();
+        }
+      }
+    }
+  }
+
+  /**
+   * Queues a request for the entry and wakes the scheduler thread
+   */
+  private void request(Entry entry, int request) {
+    if (entry == null || entry.scheduler != this) {
+      return;
+    }
+    if (entry.pending.getAndUpdate( p -> p | request ) == 0) {
+      this.requests.add( entry );
+    }
+    Thread current = this.thread;
+    if (current != null) {
+      LockSupport.unpark( current );
+    }
+  }
+
+  /**
+   * Applies the pending requests of the entry
+   */
+  private void apply(Entry entry, long now) {
+    int pending = entry.pending.getAndSet( 0 );
+    Runnable change;
+    while (( change = entry.changes.poll() ) != null) {
+      try {
+        change.run();
+      } catch (RuntimeException re) {
+        this.error = ( re.getMessage() != null ? re.getMessage()
+            : re.toString() );
+        this.failedCount++;
+      }
+    }
+    if (( pending & PENDING_UNREGISTER ) != 0) {
+      if (entry.registered) {
+        entry.registered = false;
+        this.registered--;
+        this.wheel.cancel( entry );
+      }
+      return;
+    }
+
+    GOOSEMessageGoosePDU pdu = entry.getPDU();
+    if (( pending & PENDING_REGISTER ) != 0 && !entry.registered) {
+      entry.registered = true;
+      this.registered++;
+      if (pdu.getStNum() <= 0) {
+        pdu.setStNum( 1 );
+      }
+    } else if (( pending & PENDING_STATE_CHANGE ) != 0 && entry.registered) {
+      long stNum = pdu.getStNum() + 1;
+      pdu.setStNum( stNum > MAX_COUNTER ? 1 : stNum );
+    } else {
+      return;
+    }
+
+    // a new burst, sent at once
+    pdu.setSqNum( 0 );
+    pdu.stamp();
+    entry.interval = 0;
+    this.wheel.schedule( entry, now );
+  }
+
+  /**
+   * Transmits the message of the entry and schedules the next retransmission
+   */
+  private void transmit(Entry entry, long now) {
+    GOOSEMessageGoosePDU pdu = entry.getPDU();
+    if (entry.interval > 0) {
+      // a retransmission, sqNum wraps to 1 as 0 marks a state change
+      long sqNum = pdu.getSqNum() + 1;
+      pdu.setSqNum( sqNum > MAX_COUNTER ? 1 : sqNum );
+    }
+
+    try {
+      entry.transmitter.transmit( entry.message, now );
+    } catch (RuntimeException re) {
+      // kept for getError, the retransmissions carry on
+      this.error = ( re.getMessage() != null ? re.getMessage() : re.toString() );
+      this.failedCount++;
+    }
+
+    long lateness = now - entry.getDeadline();
+    this.totalLateness += lateness;
+    this.transmitCount++;
+    if (lateness > this.maxLateness) {
+      this.maxLateness = lateness;
+    }
+
+    // double the interval up to the heartbeat
+    long heartbeat = this.getHeartbeat( pdu );
+    entry.interval = ( entry.interval == 0 ? this.minInterval
+        : entry.interval * 2 );
+    entry.interval = Math.min( entry.interval, heartbeat );
+
+    long deadline = entry.getDeadline() + entry.interval;
+    if (deadline < now) {
+      deadline = now + entry.interval; // too far behind, resynchronise
+    }
+    this.wheel.schedule( entry, deadline );
+  }
+
+  /**
+   * Gets the heartbeat interval for the PDU, i.e. half its timeAllowedtoLive
+   */
+  private long getHeartbeat(GOOSEMessageGoosePDU pdu) {
+    long tal = pdu.getTimeAllocatedtoLive();
+    return (tal > 0 ? tal * 500000L : this.heartbeat); // millis to nanos / 2
+  }
+
+  /**
+   * Sends a GOOSE message on behalf of the scheduler
+   */
+  public interface Transmitter {
+
+    /**
+     * Sends the message, with stNum, sqNum and t already set
+     *
+     * @param message
+     *          the message to send
+     * @param now
+     *          the time of the transmission as passed to <code>advance</code>
+     */
+    public void transmit(GOOSEMessage message, long now);
+  }
+
+  /**
+   * The registration of a control block, holding its retransmission state
+   */
+  public static final class Entry extends TimingWheel.Timer {
+
+    // attributes
+
+    private final GOOSERetransmissionScheduler scheduler;
+    private final GOOSEMessage                 message;
+    private final Transmitter                  transmitter;
+
+    private final AtomicInteger pending    = new AtomicInteger( 0 );
+    private final ConcurrentLinkedQueue<Runnable> changes =
+                                       new ConcurrentLinkedQueue<Runnable>();
+    private boolean             registered = false;
+    private long                interval   = 0; // 0 until the first send
+
+    // constructors
+
+    private Entry(GOOSERetransmissionScheduler scheduler,
+        GOOSEMessage message, Transmitter transmitter) {
+      this.scheduler = scheduler;
+      this.message = message;
+      this.transmitter = transmitter;
+    }
+
+    // accessors
+
+    /**
+     * Gets the current retransmission interval
+     *
+     * @return long the interval in nanoseconds, 0 before the first send
+     */
+    public long getInterval() {
+      return this.interval;
+    }
+
+    /**
+     * Gets the message of the control block
+     *
+     * @return GOOSEMessage the message
+     */
+    public GOOSEMessage getMessage() {
+      return this.message;
+    }
+
+    /**
+     * Gets the GOOSE PDU of the message
+     */
+    GOOSEMessageGoosePDU getPDU() {
+      return (GOOSEMessageGoosePDU) this.message.getAPDU();
+    }
+
+    // auxillary methods
+
+    /**
+     * @see fj.com.kush.utility.TimingWheel.Timer#expire(long)
+     */
+    @Override
+    protected void expire(long now) {
+      this.scheduler.transmit( this, now );
+    }
+  }
+}
@@ -0,0 +1,245 @@
+/**
+ *
+ * Copyright (c) 2008, Packwolf Consulting Ltd, All Rights Reserved.
+ *
+ * @author      Nishchal Kush
+ * @version     %I%, %G%
+ * @since       1.0
+ */
+package fj.com.kush.utility.iec61850;
+
+import java.io.IOException;
+
+import org.jnetpcap.Pcap;
+import org.jnetpcap.PcapIf;
+
+/**
+ * <code>GOOSESendHandle</code> keeps a long lived <code>Pcap</code> handle
+ * open on a single network interface for sending frames, together with the
+ * hardware address of the interface looked up once when the handle is
+ * created.
+ *
+ * The handle is opened on the first send. Should a send fail the handle is
+ * closed, reopened and the send retried once; should the open fail it is not
+ * retried until <code>REOPEN_DELAY</code> has passed, so a missing interface
+ * costs nothing per frame. Sends are synchronized on the handle.
+ */
+final class GOOSESendHandle {
+
+  // constants
+
+  static final long    REOPEN_DELAY = 1000L; // millis between failed opens
+
+  // attributes
+
+  private final PcapIf nic;
+  private final String name;
+  private final byte[] mac;
+
+  private final int    snaplen;
+  private final int    flags;
+  private final int    timeout;
+
+  private Pcap         pcap         = null;
+  private long         nextOpen     = 0;     // earliest time to retry an open
+  private String       error        = null;  // the last error
+
+  // statistics
+  private long         sent         = 0;
+  private long         failed       = 0;
+  private long         opened       = 0;
+
+  // constructors
+
+  /**
+   * Constructor accepting the interface, the mac address of the interface and
+   * the parameters used to open the pcap handle
+   */
+  private GOOSESendHandle(PcapIf nic, byte[] mac, int snaplen, int flags,
+      int timeout) {
+    this.nic = nic;
+    this.name = nic.getName();
+    this.mac = mac;
+    this.snaplen = snaplen;
+    this.flags = flags;
+    this.timeout = timeout;
+  }
+
+  /**
+   * Creates a send handle for the interface supplied. The pcap handle is not
+   * opened until the first send.
+   *
+   * @param nic
+   *          the network interface
+   * @return GOOSESendHandle for the interface, or null if the interface has no
+   *         hardware address, e.g. a PPP or TAP interface
+   */
+  static GOOSESendHandle getInstance(PcapIf nic, int snaplen, int flags,
+      int timeout) {
+    if (nic == null) {
+      return null;
+    }
+
+    byte[] mac = null;
+    try {
+      mac = nic.getHardwareAddress();
+    } catch (IOException ioe) {
+      mac = null;
+    }
+    if (mac == null) {
+      return null;
+    }
+    return new GOOSESendHandle( nic, mac, snaplen, flags, timeout );
+  }
+
+  // accessors
+
+  /**
+   * Gets the last error reported when opening the handle or sending
+   *
+   * @return String the error, or null if none
+   */
+  synchronized String getError() {
+    return this.error;
+  }
+
+  /**
+   * Gets the number of frames that could not be sent
+   *
+   * @return long the number of failed sends
+   */
+  synchronized long getFailedCount() {
+    return this.failed;
+  }
+
+  /**
+   * Gets the hardware address of the interface. The byte array is NOT copied!
+   *
+   * @return byte[] the mac address
+   */
+  byte[] getMac() {
+    return this.mac;
+  }
+
+  /**
+   * Gets the name of the interface
+   *
+   * @return String the name
+   */
+  String getName() {
+    return this.name;
+  }
+
+  /**
+   * Gets the interface
+   *
+   * @return PcapIf the network interface
+   */
+  PcapIf getNic() {
+    return this.nic;
+  }
+
+  /**
+   * Gets the number of times the pcap handle has been opened
+   *
+   * @return long the number of opens
+   */
+  synchronized long getOpenCount() {
+    return this.opened;
+  }
+
+  /**
+   * Gets the number of frames sent
+   *
+   * @return long the number of frames sent
+   */
+  synchronized long getSentCount() {
+    return this.sent;
+  }
+
+  /**
+   * Gets if the pcap handle is open
+   *
+   * @return boolean true if open, else false
+   */
+  synchronized boolean isOpen() {
+    return this.pcap != null;
+  }
+
+  // auxillary methods
+
+  /**
+   * Sends the frame supplied on the interface, opening the handle if
+   * required. A failed send is retried once on a freshly opened handle.
+   *
+   * @param frame
+   *          the byte array holding the frame
+   * @param offset
+   *          the offset of the frame
+   * @param length
+   *          the length of the frame
+   * @return boolean true if the frame was sent, else false
+   */
+  synchronized boolean send(byte[] frame, int offset, int length) {
+    for (int attempt = 0; attempt < 2; attempt++) {
+      if (this.pcap == null && !this.open()) {
+        break;
+      }
+      if (this.pcap.sendPacket( frame, offset, length ) == Pcap.OK) {
+        this.sent++;
+        return true;
+      }
+
+      // the handle may have gone bad, e.g. the interface was reset
+      this.error = this.pcap.getErr();
+      this.close();
+    }
+    this.failed++;
+    return false;
+  }
+
+  /**
+   * Closes the pcap handle, if open. The handle is reopened on the next send.
+   */
+  synchronized void close() {
+    if (this.pcap != null) {
+      this.pcap.close();
+      this.pcap = null;
+    }
+  }
+
+  /**
+   * Opens the pcap handle, unless a previous open failed within the reopen
+   * delay
+   *
+   * @return boolean true if the handle is open, else false
+   */
+  private boolean open() {
+    long now = System.currentTimeMillis();
+    if (now < this.nextOpen) {
+      return false;
+    }
+
+    StringBuilder errbuf = new StringBuilder();
+    this.pcap = Pcap.openLive( this.name, this.snaplen, this.flags,
+        this.timeout, errbuf );
+    if (this.pcap == null) {
+      this.error = errbuf.toString();
+      this.nextOpen = now + GOOSESendHandle.REOPEN_DELAY;
+      return false;
+    }
+    this.nextOpen = 0;
+    this.opened++;
+    return true;
+  }
+
+  /**
+   * Returns a string representing the handle
+   *
+   * @return String representing the instance
+   */
+  public String toString() {
+    return this.name + " open=" + this.isOpen() + " sent="
+        + this.getSentCount() + " failed=" + this.getFailedCount();
+  }
+}
@@ -0,0 +1,163 @@
+/**
+ *
+ * Copyright (c) 2008, Packwolf Consulting Ltd, All Rights Reserved.
+ *
+ * @author      Nishchal Kush
+ * @version     %I%, %G%
+ * @since       1.0
+ */
+package fj.com.kush.utility.iec61850;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <code>GOOSESender</code> is a thread dedicated to sending the frames queued
+ * for a single network interface. The publishing thread only copies frames
+ * into the <code>GOOSEFrameRing</code> of the sender, and the sender drains
+ * the ring onto the port of the <code>FrameTransport</code>, thus a slow
+ * interface delays neither the publisher nor the other interfaces.
+ *
+ * The sender parks when the ring is empty and is unparked by
+ * <code>offer</code>, so an idle sender costs no CPU.
+ */
+final class GOOSESender implements Runnable, GOOSEFrameBatch.FrameHandler {
+
+  // constants
+
+  static final int              DRAIN_LIMIT = 64;        // frames per drain
+  static final long             PARK_NANOS  = 1000000L;  // park at most 1ms
+
+  // attributes
+
+  private final FrameTransport  transport;
+  private final int             port;
+  private final GOOSEFrameRing  ring;
+  private final Thread          thread;
+
+  private volatile boolean      running     = false;
+  private volatile boolean      waiting     = false;
+
+  // written by the sender thread only
+  private volatile long         failed      = 0;
+
+  // constructors
+
+  /**
+   * Constructor accepting the transport and port of the interface and the
+   * number of frames that may be queued
+   */
+  GOOSESender(FrameTransport transport, int port, int capacity) {
+    this.transport = transport;
+    this.port = port;
+    this.ring = new GOOSEFrameRing( capacity, GOOSEFrameRing.MAX_FRAME_LENGTH );
+    this.thread = new Thread( this, "GOOSESender-" + transport.getName( port ) );
+    this.thread.setDaemon( true );
+  }
+
+  // accessors
+
+  /**
+   * Gets the number of frames drained from the ring that the transport failed
+   * to send, see <code>FrameTransport.getError</code>
+   *
+   * @return long the number of frames
+   */
+  long getFailedCount() {
+    return this.failed;
+  }
+
+  /**
+   * Gets the port of the interface
+   *
+   * @return int the port
+   */
+  int getPort() {
+    return this.port;
+  }
+
+  /**
+   * Gets the ring of queued frames
+   *
+   * @return GOOSEFrameRing the ring
+   */
+  GOOSEFrameRing getRing() {
+    return this.ring;
+  }
+
+  // auxillary methods
+
+  /**
+   * Starts the sender thread
+   */
+  void start() {
+    this.running = true;
+    this.thread.start();
+  }
+
+  /**
+   * Stops the sender thread once the queued frames are sent, waiting for the
+   * thread to finish
+   */
+  void stop() {
+    this.running = false;
+    LockSupport.unpark( this.thread );
+    try {
+      this.thread.join();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Queues the frame supplied for sending. May only be invoked by the single
+   * publishing thread.
+   *
+   * @param frame
+   *          the byte array holding the frame
+   * @param offset
+   *          the offset of the frame
+   * @param length
+   *          the length of the frame
+   * @return boolean true if queued, false if the ring is full
+   */
+  boolean offer(byte[] frame, int offset, int length) {
+    if (!this.ring.offer( frame, offset, length )) {
+      return false;
+    }
+    if (this.waiting) {
+      LockSupport.unpark( this.thread );
+    }
+    return true;
+  }
+
+  /**
+   * Sends the queued frames until stopped
+   */
+  @Override
+  public void run() {
+    while (this.running || !this.ring.isEmpty()) {
+      if (this.ring.drain( this, GOOSESender.DRAIN_LIMIT ) > 0) {
+        continue;
+      }
+
+      // announce the wait, then check again so an offer is never missed
+      this.waiting = true;
+      if (this.running && this.ring.isEmpty()) {
+        LockSupport.parkNanos( this, GOOSESender.PARK_NANOS );
+      }
+      this.waiting = false;
+    }
+  }
+
+  /**
+   * Sends a frame drained from the ring
+   *
+   * @see fj.com.kush.utility.iec61850.GOOSEFrameBatch.FrameHandler#handleFrame(byte[], int, int)
+   */
+  @Override
+  public void handleFrame(byte[] buffer, int offset, int length) {
+    if (!this.transport.send( this.port, buffer, offset, length )) {
+      this.failed++; // the error is kept by the transport
+    }
+  }
+}
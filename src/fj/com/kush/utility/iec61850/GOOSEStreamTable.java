@@ -0,0 +1,309 @@
+/**
+ *
+ * Copyright (c) 2008, Packwolf Consulting Ltd, All Rights Reserved.
+ *
+ * @author      Nishchal Kush
+ * @version     %I%, %G%
+ * @since       1.0
+ */
+package fj.com.kush.utility.iec61850;
+
+/**
+ * <code>GOOSEStreamTable</code> tracks the state of each GOOSE stream, i.e. of
+ * each gocbRef of each source MAC address and APPID, from the stNum and sqNum
+ * read from the raw frame through a <code>GOOSEFrameView</code>, so that a
+ * subscriber can tell a state change from a retransmission of the same state
+ * before decoding the frame's data. Frames without a gocbRef, or with an
+ * empty one, belong to the stream of their source MAC address and APPID.
+ *
+ * A frame is a change when its stNum differs from the stream's, or its sqNum
+ * goes backwards, e.g. when the publisher restarts. A frame repeating the
+ * stream's stNum is a retransmission, reported as a heartbeat when the
+ * heartbeat interval has passed since the stream was last reported as new,
+ * changed or a heartbeat. Streams are added on their first frame. When the
+ * maximum number of streams is reached, the streams not seen since the table
+ * was last full are evicted, or every stream if all were seen, so the first
+ * frame of an evicted stream is reported as new again.
+ *
+ * Looking up a stream does not allocate; adding one does. The methods are
+ * synchronized, so the table may be shared by several receiving threads.
+ */
+public final class GOOSEStreamTable {
+
+  // constants
+
+  public static final int  STATE_NEW           = 1;  // first frame of a stream
+  public static final int  STATE_CHANGED       = 2;
+  public static final int  STATE_REPEATED      = 3;  // a retransmission
+  public static final int  STATE_HEARTBEAT     = 4;  // a retransmission due
+
+  public static final int  DEFAULT_MAX_STREAMS = 4096;
+
+  static final int         INITIAL_CAPACITY    = 64;
+
+  private static final long GOLDEN             = 0x9e3779b97f4a7c15L;
+
+  // attributes
+
+  private Stream[]         streams;
+  private int              mask;
+  private int              count               = 0;
+  private final int        maxStreams;
+  private long             swept               = Long.MIN_VALUE; // last full
+
+  // statistics
+  private long             changes             = 0;
+  private long             repeats             = 0;
+  private long             evictions           = 0;
+
+  // constructors
+
+  /**
+   * Default constructor
+   */
+  public GOOSEStreamTable() {
+    this( GOOSEStreamTable.DEFAULT_MAX_STREAMS );
+  }
+
+  /**
+   * Constructor accepting the maximum number of streams tracked
+   *
+   * @param maxStreams
+   *          the number of streams
+   */
+  public GOOSEStreamTable(int maxStreams) {
+    this.maxStreams = Math.max( maxStreams, 1 );
+    this.streams = new Stream[INITIAL_CAPACITY];
+    this.mask = INITIAL_CAPACITY - 1;
+  }
+
+  // accessors
+
+  /**
+   * Gets the number of frames reported as new or changed
+   *
+   * @return long the number of frames
+   */
+  public synchronized long getChangeCount() {
+    return this.changes;
+  }
+
+  /**
+   * Gets the number of streams evicted because the table was full
+   *
+   * @return long the number of streams
+   */
+  public synchronized long getEvictionCount() {
+    return this.evictions;
+  }
+
+  /**
+   * Gets the number of frames reported as retransmissions, including
+   * heartbeats
+   *
+   * @return long the number of frames
+   */
+  public synchronized long getRepeatCount() {
+    return this.repeats;
+  }
+
+  /**
+   * Gets the number of streams tracked
+   *
+   * @return int the number of streams
+   */
+  public synchronized int size() {
+    return this.count;
+  }
+
+  // mutators
+
+  /**
+   * Forgets every stream, so the next frame of each is new
+   */
+  public synchronized void clear() {
+    this.streams = new Stream[INITIAL_CAPACITY];
+    this.mask = INITIAL_CAPACITY - 1;
+    this.count = 0;
+    this.swept = Long.MIN_VALUE;
+  }
+
+  // auxillary methods
+
+  /**
+   * Checks the frame supplied against the state of its stream, updating the
+   * state
+   *
+   * @param view
+   *          the view of a valid GOOSE frame
+   * @param nanos
+   *          the time the frame is checked, in nanoseconds
+   * @param heartbeatNanos
+   *          the heartbeat interval in nanoseconds, or 0 for none
+   * @return int one of the STATE_ constants
+   */
+  public synchronized int check(GOOSEFrameView view, long nanos,
+      long heartbeatNanos) {
+    long mac = view.srcMac();
+    int appId = view.appId();
+    int hash = view.gocbRefHash();
+    long stNum = view.stNum();
+    long sqNum = view.sqNum();
+
+    int i = this.find( view, mac, appId, hash );
+    Stream stream = this.streams[i];
+
+    if (stream == null) {
+      if (this.count >= this.maxStreams) {
+        this.evict( nanos );
+        i = this.find( view, mac, appId, hash );
+      }
+      byte[] ref = new byte[view.gocbRefLength()];
+      view.copyGocbRef( ref, 0 );
+      this.streams[i] = new Stream( mac, appId, hash, ref, stNum, sqNum, nanos );
+      if (++this.count > ( this.mask + 1 ) / 2) {
+        this.grow();
+      }
+      this.changes++;
+      return STATE_NEW;
+    }
+    stream.seen = nanos;
+
+    if (stNum != stream.stNum || sqNum < stream.sqNum) {
+      stream.stNum = stNum;
+      stream.sqNum = sqNum;
+      stream.reported = nanos;
+      this.changes++;
+      return STATE_CHANGED;
+    }
+
+    stream.sqNum = sqNum;
+    this.repeats++;
+    if (heartbeatNanos > 0 && nanos - stream.reported >= heartbeatNanos) {
+      stream.reported = nanos;
+      return STATE_HEARTBEAT;
+    }
+    return STATE_REPEATED;
+  }
+
+  /**
+   * Gets the slot of the stream of the frame supplied, or the empty slot the
+   * stream would be added at
+   */
+  private int find(GOOSEFrameView view, long mac, int appId, int hash) {
+    int i = GOOSEStreamTable.index( mac, appId, hash, this.mask );
+    Stream stream;
+    while (( stream = this.streams[i] ) != null) {
+      if (stream.mac == mac && stream.appId == appId && stream.hash == hash
+          && ( stream.ref.length == 0 ? view.gocbRefLength() == 0 : view
+              .gocbRefEquals( stream.ref ) )) {
+        break;
+      }
+      i = ( i + 1 ) & this.mask;
+    }
+    return i;
+  }
+
+  /**
+   * Evicts the streams not seen since the table was last full, or every
+   * stream if all were seen, e.g. when flooded by new streams. The cost is
+   * amortised over the streams added since.
+   */
+  private void evict(long nanos) {
+    Stream[] old = this.streams;
+    int before = this.count;
+    long since = this.swept;
+    int kept = 0;
+    for (int i = 0; i < old.length; i++) {
+      if (old[i] != null && old[i].seen > since) {
+        kept++;
+      }
+    }
+
+    this.swept = nanos;
+    this.streams = new Stream[old.length];
+    this.count = 0;
+    if (kept < this.maxStreams) {
+      for (int i = 0; i < old.length; i++) {
+        if (old[i] != null && old[i].seen > since) {
+          this.insert( old[i] );
+        }
+      }
+    }
+    this.evictions += before - this.count;
+  }
+
+  /**
+   * Doubles the capacity of the table
+   */
+  private void grow() {
+    Stream[] old = this.streams;
+    this.streams = new Stream[old.length * 2];
+    this.mask = this.streams.length - 1;
+    this.count = 0;
+    for (int i = 0; i < old.length; i++) {
+      if (old[i] != null) {
+        this.insert( old[i] );
+      }
+    }
+  }
+
+  /**
+   * Adds a stream known not to be in the table
+   */
+  private void insert(Stream stream) {
+    int i = GOOSEStreamTable.index( stream.mac, stream.appId, stream.hash,
+        this.mask );
+    while (this.streams[i] != null) {
+      i = ( i + 1 ) & this.mask;
+    }
+    this.streams[i] = stream;
+    this.count++;
+  }
+
+  /**
+   * Gets the first slot of the stream of the MAC address, APPID and gocbRef
+   * hash supplied
+   */
+  private static int index(long mac, int appId, int hash, int mask) {
+    long h = ( mac ^ ( (long) hash << 16 ) ^ ( (long) appId << 48 ) ) * GOLDEN;
+    return (int) ( h ^ ( h >>> 32 ) ) & mask;
+  }
+
+  /**
+   * Returns a string representing the table
+   *
+   * @return String representing the instance
+   */
+  public synchronized String toString() {
+    return "streams=" + this.count + " changes=" + this.changes + " repeats="
+        + this.repeats + " evictions=" + this.evictions;
+  }
+
+  /**
+   * The state of a stream
+   */
+  private static final class Stream {
+
+    final long   mac;
+    final int    appId;
+    final int    hash;
+    final byte[] ref;      // empty if the frames have no gocbRef
+    long         stNum;
+    long         sqNum;
+    long         reported; // when last reported as new, changed or heartbeat
+    long         seen;     // when the last frame was checked
+
+    Stream(long mac, int appId, int hash, byte[] ref, long stNum, long sqNum,
+        long nanos) {
+      this.mac = mac;
+      this.appId = appId;
+      this.hash = hash;
+      this.ref = ref;
+      this.stNum = stNum;
+      this.sqNum = sqNum;
+      this.reported = nanos;
+      this.seen = nanos;
+    }
+  }
+}
@@ -7,17 +7,11 @@
  */
 package fj.com.kush.utility.iec61850;
 
-import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
-
-import org.jnetpcap.Pcap;
-import org.jnetpcap.PcapIf;
-import org.jnetpcap.packet.JPacketHandler;
+import java.util.TreeSet;
+import java.util.concurrent.locks.LockSupport;
 
 import fj.com.kush.utility.iec61850.net.GOOSEPacketHandler;
 // import java.nio.*;
@@ -27,6 +21,35 @@ import fj.com.kush.utility.iec61850.net.GOOSEPacketHandler;
  * A GOOSE subscriber server that received <code>GOOSEMessage</code>s. The class
  * is intended to be used to provide specific GOOSE functionality by populating
  * the publisher with appropriate <code>GOOSEMessage</code>s. 
+ * 
+ * Frames are received on every port of the subscriber's
+ * <code>FrameTransport</code>, by default the network interfaces through
+ * jnetpcap, see <code>PcapTransport</code>. Frames are received either one
+ * per port per call to <code>receive</code>, or continuously, in batches, by a
+ * capture thread per port between <code>start</code> and <code>stop</code>.
+ * The capture threads either process the frames themselves, or, with
+ * consumer threads, see <code>setConsumerCount</code>, copy the raw frames
+ * into a <code>GOOSEEventRing</code> per consumer, which the consumer decodes
+ * and processes, so capturing on several interfaces is not held up by
+ * processing. Frames are partitioned between the consumers by their source
+ * MAC address and gocbRef, so the frames of a stream are always processed in
+ * the order received.
+ * 
+ * A subscription is to a source MAC address, an APPID and a gocbRef, any of
+ * which may be a wildcard, and frames may further be restricted to
+ * destination MAC addresses. The subscriptions are held in a
+ * <code>GOOSESubscriptionIndex</code>, which every frame received is matched
+ * against, without locking or allocating, before it is processed; with no
+ * subscriptions every GOOSE frame is processed. They are also compiled into a
+ * capture filter, see <code>GOOSEFilter</code>, installed on the transport
+ * whenever they change, so that transports supporting filters drop most
+ * frames not subscribed to in the kernel.
+ * 
+ * Most GOOSE frames are retransmissions of an unchanged state. The stNum and
+ * sqNum of each frame are read from the raw bytes and tracked per stream, see
+ * <code>GOOSEStreamTable</code>, so that, depending on the delivery mode, see
+ * <code>setDelivery</code>, retransmissions are dropped before their data is
+ * decoded.
  */
 // TODO - should be multi-threaded, i.e. implement runnable and have synchronized methods
 // TODO: impement subscribing to publishers
@@ -37,17 +60,51 @@ public abstract class GOOSESubscriber {
   public static final String COMMA = ",";
   public static final int PCAP_IF_LOOPBACK = 1; // TODO: fix in
                                                 // another class
+  public static final int DEFAULT_BATCH_SIZE = 64; // frames per dispatch
+  static final long RETRY_NANOS = 1000000000L; // wait after a receive error
+  static final long PARK_NANOS = 10000000L; // consumer wait, at most 10ms
+
+  // delivery modes, i.e. the frames processed
+  public static final int DELIVER_ALL_FRAMES = 0;
+  public static final int DELIVER_CHANGES = 1;
+  public static final int DELIVER_CHANGES_AND_HEARTBEAT = 2;
+  public static final int DEFAULT_HEARTBEAT_INTERVAL = 1000; // in millis
 
   // class attributes
   
-  private static List<PcapIf> alldevs = null;
-  private static StringBuilder errbuf = null;
   private static boolean initialised = false;
-  private static GOOSEPacketHandler packetHandler = null;
   
   // private instance attributes
   
-  private Map<String,Boolean> subscribed = null;
+  private GOOSESubscriptionIndex<Subscription> subscriptions = null;
+  private Set<String> destinations = null;
+  private volatile long[] destinationMacs = new long[0];
+  private String filter = null; // compiled from the subscriptions
+  private GOOSEPacketHandler packetHandler = null;
+
+  // records the frames received in verbose mode, the default trace if not set
+  private GOOSETrace trace = null;
+
+  // receives the frames, chosen at construction
+  private final FrameTransport transport;
+
+  // continuous capture, a thread per port
+  private List<Capture> captures = null;
+  private volatile boolean capturing = false;
+  private int batchSize = DEFAULT_BATCH_SIZE;
+  private final Object captureLock = new Object(); // serialises processing
+
+  // consumer threads draining the frames of the capture threads, if any
+  private int consumerCount = 0;
+  private int ringCapacity = GOOSEEventRing.DEFAULT_CAPACITY;
+  private GOOSEEventRing[] rings = null; // one per consumer
+  private List<Consumer> consumers = null;
+  private volatile boolean consuming = false;
+
+  // retransmission suppression
+  private final GOOSEStreamTable streams = new GOOSEStreamTable();
+  private volatile int delivery = DELIVER_ALL_FRAMES;
+  private volatile long heartbeatNanos = DEFAULT_HEARTBEAT_INTERVAL * 1000000L;
 
   
   // package instance attributes
@@ -59,13 +116,27 @@ public abstract class GOOSESubscriber {
   // constructors
   
   /**
-   * Default constructor
+   * Default constructor, receiving on the network interfaces
    */
   protected GOOSESubscriber() {
+    this( null );
+  }
+
+  /**
+   * Constructor accepting the transport the frames are received on
+   * 
+   * @param transport
+   *          the transport, or null to receive on the network interfaces
+   */
+  protected GOOSESubscriber(FrameTransport transport) {
     gooseMessage = null;
     verbose = false;
-    subscribed = new HashMap<String,Boolean>();
-    init();
+    subscriptions = new GOOSESubscriptionIndex<Subscription>();
+    destinations = new TreeSet<String>();
+    packetHandler = newHandler();
+    this.transport = (transport != null ? transport : new PcapTransport());
+    updateFilter();
+    GOOSESubscriber.setInitialised(true);
   }
 
   
@@ -87,17 +158,16 @@ public abstract class GOOSESubscriber {
    * @returns String  of comma separated MAC addresses
    */
   protected String getSubscription() {
-    if ( subscribed != null && !subscribed.isEmpty()) {
+    if ( subscriptions != null && !subscriptions.isEmpty()) {
       StringBuilder sb = new StringBuilder();
-      Set<String> macs = subscribed.keySet();
-      Iterator<String> iter = macs.iterator();
-      while( iter.hasNext() ) {
-        String mac = iter.next();
-        sb.append(mac);
-        sb.append( GOOSESubscriber.COMMA );
+      for (Subscription subscription : subscriptions.getValues()) {
+        if ( subscription.isMacOnly() ) {
+          sb.append(subscription.text);
+          sb.append( GOOSESubscriber.COMMA );
+        }
       }
       // trim the last comma
-      if ( sb.lastIndexOf(COMMA) == (sb.length() - 1)) {
+      if ( sb.length() > 0 && sb.lastIndexOf(COMMA) == (sb.length() - 1)) {
          sb.deleteCharAt(sb.lastIndexOf(COMMA)); 
       }
       return sb.toString(); 
@@ -106,7 +176,44 @@ public abstract class GOOSESubscriber {
     }
   }
 
+  /**
+   * Gets the index of the subscriptions, e.g. to match a frame against them
+   * 
+   * @return GOOSESubscriptionIndex the index
+   */
+  protected GOOSESubscriptionIndex<?> getSubscriptions() {
+    return subscriptions;
+  }
+
   
+  /**
+   * Gets the trace recording the frames received in verbose mode
+   * 
+   * @return GOOSETrace the trace of the subscriber, or the default trace
+   */
+  public GOOSETrace getTrace() {
+    GOOSETrace current = trace;
+    return (current != null ? current : GOOSETrace.getDefault());
+  }
+
+  /**
+   * Gets the transport the frames are received on
+   * 
+   * @return FrameTransport the transport
+   */
+  public FrameTransport getTransport() {
+    return transport;
+  }
+
+  /**
+   * Gets the capture filter compiled from the subscriptions
+   * 
+   * @return String the filter expression, see <code>GOOSEFilter</code>
+   */
+  public synchronized String getFilter() {
+    return filter;
+  }
+
   /**
    * Gets the initilised flag to indicate if the subscriber has been initilised
    * 
@@ -129,15 +236,57 @@ public abstract class GOOSESubscriber {
       return false;
     }
     
-    if ( subscribed.isEmpty() ) {
+    long value = GOOSEFilter.parseMac(mac);
+    if ( value < 0 ) {
       return false;
     }
     
-    if ( subscribed.containsKey(mac.toLowerCase())) {
-      return true;
+    return subscriptions.contains(value, GOOSESubscriptionIndex.ANY_APPID,
+        null);
+  }
+
+  /**
+   * Gets the delivery mode, see <code>setDelivery</code>
+   * 
+   * @return int the delivery mode
+   */
+  public int getDelivery() {
+    return delivery;
+  }
+
+  /**
+   * Gets the state of the GOOSE streams received, tracked unless every frame
+   * is delivered
+   * 
+   * @return GOOSEStreamTable the streams
+   */
+  public GOOSEStreamTable getStreams() {
+    return streams;
+  }
+
+  /**
+   * Gets the number of frames the capture threads dropped because the event
+   * ring of a consumer thread was full, since capturing was started
+   * 
+   * @return long the number of frames
+   */
+  public synchronized long getDroppedCount() {
+    long count = 0;
+    if (rings != null) {
+      for (int i = 0; i < rings.length; i++) {
+        count += rings[i].getDroppedCount();
+      }
     }
-    
-    return false;
+    return count;
+  }
+
+  /**
+   * Gets if the subscriber is capturing continuously, see <code>start</code>
+   * 
+   * @return boolean true if capturing, else false
+   */
+  public boolean isCapturing() {
+    return capturing;
   }
 
   /**
@@ -151,6 +300,67 @@ public abstract class GOOSESubscriber {
 
   // mutators
 
+  /**
+   * Sets which GOOSE frames received are decoded and processed, see
+   * <code>processMessage</code>: every frame, DELIVER_ALL_FRAMES, the default;
+   * only the frames changing the state of their stream, DELIVER_CHANGES; or
+   * the changes plus a retransmission per stream every heartbeat interval, see
+   * <code>setHeartbeatInterval</code>, DELIVER_CHANGES_AND_HEARTBEAT. The
+   * first frame of each stream is a change.
+   * 
+   * @param delivery the delivery mode
+   */
+  public void setDelivery(int delivery) {
+    if ( delivery < DELIVER_ALL_FRAMES || delivery > DELIVER_CHANGES_AND_HEARTBEAT ) {
+      return;
+    }
+    if ( this.delivery == DELIVER_ALL_FRAMES ) {
+      streams.clear(); // the streams were not tracked
+    }
+    this.delivery = delivery;
+  }
+
+  /**
+   * Sets how often a retransmission of each stream is delivered in the
+   * DELIVER_CHANGES_AND_HEARTBEAT mode
+   * 
+   * @param millis the heartbeat interval in milliseconds
+   */
+  public void setHeartbeatInterval(int millis) {
+    this.heartbeatNanos = Math.max(millis, 1) * 1000000L;
+  }
+
+  /**
+   * Sets the largest number of frames a capture thread receives per call to
+   * the transport. Takes effect when the capture is next started.
+   * 
+   * @param batchSize the number of frames
+   */
+  public void setBatchSize(int batchSize) {
+    this.batchSize = Math.max(batchSize, 1);
+  }
+
+  /**
+   * Sets the number of consumer threads decoding and processing the frames of
+   * the capture threads. With no consumers the capture threads process the
+   * frames themselves. Takes effect when the capture is next started.
+   * 
+   * @param consumerCount the number of threads, 0 for none
+   */
+  public void setConsumerCount(int consumerCount) {
+    this.consumerCount = Math.max(consumerCount, 0);
+  }
+
+  /**
+   * Sets the number of frames the event ring of each consumer thread holds.
+   * Takes effect when the capture is next started.
+   * 
+   * @param ringCapacity the number of frames, rounded up to a power of 2
+   */
+  public void setRingCapacity(int ringCapacity) {
+    this.ringCapacity = Math.max(ringCapacity, 2);
+  }
+
   /**
    * Sets the initialisation flag for the subscriber to indicate if the subscriber has been initialised or not
    * 
@@ -171,7 +381,20 @@ public abstract class GOOSESubscriber {
   }
 
   /**
-   * Sets verbose mode to produce debug output
+   * Sets the trace recording the frames received in verbose mode, e.g. one
+   * with sampling or a rate limit
+   * 
+   * @param trace
+   *          the trace, or null for the default trace
+   */
+  public void setTrace(GOOSETrace trace) {
+    this.trace = trace;
+  }
+
+  /**
+   * Sets verbose mode to produce debug output. In verbose mode a record of
+   * each GOOSE frame received is written, asynchronously, by the subscriber's
+   * trace, see <code>GOOSETrace</code>.
    * 
    * @param verbose
    *          boolean representing verbose mode
@@ -185,12 +408,129 @@ public abstract class GOOSESubscriber {
    *
    * @param mac the <code>String</code> representing the publishing IEDs MAC
    */
-  public void subscribeTo(String mac ) {
+  public synchronized void subscribeTo(String mac ) {
     if ( mac == null || mac.isEmpty()) {
       return;
     } else {
-      subscribed.put( mac.toLowerCase(),  true );
+      subscribe( mac, GOOSESubscriptionIndex.ANY_APPID, null );
+    }
+  }
+
+  /**
+   * Subscribes to the GOOSE messages with the specified APPID
+   *
+   * @param appId the APPID, of 16 bits
+   */
+  public synchronized void subscribeToAppId(int appId) {
+    subscribe( null, appId & 0xffff, null );
+  }
+
+  /**
+   * Subscribes to the GOOSE messages matching the source MAC address, APPID
+   * and gocbRef specified, any of which may be a wildcard
+   *
+   * @param mac the <code>String</code> representing the publishing IEDs MAC,
+   *          of 12 hexadecimal digits optionally separated by ':', '-' or '.',
+   *          or null for any
+   * @param appId the APPID, or <code>GOOSESubscriptionIndex.ANY_APPID</code>
+   * @param gocbRef the GOOSE control block reference, or null for any
+   * @return boolean true if subscribed, false if already subscribed or the MAC
+   *         address is invalid
+   */
+  public synchronized boolean subscribe(String mac, int appId, String gocbRef) {
+    Subscription subscription = Subscription.create(mac, appId, gocbRef);
+    if ( subscription == null ) {
+      return false;
+    }
+    if ( !subscriptions.add(subscription.mac, subscription.appId, gocbRef,
+        subscription) ) {
+      return false;
     }
+    updateFilter();
+    return true;
+  }
+
+  /**
+   * Unsubscribes from the GOOSE messages matching exactly the source MAC
+   * address, APPID and gocbRef specified, see <code>subscribe</code>
+   *
+   * @param mac the <code>String</code> representing the publishing IEDs MAC,
+   *          or null for any
+   * @param appId the APPID, or <code>GOOSESubscriptionIndex.ANY_APPID</code>
+   * @param gocbRef the GOOSE control block reference, or null for any
+   * @return boolean true if unsubscribed, false if not subscribed
+   */
+  public synchronized boolean unsubscribe(String mac, int appId,
+      String gocbRef) {
+    Subscription subscription = Subscription.create(mac, appId, gocbRef);
+    if ( subscription == null ) {
+      return false;
+    }
+    if ( !subscriptions.remove(subscription.mac, subscription.appId, gocbRef,
+        subscription) ) {
+      return false;
+    }
+    updateFilter();
+    return true;
+  }
+
+  /**
+   * Subscribes to the GOOSE messages sent to the specified multicast MAC
+   * address, for all non-null MACs
+   *
+   * @param mac the <code>String</code> representing the destination MAC
+   */
+  public synchronized void subscribeToDestination(String mac) {
+    if ( mac == null || mac.isEmpty()) {
+      return;
+    }
+    if ( GOOSEFilter.parseMac(mac) >= 0 && destinations.add(mac.toLowerCase()) ) {
+      updateFilter();
+    }
+  }
+
+  /**
+   * Unsubscribes from the IED with the specified MAC address
+   *
+   * @param mac the <code>String</code> representing the publishing IEDs MAC
+   */
+  public synchronized void unsubscribeFrom(String mac) {
+    if ( mac == null || mac.isEmpty()) {
+      return;
+    }
+    unsubscribe( mac, GOOSESubscriptionIndex.ANY_APPID, null );
+  }
+
+  /**
+   * Unsubscribes from the GOOSE messages with the specified APPID
+   *
+   * @param appId the APPID, of 16 bits
+   */
+  public synchronized void unsubscribeFromAppId(int appId) {
+    unsubscribe( null, appId & 0xffff, null );
+  }
+
+  /**
+   * Unsubscribes from the GOOSE messages sent to the specified MAC address
+   *
+   * @param mac the <code>String</code> representing the destination MAC
+   */
+  public synchronized void unsubscribeFromDestination(String mac) {
+    if ( mac == null || mac.isEmpty()) {
+      return;
+    }
+    if ( destinations.remove(mac.toLowerCase()) ) {
+      updateFilter();
+    }
+  }
+
+  /**
+   * Removes every subscription, so every GOOSE message is received
+   */
+  public synchronized void clearSubscriptions() {
+    subscriptions.clear();
+    destinations.clear();
+    updateFilter();
   }
 
   // auxillary methods
@@ -202,128 +542,446 @@ public abstract class GOOSESubscriber {
   public abstract void processMessage(GOOSEMessage gooseMessage);
 
   /**
-   * Received the data on all network interfaces as a GOOSE message. The
+   * Received the data on all ports of the transport as a GOOSE message. The
    * broadcast data should be an array of bytes that represent a value GOOSE
    * message. i
    * subscription to specific LN and learn MAC based on name
    */
 // TODO: separate threat to receive on each nic 
   protected void receive() {
-    if (!GOOSESubscriber.isInitialised()) {
-      GOOSESubscriber.init();
-    }
-
-    int snaplen = 64 * 1024; // capture whole frame, no trucation
-    int flags = Pcap.MODE_PROMISCUOUS; // capture all packets
-    int timeout = 10 * 1000; // 10 seconds in millis
-
-    // TODO: listen on a specified interface or listen on the first non-virtual
-    // interface - but what if we are in a VM?
-    //
-    // int i = 0;
-    // for (PcapIf device : alldevs) {
-    // String description = (device.getDescription() != null) ? device
-    // .getDescription() : "No description available";
-    // System.out.printf("#%d: %s [%s]\n", i++, device.getName(), description);
-    // }
-    //
-
-    Iterator<PcapIf> iterator = alldevs.iterator();
-    while (iterator.hasNext()) {
-      PcapIf nic = (PcapIf) iterator.next();
-
-      // check if it's a useable nic
-      byte[] mac = null;
-      try {
-        mac = nic.getHardwareAddress();
-      } catch (IOException ioe) {
-        mac = null;
+    int ports = transport.getPortCount();
+    for (int i = 0; i < ports; i++) {
+      // receive packet
+      int received = transport.receive(i, 1, packetHandler);
+      if (received == -1) {
+        // no more frames, e.g. at the end of a capture file, or an error
+        // reported by the transport's getError
+        continue;
+      }
+      if (received == 0) {
+        continue; // timed out
       }
 
-      // null is returned, that means that the physical interface, does not
-      // support hardware addresses, such as a PPP interface, TAP interface,
-      // etc.., or an exception may have occurred, so do not use this nic
-      if (mac == null) {
-        continue; // this should not happen since we initialised properly
+      // process the goose message
+      process(i, packetHandler);
+    }
+  }
+
+  /**
+   * Compiles the subscriptions into the capture filter and installs it on the
+   * transport
+   */
+  private void updateFilter() {
+    List<Subscription> values = subscriptions.getValues();
+    long[] macs = new long[values.size()];
+    int[] appIds = new int[values.size()];
+    for (int i = 0; i < values.size(); i++) {
+      macs[i] = values.get(i).mac;
+      appIds[i] = values.get(i).appId;
+    }
+    long[] dsts = new long[destinations.size()];
+    int n = 0;
+    for (String mac : destinations) {
+      dsts[n++] = GOOSEFilter.parseMac(mac);
+    }
+    destinationMacs = dsts;
+    filter = GOOSEFilter.build(macs, appIds, macs.length, destinations);
+    transport.setFilter(filter);
+  }
+
+  /**
+   * Checks if a frame received is subscribed to, without locking or
+   * allocating
+   */
+  private boolean accepts(GOOSEFrameView view) {
+    if (!view.isValid()) {
+      return false;
+    }
+    long[] dsts = destinationMacs;
+    if (dsts.length > 0) {
+      long dst = view.dstMac();
+      int i = 0;
+      while (i < dsts.length && dsts[i] != dst) {
+        i++;
+      }
+      if (i == dsts.length) {
+        return false;
       }
+    }
+    return subscriptions.isEmpty() || subscriptions.matches(view);
+  }
 
-      // open selected nic in promiscuous mode
-      Pcap pcap = Pcap.openLive(nic.getName(), snaplen, flags, timeout, errbuf);
+  /**
+   * Starts capturing continuously, with a capture thread per port of the
+   * transport. Each thread keeps its port open and receives batches of frames
+   * until stopped, and every GOOSE frame received is processed, see
+   * <code>processMessage</code>, which is never invoked concurrently. A port
+   * with no more frames, e.g. at the end of a capture file, ends its thread.
+   */
+  public void start() {
+    start(null);
+  }
 
-      if (pcap == null) {
-        System.err.printf("Can't open device for capture, error is %s",
-            errbuf.toString());
-        System.exit(0);
+  /**
+   * Starts capturing continuously on the ports specified, see
+   * <code>start</code>. With consumer threads, see
+   * <code>setConsumerCount</code>, the frames of every port are queued, in
+   * the order received, on the event ring of a consumer chosen by the source
+   * MAC address and gocbRef of the frame. Several consumers thus decode
+   * frames in parallel, yet the frames of a stream are always processed in
+   * the order received.
+   * 
+   * @param ports the ports to capture on, or null for every port
+   */
+  public synchronized void start(int[] ports) {
+    if (captures != null) {
+      return;
+    }
+    if (ports == null) {
+      ports = new int[Math.max(transport.getPortCount(), 0)];
+      for (int i = 0; i < ports.length; i++) {
+        ports[i] = i;
       }
+    }
 
-      // receive packet
-      if (pcap.loop(1, (JPacketHandler<Object>) GOOSESubscriber.packetHandler,
-          null) == -1) {
-        System.err.printf("Can't read from device, error is %s",
-            errbuf.toString());
-        continue;
+    rings = null;
+    consumers = new ArrayList<Consumer>();
+    if (consumerCount > 0) {
+      rings = new GOOSEEventRing[consumerCount];
+      for (int i = 0; i < rings.length; i++) {
+        rings[i] = new GOOSEEventRing(ringCapacity,
+            GOOSEFrameRing.MAX_FRAME_LENGTH);
+      }
+      consuming = true;
+      for (int i = 0; i < consumerCount; i++) {
+        Consumer consumer = new Consumer(i);
+        consumers.add(consumer);
+        consumer.thread.start();
       }
+    }
 
-      // get the message from the handler
-      this.gooseMessage = packetHandler.getGooseMessage();
+    capturing = true;
+    captures = new ArrayList<Capture>();
+    for (int i = 0; i < ports.length; i++) {
+      Capture capture = new Capture(ports[i]);
+      captures.add(capture);
+      capture.thread.start();
+    }
+  }
 
-      // process the goose message
-      if (this.gooseMessage != null) {
-        processMessage(this.gooseMessage);
+  /**
+   * Stops capturing, waking the capture threads waiting for frames and
+   * waiting for them to finish, then waiting for the consumer threads, if
+   * any, to process the frames queued
+   */
+  public synchronized void stop() {
+    if (captures == null) {
+      return;
+    }
+    capturing = false;
+    for (int i = 0; i < captures.size(); i++) {
+      Thread thread = captures.get(i).thread;
+      while (thread.isAlive()) {
+        // a thread may only just be entering the transport, so repeat
+        transport.wakeup();
+        LockSupport.unpark(thread);
+        try {
+          thread.join(100);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+    }
+    captures = null;
+
+    consuming = false;
+    for (int i = 0; i < consumers.size(); i++) {
+      Thread thread = consumers.get(i).thread;
+      LockSupport.unpark(thread);
+      try {
+        thread.join();
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        break;
       }
+    }
+    consumers = null;
+  }
 
-      // do the needful, i.e. help the gc
-      nic = null;
-      pcap.close();
+  /**
+   * Checks if a frame received is delivered in the delivery mode, tracking
+   * the state of its stream
+   */
+  private boolean delivers(GOOSEFrameView view) {
+    int mode = delivery;
+    if (mode == DELIVER_ALL_FRAMES) {
+      return true;
     }
+    int state = streams.check(view, System.nanoTime(),
+        (mode == DELIVER_CHANGES_AND_HEARTBEAT ? heartbeatNanos : 0));
+    return state != GOOSEStreamTable.STATE_REPEATED;
   }
 
   /**
-   * Method to initialise the subscriber, by maintaining a singleton reference 
-   * to the useable network interface cards
+   * Creates a packet handler scanning the frames, which are decoded once
+   * known to be delivered
    */
-  private static void init() {
-    alldevs = new ArrayList<PcapIf>();
-    errbuf = new StringBuilder();
+  private static GOOSEPacketHandler newHandler() {
+    GOOSEPacketHandler handler = new GOOSEPacketHandler();
+    handler.setScanOnly(true);
+    return handler;
+  }
 
-    int r = Pcap.findAllDevs(alldevs, errbuf);
-    if (r == Pcap.NOT_OK || alldevs.isEmpty()) {
-      System.err.printf("Can't read list of devices, error is %s",
-          errbuf.toString());
+  /**
+   * Processes a frame received, scanned by the handler supplied, if it is a
+   * GOOSE frame subscribed to and delivered in the delivery mode
+   */
+  private void process(int port, GOOSEPacketHandler handler) {
+    GOOSEFrameView view = handler.getFrameView();
+    if (!accepts(view)) {
+      return; // not a GOOSE frame, or not subscribed to
+    }
+    if (verbose) {
+      getTrace().record(GOOSETrace.EVENT_RECEIVE, port, view.srcMac(),
+          view.appId(), view.stNum(), view.sqNum(), handler.getFrameLength());
+    }
+    if (!delivers(view)) {
+      return; // a retransmission
+    }
+
+    // decode the data only now
+    if (!handler.decode()) {
+      return;
+    }
+    GOOSEMessage message = handler.getGooseMessage();
+    if (message == null) {
       return;
     }
+    synchronized (captureLock) {
+      this.gooseMessage = message;
+      processMessage(message);
+    }
+  }
 
-    ArrayList<PcapIf> tmpList = new ArrayList<PcapIf>();
+  /**
+   * Gets the consumer a frame is queued for, the same for every frame of a
+   * stream, i.e. of a source MAC address and gocbRef
+   */
+  static int partition(GOOSEFrameView view, int count) {
+    if (count <= 1 || !view.isValid()) {
+      return 0;
+    }
+    long mac = view.srcMac();
+    int h = view.gocbRefHash() ^ (int) (mac ^ (mac >>> 32));
+    h ^= (h >>> 16);
+    return (h & 0x7fffffff) % count;
+  }
 
-    Iterator<PcapIf> iterator = alldevs.iterator();
-    while (iterator.hasNext()) {
-      PcapIf nic = (PcapIf) iterator.next();
+  /**
+   * The capture thread of a port, with its own packet handler, or queuing the
+   * frames on the event rings of the consumers
+   */
+  private final class Capture implements Runnable,
+      GOOSEFrameBatch.FrameHandler {
+
+    // attributes
+
+    private final int port;
+    private final int batch;
+    private final GOOSEPacketHandler handler = newHandler();
+    private final GOOSEFrameView view = new GOOSEFrameView();
+    private final GOOSEEventRing[] events;
+    private final Thread thread;
+
+    // constructors
+
+    /**
+     * Constructor accepting the port to capture on
+     */
+    Capture(int port) {
+      this.port = port;
+      this.batch = batchSize;
+      this.events = rings;
+      this.thread = new Thread(this, "GOOSESubscriber-"
+          + transport.getName(port));
+      this.thread.setDaemon(true);
+    }
 
-      // if loopback interface then ignore interface
-      if ((nic.getFlags() & PCAP_IF_LOOPBACK) == PCAP_IF_LOOPBACK) {
-        continue;
+    // auxillary methods
+
+    /**
+     * Receives batches of frames until stopped
+     */
+    @Override
+    public void run() {
+      while (capturing) {
+        if (transport.receive(port, batch, this) != -1) {
+          continue;
+        }
+        if (transport.getError(port) == null) {
+          break; // no more frames
+        }
+        // the error is kept by the transport, retry after a while
+        if (capturing) {
+          LockSupport.parkNanos(this, RETRY_NANOS);
+        }
       }
+    }
 
-      // check if it's a useable nic
-      byte[] mac = null;
-      try {
-        mac = nic.getHardwareAddress();
-      } catch (IOException ioe) {
-        mac = null;
+    /**
+     * Parses a frame received and processes it, or queues it for the
+     * consumer of its stream
+     * 
+     * @see fj.com.kush.utility.iec61850.GOOSEFrameBatch.FrameHandler#handleFrame(byte[], int, int)
+     */
+    @Override
+    public void handleFrame(byte[] buffer, int offset, int length) {
+      if (events != null) {
+        int index = 0;
+        if (events.length > 1) {
+          view.wrap(buffer, offset, length);
+          index = partition(view, events.length);
+        }
+        events[index].offer(port, buffer, offset, length);
+        return;
       }
+      handler.handleFrame(buffer, offset, length);
+      process(port, handler);
+    }
+  }
 
-      // null is returned, that means that the physical interface, does not
-      // support hardware addresses, such as a PPP interface, TAP interface,
-      // etc.., or an exception may have occurred, so do not use this nic
-      if (mac == null) {
-        continue;
-      } else {
-        tmpList.add(nic);
+  /**
+   * A consumer thread draining its event ring, with its own packet handler
+   */
+  private final class Consumer implements Runnable,
+      GOOSEEventRing.EventHandler {
+
+    // attributes
+
+    private final int batch;
+    private final GOOSEPacketHandler handler = newHandler();
+    private final GOOSEEventRing events;
+    private final Thread thread;
+
+    // constructors
+
+    /**
+     * Constructor accepting the number of the consumer
+     */
+    Consumer(int number) {
+      this.batch = batchSize;
+      this.events = rings[number];
+      this.thread = new Thread(this, "GOOSESubscriber-consumer-" + number);
+      this.thread.setDaemon(true);
+    }
+
+    // auxillary methods
+
+    /**
+     * Drains the event ring until stopped and the ring is empty
+     */
+    @Override
+    public void run() {
+      while (true) {
+        if (events.drain(this, batch) > 0) {
+          continue;
+        }
+        if (!consuming) {
+          break; // stopped, and the capture threads have finished
+        }
+        events.await(PARK_NANOS);
       }
     }
 
-    GOOSESubscriber.alldevs = tmpList;
-    GOOSESubscriber.packetHandler = new GOOSEPacketHandler();
-    GOOSESubscriber.setInitialised(true);
+    /**
+     * Parses a frame queued by a capture thread and processes it
+     * 
+     * @see fj.com.kush.utility.iec61850.GOOSEEventRing.EventHandler#handleEvent(long, int, byte[], int, int)
+     */
+    @Override
+    public void handleEvent(long sequence, int port, byte[] frame,
+        int offset, int length) {
+      handler.handleFrame(frame, offset, length);
+      process(port, handler);
+    }
+  }
+
+  /**
+   * A subscription, the value of its entry in the index
+   */
+  private static final class Subscription {
+
+    // attributes
+
+    private final long mac;
+    private final int appId;
+    private final String gocbRef;
+    private final String text; // the MAC address as subscribed, or null
+
+    // constructors
+
+    /**
+     * Constructor accepting the levels of the subscription
+     */
+    private Subscription(long mac, int appId, String gocbRef, String text) {
+      this.mac = mac;
+      this.appId = appId;
+      this.gocbRef = gocbRef;
+      this.text = text;
+    }
+
+    /**
+     * Creates the subscription of the levels specified
+     * 
+     * @return Subscription the subscription, or null if the MAC address is
+     *         invalid
+     */
+    static Subscription create(String mac, int appId, String gocbRef) {
+      long value = GOOSESubscriptionIndex.ANY_MAC;
+      if (mac != null) {
+        value = GOOSEFilter.parseMac(mac);
+        if (value < 0) {
+          return null;
+        }
+      }
+      return new Subscription(value, (appId < 0 ? GOOSESubscriptionIndex.ANY_APPID
+          : appId & 0xffff), gocbRef, (mac == null ? null : mac.toLowerCase()));
+    }
+
+    // accessors
+
+    /**
+     * Gets if only the MAC address is subscribed to
+     */
+    boolean isMacOnly() {
+      return mac != GOOSESubscriptionIndex.ANY_MAC
+          && appId == GOOSESubscriptionIndex.ANY_APPID && gocbRef == null;
+    }
+
+    // auxillary methods
+
+    /**
+     * Subscriptions of the same levels are equal
+     */
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Subscription)) {
+        return false;
+      }
+      Subscription that = (Subscription) other;
+      return mac == that.mac && appId == that.appId
+          && (gocbRef == null ? that.gocbRef == null
+              : gocbRef.equals(that.gocbRef));
+    }
+
+    /**
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+      return (int) (mac ^ (mac >>> 32)) * 31 + appId * 17
+          + (gocbRef == null ? 0 : gocbRef.hashCode());
+    }
   }
 }
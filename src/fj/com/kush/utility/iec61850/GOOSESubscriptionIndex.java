@@ -0,0 +1,598 @@
+/**
+ *
+ * Copyright (c) 2008, Packwolf Consulting Ltd, All Rights Reserved.
+ *
+ * @author      Nishchal Kush
+ * @version     %I%, %G%
+ * @since       1.0
+ */
+package fj.com.kush.utility.iec61850;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <code>GOOSESubscriptionIndex</code> maps subscriptions to the subscribers,
+ * or any other values, they route GOOSE frames to. A subscription has three
+ * levels: the source MAC address, packed into a <code>long</code>, the APPID
+ * and the gocbRef, each of which may be a wildcard matching any value. A
+ * frame is matched from its <code>GOOSEFrameView</code>, against the
+ * subscriptions with the frame's source MAC address or any, combined with its
+ * APPID or any, and its gocbRef or any.
+ *
+ * Matching and routing neither lock nor allocate, so any number of threads may
+ * route frames while the subscriptions change. The (MAC, APPID) pairs are
+ * held in a hash table of immutable chains, one table per combination of
+ * wildcards in use, and the gocbRefs of a pair by their precomputed hash;
+ * the hash of the frame's gocbRef is only computed when a pair has gocbRefs.
+ * Changes are serialised, and replace a single chain, or the table when it
+ * grows.
+ */
+public final class GOOSESubscriptionIndex<T> {
+
+  // constants
+
+  public static final long  ANY_MAC          = -1L;
+  public static final int   ANY_APPID        = -1;
+
+  static final int          INITIAL_CAPACITY = 16;
+
+  // the combinations of levels, by the levels present
+  private static final int  LEVEL_MAC        = 1;
+  private static final int  LEVEL_APPID      = 2;
+  private static final int  PATTERNS         = 4;
+
+  private static final long GOLDEN           = 0x9e3779b97f4a7c15L;
+
+  // attributes
+
+  // a table per pattern, replaced when it grows
+  private final Table<T>[]  tables           = GOOSESubscriptionIndex.newTables( PATTERNS );
+
+  // the patterns with subscriptions, most specific first, read by routers
+  private volatile int[]    patterns         = new int[0];
+
+  // writer state, guarded by this
+  private final int[]       keyCounts        = new int[PATTERNS];
+  private int               size             = 0;
+
+  // constructors
+
+  /**
+   * Default constructor
+   */
+  public GOOSESubscriptionIndex() {
+    for (int i = 0; i < PATTERNS; i++) {
+      this.tables[i] = new Table<T>( INITIAL_CAPACITY );
+    }
+  }
+
+  // accessors
+
+  /**
+   * Gets if there are no subscriptions
+   *
+   * @return boolean true if empty, else false
+   */
+  public boolean isEmpty() {
+    return this.patterns.length == 0;
+  }
+
+  /**
+   * Gets the number of subscriptions, i.e. of values added
+   *
+   * @return int the number of subscriptions
+   */
+  public synchronized int size() {
+    return this.size;
+  }
+
+  /**
+   * Gets the values of every subscription, e.g. to list them. Allocates and
+   * locks, so should not be invoked per frame.
+   *
+   * @return List the values
+   */
+  public synchronized List<T> getValues() {
+    List<T> values = new ArrayList<T>( this.size );
+    for (int p = 0; p < PATTERNS; p++) {
+      Table<T> table = this.tables[p];
+      for (int i = 0; i < table.buckets.length(); i++) {
+        for (Node<T> node = table.buckets.get( i ); node != null;
+            node = node.next) {
+          GOOSESubscriptionIndex.addAll( values, node.values );
+          for (int r = 0; r < node.refs.length; r++) {
+            GOOSESubscriptionIndex.addAll( values, node.refs[r].values );
+          }
+        }
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Checks if there is a subscription for exactly the levels specified
+   *
+   * @param mac
+   *          the source MAC address, or ANY_MAC
+   * @param appId
+   *          the APPID, or ANY_APPID
+   * @param gocbRef
+   *          the gocbRef, or null for any
+   * @return boolean true if subscribed, else false
+   */
+  public boolean contains(long mac, int appId, String gocbRef) {
+    if (this.patterns.length == 0) {
+      return false; // also orders the reads of the tables after the writes
+    }
+    int pattern = GOOSESubscriptionIndex.pattern( mac, appId );
+    Node<T> node = this.tables[pattern].find( key( mac, appId ), pattern );
+    if (node == null) {
+      return false;
+    }
+    if (gocbRef == null) {
+      return node.values.length > 0;
+    }
+    return node.find( GOOSESubscriptionIndex.bytes( gocbRef ) ) >= 0;
+  }
+
+  // mutators
+
+  /**
+   * Adds a subscription routing to the value supplied
+   *
+   * @param mac
+   *          the source MAC address, or ANY_MAC
+   * @param appId
+   *          the APPID, or ANY_APPID
+   * @param gocbRef
+   *          the gocbRef, or null for any
+   * @param value
+   *          the value, e.g. the subscriber
+   * @return boolean true if added, false if the value was already subscribed
+   */
+  public synchronized boolean add(long mac, int appId, String gocbRef,
+      T value) {
+    if (value == null) {
+      return false;
+    }
+    int pattern = GOOSESubscriptionIndex.pattern( mac, appId );
+    long key = GOOSESubscriptionIndex.key( mac, appId );
+    Table<T> table = this.tables[pattern];
+    Node<T> node = table.find( key, pattern );
+
+    Node<T> updated;
+    if (gocbRef == null) {
+      Object[] values = (node == null ? new Object[0] : node.values);
+      if (GOOSESubscriptionIndex.indexOf( values, value ) >= 0) {
+        return false;
+      }
+      updated = new Node<T>( key, pattern, GOOSESubscriptionIndex.append(
+          values, value ), (node == null ? new Ref[0] : node.refs), null );
+    } else {
+      byte[] ref = GOOSESubscriptionIndex.bytes( gocbRef );
+      Ref[] refs = (node == null ? new Ref[0] : node.refs);
+      int r = (node == null ? -1 : node.find( ref ));
+      if (r >= 0 && GOOSESubscriptionIndex.indexOf( refs[r].values, value ) >= 0) {
+        return false;
+      }
+      refs = refs.clone();
+      if (r >= 0) {
+        refs[r] = new Ref( ref, GOOSESubscriptionIndex.append( refs[r].values,
+            value ) );
+      } else {
+        refs = Arrays.copyOf( refs, refs.length + 1 );
+        refs[refs.length - 1] = new Ref( ref, new Object[] { value } );
+      }
+      updated = new Node<T>( key, pattern, (node == null ? new Object[0]
+          : node.values), refs, null );
+    }
+
+    if (node == null && table.count + 1 > table.buckets.length() * 3 / 4) {
+      table = table.grow();
+      this.tables[pattern] = table;
+    }
+    table.replace( node, updated );
+    if (node == null) {
+      this.keyCounts[pattern]++;
+    }
+    this.size++;
+    this.updatePatterns();
+    return true;
+  }
+
+  /**
+   * Removes a subscription routing to the value supplied
+   *
+   * @param mac
+   *          the source MAC address, or ANY_MAC
+   * @param appId
+   *          the APPID, or ANY_APPID
+   * @param gocbRef
+   *          the gocbRef, or null for any
+   * @param value
+   *          the value
+   * @return boolean true if removed, false if not subscribed
+   */
+  public synchronized boolean remove(long mac, int appId, String gocbRef,
+      T value) {
+    int pattern = GOOSESubscriptionIndex.pattern( mac, appId );
+    Table<T> table = this.tables[pattern];
+    Node<T> node = table.find( GOOSESubscriptionIndex.key( mac, appId ),
+        pattern );
+    if (node == null) {
+      return false;
+    }
+
+    Object[] values = node.values;
+    Ref[] refs = node.refs;
+    if (gocbRef == null) {
+      int v = GOOSESubscriptionIndex.indexOf( values, value );
+      if (v < 0) {
+        return false;
+      }
+      values = GOOSESubscriptionIndex.removeAt( values, v );
+    } else {
+      int r = node.find( GOOSESubscriptionIndex.bytes( gocbRef ) );
+      int v = (r < 0 ? -1 : GOOSESubscriptionIndex.indexOf( refs[r].values,
+          value ));
+      if (v < 0) {
+        return false;
+      }
+      Object[] remaining = GOOSESubscriptionIndex.removeAt( refs[r].values, v );
+      if (remaining.length > 0) {
+        refs = refs.clone();
+        refs[r] = new Ref( refs[r].bytes, remaining );
+      } else {
+        Ref[] fewer = new Ref[refs.length - 1];
+        System.arraycopy( refs, 0, fewer, 0, r );
+        System.arraycopy( refs, r + 1, fewer, r, refs.length - r - 1 );
+        refs = fewer;
+      }
+    }
+
+    if (values.length == 0 && refs.length == 0) {
+      table.replace( node, null );
+      this.keyCounts[pattern]--;
+    } else {
+      table.replace( node, new Node<T>( node.key, pattern, values, refs, null ) );
+    }
+    this.size--;
+    this.updatePatterns();
+    return true;
+  }
+
+  /**
+   * Removes every subscription
+   */
+  public synchronized void clear() {
+    for (int i = 0; i < PATTERNS; i++) {
+      this.tables[i] = new Table<T>( INITIAL_CAPACITY );
+      this.keyCounts[i] = 0;
+    }
+    this.size = 0;
+    this.updatePatterns();
+  }
+
+  // auxillary methods
+
+  /**
+   * Checks if any subscription matches the frame supplied
+   *
+   * @param view
+   *          the view of a valid GOOSE frame
+   * @return boolean true if matched, else false
+   */
+  public boolean matches(GOOSEFrameView view) {
+    return this.route( view, null ) > 0;
+  }
+
+  /**
+   * Routes the frame supplied to the values of every subscription matching
+   * it, most specific first. A value subscribed at several levels is visited
+   * once per subscription.
+   *
+   * @param view
+   *          the view of a valid GOOSE frame
+   * @param visitor
+   *          visits the values, or null to stop at the first match
+   * @return int the number of values visited, or 1 if matched without a
+   *         visitor, or 0 if none match
+   */
+  @SuppressWarnings("unchecked")
+  public int route(GOOSEFrameView view, Visitor<? super T> visitor) {
+    int[] active = this.patterns;
+    if (active.length == 0 || !view.isValid()) {
+      return 0;
+    }
+    long mac = view.srcMac();
+    int appId = view.appId();
+    boolean hashed = false;
+    int hash = 0;
+    int count = 0;
+
+    for (int i = 0; i < active.length; i++) {
+      int pattern = active[i];
+      Node<T> node = this.tables[pattern].find( GOOSESubscriptionIndex.key(
+          ( pattern & LEVEL_MAC ) != 0 ? mac : ANY_MAC,
+          ( pattern & LEVEL_APPID ) != 0 ? appId : ANY_APPID ), pattern );
+      if (node == null) {
+        continue;
+      }
+
+      Object[] values = node.values;
+      if (values.length > 0 && visitor == null) {
+        return 1;
+      }
+      for (int v = 0; v < values.length; v++) {
+        visitor.visit( (T) values[v], view );
+      }
+      count += values.length;
+
+      Ref[] refs = node.refs;
+      if (refs.length == 0) {
+        continue;
+      }
+      if (!hashed) {
+        hash = view.gocbRefHash();
+        hashed = true;
+      }
+      for (int r = 0; r < refs.length; r++) {
+        Ref ref = refs[r];
+        if (ref.hash != hash || !view.gocbRefEquals( ref.bytes )) {
+          continue;
+        }
+        if (visitor == null) {
+          return 1;
+        }
+        for (int v = 0; v < ref.values.length; v++) {
+          visitor.visit( (T) ref.values[v], view );
+        }
+        count += ref.values.length;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Publishes the patterns with subscriptions to the routers
+   */
+  private void updatePatterns() {
+    int n = 0;
+    for (int i = 0; i < PATTERNS; i++) {
+      if (this.keyCounts[i] > 0) {
+        n++;
+      }
+    }
+    int[] active = new int[n];
+    n = 0;
+    for (int i = PATTERNS - 1; i >= 0; i--) {
+      if (this.keyCounts[i] > 0) {
+        active[n++] = i;
+      }
+    }
+    this.patterns = active;
+  }
+
+  /**
+   * Returns a string representing the index
+   *
+   * @return String representing the instance
+   */
+  public synchronized String toString() {
+    return "subscriptions=" + this.size + " keys="
+        + Arrays.toString( this.keyCounts );
+  }
+
+  /**
+   * Gets the pattern of the levels supplied
+   */
+  private static int pattern(long mac, int appId) {
+    return ( mac != ANY_MAC ? LEVEL_MAC : 0 )
+        | ( appId != ANY_APPID ? LEVEL_APPID : 0 );
+  }
+
+  /**
+   * Packs the MAC address and APPID supplied into a key, wildcards being 0
+   */
+  private static long key(long mac, int appId) {
+    return ( ( mac != ANY_MAC ? mac & 0xffffffffffffL : 0 ) << 16 )
+        | ( appId != ANY_APPID ? appId & 0xffff : 0 );
+  }
+
+  /**
+   * Gets the ASCII bytes of a gocbRef
+   */
+  private static byte[] bytes(String gocbRef) {
+    return gocbRef.getBytes( StandardCharsets.US_ASCII );
+  }
+
+  /**
+   * Gets the index of the value in the array, or -1
+   */
+  private static int indexOf(Object[] values, Object value) {
+    for (int i = 0; i < values.length; i++) {
+      if (values[i].equals( value )) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Copies the array with the value appended
+   */
+  private static Object[] append(Object[] values, Object value) {
+    Object[] more = Arrays.copyOf( values, values.length + 1 );
+    more[values.length] = value;
+    return more;
+  }
+
+  /**
+   * Copies the array without the value at the index
+   */
+  private static Object[] removeAt(Object[] values, int index) {
+    Object[] fewer = new Object[values.length - 1];
+    System.arraycopy( values, 0, fewer, 0, index );
+    System.arraycopy( values, index + 1, fewer, index, values.length - index
+        - 1 );
+    return fewer;
+  }
+
+  /**
+   * Adds the values of an array to a list
+   */
+  @SuppressWarnings("unchecked")
+  private static <T> void addAll(List<T> list, Object[] values) {
+    for (int i = 0; i < values.length; i++) {
+      list.add( (T) values[i] );
+    }
+  }
+
+  /**
+   * <code>Visitor</code> is given the values of the subscriptions matching a
+   * frame
+   */
+  public interface Visitor<T> {
+
+    /**
+     * Visits the value of a subscription matching the frame
+     *
+     * @param value
+     *          the value
+     * @param view
+     *          the view of the frame
+     */
+    void visit(T value, GOOSEFrameView view);
+  }
+
+  /**
+   * A gocbRef level, with its precomputed hash
+   */
+  private static final class Ref {
+
+    final byte[]   bytes;
+    final int      hash;
+    final Object[] values;
+
+    Ref(byte[] bytes, Object[] values) {
+      this.bytes = bytes;
+      this.hash = GOOSEFrameView.hash( bytes, 0, bytes.length );
+      this.values = values;
+    }
+  }
+
+  /**
+   * An immutable entry of a chain, holding the subscriptions of a (MAC, APPID)
+   * pair, with any gocbRef and by gocbRef
+   */
+  private static final class Node<T> {
+
+    final long     key;
+    final int      pattern;
+    final Object[] values;
+    final Ref[]    refs;
+    final Node<T>  next;
+
+    Node(long key, int pattern, Object[] values, Ref[] refs, Node<T> next) {
+      this.key = key;
+      this.pattern = pattern;
+      this.values = values;
+      this.refs = refs;
+      this.next = next;
+    }
+
+    /**
+     * Gets the index of the gocbRef supplied, or -1
+     */
+    int find(byte[] ref) {
+      for (int i = 0; i < this.refs.length; i++) {
+        if (Arrays.equals( this.refs[i].bytes, ref )) {
+          return i;
+        }
+      }
+      return -1;
+    }
+  }
+
+  /**
+   * Creates the array of tables, generic arrays can not be created directly
+   */
+  @SuppressWarnings("unchecked")
+  private static <T> Table<T>[] newTables(int length) {
+    return (Table<T>[]) new Table<?>[length];
+  }
+
+  /**
+   * A hash table of chains, whose buckets are replaced, never modified, so
+   * routers read a consistent chain without locking
+   */
+  private static final class Table<T> {
+
+    final AtomicReferenceArray<Node<T>> buckets;
+    final int                           mask;
+    int                                 count = 0; // guarded by the index
+
+    Table(int capacity) {
+      this.buckets = new AtomicReferenceArray<Node<T>>( capacity );
+      this.mask = capacity - 1;
+    }
+
+    /**
+     * Gets the node of the key and pattern supplied, or null
+     */
+    Node<T> find(long key, int pattern) {
+      Node<T> node = this.buckets.get( Table.index( key, pattern, this.mask ) );
+      while (node != null && node.key != key) {
+        node = node.next;
+      }
+      return node;
+    }
+
+    /**
+     * Replaces a node of the table, adding it if the old node is null, or
+     * removing it if the new node is null, by replacing its chain
+     */
+    void replace(Node<T> old, Node<T> node) {
+      int pattern = (node != null ? node.pattern : old.pattern);
+      long key = (node != null ? node.key : old.key);
+      int i = Table.index( key, pattern, this.mask );
+      Node<T> chain = (node != null ? new Node<T>( key, pattern, node.values,
+          node.refs, null ) : null);
+      for (Node<T> n = this.buckets.get( i ); n != null; n = n.next) {
+        if (n != old) {
+          chain = new Node<T>( n.key, n.pattern, n.values, n.refs, chain );
+        }
+      }
+      this.buckets.set( i, chain );
+      this.count += (old == null ? 1 : 0) - (node == null ? 1 : 0);
+    }
+
+    /**
+     * Copies the table into one of twice the capacity
+     */
+    Table<T> grow() {
+      Table<T> grown = new Table<T>( this.buckets.length() * 2 );
+      for (int i = 0; i < this.buckets.length(); i++) {
+        for (Node<T> n = this.buckets.get( i ); n != null; n = n.next) {
+          int j = Table.index( n.key, n.pattern, grown.mask );
+          grown.buckets.set( j, new Node<T>( n.key, n.pattern, n.values,
+              n.refs, grown.buckets.get( j ) ) );
+        }
+      }
+      grown.count = this.count;
+      return grown;
+    }
+
+    /**
+     * Gets the bucket of the key and pattern supplied
+     */
+    static int index(long key, int pattern, int mask) {
+      long h = ( key ^ pattern ) * GOLDEN;
+      return (int) ( h ^ ( h >>> 32 ) ) & mask;
+    }
+  }
+}
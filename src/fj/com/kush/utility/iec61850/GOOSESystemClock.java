@@ -0,0 +1,96 @@
+/**
+ *
+ * Copyright (c) 2008, Packwolf Consulting Ltd, All Rights Reserved.
+ *
+ * @author      Nishchal Kush
+ * @version     %I%, %G%
+ * @since       1.0
+ */
+package fj.com.kush.utility.iec61850;
+
+/**
+ * <code>GOOSESystemClock</code> is a <code>GOOSEClock</code> giving the system
+ * time with sub-millisecond resolution. The millisecond system time is
+ * anchored to the monotonic <code>System.nanoTime</code>, and re-anchored
+ * once a second, thus reading the clock allocates nothing and costs no more
+ * than <code>System.nanoTime</code>.
+ *
+ * As the system clock is not known to be synchronised, the time quality is
+ * clock not synchronised with an unspecified accuracy, unless set otherwise.
+ */
+public final class GOOSESystemClock implements GOOSEClock {
+
+  // constants
+
+  static final long    RESYNC_NANOS = 1000000000L;
+
+  // attributes
+
+  // the epoch nanos at the anchor and the nanoTime of the anchor, replaced
+  // together so readers always see a consistent pair
+  private volatile Anchor anchor   = null;
+  private volatile int    quality  = GOOSEMessageGoosePDU.TIME_CLOCK_NOT_SYNCED
+                                         | GOOSEMessageGoosePDU.ACCURACY_UNSPECIFIED;
+
+  // constructors
+
+  /**
+   * Default constructor
+   */
+  public GOOSESystemClock() {
+    this.anchor = new Anchor( System.currentTimeMillis() * 1000000L,
+        System.nanoTime() );
+  }
+
+  // accessors
+
+  /**
+   * @see fj.com.kush.utility.iec61850.GOOSEClock#currentTimeNanos()
+   */
+  @Override
+  public long currentTimeNanos() {
+    long nanoTime = System.nanoTime();
+    Anchor current = this.anchor;
+    long now = current.epochNanos + ( nanoTime - current.nanoTime );
+    if (nanoTime - current.nanoTime >= RESYNC_NANOS) {
+      // re-anchor to the system time, but never step backwards in time
+      now = Math.max( System.currentTimeMillis() * 1000000L, now );
+      this.anchor = new Anchor( now, nanoTime );
+    }
+    return now;
+  }
+
+  /**
+   * @see fj.com.kush.utility.iec61850.GOOSEClock#getTimeQuality()
+   */
+  @Override
+  public int getTimeQuality() {
+    return this.quality;
+  }
+
+  // mutators
+
+  /**
+   * Sets the time quality reported by the clock, e.g. once the host is known
+   * to be synchronised
+   *
+   * @param quality
+   *          the time quality octet
+   */
+  public void setTimeQuality(int quality) {
+    this.quality = quality & 0xff;
+  }
+
+  /**
+   * An immutable pairing of epoch nanos with System.nanoTime
+   */
+  private static final class Anchor {
+    final long epochNanos;
+    final long nanoTime;
+
+    Anchor(long epochNanos, long nanoTime) {
+      this.epochNanos = epochNanos;
+      this.nanoTime = nanoTime;
+    }
+  }
+}
@@ -0,0 +1,440 @@
+/**
+ *
+ * Copyright (c) 2008, Packwolf Consulting Ltd, All Rights Reserved.
+ *
+ * @author      Nishchal Kush
+ * @version     %I%, %G%
+ * @since       1.0
+ */
+package fj.com.kush.utility.iec61850;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <code>GOOSETrace</code> records a compact binary record per frame published
+ * or received, e.g. in verbose mode, into a preallocated in-memory ring, and a
+ * background thread drains the ring, formats the records and writes them in
+ * batches. Recording a frame costs a few stores and never blocks or performs
+ * I/O, so tracing may stay on without changing the timing of the traffic.
+ *
+ * A record holds the time, the event, the port, the source MAC address, the
+ * APPID, stNum, sqNum and the length of the frame. Records are dropped, rather
+ * than the recording thread blocked, when the ring is full. The number of
+ * records may be reduced by sampling, i.e. recording one frame in n, and by
+ * limiting the records per second.
+ *
+ * Any number of threads may record. The ring is drained by the trace thread,
+ * see <code>start</code>, or by a single thread invoking <code>drain</code>.
+ */
+public final class GOOSETrace implements Runnable {
+
+  // constants
+
+  public static final int   EVENT_PUBLISH    = 1;
+  public static final int   EVENT_RECEIVE    = 2;
+  public static final int   EVENT_WRITE      = 3;   // written to a file
+
+  public static final int   DEFAULT_CAPACITY = 8192;
+  static final int          DRAIN_LIMIT      = 256;       // records per batch
+  static final long         PARK_NANOS       = 10000000L; // park at most 10ms
+
+  private static final int  RECORD_LONGS     = 5;
+  private static final long NANOS_PER_SECOND = 1000000000L;
+
+  // class attributes
+
+  private static GOOSETrace defaultTrace     = null;
+
+  // attributes
+
+  // the records, and the sequence of each slot telling the consumer the slot
+  // is written and the producers it is free
+  private final long[]          records;
+  private final AtomicLongArray sequences;
+  private final int             mask;
+  private final AtomicLong      tail         = new AtomicLong();
+  private long                  head         = 0;  // consumer only
+
+  private volatile PrintStream  out;
+  private volatile GOOSEClock   clock        = GOOSEClock.SYSTEM;
+  private final StringBuilder   batch        = new StringBuilder( 4096 );
+
+  // sampling and rate limiting
+  private volatile int          sampleInterval = 1;
+  private volatile long         maxRate        = 0;  // 0 for unlimited
+  private final AtomicLong      offered      = new AtomicLong();
+  private volatile long         windowStart  = 0;
+  private final AtomicLong      windowCount  = new AtomicLong();
+
+  // statistics
+  private final AtomicLong      written      = new AtomicLong();
+  private final AtomicLong      sampledOut   = new AtomicLong();
+  private final AtomicLong      limited      = new AtomicLong();
+  private final AtomicLong      dropped      = new AtomicLong();
+
+  private Thread                thread       = null;
+  private volatile boolean      running      = false;
+
+  // constructors
+
+  /**
+   * Default constructor, writing to System.out
+   */
+  public GOOSETrace() {
+    this( GOOSETrace.DEFAULT_CAPACITY, System.out );
+  }
+
+  /**
+   * Constructor accepting the number of records the ring holds and the stream
+   * the records are written to
+   *
+   * @param capacity
+   *          the number of records, rounded up to a power of 2
+   * @param out
+   *          the stream
+   */
+  public GOOSETrace(int capacity, PrintStream out) {
+    int size = Integer.highestOneBit( Math.max( capacity, 2 ) - 1 ) << 1;
+    this.records = new long[size * RECORD_LONGS];
+    this.sequences = new AtomicLongArray( size );
+    for (int i = 0; i < size; i++) {
+      this.sequences.set( i, i );
+    }
+    this.mask = size - 1;
+    this.out = out;
+  }
+
+  // accessors
+
+  /**
+   * Gets the trace shared by the publishers and subscribers without a trace
+   * of their own, writing to System.out, started on first use
+   *
+   * @return GOOSETrace the default trace
+   */
+  public static synchronized GOOSETrace getDefault() {
+    if (GOOSETrace.defaultTrace == null) {
+      GOOSETrace.defaultTrace = new GOOSETrace();
+      GOOSETrace.defaultTrace.start();
+    }
+    return GOOSETrace.defaultTrace;
+  }
+
+  /**
+   * Gets the number of records dropped because the ring was full
+   *
+   * @return long the number of records
+   */
+  public long getDroppedCount() {
+    return this.dropped.get();
+  }
+
+  /**
+   * Gets the number of frames not recorded because of the rate limit
+   *
+   * @return long the number of frames
+   */
+  public long getLimitedCount() {
+    return this.limited.get();
+  }
+
+  /**
+   * Gets the number of frames not recorded because of sampling
+   *
+   * @return long the number of frames
+   */
+  public long getSampledOutCount() {
+    return this.sampledOut.get();
+  }
+
+  /**
+   * Gets the number of records written to the stream
+   *
+   * @return long the number of records
+   */
+  public long getWrittenCount() {
+    return this.written.get();
+  }
+
+  // mutators
+
+  /**
+   * Sets the clock timestamping the records
+   *
+   * @param clock
+   *          the clock, or null for the system clock
+   */
+  public void setClock(GOOSEClock clock) {
+    this.clock = (clock == null ? GOOSEClock.SYSTEM : clock);
+  }
+
+  /**
+   * Sets the largest number of records per second, further frames within the
+   * second are counted but not recorded
+   *
+   * @param maxRate
+   *          the number of records, 0 for unlimited
+   */
+  public void setMaxRate(long maxRate) {
+    this.maxRate = Math.max( maxRate, 0 );
+  }
+
+  /**
+   * Sets the stream the records are written to
+   *
+   * @param out
+   *          the stream
+   */
+  public void setOut(PrintStream out) {
+    this.out = out;
+  }
+
+  /**
+   * Sets the sampling of the frames, i.e. one frame in the number specified is
+   * recorded
+   *
+   * @param interval
+   *          the number of frames, 1 to record every frame
+   */
+  public void setSampleInterval(int interval) {
+    this.sampleInterval = Math.max( interval, 1 );
+  }
+
+  // auxillary methods
+
+  /**
+   * Records a frame, reading the source MAC address and APPID from the frame
+   *
+   * @param event
+   *          EVENT_PUBLISH, EVENT_RECEIVE or EVENT_WRITE
+   * @param port
+   *          the port of the transport
+   * @param frame
+   *          the byte array holding the frame
+   * @param offset
+   *          the offset of the frame
+   * @param length
+   *          the length of the frame
+   * @param stNum
+   *          the state number of the message
+   * @param sqNum
+   *          the sequence number of the message
+   * @return boolean true if recorded, else false
+   */
+  public boolean record(int event, int port, byte[] frame, int offset,
+      int length, long stNum, long sqNum) {
+    if (length < 20) {
+      return false;
+    }
+    long src = 0;
+    for (int i = 6; i < 12; i++) {
+      src = ( src << 8 ) | ( frame[offset + i] & 0xff );
+    }
+    // skip a VLAN tag
+    int appIdOffset = offset
+        + ( frame[offset + 12] == (byte) 0x81 && frame[offset + 13] == 0 ? 18
+            : 14 );
+    int appId = ( ( frame[appIdOffset] & 0xff ) << 8 )
+        | ( frame[appIdOffset + 1] & 0xff );
+    return this.record( event, port, src, appId, stNum, sqNum, length );
+  }
+
+  /**
+   * Records a frame
+   *
+   * @param event
+   *          EVENT_PUBLISH, EVENT_RECEIVE or EVENT_WRITE
+   * @param port
+   *          the port of the transport
+   * @param src
+   *          the source MAC address packed into the 48 least significant bits
+   * @param appId
+   *          the APPID
+   * @param stNum
+   *          the state number of the message
+   * @param sqNum
+   *          the sequence number of the message
+   * @param length
+   *          the length of the frame
+   * @return boolean true if recorded, else false
+   */
+  public boolean record(int event, int port, long src, int appId, long stNum,
+      long sqNum, int length) {
+    int interval = this.sampleInterval;
+    if (interval > 1 && this.offered.getAndIncrement() % interval != 0) {
+      this.sampledOut.incrementAndGet();
+      return false;
+    }
+
+    long now = this.clock.currentTimeNanos();
+    long rate = this.maxRate;
+    if (rate > 0) {
+      long start = this.windowStart;
+      if (now - start >= NANOS_PER_SECOND) {
+        // a new second, the first thread to notice resets the count
+        this.windowStart = now;
+        this.windowCount.set( 0 );
+      }
+      if (this.windowCount.incrementAndGet() > rate) {
+        this.limited.incrementAndGet();
+        return false;
+      }
+    }
+
+    // claim a slot, see Vyukov's bounded queue
+    long position;
+    int index;
+    while (true) {
+      position = this.tail.get();
+      index = (int) position & this.mask;
+      long difference = this.sequences.get( index ) - position;
+      if (difference == 0) {
+        if (this.tail.compareAndSet( position, position + 1 )) {
+          break;
+        }
+      } else if (difference < 0) {
+        this.dropped.incrementAndGet(); // full
+        return false;
+      }
+    }
+
+    int base = index * RECORD_LONGS;
+    this.records[base] = now;
+    this.records[base + 1] = ( (long) event << 56 )
+        | ( (long) ( port & 0xffff ) << 32 ) | ( ( appId & 0xffffL ) << 16 )
+        | ( length & 0xffff );
+    this.records[base + 2] = src;
+    this.records[base + 3] = stNum;
+    this.records[base + 4] = sqNum;
+    this.sequences.lazySet( index, position + 1 ); // publish the record
+    return true;
+  }
+
+  /**
+   * Formats and writes up to the number of records specified, in a single
+   * write. May only be invoked by one thread, i.e. not while started.
+   *
+   * @param max
+   *          the largest number of records
+   * @return int the number of records written
+   */
+  public int drain(int max) {
+    StringBuilder batch = this.batch;
+    batch.setLength( 0 );
+    int count = 0;
+    while (count < max) {
+      int index = (int) this.head & this.mask;
+      if (this.sequences.get( index ) != this.head + 1) {
+        break; // empty, or the record is being written
+      }
+      this.format( batch, index * RECORD_LONGS );
+      this.sequences.lazySet( index, this.head + this.mask + 1 ); // release
+      this.head++;
+      count++;
+    }
+    if (count > 0) {
+      PrintStream stream = this.out;
+      stream.print( batch );
+      stream.flush();
+      this.written.addAndGet( count );
+    }
+    return count;
+  }
+
+  /**
+   * Starts the trace thread draining the ring, if not started
+   */
+  public synchronized void start() {
+    if (this.thread == null) {
+      this.running = true;
+      this.thread = new Thread( this, "GOOSETrace" );
+      this.thread.setDaemon( true );
+      this.thread.start();
+    }
+  }
+
+  /**
+   * Stops the trace thread once the ring is drained, waiting for the thread to
+   * finish
+   */
+  public synchronized void stop() {
+    if (this.thread != null) {
+      this.running = false;
+      LockSupport.unpark( this.thread );
+      try {
+        this.thread.join();
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+      this.thread = null;
+    }
+  }
+
+  /**
+   * Drains the ring until stopped
+   */
+  @Override
+  public void run() {
+    while (true) {
+      if (this.drain( GOOSETrace.DRAIN_LIMIT ) > 0) {
+        continue;
+      }
+      if (!this.running) {
+        break;
+      }
+      // the records are written in batches, so polling is enough
+      LockSupport.parkNanos( this, GOOSETrace.PARK_NANOS );
+    }
+  }
+
+  /**
+   * Returns a report of the trace's counters
+   *
+   * @return String representing the instance
+   */
+  public String toString() {
+    return "written=" + this.getWrittenCount() + " sampledOut="
+        + this.getSampledOutCount() + " limited=" + this.getLimitedCount()
+        + " dropped=" + this.getDroppedCount();
+  }
+
+  /**
+   * Appends a line formatting the record at the index supplied
+   */
+  private void format(StringBuilder sb, int base) {
+    long time = this.records[base];
+    long word = this.records[base + 1];
+    int event = (int) ( word >>> 56 );
+
+    sb.append( Math.floorDiv( time, NANOS_PER_SECOND ) ).append( '.' );
+    GOOSETrace.appendPadded( sb, Long.toString( Math.floorMod( time,
+        NANOS_PER_SECOND ) ), 9, '0' );
+    sb.append( event == EVENT_PUBLISH ? " pub" : event == EVENT_RECEIVE
+        ? " rcv" : event == EVENT_WRITE ? " wrt" : " ???" );
+    sb.append( " port=" ).append( ( word >>> 32 ) & 0xffff );
+    sb.append( " src=" );
+    GOOSETrace.appendPadded( sb, Long.toHexString( this.records[base + 2] ),
+        12, '0' );
+    sb.append( " appid=" );
+    GOOSETrace.appendPadded( sb, Long.toHexString( ( word >>> 16 ) & 0xffff ),
+        4, '0' );
+    sb.append( " stNum=" ).append( this.records[base + 3] );
+    sb.append( " sqNum=" ).append( this.records[base + 4] );
+    sb.append( " len=" ).append( word & 0xffff );
+    sb.append( System.lineSeparator() );
+  }
+
+  /**
+   * Appends the string supplied, left padded to the width specified
+   */
+  private static void appendPadded(StringBuilder sb, String s, int width,
+      char pad) {
+    for (int i = s.length(); i < width; i++) {
+      sb.append( pad );
+    }
+    sb.append( s );
+  }
+}
@@ -0,0 +1,346 @@
+/**
+ *
+ * Copyright (c) 2008, Packwolf Consulting Ltd, All Rights Reserved.
+ *
+ * @author      Nishchal Kush
+ * @version     %I%, %G%
+ * @since       1.0
+ */
+package fj.com.kush.utility.iec61850;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <code>LoopbackTransport</code> is a <code>FrameTransport</code> over an
+ * in-memory <code>Bus</code>, e.g. to run publishers and subscribers, or to
+ * measure encode and decode throughput, without a NIC or privileges. Each
+ * transport attached to a bus is an endpoint with a single port, like a host
+ * with one interface on a shared segment: a frame sent by an endpoint is
+ * copied into the receive queue of every other endpoint of the bus.
+ *
+ * The receive queue is a <code>GOOSEFrameRing</code>; frames are dropped,
+ * rather than the sender blocked, when it is full. Any number of threads may
+ * send, but each endpoint must be received from by a single thread.
+ */
+public final class LoopbackTransport implements FrameTransport {
+
+  // constants
+
+  public static final int  DEFAULT_TIMEOUT = 10 * 1000; // 10 seconds in millis
+
+  // attributes
+
+  private final Bus            bus;
+  private final byte[]         mac;
+  private final String         name;
+  private final GOOSEFrameRing ring;
+
+  private int                  timeout     = DEFAULT_TIMEOUT;
+  private volatile Thread      waiter      = null;
+  private volatile boolean     woken       = false;
+  private volatile boolean     closed      = false;
+
+  private final AtomicLong     sentCount   = new AtomicLong();
+
+  // constructors
+
+  /**
+   * Constructor accepting the bus to attach to, and the MAC address and name
+   * of the endpoint
+   *
+   * @param bus
+   *          the bus
+   * @param mac
+   *          the 6 byte MAC address, or null to keep the source address of
+   *          the messages sent
+   * @param name
+   *          the name of the endpoint
+   */
+  public LoopbackTransport(Bus bus, byte[] mac, String name) {
+    this( bus, mac, name, GOOSEFrameRing.DEFAULT_CAPACITY );
+  }
+
+  /**
+   * Constructor accepting the bus to attach to, the MAC address and name of
+   * the endpoint, and the number of frames its receive queue holds
+   *
+   * @param bus
+   *          the bus
+   * @param mac
+   *          the 6 byte MAC address, or null to keep the source address of
+   *          the messages sent
+   * @param name
+   *          the name of the endpoint
+   * @param capacity
+   *          the number of frames
+   */
+  public LoopbackTransport(Bus bus, byte[] mac, String name, int capacity) {
+    this.bus = bus;
+    this.mac = (mac == null ? null : mac.clone());
+    this.name = name;
+    this.ring = new GOOSEFrameRing( capacity, GOOSEFrameRing.MAX_FRAME_LENGTH );
+    bus.endpoints.add( this );
+  }
+
+  // accessors
+
+  /**
+   * Gets the bus of the endpoint
+   *
+   * @return Bus the bus
+   */
+  public Bus getBus() {
+    return this.bus;
+  }
+
+  /**
+   * Gets the number of frames dropped because the receive queue was full
+   *
+   * @return long the number of frames
+   */
+  public long getDroppedCount() {
+    return this.ring.getDroppedCount();
+  }
+
+  /**
+   * @see fj.com.kush.utility.iec61850.FrameTransport#getError(int)
+   */
+  @Override
+  public String getError(int port) {
+    return (this.closed ? "Transport closed" : null);
+  }
+
+  /**
+   * @see fj.com.kush.utility.iec61850.FrameTransport#getMac(int)
+   */
+  @Override
+  public byte[] getMac(int port) {
+    return this.mac;
+  }
+
+  /**
+   * @see fj.com.kush.utility.iec61850.FrameTransport#getName(int)
+   */
+  @Override
+  public String getName(int port) {
+    return this.name;
+  }
+
+  /**
+   * Gets the number of ports, always 1
+   *
+   * @see fj.com.kush.utility.iec61850.FrameTransport#getPortCount()
+   */
+  @Override
+  public int getPortCount() {
+    return 1;
+  }
+
+  /**
+   * Gets the number of frames sent by the endpoint
+   *
+   * @return long the number of frames
+   */
+  public long getSentCount() {
+    return this.sentCount.get();
+  }
+
+  // mutators
+
+  /**
+   * Sets how long <code>receive</code> waits for a frame
+   *
+   * @param timeout
+   *          the timeout in milliseconds, 0 to return at once
+   */
+  public void setTimeout(int timeout) {
+    this.timeout = Math.max( timeout, 0 );
+  }
+
+  // auxillary methods
+
+  /**
+   * Copies the frame into the receive queue of every other endpoint of the
+   * bus
+   *
+   * @see fj.com.kush.utility.iec61850.FrameTransport#send(int, byte[], int, int)
+   */
+  @Override
+  public boolean send(int port, byte[] frame, int offset, int length) {
+    if (this.closed || length > GOOSEFrameRing.MAX_FRAME_LENGTH) {
+      return false;
+    }
+    for (LoopbackTransport endpoint : this.bus.endpoints) {
+      if (endpoint != this) {
+        endpoint.deliver( frame, offset, length );
+      }
+    }
+    this.sentCount.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Copies every frame of the batch into the receive queue of every other
+   * endpoint of the bus, taking the lock of each queue once for the batch
+   *
+   * @see fj.com.kush.utility.iec61850.FrameTransport#send(int, fj.com.kush.utility.iec61850.GOOSEFrameBatch)
+   */
+  @Override
+  public int send(int port, GOOSEFrameBatch batch) {
+    if (this.closed) {
+      return 0;
+    }
+    for (LoopbackTransport endpoint : this.bus.endpoints) {
+      if (endpoint != this) {
+        endpoint.deliver( batch );
+      }
+    }
+    int sent = 0;
+    for (int i = 0; i < batch.size(); i++) {
+      if (batch.getLength( i ) <= GOOSEFrameRing.MAX_FRAME_LENGTH) {
+        sent++;
+      }
+    }
+    this.sentCount.addAndGet( sent );
+    return sent;
+  }
+
+  /**
+   * @see fj.com.kush.utility.iec61850.FrameTransport#receive(int, int, fj.com.kush.utility.iec61850.GOOSEFrameBatch.FrameHandler)
+   */
+  @Override
+  public int receive(int port, int max, GOOSEFrameBatch.FrameHandler handler) {
+    long deadline = System.nanoTime() + this.timeout * 1000000L;
+    while (!this.closed) {
+      int received = this.ring.drain( handler, max );
+      if (received > 0) {
+        return received;
+      }
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0 || this.woken) {
+        this.woken = false;
+        return 0;
+      }
+
+      // announce the wait, then check again so a delivery is never missed
+      this.waiter = Thread.currentThread();
+      if (this.ring.isEmpty() && !this.closed && !this.woken) {
+        LockSupport.parkNanos( this, remaining );
+      }
+      this.waiter = null;
+    }
+    return -1;
+  }
+
+  /**
+   * Does nothing, as the transport does not support capture filters
+   *
+   * @see fj.com.kush.utility.iec61850.FrameTransport#setFilter(java.lang.String)
+   */
+  @Override
+  public boolean setFilter(String filter) {
+    return false;
+  }
+
+  /**
+   * Wakes the thread waiting to receive, which returns 0
+   *
+   * @see fj.com.kush.utility.iec61850.FrameTransport#wakeup()
+   */
+  @Override
+  public void wakeup() {
+    this.woken = true;
+    Thread current = this.waiter;
+    if (current != null) {
+      LockSupport.unpark( current );
+    }
+  }
+
+  /**
+   * Detaches the endpoint from the bus, waking a thread waiting to receive
+   *
+   * @see fj.com.kush.utility.iec61850.FrameTransport#close()
+   */
+  @Override
+  public void close() {
+    this.closed = true;
+    this.bus.endpoints.remove( this );
+    Thread current = this.waiter;
+    if (current != null) {
+      LockSupport.unpark( current );
+    }
+  }
+
+  /**
+   * Queues a frame sent by another endpoint, waking the receiving thread
+   */
+  private void deliver(byte[] frame, int offset, int length) {
+    // the ring has a single producer, so serialise the senders
+    synchronized (this.ring) {
+      if (!this.ring.offer( frame, offset, length )) {
+        return;
+      }
+    }
+    Thread current = this.waiter;
+    if (current != null) {
+      LockSupport.unpark( current );
+    }
+  }
+
+  /**
+   * Queues the frames of a batch sent by another endpoint under a single
+   * lock, skipping those too long, and wakes the receiving thread once
+   */
+  private void deliver(GOOSEFrameBatch batch) {
+    byte[] slab = batch.getSlab();
+    int queued = 0;
+    synchronized (this.ring) {
+      for (int i = 0; i < batch.size(); i++) {
+        int length = batch.getLength( i );
+        if (length <= GOOSEFrameRing.MAX_FRAME_LENGTH
+            && this.ring.offer( slab, batch.getOffset( i ), length )) {
+          queued++;
+        }
+      }
+    }
+    Thread current = this.waiter;
+    if (queued > 0 && current != null) {
+      LockSupport.unpark( current );
+    }
+  }
+
+  /**
+   * Returns a string representing the endpoint
+   *
+   * @return String representing the instance
+   */
+  public String toString() {
+    return this.name + " sent=" + this.sentCount.get() + " queued="
+        + this.ring.size() + " dropped=" + this.ring.getDroppedCount();
+  }
+
+  /**
+   * <code>Bus</code> is the in-memory segment shared by the loopback
+   * transports attached to it
+   */
+  public static final class Bus {
+
+    // attributes
+
+    private final CopyOnWriteArrayList<LoopbackTransport> endpoints =
+        new CopyOnWriteArrayList<LoopbackTransport>();
+
+    // accessors
+
+    /**
+     * Gets the number of endpoints attached to the bus
+     *
+     * @return int the number of endpoints
+     */
+    public int getEndpointCount() {
+      return this.endpoints.size();
+    }
+  }
+}
@@ -0,0 +1,280 @@
+/**
+ *
+ * Copyright (c) 2008, Packwolf Consulting Ltd, All Rights Reserved.
+ *
+ * @author      Nishchal Kush
+ * @version     %I%, %G%
+ * @since       1.0
+ */
+package fj.com.kush.utility.iec61850;
+
+import java.io.IOException;
+
+import fj.com.kush.utility.net.PcapFileReader;
+import fj.com.kush.utility.net.PcapFileWriter;
+
+/**
+ * <code>PcapFileTransport</code> is a <code>FrameTransport</code> over capture
+ * files, with a single port. Frames are received from a source file, in the
+ * pcap or pcapng format, and sent frames are written to a sink file,
+ * timestamped by the transport's clock, see <code>setClock</code>. Either file
+ * may be omitted. No network interface or privilege is required.
+ *
+ * Receiving returns at once, and returns -1 at the end of the source file.
+ * Instances are not thread safe.
+ */
+public final class PcapFileTransport implements FrameTransport {
+
+  // attributes
+
+  private final String         source;
+  private final String         sink;
+  private PcapFileReader       reader = null;
+  private PcapFileWriter       writer = null;
+  private GOOSEClock           clock  = GOOSEClock.SYSTEM;
+  private String               error  = null;
+
+  // constructors
+
+  /**
+   * Constructor accepting the source and sink files, writing the sink in the
+   * pcapng format
+   *
+   * @param source
+   *          the path of the capture file to receive from, or null
+   * @param sink
+   *          the path of the capture file to write sent frames to, replaced
+   *          if it exists, or null
+   * @throws GOOSEMessageException
+   *           if a file can not be opened
+   */
+  public PcapFileTransport(String source, String sink)
+      throws GOOSEMessageException {
+    this( source, sink, PcapFileWriter.FORMAT_PCAPNG );
+  }
+
+  /**
+   * Constructor accepting the source and sink files and the format of the
+   * sink
+   *
+   * @param source
+   *          the path of the capture file to receive from, or null
+   * @param sink
+   *          the path of the capture file to write sent frames to, replaced
+   *          if it exists, or null
+   * @param format
+   *          PcapFileWriter.FORMAT_PCAP or PcapFileWriter.FORMAT_PCAPNG
+   * @throws GOOSEMessageException
+   *           if a file can not be opened
+   */
+  public PcapFileTransport(String source, String sink, int format)
+      throws GOOSEMessageException {
+    this.source = source;
+    this.sink = sink;
+    try {
+      if (source != null) {
+        this.reader = new PcapFileReader( source );
+      }
+      if (sink != null) {
+        this.writer = new PcapFileWriter( sink, format,
+            PcapFileWriter.LINKTYPE_ETHERNET, PcapFileWriter.DEFAULT_SNAPLEN );
+      }
+    } catch (IOException ioe) {
+      this.close();
+      throw new GOOSEMessageException( ConstStrings.UNABLE_TO_INIT + ": "
+          + ioe.getMessage(), ioe );
+    }
+  }
+
+  // accessors
+
+  /**
+   * Gets the clock timestamping the frames written to the sink
+   *
+   * @return GOOSEClock the clock
+   */
+  public GOOSEClock getClock() {
+    return this.clock;
+  }
+
+  /**
+   * @see fj.com.kush.utility.iec61850.FrameTransport#getError(int)
+   */
+  @Override
+  public String getError(int port) {
+    return this.error;
+  }
+
+  /**
+   * Gets the hardware address of the port, always null so the source address
+   * of the messages is kept
+   *
+   * @see fj.com.kush.utility.iec61850.FrameTransport#getMac(int)
+   */
+  @Override
+  public byte[] getMac(int port) {
+    return null;
+  }
+
+  /**
+   * Gets the name of the port, i.e. the path of the sink, or of the source if
+   * there is no sink
+   *
+   * @see fj.com.kush.utility.iec61850.FrameTransport#getName(int)
+   */
+  @Override
+  public String getName(int port) {
+    return (this.sink != null ? this.sink : this.source);
+  }
+
+  /**
+   * Gets the number of ports, always 1
+   *
+   * @see fj.com.kush.utility.iec61850.FrameTransport#getPortCount()
+   */
+  @Override
+  public int getPortCount() {
+    return 1;
+  }
+
+  /**
+   * Gets the reader of the source file, e.g. for the timestamp of the frame
+   * being received
+   *
+   * @return PcapFileReader the reader, or null if there is no source
+   */
+  public PcapFileReader getReader() {
+    return this.reader;
+  }
+
+  /**
+   * Gets the writer of the sink file
+   *
+   * @return PcapFileWriter the writer, or null if there is no sink
+   */
+  public PcapFileWriter getWriter() {
+    return this.writer;
+  }
+
+  // mutators
+
+  /**
+   * Sets the clock timestamping the frames written to the sink, e.g. the
+   * clock of a simulation for repeatable captures
+   *
+   * @param clock
+   *          the clock, or null for the system clock
+   */
+  public void setClock(GOOSEClock clock) {
+    this.clock = (clock == null ? GOOSEClock.SYSTEM : clock);
+  }
+
+  // auxillary methods
+
+  /**
+   * Writes the frame to the sink, timestamped by the clock
+   *
+   * @see fj.com.kush.utility.iec61850.FrameTransport#send(int, byte[], int, int)
+   */
+  @Override
+  public boolean send(int port, byte[] frame, int offset, int length) {
+    if (this.writer == null) {
+      return false;
+    }
+    try {
+      this.writer.write( 0, this.clock.currentTimeNanos(), frame, offset,
+          length );
+      return true;
+    } catch (IOException ioe) {
+      this.error = ioe.getMessage();
+      return false;
+    }
+  }
+
+  /**
+   * Writes every frame of the batch to the sink, appending the whole slab at
+   * once, all timestamped with the same time of the clock
+   *
+   * @see fj.com.kush.utility.iec61850.FrameTransport#send(int, fj.com.kush.utility.iec61850.GOOSEFrameBatch)
+   */
+  @Override
+  public int send(int port, GOOSEFrameBatch batch) {
+    if (this.writer == null) {
+      return 0;
+    }
+    try {
+      return batch.writeTo( this.writer, 0, this.clock.currentTimeNanos() );
+    } catch (IOException ioe) {
+      this.error = ioe.getMessage();
+      return 0;
+    }
+  }
+
+  /**
+   * Reads up to the number of frames specified from the source, without
+   * waiting
+   *
+   * @see fj.com.kush.utility.iec61850.FrameTransport#receive(int, int, fj.com.kush.utility.iec61850.GOOSEFrameBatch.FrameHandler)
+   */
+  @Override
+  public int receive(int port, int max, GOOSEFrameBatch.FrameHandler handler) {
+    if (this.reader == null) {
+      return -1;
+    }
+    int received = 0;
+    try {
+      while (received < max && this.reader.next()) {
+        handler.handleFrame( this.reader.getArray(), this.reader.getOffset(),
+            this.reader.getCaptureLength() );
+        received++;
+      }
+    } catch (IOException ioe) {
+      this.error = ioe.getMessage();
+      return (received > 0 ? received : -1);
+    }
+    return (received > 0 || max <= 0 ? received : -1);
+  }
+
+  /**
+   * Does nothing, as the transport does not support capture filters
+   *
+   * @see fj.com.kush.utility.iec61850.FrameTransport#setFilter(java.lang.String)
+   */
+  @Override
+  public boolean setFilter(String filter) {
+    return false;
+  }
+
+  /**
+   * Does nothing, as receiving never waits
+   *
+   * @see fj.com.kush.utility.iec61850.FrameTransport#wakeup()
+   */
+  @Override
+  public void wakeup() {
+    // receive never waits
+  }
+
+  /**
+   * Closes the source and sink, truncating the sink to the frames written
+   *
+   * @see fj.com.kush.utility.iec61850.FrameTransport#close()
+   */
+  @Override
+  public void close() {
+    try {
+      if (this.reader != null) {
+        this.reader.close();
+      }
+    } catch (IOException ioe) {
+      this.error = ioe.getMessage();
+    }
+    try {
+      if (this.writer != null) {
+        this.writer.close();
+      }
+    } catch (IOException ioe) {
+      this.error = ioe.getMessage();
+    }
+  }
+}
@@ -0,0 +1,382 @@
+/**
+ *
+ * Copyright (c) 2008, Packwolf Consulting Ltd, All Rights Reserved.
+ *
+ * @author      Nishchal Kush
+ * @version     %I%, %G%
+ * @since       1.0
+ */
+package fj.com.kush.utility.iec61850;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jnetpcap.ByteBufferHandler;
+import org.jnetpcap.Pcap;
+import org.jnetpcap.PcapBpfProgram;
+import org.jnetpcap.PcapHeader;
+
+/**
+ * <code>PcapTransport</code> is the <code>FrameTransport</code> over the
+ * network interfaces, through jnetpcap. Each usable interface, i.e. not a
+ * loopback and with a hardware address, is a port. Frames are sent on the
+ * long lived <code>GOOSESendHandle</code> of the interface, shared by all the
+ * pcap transports, and received on a capture handle of the transport, opened
+ * on first use and kept open, so a capture loop pulls batches with
+ * <code>Pcap.dispatch</code> without reopening the interface. The capture
+ * filter, see <code>setFilter</code>, is compiled and installed on each
+ * capture handle by its receiving thread, so frames not matching it are
+ * dropped in the kernel.
+ *
+ * The interfaces are scanned on first use, not when the transport is
+ * created. Receiving requires capture privileges.
+ */
+public final class PcapTransport implements FrameTransport {
+
+  // constants
+
+  // returned by dispatch when broken by breakloop, see Pcap.LOOP_INTERRUPTED
+  static final int      LOOP_INTERRUPTED = -2;
+
+  // attributes
+
+  private final int     snaplen;
+  private final int     flags;
+  private final int     timeout;
+
+  private Receiver[]    receivers = new Receiver[0];
+  private int           scanned   = 0; // the number of ports last seen
+  private volatile String filter  = null;
+
+  // constructors
+
+  /**
+   * Default constructor, capturing whole frames in promiscuous mode with a
+   * 10 second timeout
+   */
+  public PcapTransport() {
+    this( 64 * 1024, Pcap.MODE_PROMISCUOUS, 10 * 1000 );
+  }
+
+  /**
+   * Constructor accepting the pcap parameters of the handles
+   *
+   * @param snaplen
+   *          the largest number of bytes captured per frame
+   * @param flags
+   *          the pcap flags, e.g. Pcap.MODE_PROMISCUOUS
+   * @param timeout
+   *          the read timeout in milliseconds
+   */
+  public PcapTransport(int snaplen, int flags, int timeout) {
+    this.snaplen = snaplen;
+    this.flags = flags;
+    this.timeout = timeout;
+  }
+
+  // accessors
+
+  /**
+   * @see fj.com.kush.utility.iec61850.FrameTransport#getError(int)
+   */
+  @Override
+  public String getError(int port) {
+    Receiver receiver = this.getReceiver( port, false );
+    if (receiver != null && receiver.error != null) {
+      return receiver.error;
+    }
+    List<GOOSESendHandle> handles = this.getHandles();
+    if (port >= 0 && port < handles.size()) {
+      return handles.get( port ).getError();
+    }
+    return GOOSEPublisher.getInitError();
+  }
+
+  /**
+   * @see fj.com.kush.utility.iec61850.FrameTransport#getMac(int)
+   */
+  @Override
+  public byte[] getMac(int port) {
+    return this.getHandles().get( port ).getMac();
+  }
+
+  /**
+   * @see fj.com.kush.utility.iec61850.FrameTransport#getName(int)
+   */
+  @Override
+  public String getName(int port) {
+    return this.getHandles().get( port ).getName();
+  }
+
+  /**
+   * Gets the number of usable interfaces, or -1 if the interfaces can not be
+   * listed, see <code>getError</code>
+   *
+   * @see fj.com.kush.utility.iec61850.FrameTransport#getPortCount()
+   */
+  @Override
+  public int getPortCount() {
+    List<GOOSESendHandle> handles = this.getHandles();
+    if (handles.isEmpty() && GOOSEPublisher.getInitError() != null) {
+      return -1;
+    }
+    return handles.size();
+  }
+
+  // auxillary methods
+
+  /**
+   * Sends the frame on the shared send handle of the interface
+   *
+   * @see fj.com.kush.utility.iec61850.FrameTransport#send(int, byte[], int, int)
+   */
+  @Override
+  public boolean send(int port, byte[] frame, int offset, int length) {
+    return this.getHandles().get( port ).send( frame, offset, length );
+  }
+
+  /**
+   * Receives the frames captured by the next read of the interface, see
+   * <code>Pcap.dispatch</code>. The capture handle is opened on first use and
+   * kept open; a handle that fails is reopened on the next receive.
+   *
+   * @see fj.com.kush.utility.iec61850.FrameTransport#receive(int, int, fj.com.kush.utility.iec61850.GOOSEFrameBatch.FrameHandler)
+   */
+  @Override
+  public int receive(int port, int max, GOOSEFrameBatch.FrameHandler handler) {
+    Receiver receiver = this.getReceiver( port, true );
+    return (receiver != null ? receiver.receive( max, handler ) : -1);
+  }
+
+  /**
+   * Sets the capture filter, installed on each capture handle before its next
+   * dispatch. Waiting receivers are woken so it takes effect at once. A filter
+   * that does not compile is reported by <code>getError</code> and leaves
+   * the handle unfiltered.
+   *
+   * @see fj.com.kush.utility.iec61850.FrameTransport#setFilter(java.lang.String)
+   */
+  @Override
+  public boolean setFilter(String filter) {
+    this.filter = filter;
+    this.wakeup();
+    return true;
+  }
+
+  /**
+   * Breaks the dispatch of every open capture handle, see
+   * <code>Pcap.breakloop</code>
+   *
+   * @see fj.com.kush.utility.iec61850.FrameTransport#wakeup()
+   */
+  @Override
+  public synchronized void wakeup() {
+    for (int i = 0; i < this.receivers.length; i++) {
+      if (this.receivers[i] != null) {
+        this.receivers[i].wakeup();
+      }
+    }
+  }
+
+  /**
+   * Closes the capture handles of the transport and the shared send handles,
+   * which are reopened on the next send. Should not be invoked while a thread
+   * is receiving.
+   *
+   * @see fj.com.kush.utility.iec61850.FrameTransport#close()
+   */
+  @Override
+  public synchronized void close() {
+    this.closeReceivers();
+    GOOSEPublisher.close();
+  }
+
+  /**
+   * Closes the capture handles of the transport
+   */
+  private void closeReceivers() {
+    for (int i = 0; i < this.receivers.length; i++) {
+      if (this.receivers[i] != null) {
+        this.receivers[i].close();
+      }
+    }
+  }
+
+  /**
+   * Gets the shared send handles of the usable interfaces
+   */
+  private List<GOOSESendHandle> getHandles() {
+    return GOOSEPublisher.getHandles( this.snaplen, this.flags, this.timeout );
+  }
+
+  /**
+   * Gets the receiver of the port specified, creating it if requested. Only
+   * the thread receiving on the port requests a receiver be created, so a
+   * stale receiver is closed by the thread that owns its handle.
+   */
+  private synchronized Receiver getReceiver(int port, boolean create) {
+    List<GOOSESendHandle> handles = this.getHandles();
+    if (this.scanned != handles.size()) {
+      // the interfaces were rescanned, but the capture handles may be in use
+      // by other threads, so they are only marked stale and woken
+      for (int i = 0; i < this.receivers.length; i++) {
+        if (this.receivers[i] != null) {
+          this.receivers[i].retire();
+        }
+      }
+      if (this.receivers.length < handles.size()) {
+        this.receivers = Arrays.copyOf( this.receivers, handles.size() );
+      }
+      this.scanned = handles.size();
+    }
+
+    Receiver receiver = (port >= 0 && port < this.receivers.length
+        ? this.receivers[port] : null);
+    if (create && receiver != null && receiver.stale) {
+      receiver.close();
+      this.receivers[port] = receiver = null;
+    }
+    if (port < 0 || port >= handles.size()) {
+      return null;
+    }
+    if (receiver == null && create) {
+      receiver = new Receiver( handles.get( port ).getName() );
+      this.receivers[port] = receiver;
+    }
+    return receiver;
+  }
+
+  /**
+   * The capture handle of a port, and the buffer the frames captured are
+   * copied into, used by a single receiving thread
+   */
+  private final class Receiver implements
+      ByteBufferHandler<GOOSEFrameBatch.FrameHandler> {
+
+    // attributes
+
+    private final String  name;
+    private volatile Pcap pcap  = null;
+    private byte[]        frame = new byte[GOOSEFrameRing.MAX_FRAME_LENGTH];
+    private String        error = null;
+    private String        applied = null; // the filter installed
+    private volatile boolean stale = false; // the interfaces were rescanned
+
+    // constructors
+
+    /**
+     * Constructor accepting the name of the interface
+     */
+    Receiver(String name) {
+      this.name = name;
+    }
+
+    // auxillary methods
+
+    /**
+     * Dispatches the frames of the next read to the handler supplied,
+     * opening the capture handle if required
+     */
+    int receive(int max, GOOSEFrameBatch.FrameHandler handler) {
+      Pcap current = this.pcap;
+      if (current == null) {
+        StringBuilder errbuf = new StringBuilder();
+        current = Pcap.openLive( this.name, PcapTransport.this.snaplen,
+            PcapTransport.this.flags, PcapTransport.this.timeout, errbuf );
+        if (current == null) {
+          this.error = errbuf.toString(); // see getError
+          return -1;
+        }
+        this.error = null;
+        this.pcap = current;
+      }
+      String wanted = PcapTransport.this.filter;
+      if (wanted != this.applied) {
+        this.install( current, wanted );
+      }
+
+      int received = current.dispatch( max, this, handler );
+      if (received == PcapTransport.LOOP_INTERRUPTED) {
+        return 0; // broken by wakeup
+      }
+      if (received < 0) {
+        // the handle may have gone bad, reopen it on the next receive
+        this.error = current.getErr();
+        this.close();
+        return -1;
+      }
+      return received;
+    }
+
+    /**
+     * Copies a captured frame out of the native buffer and hands it to the
+     * handler supplied to <code>receive</code>
+     *
+     * @see org.jnetpcap.ByteBufferHandler#nextPacket(org.jnetpcap.PcapHeader, java.nio.ByteBuffer, java.lang.Object)
+     */
+    @Override
+    public void nextPacket(PcapHeader header, ByteBuffer buffer,
+        GOOSEFrameBatch.FrameHandler handler) {
+      int length = buffer.remaining();
+      if (this.frame.length < length) {
+        this.frame = new byte[length];
+      }
+      buffer.get( this.frame, 0, length );
+      handler.handleFrame( this.frame, 0, length );
+    }
+
+    /**
+     * Compiles the filter supplied and installs it on the capture handle
+     */
+    private void install(Pcap current, String wanted) {
+      this.applied = wanted;
+      PcapBpfProgram program = new PcapBpfProgram();
+      int result;
+      // older versions of libpcap can not compile on several threads at once
+      synchronized (PcapBpfProgram.class) {
+        result = current.compile( program, (wanted == null ? "" : wanted), 1,
+            0 );
+      }
+      if (result == Pcap.OK) {
+        result = current.setFilter( program );
+        Pcap.freecode( program );
+      }
+      if (result != Pcap.OK) {
+        this.error = "Can't set filter " + wanted + ", error is "
+            + current.getErr(); // see getError
+      }
+    }
+
+    /**
+     * Breaks the dispatch in progress, if any
+     */
+    void wakeup() {
+      Pcap current = this.pcap;
+      if (current != null) {
+        current.breakloop();
+      }
+    }
+
+    /**
+     * Marks the receiver stale, to be closed by its receiving thread, and
+     * breaks the dispatch in progress, if any
+     */
+    void retire() {
+      this.stale = true;
+      this.wakeup();
+    }
+
+    /**
+     * Closes the capture handle, if open
+     */
+    void close() {
+      Pcap current = this.pcap;
+      this.pcap = null;
+      this.applied = null; // a reopened handle is unfiltered
+      if (current != null) {
+        current.close();
+      }
+    }
+  }
+}
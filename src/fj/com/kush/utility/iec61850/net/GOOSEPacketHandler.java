@@ -8,9 +8,12 @@
  */
 package fj.com.kush.utility.iec61850.net;
 
+import java.util.Arrays;
+
 import org.jnetpcap.packet.JPacket;
-import org.jnetpcap.protocol.lan.Ethernet;
 
+import fj.com.kush.utility.iec61850.GOOSEFrameBatch;
+import fj.com.kush.utility.iec61850.GOOSEFrameView;
 import fj.com.kush.utility.iec61850.GOOSEMessage;
 import fj.com.kush.utility.iec61850.GOOSEMessageGoosePDU;
 import fj.com.kush.utility.iec61850.MessageException;
@@ -18,13 +21,27 @@ import fj.com.kush.utility.net.PacketHandler;
 
 
 /**
- * TODO: comment
+ * Parses the GOOSE frames handled into a <code>GOOSEMessage</code>, whether
+ * captured packets dispatched by jnetpcap or raw frames received from a
+ * <code>FrameTransport</code>. In scan only mode the raw frames handled are
+ * only scanned by the <code>GOOSEFrameView</code>, and parsed on demand, see
+ * <code>decode</code>, e.g. to skip decoding retransmissions.
  */
-public final class GOOSEPacketHandler extends PacketHandler {
+public final class GOOSEPacketHandler extends PacketHandler implements
+		GOOSEFrameBatch.FrameHandler {
+
+	// constants
+
+	static final int MAX_FRAME_LENGTH = 1518; // untagged Ethernet frame
 
 	// attributes
 
 	private GOOSEMessage gooseMessage = null;
+	private GOOSEFrameView frameView = null;
+	private byte[] frame = null; // reusable copy of the captured frame
+	private int frameLength = 0; // length of the last frame handled
+	private boolean parsed = false; // if the last frame handled was parsed
+	private boolean scanOnly = false; // if raw frames are only scanned
 
 	// constructors
 
@@ -34,6 +51,8 @@ public final class GOOSEPacketHandler extends PacketHandler {
 	public GOOSEPacketHandler() {
 		// TODO Auto-generated constructor stub
 		gooseMessage = new GOOSEMessage();
+		frameView = new GOOSEFrameView();
+		frame = new byte[MAX_FRAME_LENGTH];
 	}
 
 	// accessors
@@ -47,6 +66,44 @@ public final class GOOSEPacketHandler extends PacketHandler {
 		return gooseMessage;
 	}
 
+	/**
+	 * Gets the <code>GOOSEFrameView</code> over the last GOOSE frame handled.
+	 * The view is only valid until the next packet is handled.
+	 * 
+	 * @return the frameView
+	 */
+	public GOOSEFrameView getFrameView() {
+		return frameView;
+	}
+
+	/**
+	 * Gets the length of the last frame handled
+	 * 
+	 * @return the frameLength
+	 */
+	public int getFrameLength() {
+		return frameLength;
+	}
+
+	/**
+	 * Gets if the raw frames handled are only scanned
+	 * 
+	 * @return true if scan only, else false
+	 */
+	public boolean isScanOnly() {
+		return scanOnly;
+	}
+
+	/**
+	 * Gets if the last frame handled was a GOOSE frame parsed into the
+	 * <code>GOOSEMessage</code>
+	 * 
+	 * @return true if parsed, else false
+	 */
+	public boolean isParsed() {
+		return parsed;
+	}
+
 	// mutators
 
 	/**
@@ -59,6 +116,17 @@ public final class GOOSEPacketHandler extends PacketHandler {
 		this.gooseMessage = gooseMessage;
 	}
 
+	/**
+	 * Sets if the raw frames handled are only scanned, and parsed into the
+	 * <code>GOOSEMessage</code> by <code>decode</code>
+	 * 
+	 * @param scanOnly
+	 *            true to scan only, false to parse every frame
+	 */
+	public void setScanOnly(boolean scanOnly) {
+		this.scanOnly = scanOnly;
+	}
+
 	// auxillary methods
 
 	/**
@@ -71,52 +139,18 @@ public final class GOOSEPacketHandler extends PacketHandler {
 	 */
 	@Override
 	public void handlePacket(JPacket packet) {
-		Ethernet ethernetHeader = new Ethernet();
-    if (packet.hasHeader( ethernetHeader )) {
-      // If it's not a 61850 message then don't handle the packet
-      if (ethernetHeader.type() != GOOSEMessage.GOOSE_MSG) {
-        return;
-      }
-
-			try {
-        if (gooseMessage == null) {
-          gooseMessage = new GOOSEMessage();
-        }
-        gooseMessage.init();
-
-				// set destination and source mac
-				gooseMessage.setDst(ethernetHeader.destination());
-				gooseMessage.setSrc(ethernetHeader.source());
-
-				// set ethernet type
-				switch (ethernetHeader.type()) {
-          case GOOSEMessage.GOOSE_MSG: // GOOSE
-            gooseMessage.setMessageType( GOOSEMessage.GOOSE_MESSAGE );
-            // set goose payload
-            byte[] payload = ethernetHeader.getPayload();
-            GOOSEMessageGoosePDU goosePDU = GOOSEMessageGoosePDU.getInstance(
-                payload, 8 );
-            // GOOSEMessageGoosePDU goosePDU = GOOSEMessageGoosePDU.getInstance(
-            // payload, 7 );
-            gooseMessage.setAPDU( goosePDU );
-            break;
-          case GOOSEMessage.GSE_MGMT_MSG: // GSE
-            gooseMessage.setMessageType( GOOSEMessage.GSE_MANAGEMENT_MESSAGE );
-            // TODO: handle GSE management message
-            break;
-          case GOOSEMessage.SVM_MSG: // SVM
-            gooseMessage.setMessageType( GOOSEMessage.SV_MESSAGE );
-            // TODO: handle SVM message
-            break;
-          default: // not GOOSE traffic so ignore the frame
-            gooseMessage = null;
-            return;
-				}
-			} catch (MessageException me) {
-				// TODO - write error message
-				return;
-			}
-		}
+    // copy the frame into the reusable buffer and scan it
+    int size = packet.size();
+    if (frame.length < size) {
+      frame = new byte[size];
+    }
+    packet.getByteArray(0, frame, 0, size);
+
+    // If it's not a 61850 message then don't handle the packet
+    parsed = parse(size);
+    if (!parsed) {
+      return;
+    }
 
 		// chain to next handler
 		if (this._handler != null) {
@@ -125,4 +159,87 @@ public final class GOOSEPacketHandler extends PacketHandler {
 
 		return;
 	}
+
+	/**
+	 * Handles the raw frame specified, e.g. received from a
+	 * <code>FrameTransport</code>, parsing it to create the
+	 * <code>GOOSEMessage</code>, or only scanning it in scan only mode. Raw
+	 * frames are not forwarded to the chained handler, which handles packets
+	 * only.
+	 * 
+	 * @see fj.com.kush.utility.iec61850.GOOSEFrameBatch.FrameHandler#handleFrame(byte[], int, int)
+	 */
+	@Override
+	public void handleFrame(byte[] buffer, int offset, int length) {
+    // copy the frame into the reusable buffer, as the caller's is only valid
+    // for the call
+    if (frame.length < length) {
+      frame = new byte[length];
+    }
+    System.arraycopy(buffer, offset, frame, 0, length);
+    frameLength = length;
+    parsed = false;
+    if (frameView.wrap(frame, 0, length) && !scanOnly) {
+      parsed = decode();
+    }
+	}
+
+	/**
+	 * Parses the last frame handled, once scanned as a GOOSE frame, into the
+	 * <code>GOOSEMessage</code>, if not parsed already
+	 * 
+	 * @return boolean true if parsed, else false
+	 */
+	public boolean decode() {
+    if (!parsed && frameView.isValid()) {
+      parsed = build();
+    }
+    return parsed;
+	}
+
+	/**
+	 * Parses the frame held in the reusable buffer into the
+	 * <code>GOOSEMessage</code>
+	 * 
+	 * @param size
+	 *            the length of the frame
+	 * @return boolean true if the frame is a GOOSE frame, else false
+	 */
+	private boolean parse(int size) {
+    frameLength = size;
+    if (!frameView.wrap(frame, 0, size)) {
+      return false;
+    }
+    return build();
+	}
+
+	/**
+	 * Builds the <code>GOOSEMessage</code> from the frame held in the reusable
+	 * buffer, once scanned
+	 * 
+	 * @return boolean true if built, else false
+	 */
+	private boolean build() {
+    try {
+      if (gooseMessage == null) {
+        gooseMessage = new GOOSEMessage();
+      }
+      gooseMessage.init();
+
+      // set destination and source mac
+      gooseMessage.setDst(Arrays.copyOfRange(frame, 0, 6));
+      gooseMessage.setSrc(Arrays.copyOfRange(frame, 6, 12));
+
+      // set goose payload, the PDU starts after the APPID, length and
+      // reserved words
+      gooseMessage.setMessageType( GOOSEMessage.GOOSE_MESSAGE );
+      GOOSEMessageGoosePDU goosePDU = GOOSEMessageGoosePDU.getInstance(
+          frame, frameView.pduOffset() );
+      gooseMessage.setAPDU( goosePDU );
+    } catch (MessageException me) {
+      // TODO - write error message
+      return false;
+    }
+    return true;
+	}
 }
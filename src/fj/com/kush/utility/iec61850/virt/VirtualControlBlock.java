@@ -0,0 +1,240 @@
+/**
+ *
+ * Copyright (c) 2008, Packwolf Consulting Ltd, All Rights Reserved.
+ *
+ * @author      Nishchal Kush
+ * @version     %I%, %G%
+ * @since       1.0
+ */
+package fj.com.kush.utility.iec61850.virt;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import fj.com.kush.utility.iec61850.GOOSEAllData;
+import fj.com.kush.utility.iec61850.GOOSEData;
+import fj.com.kush.utility.iec61850.GOOSEFrameTemplate;
+import fj.com.kush.utility.iec61850.GOOSEMessage;
+import fj.com.kush.utility.iec61850.GOOSEMessageException;
+import fj.com.kush.utility.iec61850.GOOSEMessageGoosePDU;
+import fj.com.kush.utility.iec61850.GOOSERetransmissionScheduler;
+
+/**
+ * <code>VirtualControlBlock</code> is a GOOSE control block of a
+ * <code>VirtualIED</code>, i.e. a <code>GOOSEMessage</code> with its data set
+ * and the cached frame it is sent from. The fleet's scheduler transmits the
+ * control block as per the retransmission curve, and a change of the data
+ * set, made through this class, starts a new burst.
+ *
+ * The data set may be changed from any thread. Once scheduled, a change is
+ * applied by the scheduler thread together with the stNum increment, so it
+ * shows in <code>getAllData</code> when the new state is sent, and a
+ * retransmission of the previous state never carries it. The other fields of
+ * the message should not be changed once the fleet is started.
+ */
+public final class VirtualControlBlock implements
+    GOOSERetransmissionScheduler.Transmitter {
+
+  // attributes
+
+  private final VirtualIED                         ied;
+  private final GOOSEMessage                       message;
+  private final GOOSEMessageGoosePDU               pdu;
+  private final GOOSEAllData                       allData;
+  private final GOOSEFrameTemplate                 template;
+
+  private volatile GOOSERetransmissionScheduler.Entry entry = null;
+  private volatile long sent = 0; // written by the scheduler only
+  private volatile long dropped = 0; // written by the scheduler only
+  private volatile String error = null;
+
+  // constructors
+
+  /**
+   * Constructor accepting the IED and the identifiers of the control block
+   */
+  VirtualControlBlock(VirtualIED ied, String gocbRef, String datSet,
+      String goID, int appId, int timeAllowedToLive)
+      throws GOOSEMessageException {
+    this.ied = ied;
+
+    this.allData = new GOOSEAllData();
+    this.pdu = new GOOSEMessageGoosePDU();
+    this.pdu.setGocbRef( gocbRef );
+    this.pdu.setTimeAllocatedtoLive( timeAllowedToLive );
+    this.pdu.setDatSet( datSet );
+    this.pdu.setGoID( goID );
+    this.pdu.setTest( false );
+    this.pdu.setConfRev( 1 );
+    this.pdu.setNdsCom( false );
+    this.pdu.setAllData( this.allData );
+    this.pdu.stamp();
+
+    this.message = new GOOSEMessage();
+    this.message.setMessageType( GOOSEMessage.GOOSE_MESSAGE );
+    this.message.setSrc( ied.getMac() );
+    this.message.setDst( GOOSEMessage.GOOSE_BCAST_MAC );
+    this.message.setAppid( new byte[] { (byte) ( appId >>> 8 ), (byte) appId } );
+    this.message.setAPDU( this.pdu );
+
+    this.template = new GOOSEFrameTemplate( this.message );
+  }
+
+  // accessors
+
+  /**
+   * Gets the data set of the control block, to be read only, as changes are
+   * made through this class
+   *
+   * @return GOOSEAllData the data set
+   */
+  public GOOSEAllData getAllData() {
+    return this.allData;
+  }
+
+  /**
+   * Gets the number of frames not sent as they could not be encoded
+   *
+   * @return long the number of frames
+   */
+  public long getDroppedCount() {
+    return this.dropped;
+  }
+
+  /**
+   * Gets the last error encoding a frame
+   *
+   * @return String the error, or null if none
+   */
+  public String getError() {
+    return this.error;
+  }
+
+  /**
+   * Gets the IED the control block belongs to
+   *
+   * @return VirtualIED the IED
+   */
+  public VirtualIED getIED() {
+    return this.ied;
+  }
+
+  /**
+   * Gets the message of the control block
+   *
+   * @return GOOSEMessage the message
+   */
+  public GOOSEMessage getMessage() {
+    return this.message;
+  }
+
+  /**
+   * Gets the number of frames sent
+   *
+   * @return long the number of frames
+   */
+  public long getSentCount() {
+    return this.sent;
+  }
+
+  /**
+   * Gets if the control block is scheduled for transmission
+   *
+   * @return boolean true if scheduled, else false
+   */
+  public boolean isScheduled() {
+    return this.entry != null;
+  }
+
+  // mutators
+
+  /**
+   * Adds an element to the data set, e.g. while building the IED. The
+   * configuration revision should be changed if the fleet is started.
+   *
+   * @param data
+   *          the element to add
+   */
+  public void addData(final GOOSEData data) {
+    this.change( () -> this.allData.addGOOSEData( data ) );
+  }
+
+  /**
+   * Sets the element of the data set at the offset specified, signalling a
+   * state change
+   *
+   * @param offset
+   *          the offset of the element
+   * @param data
+   *          the new element
+   */
+  public void setData(final int offset, final GOOSEData data) {
+    this.change( () -> this.allData.setDataAt( offset, data ) );
+  }
+
+  /**
+   * Replaces every element of the data set, signalling a single state change
+   *
+   * @param data
+   *          the new elements
+   */
+  public void setAllData(Collection<GOOSEData> data) {
+    final List<GOOSEData> copy = new ArrayList<GOOSEData>( data );
+    this.change( () -> this.allData.setAllData( copy ) );
+  }
+
+  // auxillary methods
+
+  /**
+   * Encodes the control block's frame and hands it to the fleet's transport.
+   * Invoked by the fleet's scheduler only.
+   *
+   * @see fj.com.kush.utility.iec61850.GOOSERetransmissionScheduler.Transmitter#transmit(fj.com.kush.utility.iec61850.GOOSEMessage, long)
+   */
+  @Override
+  public void transmit(GOOSEMessage message, long now) {
+    try {
+      int length = this.template.update();
+      this.ied.getFleet().deliver( this.template.getFrame(), length );
+      this.sent++;
+    } catch (GOOSEMessageException gme) {
+      // kept for getError, the next transmission encodes again
+      this.error = gme.getMessage();
+      this.dropped++;
+    }
+  }
+
+  /**
+   * Registers the control block with the scheduler
+   */
+  void schedule(GOOSERetransmissionScheduler scheduler)
+      throws GOOSEMessageException {
+    if (this.entry == null) {
+      this.entry = scheduler.register( this.message, this );
+    }
+  }
+
+  /**
+   * Unregisters the control block from the scheduler
+   */
+  void unschedule(GOOSERetransmissionScheduler scheduler) {
+    if (this.entry != null) {
+      scheduler.unregister( this.entry );
+      this.entry = null;
+    }
+  }
+
+  /**
+   * Hands a change of the data set to the scheduler as a state change, if
+   * scheduled, else applies it at once
+   */
+  private void change(Runnable change) {
+    GOOSERetransmissionScheduler.Entry current = this.entry;
+    if (current != null) {
+      this.ied.getFleet().getScheduler().stateChanged( current, change );
+    } else {
+      change.run();
+    }
+  }
+}
@@ -0,0 +1,132 @@
+/**
+ *
+ * Copyright (c) 2008, Packwolf Consulting Ltd, All Rights Reserved.
+ *
+ * @author      Nishchal Kush
+ * @version     %I%, %G%
+ * @since       1.0
+ */
+package fj.com.kush.utility.iec61850.virt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import fj.com.kush.utility.BytesUtility;
+import fj.com.kush.utility.iec61850.ConstStrings;
+import fj.com.kush.utility.iec61850.GOOSEMessageException;
+
+/**
+ * <code>VirtualIED</code> is a lightweight simulated IED hosted by a
+ * <code>VirtualIEDFleet</code>. An IED has a name, its own MAC address and
+ * any number of <code>VirtualControlBlock</code>s, but no thread of its own;
+ * all the IEDs of a fleet are driven by the fleet's scheduler and send
+ * through the fleet's transport.
+ */
+public final class VirtualIED {
+
+  // attributes
+
+  private final VirtualIEDFleet           fleet;
+  private final String                    name;
+  private final byte[]                    mac;
+  private final List<VirtualControlBlock> controlBlocks;
+
+  // constructors
+
+  /**
+   * Constructor accepting the fleet, name and MAC address of the IED
+   */
+  VirtualIED(VirtualIEDFleet fleet, String name, byte[] mac)
+      throws GOOSEMessageException {
+    if (mac == null || mac.length != 6) {
+      throw new GOOSEMessageException( ConstStrings.INVALID_MAC_ADDR );
+    }
+    this.fleet = fleet;
+    this.name = name;
+    this.mac = mac.clone();
+    this.controlBlocks = new ArrayList<VirtualControlBlock>();
+  }
+
+  // accessors
+
+  /**
+   * Gets the control blocks of the IED
+   *
+   * @return List of the control blocks, unmodifiable
+   */
+  public synchronized List<VirtualControlBlock> getControlBlocks() {
+    return Collections.unmodifiableList( new ArrayList<VirtualControlBlock>(
+        this.controlBlocks ) );
+  }
+
+  /**
+   * Gets the fleet hosting the IED
+   *
+   * @return VirtualIEDFleet the fleet
+   */
+  public VirtualIEDFleet getFleet() {
+    return this.fleet;
+  }
+
+  /**
+   * Gets the MAC address of the IED. The byte array is NOT copied!
+   *
+   * @return byte[] the MAC address
+   */
+  public byte[] getMac() {
+    return this.mac;
+  }
+
+  /**
+   * Gets the name of the IED
+   *
+   * @return String the name
+   */
+  public String getName() {
+    return this.name;
+  }
+
+  // mutators
+
+  /**
+   * Adds a GOOSE control block to the IED. The control block is scheduled at
+   * once if the fleet is started.
+   *
+   * @param gocbRef
+   *          the reference of the control block, e.g. IED1LD0/LLN0$GO$gcb01
+   * @param datSet
+   *          the reference of the data set
+   * @param goID
+   *          the GOOSE identifier
+   * @param appId
+   *          the APPID
+   * @param timeAllowedToLive
+   *          the time allowed to live in milliseconds, which sets the
+   *          heartbeat to half of it
+   * @throws GOOSEMessageException
+   *           if the control block can not be encoded
+   * @return VirtualControlBlock the control block
+   */
+  public VirtualControlBlock addControlBlock(String gocbRef, String datSet,
+      String goID, int appId, int timeAllowedToLive)
+      throws GOOSEMessageException {
+    VirtualControlBlock controlBlock = new VirtualControlBlock( this, gocbRef,
+        datSet, goID, appId, timeAllowedToLive );
+    synchronized (this) {
+      this.controlBlocks.add( controlBlock );
+    }
+    this.fleet.controlBlockAdded( controlBlock );
+    return controlBlock;
+  }
+
+  /**
+   * Returns a string representing the IED
+   *
+   * @return String representing the instance
+   */
+  public String toString() {
+    return this.name + " [" + BytesUtility.toHexString( this.mac ) + "] "
+        + this.getControlBlocks().size() + " control blocks";
+  }
+}
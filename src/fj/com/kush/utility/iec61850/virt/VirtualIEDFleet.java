@@ -0,0 +1,268 @@
+/**
+ *
+ * Copyright (c) 2008, Packwolf Consulting Ltd, All Rights Reserved.
+ *
+ * @author      Nishchal Kush
+ * @version     %I%, %G%
+ * @since       1.0
+ */
+package fj.com.kush.utility.iec61850.virt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import fj.com.kush.utility.iec61850.GOOSEFrameBatch;
+import fj.com.kush.utility.iec61850.GOOSEMessageException;
+import fj.com.kush.utility.iec61850.GOOSERetransmissionScheduler;
+
+/**
+ * <code>VirtualIEDFleet</code> hosts any number of <code>VirtualIED</code>s in
+ * a single JVM, e.g. to generate substation scale GOOSE traffic from one host.
+ * The control blocks of every IED are registered with one shared
+ * <code>GOOSERetransmissionScheduler</code>, whose single thread acts as the
+ * event loop of the fleet, encoding each frame from the control block's
+ * cached template and handing it to the shared transport. No thread is
+ * created per IED or control block.
+ *
+ * The transport is a <code>GOOSEFrameBatch.FrameHandler</code>, invoked on the
+ * scheduler thread only, e.g. sending on a <code>Pcap</code> handle or writing
+ * to a capture file. The fleet may also be driven without a thread, with a
+ * simulated time, see <code>advance</code>.
+ */
+public final class VirtualIEDFleet {
+
+  // constants
+
+  // locally administered, unicast prefix of generated MAC addresses
+  public static final byte                MAC_PREFIX = (byte) 0x02;
+
+  // attributes
+
+  private final GOOSERetransmissionScheduler scheduler;
+  private final List<VirtualIED>          ieds       = new ArrayList<VirtualIED>();
+  private volatile GOOSEFrameBatch.FrameHandler transport;
+  private volatile boolean                started    = false;
+
+  // statistics, written by the scheduler thread only
+  private volatile long                   frameCount = 0;
+  private volatile long                   byteCount  = 0;
+
+  // constructors
+
+  /**
+   * Constructor accepting the shared transport
+   *
+   * @param transport
+   *          receives every frame sent by the fleet
+   */
+  public VirtualIEDFleet(GOOSEFrameBatch.FrameHandler transport) {
+    this( transport, new GOOSERetransmissionScheduler() );
+  }
+
+  /**
+   * Constructor accepting the shared transport and the scheduler driving the
+   * fleet, e.g. one with a finer tick
+   *
+   * @param transport
+   *          receives every frame sent by the fleet
+   * @param scheduler
+   *          the scheduler
+   */
+  public VirtualIEDFleet(GOOSEFrameBatch.FrameHandler transport,
+      GOOSERetransmissionScheduler scheduler) {
+    this.transport = transport;
+    this.scheduler = scheduler;
+  }
+
+  // accessors
+
+  /**
+   * Gets the number of bytes sent by the fleet
+   *
+   * @return long the number of bytes
+   */
+  public long getByteCount() {
+    return this.byteCount;
+  }
+
+  /**
+   * Gets the number of frames sent by the fleet
+   *
+   * @return long the number of frames
+   */
+  public long getFrameCount() {
+    return this.frameCount;
+  }
+
+  /**
+   * Gets the IEDs of the fleet
+   *
+   * @return List of the IEDs, unmodifiable
+   */
+  public synchronized List<VirtualIED> getIEDs() {
+    return Collections.unmodifiableList( new ArrayList<VirtualIED>( this.ieds ) );
+  }
+
+  /**
+   * Gets the scheduler driving the fleet
+   *
+   * @return GOOSERetransmissionScheduler the scheduler
+   */
+  public GOOSERetransmissionScheduler getScheduler() {
+    return this.scheduler;
+  }
+
+  /**
+   * Gets the shared transport
+   *
+   * @return GOOSEFrameBatch.FrameHandler the transport
+   */
+  public GOOSEFrameBatch.FrameHandler getTransport() {
+    return this.transport;
+  }
+
+  /**
+   * Gets if the fleet is started
+   *
+   * @return boolean true if started, else false
+   */
+  public boolean isStarted() {
+    return this.started;
+  }
+
+  // mutators
+
+  /**
+   * Adds an IED to the fleet with a MAC address generated from its index in
+   * the fleet, see <code>createMac</code>
+   *
+   * @param name
+   *          the name of the IED
+   * @throws GOOSEMessageException
+   *           never for a generated MAC address
+   * @return VirtualIED the IED
+   */
+  public synchronized VirtualIED addIED(String name)
+      throws GOOSEMessageException {
+    return this.addIED( name, VirtualIEDFleet.createMac( this.ieds.size() ) );
+  }
+
+  /**
+   * Adds an IED to the fleet
+   *
+   * @param name
+   *          the name of the IED
+   * @param mac
+   *          the 6 byte MAC address of the IED
+   * @throws GOOSEMessageException
+   *           if the MAC address is invalid
+   * @return VirtualIED the IED
+   */
+  public synchronized VirtualIED addIED(String name, byte[] mac)
+      throws GOOSEMessageException {
+    VirtualIED ied = new VirtualIED( this, name, mac );
+    this.ieds.add( ied );
+    return ied;
+  }
+
+  /**
+   * Sets the shared transport
+   *
+   * @param transport
+   *          receives every frame sent by the fleet
+   */
+  public void setTransport(GOOSEFrameBatch.FrameHandler transport) {
+    this.transport = transport;
+  }
+
+  // auxillary methods
+
+  /**
+   * Creates a locally administered MAC address from the index supplied, i.e.
+   * 02:00 followed by the 32 bit index
+   *
+   * @param index
+   *          the index, e.g. of the IED in the fleet
+   * @return byte[] the MAC address
+   */
+  public static byte[] createMac(int index) {
+    return new byte[] { VirtualIEDFleet.MAC_PREFIX, 0, (byte) ( index >>> 24 ),
+        (byte) ( index >>> 16 ), (byte) ( index >>> 8 ), (byte) index };
+  }
+
+  /**
+   * Applies the queued changes and sends every frame due at or before the
+   * time supplied, when the fleet is driven without the scheduler thread, see
+   * <code>GOOSERetransmissionScheduler.advance</code>
+   *
+   * @param now
+   *          the current time in nanoseconds
+   * @return long the time the fleet next needs advancing
+   */
+  public long advance(long now) {
+    return this.scheduler.advance( now );
+  }
+
+  /**
+   * Schedules every control block of every IED and, if requested, starts the
+   * scheduler thread
+   *
+   * @param thread
+   *          true to start the scheduler thread, false to drive the fleet
+   *          with <code>advance</code>
+   * @throws GOOSEMessageException
+   *           if a control block can not be scheduled
+   */
+  public synchronized void start(boolean thread) throws GOOSEMessageException {
+    this.started = true;
+    for (int i = 0; i < this.ieds.size(); i++) {
+      List<VirtualControlBlock> controlBlocks = this.ieds.get( i )
+          .getControlBlocks();
+      for (int j = 0; j < controlBlocks.size(); j++) {
+        controlBlocks.get( j ).schedule( this.scheduler );
+      }
+    }
+    if (thread) {
+      this.scheduler.start();
+    }
+  }
+
+  /**
+   * Stops the scheduler thread, if started, and unschedules every control
+   * block
+   */
+  public synchronized void stop() {
+    this.scheduler.stop();
+    for (int i = 0; i < this.ieds.size(); i++) {
+      List<VirtualControlBlock> controlBlocks = this.ieds.get( i )
+          .getControlBlocks();
+      for (int j = 0; j < controlBlocks.size(); j++) {
+        controlBlocks.get( j ).unschedule( this.scheduler );
+      }
+    }
+    this.started = false;
+  }
+
+  /**
+   * Schedules a control block added to a started fleet
+   */
+  synchronized void controlBlockAdded(VirtualControlBlock controlBlock)
+      throws GOOSEMessageException {
+    if (this.started) {
+      controlBlock.schedule( this.scheduler );
+    }
+  }
+
+  /**
+   * Hands a frame to the shared transport. Invoked on the scheduler thread.
+   */
+  void deliver(byte[] frame, int length) {
+    GOOSEFrameBatch.FrameHandler current = this.transport;
+    if (current != null) {
+      current.handleFrame( frame, 0, length );
+    }
+    this.frameCount++;
+    this.byteCount += length;
+  }
+}
@@ -0,0 +1,407 @@
+/**
+ *
+ * Copyright (c) 2008, Packwolf Consulting Ltd, All Rights Reserved.
+ *
+ * @author      Nishchal Kush
+ * @version     %I%, %G%
+ * @since       1.0
+ */
+package fj.com.kush.utility.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * <code>PcapFileReader</code> reads the frames of a capture file in pure Java,
+ * the counterpart of <code>PcapFileWriter</code>. Classic pcap files, with
+ * microsecond or nanosecond timestamps, and pcapng files, with enhanced and
+ * simple packet blocks, are read in either byte order.
+ *
+ * <code>next</code> advances to the next frame, which is then read in place
+ * from the reader's buffer, i.e. without a copy, through
+ * <code>getArray</code> and <code>getOffset</code>, until the next call.
+ * Instances are not thread safe.
+ */
+public final class PcapFileReader implements Closeable {
+
+  // constants
+
+  public static final int   DEFAULT_BUFFER     = 1 << 20; // 1MB
+
+  private static final int  PCAP_MAGIC_MICROS  = 0xa1b2c3d4;
+  private static final int  PCAP_MAGIC_NANOS   = 0xa1b23c4d;
+  private static final int  BLOCK_SHB          = 0x0a0d0d0a;
+  private static final int  BLOCK_IDB          = 0x00000001;
+  private static final int  BLOCK_SPB          = 0x00000003;
+  private static final int  BLOCK_EPB          = 0x00000006;
+  private static final int  BYTE_ORDER_MAGIC   = 0x1a2b3c4d;
+  private static final int  OPT_IF_TSRESOL     = 9;
+
+  private static final long NANOS_PER_SECOND   = 1000000000L;
+
+  // attributes
+
+  private final FileChannel channel;
+  private final boolean     pcapng;
+
+  private ByteBuffer        buffer;
+  private boolean           eof           = false;
+
+  // classic pcap timestamp scale and link type
+  private long              fractionNanos = 1000L;
+  private int               linkType      = -1;
+
+  // pcapng units per second of the timestamps of each interface
+  private long[]            resolutions   = new long[4];
+  private int[]             linkTypes     = new int[4];
+  private int               interfaces    = 0;
+
+  // the current frame
+  private int               offset        = 0;
+  private int               captureLength = 0;
+  private int               length        = 0;
+  private long              timeNanos     = 0;
+  private int               iface         = 0;
+  private long              frameCount    = 0;
+
+  // constructors
+
+  /**
+   * Constructor accepting the file to read
+   *
+   * @param file
+   *          the path of the capture file
+   * @throws IOException
+   *           if the file can not be read or is not a capture file
+   */
+  public PcapFileReader(String file) throws IOException {
+    this.channel = FileChannel.open( Paths.get( file ), StandardOpenOption.READ );
+    this.buffer = ByteBuffer.allocate( DEFAULT_BUFFER );
+    this.buffer.flip();
+
+    try {
+      if (!this.ensure( 24 )) {
+        throw new IOException( "Not a capture file" );
+      }
+      int magic = this.buffer.order( ByteOrder.LITTLE_ENDIAN ).getInt(
+          this.buffer.position() );
+      if (magic == BLOCK_SHB) {
+        this.pcapng = true;
+      } else {
+        this.pcapng = false;
+        if (!this.order( magic, PCAP_MAGIC_MICROS, PCAP_MAGIC_NANOS )) {
+          throw new IOException( "Not a capture file" );
+        }
+        magic = this.buffer.getInt();
+        this.fractionNanos = (magic == PCAP_MAGIC_NANOS ? 1L : 1000L);
+        this.buffer.position( this.buffer.position() + 16 );
+        this.linkType = this.buffer.getInt();
+      }
+    } catch (IOException ioe) {
+      this.channel.close();
+      throw ioe;
+    }
+  }
+
+  // accessors
+
+  /**
+   * Gets the array holding the current frame, valid until the next call to
+   * <code>next</code>
+   *
+   * @return byte[] the array
+   */
+  public byte[] getArray() {
+    return this.buffer.array();
+  }
+
+  /**
+   * Gets the number of bytes of the current frame held in the file
+   *
+   * @return int the captured length
+   */
+  public int getCaptureLength() {
+    return this.captureLength;
+  }
+
+  /**
+   * Gets the number of frames read
+   *
+   * @return long the number of frames
+   */
+  public long getFrameCount() {
+    return this.frameCount;
+  }
+
+  /**
+   * Gets the interface of the current frame, always 0 for a pcap file
+   *
+   * @return int the id of the interface
+   */
+  public int getInterface() {
+    return this.iface;
+  }
+
+  /**
+   * Gets the link type of the current frame
+   *
+   * @return int the link type, e.g. 1 for Ethernet
+   */
+  public int getLinkType() {
+    if (!this.pcapng) {
+      return this.linkType;
+    }
+    return (this.iface < this.interfaces ? this.linkTypes[this.iface] : -1);
+  }
+
+  /**
+   * Gets the offset of the current frame in the array
+   *
+   * @return int the offset
+   */
+  public int getOffset() {
+    return this.offset;
+  }
+
+  /**
+   * Gets the length of the current frame on the wire, which may be more than
+   * was captured
+   *
+   * @return int the original length
+   */
+  public int getOriginalLength() {
+    return this.length;
+  }
+
+  /**
+   * Gets the timestamp of the current frame
+   *
+   * @return long the nanoseconds since the epoch
+   */
+  public long getTimeNanos() {
+    return this.timeNanos;
+  }
+
+  /**
+   * Gets if the file is in the pcapng format
+   *
+   * @return boolean true if pcapng, false if pcap
+   */
+  public boolean isPcapng() {
+    return this.pcapng;
+  }
+
+  // auxillary methods
+
+  /**
+   * Advances to the next frame of the file
+   *
+   * @return boolean true if there is a frame, false at the end of the file
+   * @throws IOException
+   *           if the file can not be read or is malformed
+   */
+  public boolean next() throws IOException {
+    return (this.pcapng ? this.nextBlock() : this.nextRecord());
+  }
+
+  /**
+   * Closes the file
+   *
+   * @throws IOException
+   *           if the file can not be closed
+   */
+  public void close() throws IOException {
+    this.channel.close();
+  }
+
+  /**
+   * Advances to the next record of a pcap file
+   */
+  private boolean nextRecord() throws IOException {
+    if (!this.ensure( 16 )) {
+      return false;
+    }
+    long seconds = this.buffer.getInt() & 0xffffffffL;
+    long fraction = this.buffer.getInt() & 0xffffffffL;
+    int caplen = this.buffer.getInt();
+    int origlen = this.buffer.getInt();
+    if (caplen < 0 || !this.ensure( caplen )) {
+      throw new IOException( "Truncated record" );
+    }
+    this.frame( this.buffer.position(), caplen, origlen, seconds
+        * NANOS_PER_SECOND + fraction * this.fractionNanos, 0 );
+    this.buffer.position( this.buffer.position() + caplen );
+    return true;
+  }
+
+  /**
+   * Advances to the next packet block of a pcapng file, reading the section
+   * and interface blocks on the way
+   */
+  private boolean nextBlock() throws IOException {
+    while (this.ensure( 12 )) {
+      int start = this.buffer.position();
+      int type = this.buffer.getInt( start );
+      if (type == BLOCK_SHB
+          && !this.order( this.buffer.getInt( start + 8 ), BYTE_ORDER_MAGIC,
+              BYTE_ORDER_MAGIC )) {
+        throw new IOException( "Bad section header" );
+      }
+      int total = this.buffer.getInt( start + 4 );
+      if (total < 12 || ( total & 3 ) != 0 || !this.ensure( total )) {
+        throw new IOException( "Truncated block" );
+      }
+      start = this.buffer.position(); // may have moved when refilled
+      this.buffer.position( start + total );
+
+      switch (type) {
+      case BLOCK_SHB:
+        this.interfaces = 0; // a new section
+        break;
+      case BLOCK_IDB:
+        this.addInterface( start, total );
+        break;
+      case BLOCK_EPB: {
+        int id = this.buffer.getInt( start + 8 );
+        long ts = ( (long) this.buffer.getInt( start + 12 ) << 32 )
+            | ( this.buffer.getInt( start + 16 ) & 0xffffffffL );
+        int caplen = Math.min( this.buffer.getInt( start + 20 ), total - 32 );
+        long units = (id < this.interfaces ? this.resolutions[id] : 1000000L);
+        this.frame( start + 28, caplen, this.buffer.getInt( start + 24 ),
+            PcapFileReader.toNanos( ts, units ), id );
+        return true;
+      }
+      case BLOCK_SPB: {
+        int origlen = this.buffer.getInt( start + 8 );
+        this.frame( start + 12, Math.min( origlen, total - 16 ), origlen, 0, 0 );
+        return true;
+      }
+      default:
+        break; // skip other blocks
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Reads an interface description block, keeping the link type and the
+   * timestamp resolution of the interface
+   */
+  private void addInterface(int start, int total) {
+    if (this.interfaces == this.resolutions.length) {
+      long[] grownResolutions = new long[this.interfaces * 2];
+      int[] grownLinkTypes = new int[this.interfaces * 2];
+      System.arraycopy( this.resolutions, 0, grownResolutions, 0,
+          this.interfaces );
+      System.arraycopy( this.linkTypes, 0, grownLinkTypes, 0, this.interfaces );
+      this.resolutions = grownResolutions;
+      this.linkTypes = grownLinkTypes;
+    }
+
+    long units = 1000000L; // microseconds unless specified
+    int option = start + 16;
+    int end = start + total - 4;
+    while (option + 4 <= end) {
+      int code = this.buffer.getShort( option ) & 0xffff;
+      int optionLength = this.buffer.getShort( option + 2 ) & 0xffff;
+      if (code == 0) {
+        break;
+      }
+      if (code == OPT_IF_TSRESOL && optionLength >= 1) {
+        int resolution = this.buffer.get( option + 4 ) & 0xff;
+        int exponent = resolution & 0x7f;
+        if (( resolution & 0x80 ) != 0) {
+          units = 1L << Math.min( exponent, 62 );
+        } else {
+          units = 1;
+          for (int i = 0; i < Math.min( exponent, 18 ); i++) {
+            units *= 10;
+          }
+        }
+      }
+      option += 4 + ( ( optionLength + 3 ) & ~3 );
+    }
+
+    this.linkTypes[this.interfaces] = this.buffer.getShort( start + 8 ) & 0xffff;
+    this.resolutions[this.interfaces++] = units;
+  }
+
+  /**
+   * Sets the current frame
+   */
+  private void frame(int offset, int caplen, int origlen, long nanos, int id) {
+    this.offset = offset;
+    this.captureLength = caplen;
+    this.length = origlen;
+    this.timeNanos = nanos;
+    this.iface = id;
+    this.frameCount++;
+  }
+
+  /**
+   * Sets the byte order of the buffer from the magic number supplied
+   *
+   * @return boolean false if the magic number matches neither value in
+   *         either byte order
+   */
+  private boolean order(int magic, int first, int second) {
+    if (magic == first || magic == second) {
+      return true;
+    }
+    if (Integer.reverseBytes( magic ) == first
+        || Integer.reverseBytes( magic ) == second) {
+      this.buffer.order( this.buffer.order() == ByteOrder.LITTLE_ENDIAN
+          ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN );
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Ensures the number of bytes specified are buffered from the position,
+   * compacting, growing and refilling the buffer as required
+   *
+   * @return boolean false if the file ends first
+   */
+  private boolean ensure(int count) throws IOException {
+    while (this.buffer.remaining() < count) {
+      if (this.eof) {
+        return false;
+      }
+      if (this.buffer.capacity() < count) {
+        ByteBuffer grown = ByteBuffer.allocate( Math.max( count,
+            this.buffer.capacity() * 2 ) );
+        grown.order( this.buffer.order() );
+        grown.put( this.buffer );
+        this.buffer = grown;
+      } else {
+        this.buffer.compact();
+      }
+      if (this.channel.read( this.buffer ) < 0) {
+        this.eof = true;
+      }
+      this.buffer.flip();
+    }
+    return true;
+  }
+
+  /**
+   * Converts a timestamp in the units per second supplied to nanoseconds
+   */
+  private static long toNanos(long ts, long units) {
+    if (units == NANOS_PER_SECOND) {
+      return ts;
+    }
+    long seconds = Long.divideUnsigned( ts, units );
+    long remainder = Long.remainderUnsigned( ts, units );
+    if (units <= NANOS_PER_SECOND) {
+      return seconds * NANOS_PER_SECOND + remainder * NANOS_PER_SECOND / units;
+    }
+    return seconds * NANOS_PER_SECOND + remainder / ( units / NANOS_PER_SECOND );
+  }
+}
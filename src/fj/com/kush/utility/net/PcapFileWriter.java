@@ -0,0 +1,498 @@
+/**
+ *
+ * Copyright (c) 2008, Packwolf Consulting Ltd, All Rights Reserved.
+ *
+ * @author      Nishchal Kush
+ * @version     %I%, %G%
+ * @since       1.0
+ */
+package fj.com.kush.utility.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * <code>PcapFileWriter</code> writes capture files in pure Java, in the
+ * classic pcap format or in the pcapng format, with nanosecond timestamps.
+ * Records are appended into a memory-mapped window of the file, which is
+ * mapped a window further on whenever a record does not fit, so writing costs
+ * a copy per frame rather than a system call, and the file grows on demand.
+ * The file is truncated to the records written when closed.
+ *
+ * Frames are accepted as <code>ByteBuffer</code> slices, e.g. views of a
+ * larger buffer, or as byte arrays. Interface 0 is created with the writer;
+ * further interfaces may be added to a pcapng file, e.g. one per NIC.
+ *
+ * A writer is intended for a single writing thread.
+ */
+public final class PcapFileWriter implements Closeable {
+
+  // constants
+
+  public static final int    FORMAT_PCAP        = 1;
+  public static final int    FORMAT_PCAPNG      = 2;
+
+  public static final int    LINKTYPE_ETHERNET  = 1;
+  public static final int    DEFAULT_SNAPLEN    = 65535;
+  public static final int    DEFAULT_WINDOW     = 64 << 20; // 64MB
+
+  // classic pcap with nanosecond timestamps
+  private static final int   PCAP_MAGIC_NANOS   = 0xa1b23c4d;
+  private static final int   PCAP_HEADER_LENGTH = 24;
+  private static final int   PCAP_RECORD_HEADER = 16;
+
+  // pcapng blocks and options
+  private static final int   BLOCK_SHB          = 0x0a0d0d0a;
+  private static final int   BLOCK_IDB          = 0x00000001;
+  private static final int   BLOCK_EPB          = 0x00000006;
+  private static final int   BYTE_ORDER_MAGIC   = 0x1a2b3c4d;
+  private static final int   EPB_OVERHEAD       = 32;
+  private static final short OPT_END            = 0;
+  private static final short OPT_IF_NAME        = 2;
+  private static final short OPT_IF_TSRESOL     = 9;
+  private static final byte  TSRESOL_NANOS      = 9;
+
+  private static final long  NANOS_PER_SECOND   = 1000000000L;
+
+  // attributes
+
+  private final FileChannel  channel;
+  private final int          format;
+  private final int          window;
+
+  private MappedByteBuffer   mapped      = null;
+  private long               mappedStart = 0;   // file offset of the window
+  private long               position    = 0;   // file offset of the end
+
+  private int[]              snaplens    = new int[4];
+  private int                interfaces  = 0;
+
+  private long               recordCount = 0;
+  private boolean            closed      = false;
+
+  // constructors
+
+  /**
+   * Constructor accepting the file, creating an Ethernet pcapng file
+   *
+   * @param file
+   *          the path of the file to create, replaced if it exists
+   * @throws IOException
+   *           if the file can not be created
+   */
+  public PcapFileWriter(String file) throws IOException {
+    this( Paths.get( file ), FORMAT_PCAPNG, LINKTYPE_ETHERNET, DEFAULT_SNAPLEN,
+        DEFAULT_WINDOW );
+  }
+
+  /**
+   * Constructor accepting the file, format, link type of interface 0 and the
+   * snapshot length
+   *
+   * @param file
+   *          the path of the file to create, replaced if it exists
+   * @param format
+   *          FORMAT_PCAP or FORMAT_PCAPNG
+   * @param linkType
+   *          the link type, e.g. LINKTYPE_ETHERNET
+   * @param snaplen
+   *          the largest number of bytes written per frame
+   * @throws IOException
+   *           if the file can not be created
+   */
+  public PcapFileWriter(String file, int format, int linkType, int snaplen)
+      throws IOException {
+    this( Paths.get( file ), format, linkType, snaplen, DEFAULT_WINDOW );
+  }
+
+  /**
+   * Constructor accepting the file, format, link type of interface 0, the
+   * snapshot length and the size of the mapped window
+   *
+   * @param file
+   *          the path of the file to create, replaced if it exists
+   * @param format
+   *          FORMAT_PCAP or FORMAT_PCAPNG
+   * @param linkType
+   *          the link type, e.g. LINKTYPE_ETHERNET
+   * @param snaplen
+   *          the largest number of bytes written per frame
+   * @param window
+   *          the number of bytes mapped at a time, larger windows remap less
+   * @throws IOException
+   *           if the file can not be created
+   */
+  public PcapFileWriter(Path file, int format, int linkType, int snaplen,
+      int window) throws IOException {
+    this.format = (format == FORMAT_PCAP ? FORMAT_PCAP : FORMAT_PCAPNG);
+    this.window = Math.max( window, 4096 );
+    this.channel = FileChannel.open( file, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+        StandardOpenOption.WRITE );
+
+    try {
+      if (this.format == FORMAT_PCAP) {
+        ByteBuffer buffer = this.reserve( PCAP_HEADER_LENGTH );
+        buffer.putInt( PCAP_MAGIC_NANOS );
+        buffer.putShort( (short) 2 ); // version 2.4
+        buffer.putShort( (short) 4 );
+        buffer.putInt( 0 );           // GMT
+        buffer.putInt( 0 );           // accuracy
+        buffer.putInt( snaplen );
+        buffer.putInt( linkType );
+        this.snaplens[this.interfaces++] = snaplen;
+      } else {
+        ByteBuffer buffer = this.reserve( 28 );
+        buffer.putInt( BLOCK_SHB );
+        buffer.putInt( 28 );
+        buffer.putInt( BYTE_ORDER_MAGIC );
+        buffer.putShort( (short) 1 ); // version 1.0
+        buffer.putShort( (short) 0 );
+        buffer.putLong( -1L );        // section length unknown
+        buffer.putInt( 28 );
+        this.addInterface( linkType, snaplen, null );
+      }
+    } catch (IOException ioe) {
+      this.channel.close();
+      throw ioe;
+    }
+  }
+
+  // accessors
+
+  /**
+   * Gets the format of the file
+   *
+   * @return int FORMAT_PCAP or FORMAT_PCAPNG
+   */
+  public int getFormat() {
+    return this.format;
+  }
+
+  /**
+   * Gets the number of interfaces of the file
+   *
+   * @return int the number of interfaces
+   */
+  public int getInterfaceCount() {
+    return this.interfaces;
+  }
+
+  /**
+   * Gets the number of bytes written, i.e. the length of the file once
+   * closed
+   *
+   * @return long the number of bytes
+   */
+  public long getPosition() {
+    return this.position;
+  }
+
+  /**
+   * Gets the number of frames written
+   *
+   * @return long the number of frames
+   */
+  public long getRecordCount() {
+    return this.recordCount;
+  }
+
+  // mutators
+
+  /**
+   * Adds an interface to a pcapng file, whose frames are timestamped in
+   * nanoseconds
+   *
+   * @param linkType
+   *          the link type, e.g. LINKTYPE_ETHERNET
+   * @param snaplen
+   *          the largest number of bytes written per frame
+   * @param name
+   *          the name of the interface, or null
+   * @throws IOException
+   *           if the file can not be written
+   * @return int the id of the interface, or -1 for a pcap file, which has
+   *         a single interface
+   */
+  public int addInterface(int linkType, int snaplen, String name)
+      throws IOException {
+    if (this.format != FORMAT_PCAPNG) {
+      return -1;
+    }
+
+    byte[] nameBytes = (name == null ? null : name
+        .getBytes( StandardCharsets.UTF_8 ));
+    int length = 20 + 8 + 4; // header, if_tsresol and end of options
+    if (nameBytes != null) {
+      length += 4 + PcapFileWriter.pad( nameBytes.length );
+    }
+
+    ByteBuffer buffer = this.reserve( length );
+    buffer.putInt( BLOCK_IDB );
+    buffer.putInt( length );
+    buffer.putShort( (short) linkType );
+    buffer.putShort( (short) 0 );
+    buffer.putInt( snaplen );
+    if (nameBytes != null) {
+      buffer.putShort( OPT_IF_NAME );
+      buffer.putShort( (short) nameBytes.length );
+      buffer.put( nameBytes );
+      PcapFileWriter.zero( buffer, PcapFileWriter.pad( nameBytes.length )
+          - nameBytes.length );
+    }
+    buffer.putShort( OPT_IF_TSRESOL );
+    buffer.putShort( (short) 1 );
+    buffer.put( TSRESOL_NANOS );
+    PcapFileWriter.zero( buffer, 3 );
+    buffer.putShort( OPT_END );
+    buffer.putShort( (short) 0 );
+    buffer.putInt( length );
+
+    if (this.interfaces == this.snaplens.length) {
+      int[] grown = new int[this.interfaces * 2];
+      System.arraycopy( this.snaplens, 0, grown, 0, this.interfaces );
+      this.snaplens = grown;
+    }
+    this.snaplens[this.interfaces] = snaplen;
+    return this.interfaces++;
+  }
+
+  // auxillary methods
+
+  /**
+   * Writes a frame on interface 0
+   *
+   * @param nanos
+   *          the timestamp in nanoseconds since the epoch
+   * @param frame
+   *          the frame, from its position to its limit, which are unchanged
+   * @throws IOException
+   *           if the file can not be written
+   */
+  public void write(long nanos, ByteBuffer frame) throws IOException {
+    this.write( 0, nanos, frame );
+  }
+
+  /**
+   * Writes a frame on the interface specified
+   *
+   * @param iface
+   *          the id of the interface, always 0 for a pcap file
+   * @param nanos
+   *          the timestamp in nanoseconds since the epoch
+   * @param frame
+   *          the frame, from its position to its limit, which are unchanged
+   * @throws IOException
+   *           if the file can not be written
+   */
+  public void write(int iface, long nanos, ByteBuffer frame) throws IOException {
+    int length = frame.remaining();
+    int caplen = Math.min( length, this.snaplens[iface] );
+    ByteBuffer buffer = this.header( iface, nanos, caplen, length );
+    int limit = frame.limit();
+    frame.limit( frame.position() + caplen );
+    buffer.put( frame.duplicate() );
+    frame.limit( limit );
+    this.trailer( buffer, caplen );
+  }
+
+  /**
+   * Writes a frame on the interface specified
+   *
+   * @param iface
+   *          the id of the interface, always 0 for a pcap file
+   * @param nanos
+   *          the timestamp in nanoseconds since the epoch
+   * @param frame
+   *          the bytes of the frame
+   * @param offset
+   *          the offset of the frame in the bytes
+   * @param length
+   *          the length of the frame
+   * @throws IOException
+   *           if the file can not be written
+   */
+  public void write(int iface, long nanos, byte[] frame, int offset,
+      int length) throws IOException {
+    int caplen = Math.min( length, this.snaplens[iface] );
+    ByteBuffer buffer = this.header( iface, nanos, caplen, length );
+    buffer.put( frame, offset, caplen );
+    this.trailer( buffer, caplen );
+  }
+
+  /**
+   * Writes frames held in a single byte array, e.g. a batch encoded into one
+   * slab, on the interface specified and with the same timestamp. The records
+   * of all the frames are reserved at once, so they are appended in a single
+   * mapped window.
+   *
+   * @param iface
+   *          the id of the interface, always 0 for a pcap file
+   * @param nanos
+   *          the timestamp in nanoseconds since the epoch
+   * @param frames
+   *          the bytes of the frames
+   * @param offsets
+   *          the offset of each frame in the bytes
+   * @param lengths
+   *          the length of each frame
+   * @param count
+   *          the number of frames
+   * @throws IOException
+   *           if the file can not be written
+   */
+  public void write(int iface, long nanos, byte[] frames, int[] offsets,
+      int[] lengths, int count) throws IOException {
+    this.checkInterface( iface );
+    int snaplen = this.snaplens[iface];
+    int total = 0;
+    for (int i = 0; i < count; i++) {
+      total += this.recordLength( Math.min( lengths[i], snaplen ) );
+    }
+    ByteBuffer buffer = this.reserve( total );
+    for (int i = 0; i < count; i++) {
+      int caplen = Math.min( lengths[i], snaplen );
+      this.header( buffer, iface, nanos, caplen, lengths[i] );
+      buffer.put( frames, offsets[i], caplen );
+      this.trailer( buffer, caplen );
+    }
+  }
+
+  /**
+   * Forces the records written to the storage device
+   */
+  public void flush() {
+    if (this.mapped != null) {
+      this.mapped.force();
+    }
+  }
+
+  /**
+   * Flushes the records, truncates the file to the records written and closes
+   * it
+   *
+   * @throws IOException
+   *           if the file can not be truncated or closed
+   */
+  public void close() throws IOException {
+    if (this.closed) {
+      return;
+    }
+    this.closed = true;
+    try {
+      this.flush();
+      this.mapped = null;
+      this.channel.truncate( this.position );
+    } finally {
+      this.channel.close();
+    }
+  }
+
+  /**
+   * Writes the header of a frame record, returning the buffer to write the
+   * captured bytes to
+   */
+  private ByteBuffer header(int iface, long nanos, int caplen, int length)
+      throws IOException {
+    this.checkInterface( iface );
+    ByteBuffer buffer = this.reserve( this.recordLength( caplen ) );
+    this.header( buffer, iface, nanos, caplen, length );
+    return buffer;
+  }
+
+  /**
+   * Writes the header of a frame record to the reserved buffer supplied
+   */
+  private void header(ByteBuffer buffer, int iface, long nanos, int caplen,
+      int length) {
+    if (this.format == FORMAT_PCAP) {
+      buffer.putInt( (int) Math.floorDiv( nanos, NANOS_PER_SECOND ) );
+      buffer.putInt( (int) Math.floorMod( nanos, NANOS_PER_SECOND ) );
+    } else {
+      buffer.putInt( BLOCK_EPB );
+      buffer.putInt( this.recordLength( caplen ) );
+      buffer.putInt( iface );
+      buffer.putInt( (int) ( nanos >>> 32 ) );
+      buffer.putInt( (int) nanos );
+    }
+    buffer.putInt( caplen );
+    buffer.putInt( length );
+  }
+
+  /**
+   * Checks that the interface has been added
+   */
+  private void checkInterface(int iface) throws IOException {
+    if (iface < 0 || iface >= this.interfaces) {
+      throw new IOException( "Unknown interface " + iface );
+    }
+  }
+
+  /**
+   * Gets the length of the record of a frame of the capture length supplied
+   */
+  private int recordLength(int caplen) {
+    return ( this.format == FORMAT_PCAP ? PCAP_RECORD_HEADER + caplen
+        : EPB_OVERHEAD + PcapFileWriter.pad( caplen ) );
+  }
+
+  /**
+   * Writes the padding and trailer of a frame record, if any
+   */
+  private void trailer(ByteBuffer buffer, int caplen) {
+    if (this.format == FORMAT_PCAPNG) {
+      int padded = PcapFileWriter.pad( caplen );
+      PcapFileWriter.zero( buffer, padded - caplen );
+      buffer.putInt( EPB_OVERHEAD + padded );
+    }
+    this.recordCount++;
+  }
+
+  /**
+   * Reserves the number of bytes specified at the end of the file, mapping
+   * the next window if they do not fit in the current one
+   *
+   * @return ByteBuffer the mapped buffer positioned at the reserved bytes
+   */
+  private ByteBuffer reserve(int length) throws IOException {
+    if (this.closed) {
+      throw new IOException( "Closed" );
+    }
+    long end = this.position + length;
+    if (this.mapped == null || end > this.mappedStart + this.mapped.capacity()) {
+      // map from the end of the file, growing it, so a record never spans
+      // windows
+      this.mapped = this.channel.map( FileChannel.MapMode.READ_WRITE,
+          this.position, Math.max( this.window, length ) );
+      this.mapped.order( ByteOrder.LITTLE_ENDIAN );
+      this.mappedStart = this.position;
+    }
+    this.mapped.position( (int) ( this.position - this.mappedStart ) );
+    this.position = end;
+    return this.mapped;
+  }
+
+  /**
+   * Rounds the length supplied up to a multiple of 4
+   */
+  private static int pad(int length) {
+    return ( length + 3 ) & ~3;
+  }
+
+  /**
+   * Writes the number of zero bytes specified
+   */
+  private static void zero(ByteBuffer buffer, int count) {
+    for (int i = 0; i < count; i++) {
+      buffer.put( (byte) 0 );
+    }
+  }
+}
@@ -0,0 +1,86 @@
+/**
+ *
+ * Copyright (c) 2008, Packwolf Consulting Ltd, All Rights Reserved.
+ *
+ * @author      Nishchal Kush
+ * @version     %I%, %G%
+ * @since       1.0
+ */
+package fj.com.kush.utility;
+
+/**
+ * <code>TestSupport</code> holds the checks and fixtures shared by the tests,
+ * e.g. the frames of varying length holding their sequence number that are
+ * passed through the rings.
+ */
+public final class TestSupport {
+
+  // constructors
+
+  private TestSupport() {
+  }
+
+  // auxillary methods
+
+  /**
+   * Throws an <code>AssertionError</code> with the message supplied if the
+   * condition is false
+   *
+   * @param condition
+   *          the condition to check
+   * @param message
+   *          the message of the error
+   */
+  public static void check(boolean condition, String message) {
+    if (!condition) {
+      throw new AssertionError( message );
+    }
+  }
+
+  /**
+   * Gets the length of the frame of the sequence number supplied
+   *
+   * @param sequence
+   *          the sequence number
+   * @return int the length, from 4 to 63 bytes
+   */
+  public static int frameLength(int sequence) {
+    return 4 + sequence % 60;
+  }
+
+  /**
+   * Creates a frame holding its sequence number in its first 4 bytes, big
+   * endian, each following byte being the sequence number plus its index
+   *
+   * @param sequence
+   *          the sequence number
+   * @return byte[] the frame
+   */
+  public static byte[] frame(int sequence) {
+    int length = TestSupport.frameLength( sequence );
+    byte[] frame = new byte[length];
+    for (int i = 0; i < length; i++) {
+      frame[i] = (byte) ( sequence + i );
+    }
+    frame[0] = (byte) ( sequence >>> 24 );
+    frame[1] = (byte) ( sequence >>> 16 );
+    frame[2] = (byte) ( sequence >>> 8 );
+    frame[3] = (byte) sequence;
+    return frame;
+  }
+
+  /**
+   * Gets the sequence number held by a frame created by <code>frame</code>
+   *
+   * @param frame
+   *          the byte array holding the frame
+   * @param offset
+   *          the offset of the frame
+   * @return int the sequence number
+   */
+  public static int sequence(byte[] frame, int offset) {
+    return ( ( frame[offset] & 0xff ) << 24 )
+        | ( ( frame[offset + 1] & 0xff ) << 16 )
+        | ( ( frame[offset + 2] & 0xff ) << 8 ) | ( frame[offset + 3] & 0xff );
+  }
+}
@@ -0,0 +1,222 @@
+/**
+ *
+ * Copyright (c) 2008, Packwolf Consulting Ltd, All Rights Reserved.
+ *
+ * @author      Nishchal Kush
+ * @version     %I%, %G%
+ * @since       1.0
+ */
+package fj.com.kush.utility;
+
+import java.util.Random;
+
+import static fj.com.kush.utility.TestSupport.check;
+
+/**
+ * Checks that <code>TimingWheel</code> expires every timer exactly once, on
+ * the first advance at or after its deadline, within a tick, across many
+ * rotations of the wheel and when advancing past several rotations at once.
+ */
+public class TimingWheelTest {
+
+  // constants
+
+  private static final long TICK = 1000L;
+  private static final int  SIZE = 8;
+  private static final long T0   = 1000000000L;
+
+  // auxillary methods
+
+  /**
+   * Runs the tests, throwing an <code>AssertionError</code> on failure
+   *
+   * @param args
+   *          ignored
+   */
+  public static void main(String[] args) {
+    testTick();
+    testRotations();
+    testSkippedRotations();
+    testCancelAndReschedule();
+    testPeriodic();
+    testRandom();
+    System.out.println( "TimingWheelTest ok" );
+  }
+
+  /**
+   * A timer expires at its deadline, not before, and the next deadline is
+   * exact within the current tick
+   */
+  static void testTick() {
+    TimingWheel wheel = new TimingWheel( TICK, SIZE );
+    check( wheel.getNextDeadline() == Long.MIN_VALUE, "deadline unadvanced" );
+    wheel.advance( T0 );
+    check( wheel.getNextDeadline() == T0 + TICK, "next tick "
+        + wheel.getNextDeadline() );
+
+    Recorder early = new Recorder();
+    Recorder late = new Recorder();
+    wheel.schedule( early, T0 + 300 );
+    wheel.schedule( late, T0 + 700 );
+    check( wheel.size() == 2, "size " + wheel.size() );
+    check( wheel.getNextDeadline() == T0 + 300, "next deadline "
+        + wheel.getNextDeadline() );
+
+    check( wheel.advance( T0 + 299 ) == 0, "expired early" );
+    check( wheel.advance( T0 + 300 ) == 1 && early.expiries == 1,
+        "not expired at the deadline" );
+    check( early.at == T0 + 300 && !early.isScheduled(), "expiry time" );
+    check( wheel.getNextDeadline() == T0 + 700, "next deadline "
+        + wheel.getNextDeadline() );
+    check( wheel.advance( T0 + TICK ) == 1 && late.expiries == 1,
+        "not expired at the tick" );
+    check( wheel.size() == 0, "size " + wheel.size() );
+
+    // a deadline already past expires on the next advance
+    Recorder past = new Recorder();
+    wheel.schedule( past, T0 );
+    check( wheel.advance( T0 + TICK ) == 1 && past.expiries == 1, "past" );
+  }
+
+  /**
+   * Timers many rotations ahead share buckets with nearer timers, yet only
+   * expire once their own deadline is reached
+   */
+  static void testRotations() {
+    TimingWheel wheel = new TimingWheel( TICK, SIZE );
+    wheel.advance( T0 );
+    Recorder[] timers = new Recorder[40];
+    for (int i = 0; i < timers.length; i++) {
+      timers[i] = new Recorder();
+      wheel.schedule( timers[i], T0 + i * TICK * 3 + 1 );
+    }
+    for (long now = T0; now <= T0 + 40 * TICK * 3; now += TICK) {
+      wheel.advance( now );
+      for (int i = 0; i < timers.length; i++) {
+        long deadline = T0 + i * TICK * 3 + 1;
+        check( timers[i].expiries == ( now >= deadline ? 1 : 0 ), "timer "
+            + i + " at " + ( now - T0 ) );
+      }
+    }
+    check( wheel.size() == 0, "size " + wheel.size() );
+  }
+
+  /**
+   * Advancing past several rotations at once expires every timer due and
+   * none that are not
+   */
+  static void testSkippedRotations() {
+    TimingWheel wheel = new TimingWheel( TICK, SIZE );
+    wheel.advance( T0 );
+    Recorder due = new Recorder();
+    Recorder current = new Recorder();
+    Recorder later = new Recorder();
+    wheel.schedule( due, T0 + 5 * TICK );
+    wheel.schedule( current, T0 + 30 * TICK + 500 );
+    wheel.schedule( later, T0 + 31 * TICK );
+
+    check( wheel.advance( T0 + 30 * TICK ) == 1, "skipped rotations" );
+    check( due.expiries == 1 && current.expiries == 0
+        && later.expiries == 0, "expired the wrong timers" );
+    // the timer of the current tick, in a bucket visited in the rotation
+    check( wheel.getNextDeadline() == T0 + 30 * TICK + 500, "next deadline "
+        + wheel.getNextDeadline() );
+    check( wheel.advance( T0 + 31 * TICK ) == 2, "remaining timers" );
+  }
+
+  /**
+   * Cancelled timers never expire and rescheduled timers expire only at the
+   * new deadline
+   */
+  static void testCancelAndReschedule() {
+    TimingWheel wheel = new TimingWheel( TICK, SIZE );
+    wheel.advance( T0 );
+    Recorder cancelled = new Recorder();
+    Recorder moved = new Recorder();
+    wheel.schedule( cancelled, T0 + 2 * TICK );
+    wheel.schedule( moved, T0 + 2 * TICK );
+    check( wheel.cancel( cancelled ) && !wheel.cancel( cancelled ), "cancel" );
+    wheel.schedule( moved, T0 + 20 * TICK );
+    check( wheel.size() == 1, "size " + wheel.size() );
+
+    check( wheel.advance( T0 + 19 * TICK ) == 0, "expired before moved" );
+    check( wheel.advance( T0 + 20 * TICK ) == 1 && moved.expiries == 1,
+        "moved timer" );
+    check( cancelled.expiries == 0, "cancelled timer expired" );
+  }
+
+  /**
+   * A timer rescheduling itself from <code>expire</code>, in the same bucket
+   * as other timers, expires once per period
+   */
+  static void testPeriodic() {
+    final TimingWheel wheel = new TimingWheel( TICK, SIZE );
+    wheel.advance( T0 );
+    Recorder periodic = new Recorder() {
+      protected void expire(long now) {
+        super.expire( now );
+        wheel.schedule( this, this.getDeadline() + SIZE * TICK );
+      }
+    };
+    Recorder neighbour = new Recorder();
+    wheel.schedule( periodic, T0 + TICK );
+    wheel.schedule( neighbour, T0 + TICK + 3 * SIZE * TICK );
+    for (long now = T0; now <= T0 + TICK + 10 * SIZE * TICK; now += TICK) {
+      wheel.advance( now );
+    }
+    check( periodic.expiries == 11, "periodic " + periodic.expiries );
+    check( neighbour.expiries == 1, "neighbour " + neighbour.expiries );
+  }
+
+  /**
+   * Random deadlines and advances, each timer expiring exactly once, on the
+   * first advance at or after its deadline
+   */
+  static void testRandom() {
+    Random random = new Random( 7 );
+    TimingWheel wheel = new TimingWheel( TICK, 64 );
+    long now = T0;
+    wheel.advance( now );
+    Recorder[] timers = new Recorder[2000];
+    for (int i = 0; i < timers.length; i++) {
+      timers[i] = new Recorder();
+      wheel.schedule( timers[i], now + ( random.nextLong() & 0x3ffffffL ) );
+    }
+    while (wheel.size() > 0) {
+      long previous = now;
+      now += ( random.nextInt( 4 ) == 0 ? random.nextInt( 200 * (int) TICK )
+          : random.nextInt( 3 * (int) TICK ) );
+      wheel.advance( now );
+      for (int i = 0; i < timers.length; i++) {
+        Recorder timer = timers[i];
+        long deadline = timer.getDeadline();
+        if (deadline <= now) {
+          check( timer.expiries == 1, "timer " + i + " not expired" );
+        } else {
+          check( timer.expiries == 0, "timer " + i + " expired early" );
+        }
+        if (deadline > previous && deadline <= now) {
+          check( timer.at == now, "timer " + i + " expired late" );
+        }
+      }
+    }
+  }
+
+  /**
+   * A timer recording its expiries
+   */
+  static class Recorder extends TimingWheel.Timer {
+
+    // attributes
+
+    int  expiries = 0;
+    long at       = 0;
+
+    // auxillary methods
+
+    protected void expire(long now) {
+      this.expiries++;
+      this.at = now;
+    }
+  }
+}
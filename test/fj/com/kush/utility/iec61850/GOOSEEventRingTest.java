@@ -0,0 +1,207 @@
+/**
+ *
+ * Copyright (c) 2008, Packwolf Consulting Ltd, All Rights Reserved.
+ *
+ * @author      Nishchal Kush
+ * @version     %I%, %G%
+ * @since       1.0
+ */
+package fj.com.kush.utility.iec61850;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static fj.com.kush.utility.TestSupport.check;
+import static fj.com.kush.utility.TestSupport.frame;
+import static fj.com.kush.utility.TestSupport.frameLength;
+import static fj.com.kush.utility.TestSupport.sequence;
+
+/**
+ * Checks the multiple producer multiple consumer <code>GOOSEEventRing</code>
+ * when empty, full, wrapping around, and shared by several producer and
+ * consumer threads.
+ */
+public class GOOSEEventRingTest {
+
+  // auxillary methods
+
+  /**
+   * Runs the tests, throwing an <code>AssertionError</code> on failure
+   *
+   * @param args
+   *          ignored
+   * @throws Exception
+   *           if interrupted
+   */
+  public static void main(String[] args) throws Exception {
+    testEmpty();
+    testFull();
+    testWraparound();
+    testProducersConsumers();
+    System.out.println( "GOOSEEventRingTest ok" );
+  }
+
+  /**
+   * An empty ring delivers nothing, and waiting on it returns
+   */
+  static void testEmpty() {
+    GOOSEEventRing ring = new GOOSEEventRing( 4, 64 );
+    Collector collector = new Collector();
+    check( ring.isEmpty() && ring.size() == 0, "new ring not empty" );
+    check( !ring.poll( collector ), "polled an empty ring" );
+    check( ring.drain( collector, 8 ) == 0, "drained an empty ring" );
+    ring.await( 1000000L );
+    check( collector.count == 0, "delivered from an empty ring" );
+  }
+
+  /**
+   * A full ring drops frames, as does a frame too long, and accepts frames
+   * again once polled
+   */
+  static void testFull() {
+    GOOSEEventRing ring = new GOOSEEventRing( 3, 64 ); // rounded up to 4
+    check( ring.getCapacity() == 4, "capacity " + ring.getCapacity() );
+    for (int i = 0; i < 4; i++) {
+      check( ring.offer( port( i ), frame( i ), 0, frameLength( i ) ), "offer "
+          + i );
+    }
+    check( ring.size() == 4, "size " + ring.size() );
+    check( !ring.offer( port( 4 ), frame( 4 ), 0, frameLength( 4 ) ),
+        "offered to a full ring" );
+    check( ring.getDroppedCount() == 1, "dropped " + ring.getDroppedCount() );
+
+    Collector collector = new Collector();
+    check( ring.poll( collector ), "poll of a full ring" );
+    check( ring.offer( port( 4 ), frame( 4 ), 0, frameLength( 4 ) ),
+        "offer once polled" );
+    check( !ring.offer( 0, new byte[65], 0, 65 ), "offered a frame too long" );
+    check( ring.getDroppedCount() == 2, "dropped " + ring.getDroppedCount() );
+    check( ring.drain( collector, 8 ) == 4, "drained " + collector.count );
+    check( collector.next == 5 && ring.isEmpty(), "order or size" );
+  }
+
+  /**
+   * Frames of varying length keep their order, port, position and content as
+   * the positions wrap around the slots many times
+   */
+  static void testWraparound() {
+    GOOSEEventRing ring = new GOOSEEventRing( 4, 64 );
+    Collector collector = new Collector();
+    int sequence = 0;
+    for (int round = 0; round < 1000; round++) {
+      int batch = 1 + round % 4;
+      for (int i = 0; i < batch; i++, sequence++) {
+        check( ring.offer( port( sequence ), frame( sequence ), 0,
+            frameLength( sequence ) ), "offer " + sequence );
+      }
+      check( ring.drain( collector, batch ) == batch, "drain " + round );
+    }
+    check( collector.next == sequence && ring.isEmpty(), "wraparound" );
+    check( ring.getDroppedCount() == 0, "dropped " + ring.getDroppedCount() );
+  }
+
+  /**
+   * Several producers and consumers, every frame is either dropped or
+   * delivered exactly once, and each consumer sees increasing positions
+   */
+  static void testProducersConsumers() throws Exception {
+    final GOOSEEventRing ring = new GOOSEEventRing( 64, 64 );
+    final int producers = 3;
+    final int perProducer = 50000;
+    final int total = producers * perProducer;
+    final AtomicIntegerArray delivered = new AtomicIntegerArray( total );
+    final AtomicLong count = new AtomicLong( 0 );
+    final AtomicLong errors = new AtomicLong( 0 );
+
+    Thread[] consumers = new Thread[2];
+    for (int c = 0; c < consumers.length; c++) {
+      consumers[c] = new Thread( new Runnable() {
+        long last = -1;
+
+        public void run() {
+          GOOSEEventRing.EventHandler handler =
+              new GOOSEEventRing.EventHandler() {
+            public void handleEvent(long position, int port, byte[] frame,
+                int offset, int length) {
+              int sequence = sequence( frame, offset );
+              if (position <= last || port != port( sequence )
+                  || length != frameLength( sequence )
+                  || delivered.getAndIncrement( sequence ) != 0) {
+                errors.incrementAndGet();
+              }
+              last = position;
+              count.incrementAndGet();
+            }
+          };
+          while (count.get() + ring.getDroppedCount() < total) {
+            if (ring.drain( handler, 16 ) == 0) {
+              ring.await( 1000000L );
+            }
+          }
+        }
+      } );
+      consumers[c].start();
+    }
+
+    Thread[] threads = new Thread[producers];
+    for (int p = 0; p < producers; p++) {
+      final int first = p * perProducer;
+      threads[p] = new Thread( new Runnable() {
+        public void run() {
+          for (int i = first; i < first + perProducer; i++) {
+            ring.offer( port( i ), frame( i ), 0, frameLength( i ) );
+            if (( i & 31 ) == 0) {
+              Thread.yield();
+            }
+          }
+        }
+      } );
+      threads[p].start();
+    }
+    for (int p = 0; p < producers; p++) {
+      threads[p].join();
+    }
+    for (int c = 0; c < consumers.length; c++) {
+      consumers[c].join( 60000 );
+      check( !consumers[c].isAlive(), "consumer did not finish" );
+    }
+    check( errors.get() == 0, errors.get() + " frames delivered wrongly" );
+    check( count.get() + ring.getDroppedCount() == total, "lost frames" );
+  }
+
+  /**
+   * Gets the port of the frame of the sequence number supplied
+   */
+  static int port(int sequence) {
+    return sequence % 3;
+  }
+
+  /**
+   * Checks the frames delivered are those created by <code>frame</code>, in
+   * order, on their port and at consecutive positions
+   */
+  static final class Collector implements GOOSEEventRing.EventHandler {
+
+    // attributes
+
+    int next  = 0;
+    int count = 0;
+
+    // auxillary methods
+
+    public void handleEvent(long position, int port, byte[] frame,
+        int offset, int length) {
+      int sequence = sequence( frame, offset );
+      check( sequence == this.next, "frame " + sequence
+          + " out of order, expected " + this.next );
+      check( position == sequence, "position " + position );
+      check( port == port( sequence ), "port " + port );
+      check( length == frameLength( sequence ), "length " + length );
+      for (int i = 4; i < length; i++) {
+        check( frame[offset + i] == (byte) ( sequence + i ), "content" );
+      }
+      this.next = sequence + 1;
+      this.count++;
+    }
+  }
+}
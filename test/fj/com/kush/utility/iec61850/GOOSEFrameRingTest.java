@@ -0,0 +1,157 @@
+/**
+ *
+ * Copyright (c) 2008, Packwolf Consulting Ltd, All Rights Reserved.
+ *
+ * @author      Nishchal Kush
+ * @version     %I%, %G%
+ * @since       1.0
+ */
+package fj.com.kush.utility.iec61850;
+
+import static fj.com.kush.utility.TestSupport.check;
+import static fj.com.kush.utility.TestSupport.frame;
+import static fj.com.kush.utility.TestSupport.frameLength;
+import static fj.com.kush.utility.TestSupport.sequence;
+
+/**
+ * Checks the single producer single consumer <code>GOOSEFrameRing</code>
+ * when empty, full, wrapping around, and shared by a producer and a consumer
+ * thread.
+ */
+public class GOOSEFrameRingTest {
+
+  // auxillary methods
+
+  /**
+   * Runs the tests, throwing an <code>AssertionError</code> on failure
+   *
+   * @param args
+   *          ignored
+   * @throws Exception
+   *           if interrupted
+   */
+  public static void main(String[] args) throws Exception {
+    testEmpty();
+    testFull();
+    testWraparound();
+    testProducerConsumer();
+    System.out.println( "GOOSEFrameRingTest ok" );
+  }
+
+  /**
+   * An empty ring delivers nothing
+   */
+  static void testEmpty() {
+    GOOSEFrameRing ring = new GOOSEFrameRing( 4, 64 );
+    Collector collector = new Collector();
+    check( ring.isEmpty() && ring.size() == 0, "new ring not empty" );
+    check( !ring.poll( collector ), "polled an empty ring" );
+    check( ring.drain( collector, 8 ) == 0, "drained an empty ring" );
+    check( collector.count == 0, "delivered from an empty ring" );
+  }
+
+  /**
+   * A full ring drops frames, as does a frame too long, and accepts frames
+   * again once drained
+   */
+  static void testFull() {
+    GOOSEFrameRing ring = new GOOSEFrameRing( 3, 64 ); // rounded up to 4
+    check( ring.getCapacity() == 4, "capacity " + ring.getCapacity() );
+    for (int i = 0; i < 4; i++) {
+      check( ring.offer( frame( i ), 0, frameLength( i ) ), "offer " + i );
+    }
+    check( ring.size() == 4, "size " + ring.size() );
+    check( !ring.offer( frame( 4 ), 0, frameLength( 4 ) ),
+        "offered to a full ring" );
+    check( ring.getDroppedCount() == 1, "dropped " + ring.getDroppedCount() );
+
+    Collector collector = new Collector();
+    check( ring.poll( collector ), "poll of a full ring" );
+    check( ring.offer( frame( 4 ), 0, frameLength( 4 ) ), "offer once polled" );
+    check( !ring.offer( new byte[65], 0, 65 ), "offered a frame too long" );
+    check( ring.getDroppedCount() == 2, "dropped " + ring.getDroppedCount() );
+    // the consumer may see the frames offered since in a later drain
+    while (ring.drain( collector, 8 ) > 0) {
+      continue;
+    }
+    check( collector.count == 5, "delivered " + collector.count );
+    check( collector.next == 5 && ring.isEmpty(), "order or size" );
+  }
+
+  /**
+   * Frames of varying length keep their order and content as the positions
+   * wrap around the slots many times
+   */
+  static void testWraparound() {
+    GOOSEFrameRing ring = new GOOSEFrameRing( 4, 64 );
+    Collector collector = new Collector();
+    int sequence = 0;
+    for (int round = 0; round < 1000; round++) {
+      int batch = 1 + round % 4;
+      for (int i = 0; i < batch; i++, sequence++) {
+        check( ring.offer( frame( sequence ), 0, frameLength( sequence ) ),
+            "offer " + sequence );
+      }
+      check( ring.drain( collector, batch ) == batch, "drain " + round );
+    }
+    check( collector.next == sequence && ring.isEmpty(), "wraparound" );
+    check( ring.getDroppedCount() == 0, "dropped " + ring.getDroppedCount() );
+  }
+
+  /**
+   * A producer and a consumer thread, every frame delivered is in order and
+   * every frame not delivered was dropped
+   */
+  static void testProducerConsumer() throws Exception {
+    final GOOSEFrameRing ring = new GOOSEFrameRing( 64, 64 );
+    final int count = 200000;
+    final Collector collector = new Collector();
+    collector.lossy = true;
+    Thread consumer = new Thread( new Runnable() {
+      public void run() {
+        while (collector.count + ring.getDroppedCount() < count) {
+          if (ring.drain( collector, 16 ) == 0) {
+            Thread.yield();
+          }
+        }
+      }
+    } );
+    consumer.start();
+    for (int i = 0; i < count; i++) {
+      ring.offer( frame( i ), 0, frameLength( i ) );
+      if (( i & 63 ) == 0) {
+        Thread.yield();
+      }
+    }
+    consumer.join( 60000 );
+    check( !consumer.isAlive(), "consumer did not finish" );
+    check( collector.count + ring.getDroppedCount() == count, "lost frames" );
+  }
+
+  /**
+   * Checks the frames delivered are those created by <code>frame</code>, in
+   * order, allowing gaps of dropped frames when lossy
+   */
+  static final class Collector implements GOOSEFrameBatch.FrameHandler {
+
+    // attributes
+
+    int     next  = 0;
+    int     count = 0;
+    boolean lossy = false;
+
+    // auxillary methods
+
+    public void handleFrame(byte[] buffer, int offset, int length) {
+      int sequence = sequence( buffer, offset );
+      check( sequence == this.next || ( this.lossy && sequence > this.next ),
+          "frame " + sequence + " out of order, expected " + this.next );
+      check( length == frameLength( sequence ), "length " + length );
+      for (int i = 4; i < length; i++) {
+        check( buffer[offset + i] == (byte) ( sequence + i ), "content" );
+      }
+      this.next = sequence + 1;
+      this.count++;
+    }
+  }
+}
@@ -0,0 +1,229 @@
+/**
+ *
+ * Copyright (c) 2008, Packwolf Consulting Ltd, All Rights Reserved.
+ *
+ * @author      Nishchal Kush
+ * @version     %I%, %G%
+ * @since       1.0
+ */
+package fj.com.kush.utility.iec61850;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+import static fj.com.kush.utility.TestSupport.check;
+
+/**
+ * Checks that the frame patched by <code>GOOSEFrameTemplate</code> is always
+ * byte for byte the frame <code>GOOSEMessage.toBytes</code> encodes, across
+ * random edits of the header, counters, time and data set, including the
+ * edits that force the template to re-encode, and that frames encoded while
+ * another thread sets elements are well formed.
+ */
+public class GOOSEFrameTemplateTest {
+
+  // constants
+
+  private static final long T0 = 1700000000000000000L;
+
+  // auxillary methods
+
+  /**
+   * Runs the tests, throwing an <code>AssertionError</code> on failure
+   *
+   * @param args
+   *          ignored
+   * @throws Exception
+   *           if a message cannot be encoded
+   */
+  public static void main(String[] args) throws Exception {
+    testReplacedData();
+    testBitStringCopied();
+    testRandomEdits();
+    testHeaderEdits();
+    testConcurrentWriter();
+    System.out.println( "GOOSEFrameTemplateTest ok" );
+  }
+
+  /**
+   * Every element set publishes a new version, which must be re-encoded
+   */
+  static void testReplacedData() throws Exception {
+    GOOSEMessage message = newMessage();
+    GOOSEMessageGoosePDU pdu = (GOOSEMessageGoosePDU) message.getAPDU();
+    GOOSEAllData allData = pdu.getAllData();
+    GOOSEFrameTemplate template = new GOOSEFrameTemplate( message );
+
+    template.update();
+    allData.setDataAt( 0, new GOOSEData( GOOSEDataTypes.TYPE_BOOL,
+        Boolean.TRUE ) );
+    assertFrame( template, template.update(), message );
+    allData.setDataAt( 0, new GOOSEData( GOOSEDataTypes.TYPE_BOOL,
+        Boolean.FALSE ) );
+    assertFrame( template, template.update(), message );
+  }
+
+  /**
+   * A bit string changed by the application after being set is not encoded
+   */
+  static void testBitStringCopied() throws Exception {
+    GOOSEMessage message = newMessage();
+    GOOSEMessageGoosePDU pdu = (GOOSEMessageGoosePDU) message.getAPDU();
+    GOOSEFrameTemplate template = new GOOSEFrameTemplate( message );
+
+    BitSet bits = new BitSet();
+    bits.set( 3 );
+    pdu.getAllData().setDataAt( 1, new GOOSEData( GOOSEDataTypes.TYPE_BIT_STR,
+        bits ) );
+    int length = template.update();
+    byte[] expected = Arrays.copyOf( template.getFrame(), length );
+
+    bits.set( 40 );
+    ( (BitSet) pdu.getAllData().getDataAt( 1 ).getValue() ).set( 41 );
+    length = template.update();
+    check( Arrays.equals( Arrays.copyOf( template.getFrame(), length ),
+        expected ), "bit string changed after it was set" );
+    assertFrame( template, length, message );
+  }
+
+  /**
+   * An element replaced by another thread with values of other types and
+   * lengths while frames are encoded, every frame being well formed
+   */
+  static void testConcurrentWriter() throws Exception {
+    GOOSEMessage message = newMessage();
+    GOOSEMessageGoosePDU pdu = (GOOSEMessageGoosePDU) message.getAPDU();
+    final GOOSEAllData allData = pdu.getAllData();
+    GOOSEFrameTemplate template = new GOOSEFrameTemplate( message );
+
+    final GOOSEData[] values = new GOOSEData[4];
+    values[0] = new GOOSEData( GOOSEDataTypes.TYPE_BOOL, Boolean.TRUE );
+    values[1] = new GOOSEData( GOOSEDataTypes.TYPE_INT32U, 7 );
+    BitSet bits = new BitSet();
+    bits.set( 2 );
+    values[2] = new GOOSEData( GOOSEDataTypes.TYPE_BIT_STR, bits );
+    bits.set( 200 );
+    values[3] = new GOOSEData( GOOSEDataTypes.TYPE_BIT_STR, bits );
+
+    Thread writer = new Thread( new Runnable() {
+      public void run() {
+        for (int i = 0; i < 200000; i++) {
+          allData.setDataAt( 0, values[i & 3] );
+        }
+      }
+    } );
+    writer.start();
+    GOOSEFrameView view = new GOOSEFrameView();
+    int frames = 0;
+    while (writer.isAlive() || frames == 0) {
+      int length = template.update();
+      check( view.wrap( template.getFrame(), 0, length ), "frame " + frames
+          + " malformed" );
+      check( view.dataCount() == 2, "elements " + view.dataCount() );
+      frames++;
+    }
+    writer.join();
+    assertFrame( template, template.update(), message );
+  }
+
+  /**
+   * Random edits of the counters, time and data set
+   */
+  static void testRandomEdits() throws Exception {
+    GOOSEMessage message = newMessage();
+    GOOSEMessageGoosePDU pdu = (GOOSEMessageGoosePDU) message.getAPDU();
+    GOOSEAllData allData = pdu.getAllData();
+    GOOSEFrameTemplate template = new GOOSEFrameTemplate( message );
+
+    Random random = new Random( 3 );
+    for (int i = 0; i < 20000; i++) {
+      switch (random.nextInt( 6 )) {
+      case 0:
+        allData.setDataAt( 0, new GOOSEData( GOOSEDataTypes.TYPE_BOOL,
+            random.nextBoolean() ) );
+        break;
+      case 1:
+        allData.setDataAt( 1, new GOOSEData( GOOSEDataTypes.TYPE_INT32U,
+            random.nextInt() ) );
+        break;
+      case 2:
+        pdu.setSqNum( random.nextInt( 70000 ) );
+        break;
+      case 3:
+        pdu.setStNum( 1 + random.nextInt( 300 ) );
+        break;
+      case 4:
+        pdu.setTimeNanos( T0 + ( random.nextLong() & 0xffffffffffL ) );
+        break;
+      default:
+        allData.setDataAt( 0, new GOOSEData( GOOSEDataTypes.TYPE_BOOL,
+            random.nextBoolean() ) );
+        allData.setDataAt( 1, new GOOSEData( GOOSEDataTypes.TYPE_INT32U,
+            random.nextInt() ) );
+      }
+      assertFrame( template, template.update(), message );
+    }
+    check( template.getPatchCount() > 0, "no frame was patched" );
+    check( template.getEncodeCount() > 0, "no frame was encoded" );
+  }
+
+  /**
+   * Edits of the Ethernet header and APPID
+   */
+  static void testHeaderEdits() throws Exception {
+    GOOSEMessage message = newMessage();
+    GOOSEFrameTemplate template = new GOOSEFrameTemplate( message );
+    assertFrame( template, template.update(), message );
+
+    message.setSrc( new byte[] { 0, 1, 2, 3, 4, 6 } );
+    assertFrame( template, template.update(), message );
+    message.setDst( new byte[] { 1, 0x0c, (byte) 0xcd, 1, 0, 2 } );
+    assertFrame( template, template.update(), message );
+    message.setAppid( new byte[] { 0x12, 0x34 } );
+    int length = template.update();
+    assertFrame( template, length, message );
+    check( ( template.getFrame()[14] & 0xff ) == 0x12
+        && ( template.getFrame()[15] & 0xff ) == 0x34, "APPID not encoded" );
+    message.setRes1( new byte[] { 0, 1 } );
+    assertFrame( template, template.update(), message );
+  }
+
+  /**
+   * Creates a GOOSE message with a boolean and an unsigned integer
+   */
+  private static GOOSEMessage newMessage() throws Exception {
+    GOOSEMessage message = new GOOSEMessage();
+    message.setDst( new byte[] { 1, 0x0c, (byte) 0xcd, 1, 0, 1 } );
+    message.setSrc( new byte[] { 0, 1, 2, 3, 4, 5 } );
+    message.setMessageType( GOOSEMessage.GOOSE_MESSAGE );
+
+    GOOSEMessageGoosePDU pdu = new GOOSEMessageGoosePDU();
+    pdu.setGocbRef( "IED/LLN0$GO$gcb" );
+    pdu.setDatSet( "IED/LLN0$ds" );
+    pdu.setGoID( "id" );
+    pdu.setStNum( 1 );
+    pdu.setSqNum( 0 );
+    pdu.setTimeNanos( T0 );
+
+    GOOSEAllData allData = new GOOSEAllData();
+    allData.addGOOSEData( new GOOSEData( GOOSEDataTypes.TYPE_BOOL,
+        Boolean.FALSE ) );
+    allData.addGOOSEData( new GOOSEData( GOOSEDataTypes.TYPE_INT32U, 5 ) );
+    pdu.setAllData( allData );
+    message.setAPDU( pdu );
+    return message;
+  }
+
+  /**
+   * Checks the frame of the template equals the frame encoded by the message
+   */
+  private static void assertFrame(GOOSEFrameTemplate template, int length,
+      GOOSEMessage message) throws Exception {
+    byte[] expected = message.toBytes();
+    check( length == expected.length, "length " + length + " != "
+        + expected.length );
+    check( Arrays.equals( Arrays.copyOf( template.getFrame(), length ),
+        expected ), "frame differs from toBytes" );
+  }
+}
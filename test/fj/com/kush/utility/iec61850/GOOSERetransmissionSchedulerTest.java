@@ -0,0 +1,251 @@
+/**
+ *
+ * Copyright (c) 2008, Packwolf Consulting Ltd, All Rights Reserved.
+ *
+ * @author      Nishchal Kush
+ * @version     %I%, %G%
+ * @since       1.0
+ */
+package fj.com.kush.utility.iec61850;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import fj.com.kush.utility.TestSupport;
+
+import static fj.com.kush.utility.TestSupport.check;
+
+/**
+ * Checks the retransmission curve of <code>GOOSERetransmissionScheduler</code>
+ * in simulated time: a burst at the minimum interval doubling up to the
+ * heartbeat, restarted by a state change and ended by unregistering.
+ */
+public class GOOSERetransmissionSchedulerTest {
+
+  // constants
+
+  private static final long MS = 1000000L;
+  private static final long T0 = 1000000000L;
+
+  // auxillary methods
+
+  /**
+   * Runs the tests, throwing an <code>AssertionError</code> on failure
+   *
+   * @param args
+   *          ignored
+   * @throws Exception
+   *           if a message cannot be registered
+   */
+  public static void main(String[] args) throws Exception {
+    testCurve();
+    testStateChange();
+    testChangedData();
+    testUnregister();
+    testTimeAllowedToLive();
+    testFailedTransmission();
+    System.out.println( "GOOSERetransmissionSchedulerTest ok" );
+  }
+
+  /**
+   * Sent at once, then after 2, 4, 8 and 16ms, then every 32ms
+   */
+  static void testCurve() throws Exception {
+    GOOSERetransmissionScheduler scheduler = newScheduler();
+    Recorder recorder = new Recorder();
+    GOOSERetransmissionScheduler.Entry entry = scheduler.register(
+        newMessage( 0 ), recorder );
+    run( scheduler, T0, T0 + 200 * MS );
+
+    long[] expected = { 0, 2, 6, 14, 30, 62, 94, 126, 158, 190 };
+    recorder.check( expected, 1, 0 );
+    check( entry.getInterval() == 32 * MS, "interval " + entry.getInterval() );
+    check( scheduler.getRegisteredCount() == 1, "registered" );
+    check( scheduler.getTransmitCount() == expected.length, "count" );
+    check( scheduler.getMaxLatenessNanos() == 0, "late "
+        + scheduler.getMaxLatenessNanos() );
+  }
+
+  /**
+   * A state change increments stNum, resets sqNum and restarts the burst
+   */
+  static void testStateChange() throws Exception {
+    GOOSERetransmissionScheduler scheduler = newScheduler();
+    Recorder recorder = new Recorder();
+    GOOSERetransmissionScheduler.Entry entry = scheduler.register(
+        newMessage( 0 ), recorder );
+    run( scheduler, T0, T0 + 100 * MS );
+    recorder.clear();
+
+    scheduler.stateChanged( entry );
+    run( scheduler, T0 + 101 * MS, T0 + 150 * MS );
+    recorder.check( new long[] { 101, 103, 107, 115, 131 }, 2, 0 );
+  }
+
+  /**
+   * A change handed with the state change is applied with the stNum
+   * increment, no retransmission of the previous state carrying it
+   */
+  static void testChangedData() throws Exception {
+    GOOSERetransmissionScheduler scheduler = newScheduler();
+    final GOOSEMessage message = newMessage( 0 );
+    final GOOSEAllData allData = new GOOSEAllData();
+    allData.addGOOSEData( new GOOSEData( GOOSEDataTypes.TYPE_INT32U, 1 ) );
+    ( (GOOSEMessageGoosePDU) message.getAPDU() ).setAllData( allData );
+    final List<long[]> sent = new ArrayList<long[]>();
+    GOOSERetransmissionScheduler.Entry entry = scheduler.register( message,
+        new GOOSERetransmissionScheduler.Transmitter() {
+          public void transmit(GOOSEMessage message, long now) {
+            GOOSEMessageGoosePDU pdu = (GOOSEMessageGoosePDU) message
+                .getAPDU();
+            sent.add( new long[] { pdu.getStNum(), ( (Number) allData
+                .getDataAt( 0 ).getValue() ).longValue() } );
+          }
+        } );
+    run( scheduler, T0, T0 + 20 * MS );
+
+    scheduler.stateChanged( entry, () -> allData.setDataAt( 0, new GOOSEData(
+        GOOSEDataTypes.TYPE_INT32U, 2 ) ) );
+    check( ( (Number) allData.getDataAt( 0 ).getValue() ).longValue() == 1,
+        "change applied before the scheduler ran" );
+    run( scheduler, T0 + 21 * MS, T0 + 100 * MS );
+    for (long[] s : sent) {
+      check( s[0] == s[1], "stNum " + s[0] + " sent with value " + s[1] );
+    }
+    check( sent.get( sent.size() - 1 )[0] == 2, "state change not sent" );
+  }
+
+  /**
+   * Unregistering ends the retransmissions
+   */
+  static void testUnregister() throws Exception {
+    GOOSERetransmissionScheduler scheduler = newScheduler();
+    Recorder recorder = new Recorder();
+    GOOSERetransmissionScheduler.Entry entry = scheduler.register(
+        newMessage( 0 ), recorder );
+    run( scheduler, T0, T0 + 10 * MS );
+    int sent = recorder.times.size();
+
+    scheduler.unregister( entry );
+    run( scheduler, T0 + 11 * MS, T0 + 500 * MS );
+    check( recorder.times.size() == sent, "sent after unregistering" );
+    check( scheduler.getRegisteredCount() == 0, "registered" );
+    check( !entry.isScheduled(), "still scheduled" );
+  }
+
+  /**
+   * The heartbeat is half the timeAllowedtoLive of the PDU, when set
+   */
+  static void testTimeAllowedToLive() throws Exception {
+    GOOSERetransmissionScheduler scheduler = newScheduler();
+    Recorder recorder = new Recorder();
+    scheduler.register( newMessage( 20 ), recorder );
+    run( scheduler, T0, T0 + 60 * MS );
+    recorder.check( new long[] { 0, 2, 6, 14, 24, 34, 44, 54 }, 1, 0 );
+  }
+
+  /**
+   * A transmitter throwing is counted and kept as the error, and the
+   * retransmissions carry on
+   */
+  static void testFailedTransmission() throws Exception {
+    GOOSERetransmissionScheduler scheduler = newScheduler();
+    final Recorder recorder = new Recorder();
+    scheduler.register( newMessage( 0 ), new GOOSERetransmissionScheduler
+        .Transmitter() {
+      public void transmit(GOOSEMessage message, long now) {
+        recorder.transmit( message, now );
+        if (recorder.times.size() == 2) {
+          throw new IllegalStateException( "link down" );
+        }
+      }
+    } );
+    check( scheduler.getFailedCount() == 0 && scheduler.getError() == null,
+        "failed before sending" );
+    run( scheduler, T0, T0 + 30 * MS );
+    recorder.check( new long[] { 0, 2, 6, 14, 30 }, 1, 0 );
+    check( scheduler.getFailedCount() == 1, "failed "
+        + scheduler.getFailedCount() );
+    check( "link down".equals( scheduler.getError() ), "error "
+        + scheduler.getError() );
+    scheduler.resetStatistics();
+    check( scheduler.getFailedCount() == 0, "failed after reset" );
+  }
+
+  /**
+   * Creates a scheduler with a 2ms minimum interval and a 32ms heartbeat
+   */
+  private static GOOSERetransmissionScheduler newScheduler() {
+    GOOSERetransmissionScheduler scheduler = new GOOSERetransmissionScheduler(
+        MS, 256 );
+    scheduler.setMinInterval( 2 * MS );
+    scheduler.setHeartbeat( 32 * MS );
+    return scheduler;
+  }
+
+  /**
+   * Creates a GOOSE message with the timeAllowedtoLive specified
+   */
+  private static GOOSEMessage newMessage(int timeAllowedToLive)
+      throws Exception {
+    GOOSEMessageGoosePDU pdu = new GOOSEMessageGoosePDU();
+    pdu.setGocbRef( "IED/LLN0$GO$gcb" );
+    pdu.setDatSet( "IED/LLN0$ds" );
+    pdu.setGoID( "id" );
+    pdu.setTimeAllocatedtoLive( timeAllowedToLive );
+
+    GOOSEMessage message = new GOOSEMessage();
+    message.setMessageType( GOOSEMessage.GOOSE_MESSAGE );
+    message.setAPDU( pdu );
+    return message;
+  }
+
+  /**
+   * Advances the scheduler every millisecond over the period specified
+   */
+  private static void run(GOOSERetransmissionScheduler scheduler, long from,
+      long to) {
+    for (long now = from; now <= to; now += MS) {
+      scheduler.advance( now );
+    }
+  }
+
+  /**
+   * Records the time, stNum and sqNum of every transmission
+   */
+  static final class Recorder implements
+      GOOSERetransmissionScheduler.Transmitter {
+
+    // attributes
+
+    final List<long[]> times = new ArrayList<long[]>();
+
+    // auxillary methods
+
+    public void transmit(GOOSEMessage message, long now) {
+      GOOSEMessageGoosePDU pdu = (GOOSEMessageGoosePDU) message.getAPDU();
+      this.times.add( new long[] { now, pdu.getStNum(), pdu.getSqNum() } );
+    }
+
+    void clear() {
+      this.times.clear();
+    }
+
+    /**
+     * Checks the transmissions were at the times specified, in milliseconds
+     * from T0, with the stNum specified and sqNum counting from the value
+     * specified
+     */
+    void check(long[] millis, long stNum, long sqNum) {
+      TestSupport.check( this.times.size() == millis.length,
+          "transmissions " + this.times.size() );
+      for (int i = 0; i < millis.length; i++) {
+        long[] sent = this.times.get( i );
+        TestSupport.check( sent[0] == T0 + millis[i] * MS, "transmission "
+            + i + " at " + ( sent[0] - T0 ) / MS );
+        TestSupport.check( sent[1] == stNum, "stNum " + sent[1] );
+        TestSupport.check( sent[2] == sqNum + i, "sqNum " + sent[2] );
+      }
+    }
+  }
+}
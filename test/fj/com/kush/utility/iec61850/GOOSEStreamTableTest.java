@@ -0,0 +1,245 @@
+/**
+ *
+ * Copyright (c) 2008, Packwolf Consulting Ltd, All Rights Reserved.
+ *
+ * @author      Nishchal Kush
+ * @version     %I%, %G%
+ * @since       1.0
+ */
+package fj.com.kush.utility.iec61850;
+
+import static fj.com.kush.utility.TestSupport.check;
+
+/**
+ * Checks the states <code>GOOSEStreamTable</code> reports for encoded frames
+ * read through a <code>GOOSEFrameView</code>: new, changed, repeated and
+ * heartbeat, sqNum going backwards, streams without a gocbRef, streams told
+ * apart by MAC address, APPID and gocbRef alone, and the eviction of the
+ * streams not seen since the table was last full.
+ */
+public class GOOSEStreamTableTest {
+
+  // constants
+
+  private static final long   MS  = 1000000L;
+  private static final String REF = "IED1LD0/LLN0$GO$gcb1";
+
+  // auxillary methods
+
+  /**
+   * Runs the tests, throwing an <code>AssertionError</code> on failure
+   *
+   * @param args
+   *          ignored
+   * @throws Exception
+   *           if a frame cannot be encoded
+   */
+  public static void main(String[] args) throws Exception {
+    testStates();
+    testSqNumBackwards();
+    testNoGocbRef();
+    testDistinctStreams();
+    testEviction();
+    testEvictAll();
+    System.out.println( "GOOSEStreamTableTest ok" );
+  }
+
+  /**
+   * New on the first frame, repeated until the heartbeat is due, changed on a
+   * new stNum, the heartbeat counting from the last report
+   */
+  static void testStates() throws Exception {
+    GOOSEStreamTable table = new GOOSEStreamTable();
+    long hb = 100 * MS;
+    expect( table, frame( 1, 1, REF, 1, 0 ), 0, hb,
+        GOOSEStreamTable.STATE_NEW );
+    expect( table, frame( 1, 1, REF, 1, 1 ), 2 * MS, hb,
+        GOOSEStreamTable.STATE_REPEATED );
+    expect( table, frame( 1, 1, REF, 1, 2 ), 99 * MS, hb,
+        GOOSEStreamTable.STATE_REPEATED );
+    expect( table, frame( 1, 1, REF, 1, 3 ), 100 * MS, hb,
+        GOOSEStreamTable.STATE_HEARTBEAT );
+    expect( table, frame( 1, 1, REF, 1, 4 ), 150 * MS, hb,
+        GOOSEStreamTable.STATE_REPEATED );
+    expect( table, frame( 1, 1, REF, 2, 0 ), 160 * MS, hb,
+        GOOSEStreamTable.STATE_CHANGED );
+    expect( table, frame( 1, 1, REF, 2, 1 ), 259 * MS, hb,
+        GOOSEStreamTable.STATE_REPEATED );
+    expect( table, frame( 1, 1, REF, 2, 2 ), 260 * MS, hb,
+        GOOSEStreamTable.STATE_HEARTBEAT );
+    // a lower stNum is a change too, e.g. when stNum wraps
+    expect( table, frame( 1, 1, REF, 1, 0 ), 261 * MS, hb,
+        GOOSEStreamTable.STATE_CHANGED );
+    // no heartbeat interval, never a heartbeat
+    expect( table, frame( 1, 1, REF, 1, 1 ), 10000 * MS, 0,
+        GOOSEStreamTable.STATE_REPEATED );
+
+    check( table.size() == 1, "size " + table.size() );
+    check( table.getChangeCount() == 3, "changes " + table.getChangeCount() );
+    check( table.getRepeatCount() == 7, "repeats " + table.getRepeatCount() );
+    check( table.getEvictionCount() == 0, "evictions" );
+
+    table.clear();
+    check( table.size() == 0, "size after clear" );
+    expect( table, frame( 1, 1, REF, 1, 2 ), 10001 * MS, hb,
+        GOOSEStreamTable.STATE_NEW );
+  }
+
+  /**
+   * sqNum going backwards with the same stNum, e.g. the publisher restarting,
+   * is a change; the same sqNum again is a repeat
+   */
+  static void testSqNumBackwards() throws Exception {
+    GOOSEStreamTable table = new GOOSEStreamTable();
+    expect( table, frame( 1, 1, REF, 5, 7 ), 0, 0,
+        GOOSEStreamTable.STATE_NEW );
+    expect( table, frame( 1, 1, REF, 5, 7 ), 1, 0,
+        GOOSEStreamTable.STATE_REPEATED );
+    expect( table, frame( 1, 1, REF, 5, 3 ), 2, 0,
+        GOOSEStreamTable.STATE_CHANGED );
+    expect( table, frame( 1, 1, REF, 5, 4 ), 3, 0,
+        GOOSEStreamTable.STATE_REPEATED );
+    expect( table, frame( 1, 1, REF, 5, 0 ), 4, 0,
+        GOOSEStreamTable.STATE_CHANGED );
+  }
+
+  /**
+   * Frames without a gocbRef, or with an empty one, are a stream per MAC
+   * address and APPID, apart from the stream with a gocbRef
+   */
+  static void testNoGocbRef() throws Exception {
+    GOOSEStreamTable table = new GOOSEStreamTable();
+    expect( table, frame( 1, 1, null, 1, 0 ), 0, 0,
+        GOOSEStreamTable.STATE_NEW );
+    expect( table, frame( 1, 1, null, 1, 1 ), 1, 0,
+        GOOSEStreamTable.STATE_REPEATED );
+    expect( table, frame( 1, 1, "", 1, 2 ), 2, 0,
+        GOOSEStreamTable.STATE_REPEATED );
+    expect( table, frame( 1, 1, REF, 1, 0 ), 3, 0,
+        GOOSEStreamTable.STATE_NEW );
+    expect( table, frame( 2, 1, null, 1, 0 ), 4, 0,
+        GOOSEStreamTable.STATE_NEW );
+    expect( table, frame( 1, 2, null, 1, 0 ), 5, 0,
+        GOOSEStreamTable.STATE_NEW );
+    expect( table, frame( 1, 1, null, 2, 0 ), 6, 0,
+        GOOSEStreamTable.STATE_CHANGED );
+    check( table.size() == 4, "size " + table.size() );
+  }
+
+  /**
+   * Streams differing in MAC address, APPID or gocbRef alone are tracked
+   * apart, across the table growing
+   */
+  static void testDistinctStreams() throws Exception {
+    GOOSEStreamTable table = new GOOSEStreamTable();
+    int streams = 0;
+    for (int round = 0; round < 2; round++) {
+      for (int mac = 0; mac < 10; mac++) {
+        for (int appId = 0; appId < 5; appId++) {
+          for (int ref = 0; ref < 4; ref++) {
+            // round 0 adds the streams, round 1 repeats their stNum
+            expect( table, frame( mac, appId, REF + ref, 10 + ref, round ),
+                round, 0, round == 0 ? GOOSEStreamTable.STATE_NEW
+                    : GOOSEStreamTable.STATE_REPEATED );
+            streams += ( round == 0 ? 1 : 0 );
+          }
+        }
+      }
+    }
+    check( streams > GOOSEStreamTable.INITIAL_CAPACITY, "no growth" );
+    check( table.size() == streams, "size " + table.size() );
+    check( table.getEvictionCount() == 0, "evictions" );
+  }
+
+  /**
+   * When full, the streams not seen since the table was last full are
+   * evicted, the others keeping their state
+   */
+  static void testEviction() throws Exception {
+    GOOSEStreamTable table = new GOOSEStreamTable( 4 );
+    for (int s = 0; s < 4; s++) {
+      expect( table, frame( s, 1, REF, 1, 0 ), s, 0,
+          GOOSEStreamTable.STATE_NEW );
+    }
+
+    // full for the first time, every stream was seen, so all are evicted
+    expect( table, frame( 4, 1, REF, 1, 0 ), 10, 0,
+        GOOSEStreamTable.STATE_NEW );
+    check( table.size() == 1, "size " + table.size() );
+    check( table.getEvictionCount() == 4, "evictions "
+        + table.getEvictionCount() );
+
+    for (int s = 5; s < 8; s++) {
+      expect( table, frame( s, 1, REF, 1, 0 ), 10 + s, 0,
+          GOOSEStreamTable.STATE_NEW );
+    }
+    // stream 4 was not seen since the table was full, so is evicted alone
+    expect( table, frame( 8, 1, REF, 1, 0 ), 20, 0,
+        GOOSEStreamTable.STATE_NEW );
+    check( table.size() == 4, "size " + table.size() );
+    check( table.getEvictionCount() == 5, "evictions "
+        + table.getEvictionCount() );
+    for (int s = 5; s < 9; s++) {
+      expect( table, frame( s, 1, REF, 1, 1 ), 21, 0,
+          GOOSEStreamTable.STATE_REPEATED );
+    }
+    expect( table, frame( 4, 1, REF, 1, 1 ), 22, 0,
+        GOOSEStreamTable.STATE_NEW );
+  }
+
+  /**
+   * Flooded by new streams, the table never holds more than its maximum
+   */
+  static void testEvictAll() throws Exception {
+    GOOSEStreamTable table = new GOOSEStreamTable( 16 );
+    for (int s = 0; s < 200; s++) {
+      expect( table, frame( s, 1, REF, 1, 0 ), s, 0,
+          GOOSEStreamTable.STATE_NEW );
+      check( table.size() <= 16, "size " + table.size() );
+    }
+    check( table.size() + table.getEvictionCount() == 200, "streams lost" );
+  }
+
+  /**
+   * Checks the state reported for the frame supplied
+   */
+  private static void expect(GOOSEStreamTable table, byte[] frame,
+      long nanos, long heartbeatNanos, int state) {
+    GOOSEFrameView view = new GOOSEFrameView();
+    check( view.wrap( frame, 0, frame.length ), "frame invalid" );
+    int actual = table.check( view, nanos, heartbeatNanos );
+    check( actual == state, "state " + actual + " != " + state + " at "
+        + nanos + " for " + Long.toHexString( view.srcMac() ) + "/"
+        + view.appId() + " " + view.stNum() + "/" + view.sqNum() );
+  }
+
+  /**
+   * Encodes a GOOSE frame from the MAC address index, APPID, gocbRef, or
+   * null for none, stNum and sqNum supplied
+   */
+  private static byte[] frame(int mac, int appId, String gocbRef, long stNum,
+      long sqNum) throws Exception {
+    GOOSEMessageGoosePDU pdu = new GOOSEMessageGoosePDU();
+    if (gocbRef != null) {
+      pdu.setGocbRef( gocbRef );
+    }
+    pdu.setDatSet( "IED1LD0/LLN0$DS1" );
+    pdu.setGoID( "id" );
+    pdu.setTimeAllocatedtoLive( 2000 );
+    pdu.setStNum( stNum );
+    pdu.setSqNum( sqNum );
+    GOOSEAllData allData = new GOOSEAllData();
+    allData.addGOOSEData( new GOOSEData( GOOSEDataTypes.TYPE_BOOL,
+        Boolean.TRUE ) );
+    pdu.setAllData( allData );
+
+    GOOSEMessage message = new GOOSEMessage();
+    message.setMessageType( GOOSEMessage.GOOSE_MESSAGE );
+    message.setDst( GOOSEMessage.GOOSE_BCAST_MAC );
+    message.setSrc( new byte[] { 2, 0, 0, 0, (byte) ( mac >>> 8 ),
+        (byte) mac } );
+    message.setAppid( new byte[] { (byte) ( appId >>> 8 ), (byte) appId } );
+    message.setAPDU( pdu );
+    return message.toBytes();
+  }
+}
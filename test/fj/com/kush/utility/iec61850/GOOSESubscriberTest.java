@@ -0,0 +1,167 @@
+/**
+ *
+ * Copyright (c) 2008, Packwolf Consulting Ltd, All Rights Reserved.
+ *
+ * @author      Nishchal Kush
+ * @version     %I%, %G%
+ * @since       1.0
+ */
+package fj.com.kush.utility.iec61850;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static fj.com.kush.utility.TestSupport.check;
+
+/**
+ * Checks that a <code>GOOSESubscriber</code> capturing with several consumer
+ * threads processes the frames of each stream in the order published, by a
+ * single consumer, over a <code>LoopbackTransport</code>.
+ */
+public class GOOSESubscriberTest {
+
+  // constants
+
+  private static final int STREAMS = 8;
+  private static final int STATES  = 5000;
+
+  // auxillary methods
+
+  /**
+   * Runs the tests, throwing an <code>AssertionError</code> on failure
+   *
+   * @param args
+   *          ignored
+   * @throws Exception
+   *           if a message cannot be published
+   */
+  public static void main(String[] args) throws Exception {
+    testStreamOrder();
+    System.out.println( "GOOSESubscriberTest ok" );
+  }
+
+  /**
+   * Every stream is processed in stNum order by one consumer
+   */
+  static void testStreamOrder() throws Exception {
+    LoopbackTransport.Bus bus = new LoopbackTransport.Bus();
+    LoopbackTransport out = new LoopbackTransport( bus, new byte[] { 2, 0, 0,
+        0, 0, 1 }, "publisher" );
+    LoopbackTransport in = new LoopbackTransport( bus, null, "subscriber",
+        1 << 16 );
+    Subscriber subscriber = new Subscriber( in );
+    subscriber.setConsumerCount( 4 );
+    subscriber.setRingCapacity( 1 << 15 );
+    subscriber.start();
+
+    Publisher[] publishers = new Publisher[STREAMS];
+    for (int i = 0; i < STREAMS; i++) {
+      publishers[i] = new Publisher( out, "IED1LD0/LLN0$GO$gcb" + i );
+    }
+    for (int state = 1; state <= STATES; state++) {
+      for (int i = 0; i < STREAMS; i++) {
+        publishers[i].publish( state );
+      }
+      if (( state & 63 ) == 0) {
+        Thread.yield();
+      }
+    }
+
+    long deadline = System.nanoTime() + 30000000000L;
+    while (subscriber.count() + in.getDroppedCount()
+        + subscriber.getDroppedCount() < STREAMS * STATES
+        && System.nanoTime() < deadline) {
+      Thread.sleep( 1 );
+    }
+    subscriber.stop();
+
+    check( subscriber.count() == STREAMS * STATES, "processed "
+        + subscriber.count() + ", dropped " + in.getDroppedCount() + "/"
+        + subscriber.getDroppedCount() );
+    check( subscriber.disordered == 0, subscriber.disordered
+        + " frames out of order" );
+    check( subscriber.last.size() == STREAMS, "streams "
+        + subscriber.last.size() );
+    check( subscriber.threads.size() == STREAMS,
+        "streams processed by several consumers" );
+  }
+
+  /**
+   * Publishes the states of a control block
+   */
+  static final class Publisher extends GOOSEPublisher {
+
+    // attributes
+
+    private final GOOSEMessageGoosePDU pdu = new GOOSEMessageGoosePDU();
+
+    // constructors
+
+    Publisher(FrameTransport transport, String gocbRef) throws Exception {
+      super( transport );
+      pdu.setGocbRef( gocbRef );
+      pdu.setTimeAllocatedtoLive( 2000 );
+      pdu.setDatSet( "IED1LD0/LLN0$DS1" );
+      pdu.setGoID( "goose" );
+      pdu.setConfRev( 1 );
+      GOOSEAllData allData = new GOOSEAllData();
+      allData.addGOOSEData( new GOOSEData( GOOSEDataTypes.TYPE_BOOL,
+          Boolean.TRUE ) );
+      pdu.setAllData( allData );
+
+      GOOSEMessage message = new GOOSEMessage();
+      message.setMessageType( GOOSEMessage.GOOSE_MESSAGE );
+      message.setDst( GOOSEMessage.GOOSE_BCAST_MAC );
+      message.setAPDU( pdu );
+      setMessage( message );
+    }
+
+    // auxillary methods
+
+    void publish(long stNum) {
+      pdu.setStNum( stNum );
+      pdu.stamp();
+      broadcast();
+    }
+  }
+
+  /**
+   * Records the last stNum of each gocbRef and the threads processing it
+   */
+  static final class Subscriber extends GOOSESubscriber {
+
+    // attributes
+
+    final Map<String, Long> last = new HashMap<String, Long>();
+    final Set<String> threads = new HashSet<String>();
+    int disordered = 0;
+    private int count = 0;
+
+    // constructors
+
+    Subscriber(FrameTransport transport) {
+      super( transport );
+    }
+
+    // accessors
+
+    synchronized int count() {
+      return count;
+    }
+
+    // auxillary methods
+
+    public synchronized void processMessage(GOOSEMessage message) {
+      GOOSEMessageGoosePDU pdu = (GOOSEMessageGoosePDU) message.getAPDU();
+      Long previous = last.get( pdu.getGocbRef() );
+      if (previous != null && pdu.getStNum() <= previous) {
+        disordered++;
+      }
+      last.put( pdu.getGocbRef(), pdu.getStNum() );
+      threads.add( pdu.getGocbRef() + "@" + Thread.currentThread().getName() );
+      count++;
+    }
+  }
+}
@@ -0,0 +1,305 @@
+/**
+ *
+ * Copyright (c) 2008, Packwolf Consulting Ltd, All Rights Reserved.
+ *
+ * @author      Nishchal Kush
+ * @version     %I%, %G%
+ * @since       1.0
+ */
+package fj.com.kush.utility.iec61850;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static fj.com.kush.utility.TestSupport.check;
+
+/**
+ * Checks <code>GOOSESubscriptionIndex</code> against a brute force matcher, a
+ * list of the subscriptions each compared with every frame, over random
+ * sequences of adds and removes at every combination of wildcard MAC address,
+ * APPID and gocbRef, enough (MAC, APPID) pairs being added for the tables to
+ * grow. Frames from MAC addresses, APPIDs and gocbRefs never subscribed are
+ * routed too.
+ */
+public class GOOSESubscriptionIndexTest {
+
+  // constants
+
+  private static final int      MACS    = 40;
+  private static final int[]    APPIDS  = { 0, 1, 0x1234, 0x3fff };
+  private static final String[] REFS    = { "IED1LD0/LLN0$GO$gcb1",
+      "IED1LD0/LLN0$GO$gcb2", "IED2LD0/LLN0$GO$gcb1", "a",
+      "IED1LD0/LLN0$GO$gcb10" };
+  private static final int      VALUES  = 4;
+  private static final int      OPS     = 6000;
+
+  // auxillary methods
+
+  /**
+   * Runs the tests, throwing an <code>AssertionError</code> on failure
+   *
+   * @param args
+   *          ignored
+   * @throws Exception
+   *           if a frame cannot be encoded
+   */
+  public static void main(String[] args) throws Exception {
+    List<byte[]> frames = GOOSESubscriptionIndexTest.frames();
+    testRandom( frames, 1, false );
+    testRandom( frames, 2, true );
+    testRandom( frames, 3, true );
+    System.out.println( "GOOSESubscriptionIndexTest ok" );
+  }
+
+  /**
+   * Random adds and removes, with wildcards at every level, checking the
+   * index against the brute force matcher after every change, routing a
+   * random frame, and every frame now and then
+   */
+  static void testRandom(List<byte[]> frames, long seed, boolean wildcards) {
+    Random random = new Random( seed );
+    GOOSESubscriptionIndex<Integer> index =
+        new GOOSESubscriptionIndex<Integer>();
+    List<Subscription> expected = new ArrayList<Subscription>();
+    GOOSEFrameView view = new GOOSEFrameView();
+
+    for (int op = 0; op < OPS; op++) {
+      Subscription s = GOOSESubscriptionIndexTest.subscription( random,
+          wildcards );
+      // add more often than remove for the first half, so the tables grow
+      boolean add = random.nextInt( 10 ) < ( op < OPS / 2 ? 7 : 3 );
+      if (add) {
+        boolean added = index.add( s.mac, s.appId, s.gocbRef, s.value );
+        check( added == !expected.contains( s ), "add " + s );
+        if (added) {
+          expected.add( s );
+        }
+      } else {
+        boolean removed = index.remove( s.mac, s.appId, s.gocbRef, s.value );
+        check( removed == expected.remove( s ), "remove " + s );
+      }
+      check( index.size() == expected.size(), "size " + index.size() + " != "
+          + expected.size() );
+      check( index.isEmpty() == expected.isEmpty(), "empty" );
+      check( index.contains( s.mac, s.appId, s.gocbRef ) == contains(
+          expected, s ), "contains " + s );
+
+      if (op == OPS / 2) {
+        // the (MAC, APPID) table grew at least twice
+        check( pairs( expected ) > GOOSESubscriptionIndex.INITIAL_CAPACITY * 3,
+            "pairs " + pairs( expected ) );
+      }
+
+      int sweep = ( op % 3000 == 2999 ? frames.size() : 1 );
+      for (int i = 0; i < sweep; i++) {
+        byte[] frame = ( sweep == frames.size() ? frames.get( i )
+            : frames.get( random.nextInt( frames.size() ) ) );
+        check( view.wrap( frame, 0, frame.length ), "frame invalid" );
+        checkRoute( index, expected, view );
+      }
+    }
+
+    List<Integer> values = index.getValues();
+    check( values.size() == expected.size(), "values " + values.size() );
+    for (Subscription s : new ArrayList<Subscription>( expected )) {
+      check( index.remove( s.mac, s.appId, s.gocbRef, s.value ), "remove "
+          + s );
+      expected.remove( s );
+    }
+    check( index.isEmpty() && index.size() == 0, "not empty" );
+    check( view.wrap( frames.get( 0 ), 0, frames.get( 0 ).length )
+        && !index.matches( view ), "matched an empty index" );
+  }
+
+  /**
+   * Checks the frame is routed to the values of the subscriptions matching
+   * it, by brute force
+   */
+  static void checkRoute(GOOSESubscriptionIndex<Integer> index,
+      List<Subscription> expected, GOOSEFrameView view) {
+    byte[] bytes = new byte[view.gocbRefLength()];
+    view.copyGocbRef( bytes, 0 );
+    String gocbRef = new String( bytes, StandardCharsets.US_ASCII );
+    List<Integer> wanted = new ArrayList<Integer>();
+    for (Subscription s : expected) {
+      if (s.matches( view.srcMac(), view.appId(), gocbRef )) {
+        wanted.add( s.value );
+      }
+    }
+    final List<Integer> visited = new ArrayList<Integer>();
+    int count = index.route( view, ( value, v ) -> visited.add( value ) );
+    Collections.sort( wanted );
+    Collections.sort( visited );
+    check( visited.equals( wanted ), "routed " + visited + " != " + wanted
+        + " for " + Long.toHexString( view.srcMac() ) + "/" + view.appId() );
+    check( count == wanted.size(), "count " + count );
+    check( index.matches( view ) == !wanted.isEmpty(), "matches" );
+    check( index.route( view, null ) == ( wanted.isEmpty() ? 0 : 1 ),
+        "route without a visitor" );
+  }
+
+  /**
+   * Gets the number of (MAC, APPID) pairs subscribed with neither a wildcard
+   */
+  static int pairs(List<Subscription> expected) {
+    Set<Long> pairs = new HashSet<Long>();
+    for (Subscription s : expected) {
+      if (s.mac != GOOSESubscriptionIndex.ANY_MAC
+          && s.appId != GOOSESubscriptionIndex.ANY_APPID) {
+        pairs.add( ( s.mac << 16 ) | s.appId );
+      }
+    }
+    return pairs.size();
+  }
+
+  /**
+   * Checks if the list holds a subscription with exactly the levels of the
+   * one supplied
+   */
+  static boolean contains(List<Subscription> expected, Subscription levels) {
+    for (Subscription s : expected) {
+      if (s.mac == levels.mac && s.appId == levels.appId
+          && ( s.gocbRef == null ? levels.gocbRef == null
+              : s.gocbRef.equals( levels.gocbRef ) )) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Creates a random subscription from the pools of levels
+   */
+  static Subscription subscription(Random random, boolean wildcards) {
+    long mac = mac( random.nextInt( MACS ) );
+    int appId = APPIDS[random.nextInt( APPIDS.length )];
+    String gocbRef = REFS[random.nextInt( REFS.length )];
+    if (wildcards) {
+      if (random.nextInt( 4 ) == 0) {
+        mac = GOOSESubscriptionIndex.ANY_MAC;
+      }
+      if (random.nextInt( 3 ) == 0) {
+        appId = GOOSESubscriptionIndex.ANY_APPID;
+      }
+      if (random.nextInt( 3 ) == 0) {
+        gocbRef = null;
+      }
+    }
+    return new Subscription( mac, appId, gocbRef, random.nextInt( VALUES ) );
+  }
+
+  /**
+   * Gets the MAC address of the index supplied, the first being 0
+   */
+  static long mac(int index) {
+    return ( index == 0 ? 0L : 0x020000000000L + index * 0x010203L );
+  }
+
+  /**
+   * Encodes a frame for every combination of the MAC addresses, APPIDs and
+   * gocbRefs, and of some never subscribed
+   */
+  static List<byte[]> frames() throws Exception {
+    List<byte[]> frames = new ArrayList<byte[]>();
+    String[] refs = Arrays.copyOf( REFS, REFS.length + 1 );
+    refs[REFS.length] = "IED1LD0/LLN0$GO$gcb";
+    int[] appIds = Arrays.copyOf( APPIDS, APPIDS.length + 1 );
+    appIds[APPIDS.length] = 0x2000;
+    for (int m = 0; m <= MACS; m++) {
+      for (int a = 0; a < appIds.length; a++) {
+        for (int r = 0; r < refs.length; r++) {
+          frames.add( frame( m < MACS ? mac( m ) : 0x0affffffffffL,
+              appIds[a], refs[r] ) );
+        }
+      }
+    }
+    return frames;
+  }
+
+  /**
+   * Encodes a GOOSE frame from the levels supplied
+   */
+  static byte[] frame(long mac, int appId, String gocbRef) throws Exception {
+    byte[] src = new byte[6];
+    for (int i = 0; i < 6; i++) {
+      src[i] = (byte) ( mac >>> ( 40 - 8 * i ) );
+    }
+    GOOSEMessageGoosePDU pdu = new GOOSEMessageGoosePDU();
+    pdu.setGocbRef( gocbRef );
+    pdu.setDatSet( "IED1LD0/LLN0$DS1" );
+    pdu.setGoID( "id" );
+    pdu.setStNum( 1 );
+    pdu.setTimeAllocatedtoLive( 2000 );
+    GOOSEAllData allData = new GOOSEAllData();
+    allData.addGOOSEData( new GOOSEData( GOOSEDataTypes.TYPE_BOOL,
+        Boolean.TRUE ) );
+    pdu.setAllData( allData );
+
+    GOOSEMessage message = new GOOSEMessage();
+    message.setMessageType( GOOSEMessage.GOOSE_MESSAGE );
+    message.setDst( GOOSEMessage.GOOSE_BCAST_MAC );
+    message.setSrc( src );
+    message.setAppid( new byte[] { (byte) ( appId >>> 8 ), (byte) appId } );
+    message.setAPDU( pdu );
+    return message.toBytes();
+  }
+
+  /**
+   * A subscription of the brute force matcher
+   */
+  static final class Subscription {
+
+    // attributes
+
+    final long    mac;
+    final int     appId;
+    final String  gocbRef;
+    final Integer value;
+
+    // constructors
+
+    Subscription(long mac, int appId, String gocbRef, int value) {
+      this.mac = mac;
+      this.appId = appId;
+      this.gocbRef = gocbRef;
+      this.value = value;
+    }
+
+    // auxillary methods
+
+    /**
+     * Checks if the subscription matches the levels of a frame, one by one
+     */
+    boolean matches(long mac, int appId, String gocbRef) {
+      return ( this.mac == GOOSESubscriptionIndex.ANY_MAC || this.mac == mac )
+          && ( this.appId == GOOSESubscriptionIndex.ANY_APPID
+              || this.appId == appId )
+          && ( this.gocbRef == null || this.gocbRef.equals( gocbRef ) );
+    }
+
+    public boolean equals(Object o) {
+      if (!( o instanceof Subscription )) {
+        return false;
+      }
+      Subscription s = (Subscription) o;
+      return this.mac == s.mac && this.appId == s.appId
+          && this.value.equals( s.value ) && ( this.gocbRef == null
+              ? s.gocbRef == null : this.gocbRef.equals( s.gocbRef ) );
+    }
+
+    public int hashCode() {
+      return (int) this.mac ^ this.appId ^ this.value;
+    }
+
+    public String toString() {
+      return Long.toHexString( this.mac ) + "/" + this.appId + "/"
+          + this.gocbRef + "=" + this.value;
+    }
+  }
+}
@@ -0,0 +1,210 @@
+/**
+ *
+ * Copyright (c) 2008, Packwolf Consulting Ltd, All Rights Reserved.
+ *
+ * @author      Nishchal Kush
+ * @version     %I%, %G%
+ * @since       1.0
+ */
+package fj.com.kush.utility.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.jnetpcap.Pcap;
+import org.jnetpcap.PcapHeader;
+import org.jnetpcap.nio.JBuffer;
+import org.jnetpcap.nio.JMemory;
+
+import static fj.com.kush.utility.TestSupport.check;
+
+/**
+ * Writes pcap and pcapng files with <code>PcapFileWriter</code>, a frame or
+ * a batch of frames at a time, through windows small enough to be remapped
+ * many times, and reads them back with <code>PcapFileReader</code>, checking
+ * every frame, its lengths, interface and nanosecond timestamp. The files are
+ * also read back by libpcap through jnetpcap, when the native library is
+ * installed.
+ */
+public class PcapFileWriterTest {
+
+  // constants
+
+  private static final int  FRAMES  = 2000;
+  private static final int  SNAPLEN = 200;
+  private static final long T0      = 1700000000123456789L;
+
+  // auxillary methods
+
+  /**
+   * Runs the tests, throwing an <code>AssertionError</code> on failure
+   *
+   * @param args
+   *          ignored
+   * @throws Exception
+   *           if a file can not be written or read
+   */
+  public static void main(String[] args) throws Exception {
+    File pcap = File.createTempFile( "PcapFileWriterTest", ".pcap" );
+    File pcapng = File.createTempFile( "PcapFileWriterTest", ".pcapng" );
+    try {
+      test( pcap.getPath(), PcapFileWriter.FORMAT_PCAP );
+      test( pcapng.getPath(), PcapFileWriter.FORMAT_PCAPNG );
+    } finally {
+      pcap.delete();
+      pcapng.delete();
+    }
+    System.out.println( "PcapFileWriterTest ok" );
+  }
+
+  /**
+   * Writes and reads back a file of the format specified
+   */
+  static void test(String file, int format) throws IOException {
+    Random random = new Random( format );
+    byte[][] frames = new byte[FRAMES][];
+    long[] times = new long[FRAMES];
+    int[] ifaces = new int[FRAMES];
+
+    PcapFileWriter writer = new PcapFileWriter( Paths.get( file ), format,
+        PcapFileWriter.LINKTYPE_ETHERNET, SNAPLEN, 4096 );
+    int second = writer.addInterface( PcapFileWriter.LINKTYPE_ETHERNET,
+        SNAPLEN * 2, "eth1" );
+    check( format == PcapFileWriter.FORMAT_PCAP ? second == -1 : second == 1,
+        "interface " + second );
+    for (int i = 0; i < FRAMES; i++) {
+      frames[i] = new byte[14 + random.nextInt( 400 )];
+      random.nextBytes( frames[i] );
+      times[i] = T0 + i * 1001L + random.nextInt( 1000 );
+      ifaces[i] = ( second > 0 && random.nextBoolean() ? second : 0 );
+      if (i % 10 == 0 && i + 4 <= FRAMES) {
+        // the next 4 frames too, back to back in one array
+        i = writeBatch( writer, random, i, 4, frames, times, ifaces );
+      } else if (( i & 1 ) == 0) {
+        writer.write( ifaces[i], times[i], frames[i], 0, frames[i].length );
+      } else {
+        // a slice of a larger buffer
+        ByteBuffer buffer = ByteBuffer.allocate( frames[i].length + 8 );
+        buffer.position( 3 );
+        buffer.put( frames[i] );
+        buffer.position( 3 ).limit( 3 + frames[i].length );
+        writer.write( ifaces[i], times[i], buffer );
+        check( buffer.position() == 3, "slice position changed" );
+      }
+    }
+    check( writer.getRecordCount() == FRAMES, "records "
+        + writer.getRecordCount() );
+    writer.close();
+
+    readBack( file, format, frames, times, ifaces );
+    readBackWithLibpcap( file, frames, times, ifaces );
+  }
+
+  /**
+   * Writes the number of frames specified from the index supplied, held back
+   * to back in one array, with the same interface and timestamp
+   *
+   * @return int the index of the last frame written
+   */
+  static int writeBatch(PcapFileWriter writer, Random random, int first,
+      int count, byte[][] frames, long[] times, int[] ifaces)
+      throws IOException {
+    int[] offsets = new int[count];
+    int[] lengths = new int[count];
+    int total = 5; // a gap before the first frame
+    for (int i = first; i < first + count; i++) {
+      frames[i] = new byte[14 + random.nextInt( 400 )];
+      random.nextBytes( frames[i] );
+      times[i] = times[first];
+      ifaces[i] = ifaces[first];
+      offsets[i - first] = total;
+      lengths[i - first] = frames[i].length;
+      total += frames[i].length;
+    }
+    byte[] slab = new byte[total];
+    for (int i = 0; i < count; i++) {
+      System.arraycopy( frames[first + i], 0, slab, offsets[i], lengths[i] );
+    }
+    writer.write( ifaces[first], times[first], slab, offsets, lengths, count );
+    return first + count - 1;
+  }
+
+  /**
+   * Reads the file back with <code>PcapFileReader</code>
+   */
+  static void readBack(String file, int format, byte[][] frames,
+      long[] times, int[] ifaces) throws IOException {
+    PcapFileReader reader = new PcapFileReader( file );
+    try {
+      check( reader.isPcapng() == ( format == PcapFileWriter.FORMAT_PCAPNG ),
+          "format" );
+      for (int i = 0; i < FRAMES; i++) {
+        check( reader.next(), "frame " + i + " missing" );
+        int caplen = Math.min( frames[i].length, snaplen( ifaces[i] ) );
+        check( reader.getOriginalLength() == frames[i].length, "length of "
+            + i );
+        check( reader.getCaptureLength() == caplen, "capture length of " + i );
+        check( reader.getTimeNanos() == times[i], "time of " + i + " "
+            + reader.getTimeNanos() + " != " + times[i] );
+        check( reader.getInterface() == ifaces[i], "interface of " + i );
+        check( reader.getLinkType() == PcapFileWriter.LINKTYPE_ETHERNET,
+            "link type of " + i );
+        check( Arrays.equals( Arrays.copyOfRange( reader.getArray(), reader
+            .getOffset(), reader.getOffset() + caplen ), Arrays.copyOf(
+            frames[i], caplen ) ), "bytes of " + i );
+      }
+      check( !reader.next(), "frames after the last" );
+      check( reader.getFrameCount() == FRAMES, "count "
+          + reader.getFrameCount() );
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Reads the file back with libpcap, at microsecond precision, if installed
+   */
+  static void readBackWithLibpcap(String file, byte[][] frames, long[] times,
+      int[] ifaces) {
+    Pcap pcap;
+    StringBuilder errbuf = new StringBuilder();
+    try {
+      pcap = Pcap.openOffline( file, errbuf );
+    } catch (LinkageError le) {
+      System.out.println( "libpcap read back skipped: " + le );
+      return;
+    }
+    check( pcap != null, "libpcap can not open " + file + ": " + errbuf );
+
+    try {
+      PcapHeader header = new PcapHeader( JMemory.POINTER );
+      JBuffer buffer = new JBuffer( JMemory.POINTER );
+      for (int i = 0; i < FRAMES; i++) {
+        check( pcap.nextEx( header, buffer ) == Pcap.NEXT_EX_OK, "frame " + i
+            + " missing in libpcap" );
+        int caplen = Math.min( frames[i].length, snaplen( ifaces[i] ) );
+        check( header.wirelen() == frames[i].length, "libpcap length of " + i );
+        check( header.caplen() == caplen, "libpcap capture length of " + i );
+        check( header.hdr_sec() * 1000000L + header.hdr_usec()
+            == times[i] / 1000, "libpcap time of " + i );
+        check( Arrays.equals( buffer.getByteArray( 0, caplen ), Arrays.copyOf(
+            frames[i], caplen ) ), "libpcap bytes of " + i );
+      }
+      check( pcap.nextEx( header, buffer ) == Pcap.NEXT_EX_EOF,
+          "libpcap frames after the last" );
+    } finally {
+      pcap.close();
+    }
+  }
+
+  /**
+   * Gets the snapshot length of the interface specified
+   */
+  private static int snaplen(int iface) {
+    return ( iface == 0 ? SNAPLEN : SNAPLEN * 2 );
+  }
+}